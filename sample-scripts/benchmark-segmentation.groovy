@@ -0,0 +1,42 @@
+import qupath.ext.liverquant.core.*
+
+/*
+ * This script compares the two implementations segmenting the tiles by color
+ * (FatGlobulesDetectorParameters.SegmentationBackend.OPENCV and
+ * FatGlobulesDetectorParameters.SegmentationBackend.JAVA) on random tiles of
+ * the current image.
+ *
+ * For each tile size, it prints the average time each implementation takes to
+ * segment one tile, and checks that both implementations create the same masks.
+ * The fastest implementation can then be set with the segmentationBackend
+ * variable of the run-detection-with-parameters.groovy script.
+ *
+ * An image must be currently opened in QuPath through the QuPath GUI or
+ * through the command line.
+ */
+
+def tileSizes = [64, 128, 256, 512, 1024]       // the width and height (in pixels) of the tiles to segment
+def numberOfTiles = 16                          // the number of tiles to read for each tile size
+def repetitions = 20                            // the number of times each tile is segmented by each implementation
+def seed = 42                                   // the seed of the random positions of the tiles
+def lowerBound = new HsvArray(0, 0, 200)        // the bounds of the segmentation
+def upperBound = new HsvArray(180, 25, 255)
+
+
+def server = getCurrentServer()
+if (server == null) {
+    println "An image must be open before running this script"
+    return
+}
+
+for (def result: SegmentationBenchmark.run(server, lowerBound, upperBound, tileSizes, numberOfTiles, repetitions, seed)) {
+    println String.format(
+            "%dx%d pixels: OpenCV %.1f µs, Java %.1f µs, speedup %.2f, %d mismatching pixels",
+            result.tileSize(),
+            result.tileSize(),
+            result.openCvNanosPerTile() / 1000,
+            result.javaNanosPerTile() / 1000,
+            result.getSpeedup(),
+            result.mismatchingPixels()
+    )
+}
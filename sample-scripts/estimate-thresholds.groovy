@@ -0,0 +1,38 @@
+import qupath.ext.liverquant.core.*
+
+/*
+ * This script proposes HSV bounds for the fat globule detection and for the
+ * tissue detection of the current image. Only the low resolution image and a
+ * few random tiles of tissue are read, so this takes a few seconds.
+ *
+ * The proposed bounds are printed and can be copied to the
+ * run-detection-with-parameters.groovy script.
+ *
+ * An image must be currently opened in QuPath through the QuPath GUI or
+ * through the command line.
+ */
+
+// The number of random tiles of tissue to read, and the seed of the random choice
+// (the same seed gives the same proposed bounds)
+def numberOfTiles = 24
+def seed = 42
+
+
+def imageData = getCurrentImageData()
+if (imageData == null) {
+    println "An image must be open before running this script"
+    return
+}
+
+def estimation = HsvThresholdEstimator.estimate(
+        new FatGlobulesDetectorParameters.Builder(imageData)
+                .setProgressDisplay(FatGlobulesDetectorParameters.ProgressDisplay.LOG)
+                .build(),
+        numberOfTiles,
+        seed
+)
+
+println "def lowerBound = new HsvArray(${estimation.globuleLowerBound().hue()}, ${estimation.globuleLowerBound().saturation()}, ${estimation.globuleLowerBound().value()})"
+println "def upperBound = new HsvArray(${estimation.globuleUpperBound().hue()}, ${estimation.globuleUpperBound().saturation()}, ${estimation.globuleUpperBound().value()})"
+println "def lowerBoundTissueDetection = new HsvArray(${estimation.tissueLowerBound().hue()}, ${estimation.tissueLowerBound().saturation()}, ${estimation.tissueLowerBound().value()})"
+println "def upperBoundTissueDetection = new HsvArray(${estimation.tissueUpperBound().hue()}, ${estimation.tissueUpperBound().saturation()}, ${estimation.tissueUpperBound().value()})"
@@ -0,0 +1,42 @@
+import qupath.ext.liverquant.core.*
+
+/*
+ * This script runs the detection on all images of the current project.
+ * Tiles of several images are processed at the same time on one shared pool
+ * of threads, and each image is saved as soon as its detection is complete.
+ * An error on one image doesn't stop the processing of the other images.
+ * Completed tiles are periodically saved next to each project entry, so that
+ * running this script again after an interruption skips the work already done.
+ *
+ * Take a look at the run-detection-with-parameters.groovy script to see
+ * how to define the parameters of the detection.
+ *
+ * A project must be currently opened in QuPath through the QuPath GUI or
+ * through the command line.
+ */
+
+// The maximal number of images to handle at the same time
+def numberOfImagesInParallel = 2
+
+
+def project = getProject()
+if (project == null) {
+    println "A project must be open before running this script"
+    return
+}
+
+def failedEntries = BatchDetector.run(
+        project,
+        { entry, imageData ->
+            new FatGlobulesDetectorParameters.Builder(imageData)
+                    .setDetectionRegion(FatGlobulesDetectorParameters.DetectionRegion.DETECTED_TISSUE)
+                    .setCheckpointPath(BatchDetector.getCheckpointPath(entry))
+                    .setResume(true)
+                    .build()
+        },
+        numberOfImagesInParallel
+)
+
+for (def entry : failedEntries) {
+    println "The detection failed on ${entry.getImageName()}"
+}
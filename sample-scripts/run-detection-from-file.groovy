@@ -0,0 +1,33 @@
+import qupath.ext.liverquant.core.*
+
+import java.nio.file.Files
+import java.nio.file.Path
+
+/*
+ * This script runs the globule detection with parameters read from a JSON file,
+ * so that the same parameters can be used on several computers. It can be run
+ * from the command line, with the path of the file as argument:
+ *
+ * QuPath script -i /path/to/image -a /path/to/parameters.json run-detection-from-file.groovy
+ *
+ * If the file doesn't exist, it is created with the default parameters and can then
+ * be edited. Parameters missing from the file keep their default value. The
+ * annotations, the progress display, and the label image cannot be read from a file.
+ *
+ * The fingerprint of the parameters is printed once the detection is complete, and is
+ * also stored in the metadata of each processed annotation.
+ *
+ * An image must be currently opened in QuPath through the QuPath GUI or
+ * through the command line.
+ */
+
+def parametersPath = binding.hasVariable("args") && args.length > 0 ? Path.of(args[0]) : Path.of("/path/to/parameters.json")   // the path of the JSON file containing the parameters
+
+
+if (!Files.exists(parametersPath)) {
+    ParametersSerializer.write(new FatGlobulesDetectorParameters.Builder(getCurrentImageData()).build(), parametersPath)
+    println "Default parameters written to ${parametersPath}"
+}
+
+def result = FatGlobuleDetector.run(parametersPath, getCurrentImageData()).get()
+println "Detection complete with the parameters of fingerprint ${result.parametersFingerprint()}: ${result.measurements()}"
@@ -17,6 +17,11 @@ def detectionRegion = FatGlobulesDetectorParameters.DetectionRegion.DETECTED_TIS
                                                                                         // detection and perform the fat globule detection within the annotations defined below
 def annotations = []       // Define the annotations where to perform the fat globule detection, for example getSelectedObjects(). This parameter is only taken
                                     // into account if the detectionRegion variable above is defined to FatGlobulesDetectorParameters.DetectionRegion.SELECTED_ANNOTATIONS
+def incremental = false        // if true, only the parts of the annotations that changed since the previous (incremental) detection are processed again.
+                               // This parameter is only taken into account if the detectionRegion variable above is defined to
+                               // FatGlobulesDetectorParameters.DetectionRegion.SELECTED_ANNOTATIONS
+def incrementalStatePath = null    // set for example to java.nio.file.Path.of("/path/to/incremental-state.json") to save the state needed by incremental detections.
+                                   // Incremental detections are only performed if this path is set
 def progressDisplay = FatGlobulesDetectorParameters.ProgressDisplay.WINDOW      // or FatGlobulesDetectorParameters.ProgressDisplay.LOG to not use the UI
 def objectToCreate = FatGlobulesDetectorParameters.ObjectToCreate.DETECTION     // or FatGlobulesDetectorParameters.ObjectToCreate.ANNOTATION to create annotations instead of detections
 def pixelSize = -1                                                  // pixel size in microns at which the detection should be performed. A negative value means using the full resolution image
@@ -28,12 +33,46 @@ def minIsolatedGlobuleSolidity = 0.85       // the minimal solidity a shape shou
 def minOverlappingGlobuleSolidity = 0.7     // the minimal solidity a shape should have to be considered as an overlapping globule
 def minDiameter = 5                            // the minimal diameter (in microns) a shape should have to be considered as a globule
 def maxDiameter = 100                          // the maximal diameter (in microns) a shape should have to be considered as an isolated globule
+def macrovesicularDiameter = 15                // the diameter (in microns) from which a globule is considered as macrovesicular (and not microvesicular) in the measurements
 def tileWidth = 512                            // the width of each tile (in pixels) at which the detection should be performed
 def tileHeight = 512                           // the height of each tile (in pixels) at which the detection should be performed
 def padding = 64                               // the padding (in pixels) of each tile at which the detection should be performed
 def boundaryThreshold = 0.5                 // Objects created on the boundaries of tiles are merged with a shared boundary IoU criterion.
                                                        // The boundary threshold is the minimum intersection-over-union (IoU) proportion
                                                        // of the possibly-clipped boundary for merging
+def densityMapPath = null                   // set for example to java.nio.file.Path.of("/path/to/density_map.tif") to write a 32-bit TIFF image
+                                            // where each pixel contains the fat pixel fraction of a square cell of the image
+def densityMapCellSize = 100                // the size (in microns) of each cell of the fat pixel fraction map
+def maskCacheDirectory = null               // set for example to java.nio.file.Path.of("/path/to/cache") to cache the segmentation masks of the tiles.
+                                            // A new run that only changes the filter parameters will then not read or segment the image again
+def maskCacheMaxSize = 1L << 30             // the maximal size (in bytes) the cache of segmentation masks can take on disk
+def checkpointPath = null                   // set for example to java.nio.file.Path.of("/path/to/checkpoint.txt") to periodically save the completed tiles,
+                                            // so that an interrupted detection can be resumed. The file is deleted once the detection is complete
+def resume = false                          // if true, the tiles already saved in the checkpoint file are not processed again
+def nativeMemoryBudget = 0                  // the maximal native (off-heap) memory (in bytes) the tiles processed at the same time can use,
+                                            // for example 4L << 30 for 4 GB. 0 to not limit the number of tiles processed at the same time
+def metricsEnabled = false                  // if true, the time spent in each stage of the detection and the throughput are logged at the end of the detection
+def progressListener = null                 // set for example to { progress -> println(progress) } to be notified of the phase, number of completed tiles,
+                                            // throughput, estimated time remaining, and running globule count and fat area (a few times per second)
+def priorityRegion = null                   // set for example to qupath.lib.regions.ImageRegion.createInstance(0, 0, 5000, 5000, 0, 0) to process the tiles
+                                            // of this region first, and then the other tiles spiralling outward from it
+def publicationInterval = 0                 // the time (in milliseconds) between two additions of the globules of completed tiles to the hierarchy while
+                                            // the detection is running (for example 1000), or 0 to only add globules at the end of the detection
+def publicationBatchSize = 10000            // the maximal number of globules added to the hierarchy at each of these additions
+def planes = []                             // set for example to (0..<getCurrentServer().nZSlices()).collect { z -> qupath.lib.regions.ImagePlane.getPlane(z, 0) }
+                                            // to run the detection on every z-slice. The planes are processed concurrently, and the measurements are
+                                            // aggregated per plane and across planes. An empty list uses the plane of the tissue detection or of the annotations
+def colorClasses = []                       // set for example to [new ColorClass("Collagen", new HsvArray(150, 40, 0), new HsvArray(180, 255, 255))] to also measure
+                                            // the area of other classes of pixels (segmented in the same pass as the fat) in each annotation
+def segmentationBackend = FatGlobulesDetectorParameters.SegmentationBackend.OPENCV  // the implementation segmenting the tiles by color. Can be FatGlobulesDetectorParameters.SegmentationBackend.JAVA,
+                                                                                    // which creates identical masks and can be faster with small tiles (see the benchmark-segmentation.groovy script)
+def labelImage = null                       // set to new GlobuleLabelImage() to write the globules to this label image instead of creating one object per globule.
+                                            // It can be displayed with getCurrentViewer().getCustomOverlayLayers().add(new qupath.ext.liverquant.gui.GlobuleLabelOverlay(
+                                            // getCurrentViewer().getOverlayOptions(), labelImage)). The measurements of the annotations are still computed
+def labelExportPath = null                  // set for example to java.nio.file.Path.of("/path/to/labels.ome.tif") to export the globules to a pyramidal OME-TIFF
+                                            // label image (1 for microvesicular and 2 for macrovesicular globules) that can be opened by other software
+def boundaryMerging = FatGlobulesDetectorParameters.BoundaryMerging.QUPATH  // how globules crossing tile boundaries are merged. FatGlobulesDetectorParameters.BoundaryMerging.STITCHING
+                                                                            // merges them while the tiles are processed instead of once all tiles of an annotation are processed
 def onFinished = () -> {
     // Everything here will be executed after the detection is complete.
     // Note that if you print something here, you'll have to open the QuPath logs to see it (it won't show on the script editor)
@@ -64,6 +103,8 @@ FatGlobuleDetector.run(new FatGlobulesDetectorParameters.Builder(imageData)
         )
         .setAnnotations(annotations)
         .setDetectionRegion(detectionRegion)
+        .setIncremental(incremental)
+        .setIncrementalStatePath(incrementalStatePath)
         .setProgressDisplay(progressDisplay)
         .setObjectToCreate(objectToCreate)
         .setPixelSize(pixelSize)
@@ -75,10 +116,29 @@ FatGlobuleDetector.run(new FatGlobulesDetectorParameters.Builder(imageData)
         .setMinOverlappingGlobuleSolidity(minOverlappingGlobuleSolidity)
         .setMinDiameter(minDiameter)
         .setMaxDiameter(maxDiameter)
+        .setMacrovesicularDiameter(macrovesicularDiameter)
         .setTileWidth(tileWidth)
         .setTileHeight(tileHeight)
         .setPadding(padding)
         .setBoundaryThreshold(boundaryThreshold)
+        .setDensityMapPath(densityMapPath)
+        .setDensityMapCellSize(densityMapCellSize)
+        .setMaskCacheDirectory(maskCacheDirectory)
+        .setMaskCacheMaxSize(maskCacheMaxSize)
+        .setCheckpointPath(checkpointPath)
+        .setResume(resume)
+        .setNativeMemoryBudget(nativeMemoryBudget)
+        .setMetricsEnabled(metricsEnabled)
+        .setProgressListener(progressListener)
+        .setPriorityRegion(priorityRegion)
+        .setPublicationInterval(publicationInterval)
+        .setPublicationBatchSize(publicationBatchSize)
+        .setPlanes(planes)
+        .setColorClasses(colorClasses)
+        .setSegmentationBackend(segmentationBackend)
+        .setLabelImage(labelImage)
+        .setLabelExportPath(labelExportPath)
+        .setBoundaryMerging(boundaryMerging)
         .setOnFinished(onFinished)
         .build()
 )
\ No newline at end of file
@@ -0,0 +1,42 @@
+import qupath.ext.liverquant.core.*
+
+/*
+ * This script evaluates several sets of filter parameters in one pass.
+ * The image is segmented only once, and no object is added to the hierarchy:
+ * the number of globules and the steatosis proportionate area obtained with
+ * each set of parameters are printed for each annotation.
+ *
+ * Take a look at the run-detection-with-parameters.groovy script to see
+ * how to define the other parameters of the detection.
+ *
+ * An image must be currently opened in QuPath through the QuPath GUI or
+ * through the command line.
+ */
+
+// Each set contains, in this order: the minimal isolated globule elongation, the minimal overlapping globule elongation,
+// the minimal isolated globule solidity, the minimal overlapping globule solidity, the minimal diameter (in microns),
+// and the maximal diameter (in microns)
+def filterParameters = []
+for (def minIsolatedGlobuleSolidity : [0.8f, 0.85f, 0.9f]) {
+    for (def minDiameter : [3f, 5f, 7f]) {
+        filterParameters << new GlobuleFilterParameters(0.4f, 0.05f, minIsolatedGlobuleSolidity, 0.7f, minDiameter, 100f)
+    }
+}
+
+
+def imageData = getCurrentImageData()
+if (imageData == null) {
+    println "An image must be open before running this script"
+    return
+}
+
+def results = FilterParameterSweep.run(
+        new FatGlobulesDetectorParameters.Builder(imageData)
+                .setProgressDisplay(FatGlobulesDetectorParameters.ProgressDisplay.LOG)
+                .build(),
+        filterParameters
+)
+
+for (def result : results) {
+    println "${result.annotation()}: ${result.filterParameters()} -> ${result.globuleCount()} globules, steatosis proportionate area of ${result.steatosisProportionateArea()}"
+}
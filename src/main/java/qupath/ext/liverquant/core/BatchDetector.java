@@ -0,0 +1,146 @@
+package qupath.ext.liverquant.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.common.ThreadTools;
+import qupath.lib.images.ImageData;
+import qupath.lib.projects.Project;
+import qupath.lib.projects.ProjectImageEntry;
+
+import java.awt.image.BufferedImage;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiFunction;
+
+/**
+ * <p>
+ *     Run the fat globule detection on all images of a project.
+ * </p>
+ * <p>
+ *     The tissue detection and the tiles of all images are processed on one shared pool of threads.
+ *     Several images are handled at the same time, so that the reading of one image overlaps with
+ *     the processing of the others.
+ * </p>
+ * <p>
+ *     An error on one image doesn't stop the processing of the other images. The data of each image
+ *     is saved to the project as soon as the detection on this image is complete.
+ * </p>
+ */
+public class BatchDetector {
+
+    private static final Logger logger = LoggerFactory.getLogger(BatchDetector.class);
+    private static final String CHECKPOINT_FILE_NAME = "liverquant-checkpoint.txt";
+
+    private BatchDetector() {
+        throw new AssertionError("This class is not instantiable.");
+    }
+
+    /**
+     * Run the detection on all images of the provided project. This function blocks until all images
+     * are processed, so it shouldn't be called from the JavaFX Application Thread.
+     *
+     * @param project  the project containing the images to process
+     * @param parametersFactory  a function creating the parameters of the detection from the entry and the data of an image.
+     *                           The progress display of the returned parameters is ignored
+     * @param numberOfImagesInParallel  the maximal number of images to handle at the same time
+     * @return the entries of the images whose processing failed. Errors are logged
+     * @throws IllegalArgumentException if the number of images in parallel is less than 1
+     */
+    public static List<ProjectImageEntry<BufferedImage>> run(
+            Project<BufferedImage> project,
+            BiFunction<ProjectImageEntry<BufferedImage>, ImageData<BufferedImage>, FatGlobulesDetectorParameters> parametersFactory,
+            int numberOfImagesInParallel
+    ) {
+        if (numberOfImagesInParallel < 1) {
+            throw new IllegalArgumentException(String.format(
+                    "The number of images in parallel must be at least 1 (got %d)", numberOfImagesInParallel
+            ));
+        }
+
+        int parallelism = ThreadTools.getParallelism();
+        ExecutorService sharedPool = Executors.newFixedThreadPool(parallelism, ThreadTools.createThreadFactory("liverquant-batch-worker-", true));
+        ExecutorService imagePool = Executors.newFixedThreadPool(numberOfImagesInParallel, ThreadTools.createThreadFactory("liverquant-batch-image-", true));
+        SharedPoolTaskRunner taskRunner = new SharedPoolTaskRunner(sharedPool, parallelism);
+
+        List<ProjectImageEntry<BufferedImage>> failedEntries = Collections.synchronizedList(new ArrayList<>());
+        try {
+            List<Future<?>> futures = project.getImageList().stream()
+                    .<Future<?>>map(entry -> imagePool.submit(() -> {
+                        if (!processImage(entry, parametersFactory, taskRunner)) {
+                            failedEntries.add(entry);
+                        }
+                    }))
+                    .toList();
+
+            for (Future<?> future: futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    logger.warn("Batch detection interrupted", e);
+                    break;
+                } catch (Exception e) {
+                    logger.error("Unexpected error during batch detection", e);
+                }
+            }
+        } finally {
+            imagePool.shutdownNow();
+            sharedPool.shutdownNow();
+        }
+
+        logger.info(
+                "Batch detection on {} complete: {} image(s) processed, {} failure(s)",
+                project.getName(),
+                project.getImageList().size() - failedEntries.size(),
+                failedEntries.size()
+        );
+        return failedEntries;
+    }
+
+    /**
+     * Get the path of a checkpoint file located next to the data of a project entry
+     * (see {@link FatGlobulesDetectorParameters.Builder#setCheckpointPath(Path)}).
+     *
+     * @param entry  the project entry whose checkpoint path should be retrieved
+     * @return the path of the checkpoint file of the provided entry, or null if the entry has no
+     * directory where data can be stored
+     */
+    public static Path getCheckpointPath(ProjectImageEntry<?> entry) {
+        Path entryPath = entry.getEntryPath();
+        return entryPath == null ? null : entryPath.resolve(CHECKPOINT_FILE_NAME);
+    }
+
+    private static boolean processImage(
+            ProjectImageEntry<BufferedImage> entry,
+            BiFunction<ProjectImageEntry<BufferedImage>, ImageData<BufferedImage>, FatGlobulesDetectorParameters> parametersFactory,
+            SharedPoolTaskRunner taskRunner
+    ) {
+        logger.info("Starting detection on {}", entry.getImageName());
+
+        ImageData<BufferedImage> imageData = null;
+        try {
+            imageData = entry.readImageData();
+            FatGlobuleDetector.detect(parametersFactory.apply(entry, imageData), taskRunner);
+            entry.saveImageData(imageData);
+
+            logger.info("Detection on {} complete", entry.getImageName());
+            return true;
+        } catch (Exception e) {
+            logger.error("Error when processing {}", entry.getImageName(), e);
+            return false;
+        } finally {
+            if (imageData != null) {
+                try {
+                    imageData.getServer().close();
+                } catch (Exception e) {
+                    logger.debug("Error when closing the server of {}", entry.getImageName(), e);
+                }
+            }
+        }
+    }
+}
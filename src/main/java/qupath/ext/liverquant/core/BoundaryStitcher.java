@@ -0,0 +1,461 @@
+package qupath.ext.liverquant.core;
+
+import org.locationtech.jts.geom.Geometry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.geom.Point2;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.utils.Tiler;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.regions.RegionRequest;
+import qupath.lib.roi.GeometryTools;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * <p>
+ *     A merger of the globules crossing the boundaries of tiles, used instead of the merging of the pixel processor
+ *     (see {@link FatGlobulesDetectorParameters.BoundaryMerging#STITCHING}).
+ * </p>
+ * <p>
+ *     The globules of a tile that don't touch any boundary shared with another tile are returned as soon as the tile
+ *     is processed. The other globules (the pieces) are indexed by the edges of the tile they touch, with the extent of
+ *     the pixels of their contour located on the first or last row or column of the tile. Once both tiles of an edge are
+ *     processed, the pieces of both sides of the edge are paired when their extents overlap with an
+ *     intersection-over-union greater than or equal to the boundary threshold. A group of paired pieces is merged and
+ *     returned as soon as all edges its pieces touch are processed.
+ * </p>
+ * <p>
+ *     Merging is therefore done by the threads processing the tiles, and only involves the few globules of an edge.
+ *     Pieces touching edges whose other tile was never processed (for example if the tiling of the pixel processor
+ *     differs from the planned one) are merged with the remaining pieces they touch when the detection is complete
+ *     (see {@link #finish()}).
+ * </p>
+ * <p>
+ *     This class is thread-safe.
+ * </p>
+ */
+class BoundaryStitcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(BoundaryStitcher.class);
+    private final Map<PathObject, ParentState> parentStates = new ConcurrentHashMap<>();
+    private final double boundaryThreshold;
+    private final FatGlobulesDetectorParameters fatGlobulesDetectorParameters;
+    private enum Side {
+        LEFT,
+        TOP,
+        RIGHT,
+        BOTTOM
+    }
+    private record TileKey(ImagePlane plane, long x, long y) {}
+    private record Edge(ImagePlane plane, boolean vertical, long line, long start) {}
+    private record Contact(Piece piece, double position, double start, double end) {}
+    private record Group(ImagePlane plane, List<Geometry> geometries, PathObject singleObject) {}
+
+    private static class Piece {
+
+        private final PathObject object;
+        private final List<Piece> members = new ArrayList<>();
+        private final List<Geometry> bridges = new ArrayList<>();
+        private Piece root = this;
+        private int numberOfUnresolvedContacts;
+        private boolean emitted = false;
+
+        public Piece(PathObject object, int numberOfContacts) {
+            this.object = object;
+            this.numberOfUnresolvedContacts = numberOfContacts;
+            this.members.add(this);
+        }
+
+        public Piece getRoot() {
+            Piece piece = this;
+            while (piece.root != piece) {
+                piece.root = piece.root.root;
+                piece = piece.root;
+            }
+            return piece;
+        }
+    }
+
+    private static class EdgeState {
+
+        private final List<Contact> firstContacts = new ArrayList<>();
+        private final List<Contact> secondContacts = new ArrayList<>();
+        private boolean firstProcessed = false;
+        private boolean secondProcessed = false;
+    }
+
+    private static class ParentState {
+
+        private final Set<TileKey> plannedTiles;
+        private final Map<Edge, EdgeState> edges = new HashMap<>();
+        private final Set<Piece> pendingRoots = new HashSet<>();
+
+        public ParentState(Set<TileKey> plannedTiles) {
+            this.plannedTiles = plannedTiles;
+        }
+    }
+
+    /**
+     * Create the stitcher. No globule is merged until {@link #plan(List)} is called.
+     *
+     * @param fatGlobulesDetectorParameters  the parameters of the detection, whose boundary threshold and type of
+     *                                       object to create are used
+     */
+    public BoundaryStitcher(FatGlobulesDetectorParameters fatGlobulesDetectorParameters) {
+        this.boundaryThreshold = fatGlobulesDetectorParameters.getBoundaryThreshold();
+        this.fatGlobulesDetectorParameters = fatGlobulesDetectorParameters;
+    }
+
+    /**
+     * Compute the tiles of each of the provided objects, so that the edges shared by two tiles are known.
+     * This must be called before the tiles are processed.
+     *
+     * @param objectsToProcess  the objects given to the pixel processor of the detection
+     */
+    public void plan(List<PathObject> objectsToProcess) {
+        Tiler tiler = TilePlan.createTiler(fatGlobulesDetectorParameters);
+
+        for (PathObject object: objectsToProcess) {
+            Set<TileKey> plannedTiles = new HashSet<>();
+            for (PathObject tile: tiler.createTiles(object.getROI())) {
+                ROI roi = tile.getROI();
+                plannedTiles.add(new TileKey(roi.getImagePlane(), Math.round(roi.getBoundsX()), Math.round(roi.getBoundsY())));
+            }
+
+            parentStates.put(object, new ParentState(plannedTiles));
+        }
+    }
+
+    /**
+     * Add the globules of a processed tile, and get the globules that are complete. This function can be called
+     * from any thread.
+     *
+     * @param parent  the object given to the pixel processor the tile belongs to
+     * @param regionRequest  the region of the tile, without padding
+     * @param numberOfRows  the number of rows of the image containing the globules
+     * @param numberOfColumns  the number of columns of the image containing the globules
+     * @param globules  the globules of the tile, whose ROIs were created from contours (as defined by OpenCV) of the tile
+     * @return the globules of the tile that don't touch a boundary shared with another tile, and the merged globules
+     * whose pieces are all processed. If the parent wasn't planned, the provided globules are returned
+     */
+    public List<PathObject> addTile(PathObject parent, RegionRequest regionRequest, int numberOfRows, int numberOfColumns, List<PathObject> globules) {
+        ParentState parentState = parentStates.get(parent);
+        if (parentState == null) {
+            return globules;
+        }
+
+        double downsample = regionRequest.getDownsample();
+        ImagePlane plane = regionRequest.getImagePlane();
+        Map<Side, Edge> edges = new LinkedHashMap<>();
+        for (Side side: Side.values()) {
+            Edge edge = getEdge(regionRequest, side, parentState.plannedTiles);
+            if (edge != null) {
+                edges.put(side, edge);
+            }
+        }
+
+        List<PathObject> completedGlobules = new ArrayList<>();
+        Map<Side, List<Contact>> contacts = new LinkedHashMap<>();
+        for (PathObject globule: globules) {
+            Map<Side, double[]> extents = getExtents(globule.getROI(), regionRequest, numberOfRows, numberOfColumns);
+            extents.keySet().retainAll(edges.keySet());
+
+            if (extents.isEmpty()) {
+                completedGlobules.add(globule);
+            } else {
+                Piece piece = new Piece(globule, extents.size());
+                for (Map.Entry<Side, double[]> extent: extents.entrySet()) {
+                    double[] values = extent.getValue();
+                    contacts.computeIfAbsent(extent.getKey(), side -> new ArrayList<>()).add(new Contact(
+                            piece,
+                            values[0],
+                            values[1] - downsample / 2,
+                            values[2] + downsample / 2
+                    ));
+                }
+            }
+        }
+
+        List<Group> completedGroups = new ArrayList<>();
+        synchronized (parentState) {
+            List<Piece> candidates = new ArrayList<>();
+            for (List<Contact> sideContacts: contacts.values()) {
+                for (Contact contact: sideContacts) {
+                    parentState.pendingRoots.add(contact.piece());
+                    candidates.add(contact.piece());
+                }
+            }
+
+            for (Map.Entry<Side, Edge> entry: edges.entrySet()) {
+                boolean first = entry.getKey() == Side.RIGHT || entry.getKey() == Side.BOTTOM;
+                EdgeState edgeState = parentState.edges.computeIfAbsent(entry.getValue(), edge -> new EdgeState());
+
+                if (first) {
+                    edgeState.firstContacts.addAll(contacts.getOrDefault(entry.getKey(), List.of()));
+                    edgeState.firstProcessed = true;
+                } else {
+                    edgeState.secondContacts.addAll(contacts.getOrDefault(entry.getKey(), List.of()));
+                    edgeState.secondProcessed = true;
+                }
+
+                if (edgeState.firstProcessed && edgeState.secondProcessed) {
+                    resolve(parentState, edgeState, entry.getValue().vertical());
+                    parentState.edges.remove(entry.getValue());
+
+                    for (Contact contact: edgeState.firstContacts) {
+                        candidates.add(contact.piece());
+                    }
+                    for (Contact contact: edgeState.secondContacts) {
+                        candidates.add(contact.piece());
+                    }
+                }
+            }
+
+            // Only the groups of the pieces of this tile or of a resolved edge can become complete
+            for (Piece candidate: candidates) {
+                Piece root = candidate.getRoot();
+
+                if (!root.emitted && root.numberOfUnresolvedContacts == 0) {
+                    parentState.pendingRoots.remove(root);
+                    completedGroups.add(createGroup(root, plane));
+                }
+            }
+        }
+
+        // Geometries are merged outside the lock, so that tiles of the same object can be merged concurrently
+        for (Group group: completedGroups) {
+            completedGlobules.add(merge(group));
+        }
+        return completedGlobules;
+    }
+
+    /**
+     * Merge the pieces whose edges were not all processed. This should be called once all tiles are processed.
+     * <p>
+     * The IoU of the contacts of these pieces cannot be computed, so the remaining pieces of an object that touch or
+     * overlap each other (pieces on each side of an edge are one pixel apart) are merged together, like the merging
+     * of the pixel processor does.
+     *
+     * @return the merged globules of each object given to the pixel processor. They are not added to the object
+     */
+    public Map<PathObject, List<PathObject>> finish() {
+        Map<PathObject, List<PathObject>> remainingGlobules = new LinkedHashMap<>();
+        double downsample = FatGlobuleDetector.getDownsample(fatGlobulesDetectorParameters);
+
+        for (Map.Entry<PathObject, ParentState> entry: parentStates.entrySet()) {
+            ParentState parentState = entry.getValue();
+            List<Group> groups = new ArrayList<>();
+
+            synchronized (parentState) {
+                for (Piece root: parentState.pendingRoots) {
+                    groups.add(createGroup(root, root.object.getROI().getImagePlane()));
+                }
+                parentState.pendingRoots.clear();
+                parentState.edges.clear();
+            }
+
+            if (!groups.isEmpty()) {
+                logger.debug("{} globule(s) of {} touch edges that were not processed on both sides", groups.size(), entry.getKey());
+                remainingGlobules.put(entry.getKey(), mergeTouchingGroups(groups, downsample));
+            }
+        }
+
+        return remainingGlobules;
+    }
+
+    private void resolve(ParentState parentState, EdgeState edgeState, boolean vertical) {
+        for (Contact firstContact: edgeState.firstContacts) {
+            for (Contact secondContact: edgeState.secondContacts) {
+                double intersection = Math.min(firstContact.end(), secondContact.end()) - Math.max(firstContact.start(), secondContact.start());
+                double union = (firstContact.end() - firstContact.start()) + (secondContact.end() - secondContact.start()) - intersection;
+
+                if (intersection > 0 && union > 0 && intersection / union >= boundaryThreshold) {
+                    Piece root = union(parentState, firstContact.piece(), secondContact.piece());
+
+                    root.bridges.add(createBridge(firstContact, secondContact, vertical));
+                }
+            }
+        }
+
+        for (Contact contact: edgeState.firstContacts) {
+            contact.piece().getRoot().numberOfUnresolvedContacts--;
+        }
+        for (Contact contact: edgeState.secondContacts) {
+            contact.piece().getRoot().numberOfUnresolvedContacts--;
+        }
+    }
+
+    private Group createGroup(Piece root, ImagePlane plane) {
+        root.emitted = true;
+
+        if (root.members.size() == 1 && root.bridges.isEmpty()) {
+            return new Group(plane, List.of(), root.object);
+        } else {
+            List<Geometry> geometries = new ArrayList<>(root.bridges);
+            for (Piece member: root.members) {
+                geometries.add(member.object.getROI().getGeometry());
+            }
+            return new Group(plane, geometries, null);
+        }
+    }
+
+    private PathObject merge(Group group) {
+        if (group.singleObject() != null) {
+            return group.singleObject();
+        } else {
+            return FatGlobuleDetector.createPathObject(
+                    GeometryTools.geometryToROI(GeometryTools.union(group.geometries()), group.plane()),
+                    fatGlobulesDetectorParameters.getObjectToCreate()
+            );
+        }
+    }
+
+    private List<PathObject> mergeTouchingGroups(List<Group> groups, double downsample) {
+        List<Geometry> geometries = groups.stream()
+                .map(group -> group.singleObject() == null ? GeometryTools.union(group.geometries()) : group.singleObject().getROI().getGeometry())
+                .toList();
+
+        int[] clusters = IntStream.range(0, groups.size()).toArray();
+        for (int i=0; i<groups.size(); ++i) {
+            for (int j=i+1; j<groups.size(); ++j) {
+                if (groups.get(i).plane().equals(groups.get(j).plane()) &&
+                        geometries.get(i).getEnvelopeInternal().distance(geometries.get(j).getEnvelopeInternal()) <= downsample &&
+                        geometries.get(i).isWithinDistance(geometries.get(j), downsample)) {
+                    clusters[findCluster(clusters, i)] = findCluster(clusters, j);
+                }
+            }
+        }
+
+        Map<Integer, List<Integer>> members = IntStream.range(0, groups.size())
+                .boxed()
+                .collect(Collectors.groupingBy(i -> findCluster(clusters, i), LinkedHashMap::new, Collectors.toList()));
+
+        List<PathObject> globules = new ArrayList<>();
+        for (List<Integer> cluster: members.values()) {
+            if (cluster.size() == 1) {
+                globules.add(merge(groups.get(cluster.get(0))));
+            } else {
+                // A closing of one pixel fills the gap between the pieces on each side of an edge
+                Geometry geometry = GeometryTools.union(cluster.stream().map(geometries::get).toList())
+                        .buffer(downsample)
+                        .buffer(-downsample);
+
+                globules.add(FatGlobuleDetector.createPathObject(
+                        GeometryTools.geometryToROI(geometry, groups.get(cluster.get(0)).plane()),
+                        fatGlobulesDetectorParameters.getObjectToCreate()
+                ));
+            }
+        }
+        return globules;
+    }
+
+    private static int findCluster(int[] clusters, int i) {
+        while (clusters[i] != i) {
+            clusters[i] = clusters[clusters[i]];
+            i = clusters[i];
+        }
+        return i;
+    }
+
+    private static Piece union(ParentState parentState, Piece firstPiece, Piece secondPiece) {
+        Piece firstRoot = firstPiece.getRoot();
+        Piece secondRoot = secondPiece.getRoot();
+        if (firstRoot == secondRoot) {
+            return firstRoot;
+        }
+
+        Piece root = firstRoot.members.size() >= secondRoot.members.size() ? firstRoot : secondRoot;
+        Piece child = root == firstRoot ? secondRoot : firstRoot;
+
+        child.root = root;
+        parentState.pendingRoots.remove(child);
+        root.members.addAll(child.members);
+        root.bridges.addAll(child.bridges);
+        root.numberOfUnresolvedContacts += child.numberOfUnresolvedContacts;
+        child.members.clear();
+        child.bridges.clear();
+        return root;
+    }
+
+    private static Geometry createBridge(Contact firstContact, Contact secondContact, boolean vertical) {
+        // The contours go through the centers of the pixels, so the pieces on each side of an edge are one pixel apart
+        double start = Math.max(firstContact.start(), secondContact.start());
+        double end = Math.min(firstContact.end(), secondContact.end());
+        double position = Math.min(firstContact.position(), secondContact.position());
+        double thickness = Math.abs(secondContact.position() - firstContact.position());
+
+        return vertical ?
+                GeometryTools.createRectangle(position, start, thickness, end - start) :
+                GeometryTools.createRectangle(start, position, end - start, thickness);
+    }
+
+    private static Edge getEdge(RegionRequest regionRequest, Side side, Set<TileKey> plannedTiles) {
+        ImagePlane plane = regionRequest.getImagePlane();
+        long x = regionRequest.getX();
+        long y = regionRequest.getY();
+        long width = regionRequest.getWidth();
+        long height = regionRequest.getHeight();
+
+        TileKey neighbour = switch (side) {
+            case LEFT -> new TileKey(plane, x - width, y);
+            case TOP -> new TileKey(plane, x, y - height);
+            case RIGHT -> new TileKey(plane, x + width, y);
+            case BOTTOM -> new TileKey(plane, x, y + height);
+        };
+        if (!plannedTiles.contains(neighbour)) {
+            return null;
+        }
+
+        return switch (side) {
+            case LEFT -> new Edge(plane, true, x, y);
+            case TOP -> new Edge(plane, false, y, x);
+            case RIGHT -> new Edge(plane, true, x + width, y);
+            case BOTTOM -> new Edge(plane, false, y + height, x);
+        };
+    }
+
+    private static Map<Side, double[]> getExtents(ROI roi, RegionRequest regionRequest, int numberOfRows, int numberOfColumns) {
+        double downsample = regionRequest.getDownsample();
+        Map<Side, double[]> extents = new LinkedHashMap<>();
+
+        // Each extent contains the position of the pixels along the axis perpendicular to the edge, and the minimal
+        // and maximal positions of the pixels along the edge (in the full resolution image)
+        for (Point2 point: roi.getAllPoints()) {
+            long column = Math.round((point.getX() - regionRequest.getX()) / downsample);
+            long row = Math.round((point.getY() - regionRequest.getY()) / downsample);
+
+            if (column == 0) {
+                addToExtent(extents, Side.LEFT, point.getX(), point.getY());
+            }
+            if (column == numberOfColumns - 1) {
+                addToExtent(extents, Side.RIGHT, point.getX(), point.getY());
+            }
+            if (row == 0) {
+                addToExtent(extents, Side.TOP, point.getY(), point.getX());
+            }
+            if (row == numberOfRows - 1) {
+                addToExtent(extents, Side.BOTTOM, point.getY(), point.getX());
+            }
+        }
+
+        return extents;
+    }
+
+    private static void addToExtent(Map<Side, double[]> extents, Side side, double position, double value) {
+        double[] extent = extents.computeIfAbsent(side, s -> new double[] {position, value, value});
+
+        extent[1] = Math.min(extent[1], value);
+        extent[2] = Math.max(extent[2], value);
+    }
+}
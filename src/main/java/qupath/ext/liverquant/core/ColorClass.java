@@ -0,0 +1,40 @@
+package qupath.ext.liverquant.core;
+
+/**
+ * Define a class of pixels (for example collagen or haemorrhage) by a range in the HSV-space.
+ * The area of each class is measured in the annotations where the detection takes place.
+ *
+ * @param name  the name of the class, used to name its measurements
+ * @param lowerBound  the inclusive lower bound array in HSV-space of the pixels of the class
+ * @param upperBound  the inclusive upper bound array in HSV-space of the pixels of the class
+ */
+public record ColorClass(String name, HsvArray lowerBound, HsvArray upperBound) {
+
+    /**
+     * Define a class of pixels by a range in the HSV-space.
+     *
+     * @param name  the name of the class, used to name its measurements
+     * @param lowerBound  the inclusive lower bound array in HSV-space of the pixels of the class
+     * @param upperBound  the inclusive upper bound array in HSV-space of the pixels of the class
+     * @throws IllegalArgumentException if the name is null or blank
+     */
+    public ColorClass {
+        if (name == null || name.isBlank()) {
+            throw new IllegalArgumentException(String.format("The supplied class name (%s) is empty", name));
+        }
+    }
+
+    /**
+     * @return the name of the measurement containing the area (in micro-meter squared) of this class
+     */
+    public String getAreaMeasurementName() {
+        return String.format("%s area (µm²)", name);
+    }
+
+    /**
+     * @return the name of the measurement containing the proportion of the annotation area covered by this class
+     */
+    public String getProportionateAreaMeasurementName() {
+        return String.format("%s proportionate area", name);
+    }
+}
@@ -0,0 +1,31 @@
+package qupath.ext.liverquant.core;
+
+import qupath.lib.plugins.TaskRunner;
+
+/**
+ * <p>
+ *     A {@link TaskRunner} running its tasks with another task runner.
+ * </p>
+ * <p>
+ *     Subclasses only have to implement {@link #runTasks(String, java.util.Collection)}, for example to reorder
+ *     or wrap the tasks before giving them to the delegate.
+ * </p>
+ */
+abstract class DelegatingTaskRunner implements TaskRunner {
+
+    protected final TaskRunner taskRunner;
+
+    /**
+     * Create the task runner.
+     *
+     * @param taskRunner  the task runner to run the tasks with
+     */
+    protected DelegatingTaskRunner(TaskRunner taskRunner) {
+        this.taskRunner = taskRunner;
+    }
+
+    @Override
+    public int getPreferredParallelism() {
+        return taskRunner.getPreferredParallelism();
+    }
+}
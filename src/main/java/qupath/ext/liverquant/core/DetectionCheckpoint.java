@@ -0,0 +1,297 @@
+package qupath.ext.liverquant.core;
+
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKTReader;
+import org.locationtech.jts.io.WKTWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.common.ThreadTools;
+import qupath.lib.objects.PathObject;
+import qupath.lib.regions.RegionRequest;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * <p>
+ *     A file where the tiles completed during a detection and the globules detected on them are periodically
+ *     saved, so that an interrupted detection can be resumed without processing these tiles again.
+ * </p>
+ * <p>
+ *     The file is a text file starting with a header describing the parameters of the detection. Each following
+ *     line describes one completed tile: the annotation it belongs to, its region, the position and size of the globules counted
+ *     in the statistics of the annotation, and the geometry (as WKT) of the globules detected on it. Lines are only
+ *     appended and flushed periodically, so a crash can at most lose the tiles completed since the last flush.
+ * </p>
+ * <p>
+ *     Once a detection is complete, the file should be deleted with {@link #delete()}, so that a following detection
+ *     doesn't skip all tiles.
+ * </p>
+ * <p>
+ *     Annotations are identified by their ROI and not by their ID, so that tissue annotations detected again
+ *     when resuming are recognized.
+ * </p>
+ * <p>
+ *     This class is thread-safe.
+ * </p>
+ */
+class DetectionCheckpoint implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(DetectionCheckpoint.class);
+    private static final long FLUSH_INTERVAL_MILLIS = 30_000;
+    private static final String HEADER_PREFIX = "# ";
+    private static final String FIELD_SEPARATOR = "\t";
+    private static final String ELEMENT_SEPARATOR = ";";
+    private static final String VALUE_SEPARATOR = ",";
+    private final Map<String, Tile> completedTiles = new ConcurrentHashMap<>();
+    private final Map<PathObject, String> annotationKeys = new ConcurrentHashMap<>();
+    private final Path path;
+    private final BufferedWriter writer;
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * The position and size of a globule counted in the statistics of an annotation.
+     *
+     * @param x  the x-coordinate of the centroid of the globule in the full resolution image
+     * @param y  the y-coordinate of the centroid of the globule in the full resolution image
+     * @param diameter  the diameter of the globule in microns
+     * @param area  the area of the globule in micro-meter squared
+     */
+    public record CountedGlobule(double x, double y, double diameter, double area) {}
+
+    /**
+     * A completed tile.
+     *
+     * @param countedGlobules  the size of the globules of this tile counted in the statistics of the annotation
+     * @param globules  the geometry (in the full resolution image coordinates) of the globules detected on this tile
+     */
+    public record Tile(List<CountedGlobule> countedGlobules, List<Geometry> globules) {}
+
+    /**
+     * Open a checkpoint file.
+     *
+     * @param path  the path of the checkpoint file
+     * @param fatGlobulesDetectorParameters  the parameters of the detection. A checkpoint written with different
+     *                                       parameters is never resumed
+     * @param resume  whether the tiles already present in the file should be read. If false, or if the file was written
+     *                with different parameters, the file is overwritten
+     * @throws IOException if the file cannot be read or written
+     */
+    public DetectionCheckpoint(Path path, FatGlobulesDetectorParameters fatGlobulesDetectorParameters, boolean resume) throws IOException {
+        this.path = path;
+        String header = HEADER_PREFIX + describe(fatGlobulesDetectorParameters);
+
+        if (resume && Files.exists(path)) {
+            try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+                String firstLine = reader.readLine();
+
+                if (header.equals(firstLine)) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        readTile(line);
+                    }
+                } else {
+                    logger.warn("The checkpoint {} was written with different parameters. It will be overwritten", path);
+                }
+            }
+        }
+
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        if (completedTiles.isEmpty()) {
+            writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8);
+            writer.write(header);
+        } else {
+            logger.info("Resuming detection from {}: {} tile(s) already completed", path, completedTiles.size());
+
+            writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+        }
+        // Terminates any line left incomplete by an interrupted detection
+        writer.newLine();
+        writer.flush();
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(ThreadTools.createThreadFactory("liverquant-checkpoint-", true));
+        scheduler.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL_MILLIS, FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Get a tile completed during a previous detection.
+     *
+     * @param annotation  the annotation the tile belongs to
+     * @param regionRequest  the region of the tile
+     * @return the completed tile, or null if this tile wasn't completed
+     */
+    public Tile get(PathObject annotation, RegionRequest regionRequest) {
+        if (completedTiles.isEmpty()) {
+            return null;
+        }
+        return completedTiles.get(getTileKey(annotation, regionRequest));
+    }
+
+    /**
+     * Save a completed tile. The file is only written to the disk periodically.
+     *
+     * @param annotation  the annotation the tile belongs to
+     * @param regionRequest  the region of the tile
+     * @param countedGlobules  the size of the globules of this tile counted in the statistics of the annotation
+     * @param globules  the globules detected on this tile
+     */
+    public void add(PathObject annotation, RegionRequest regionRequest, List<CountedGlobule> countedGlobules, List<PathObject> globules) {
+        WKTWriter wktWriter = new WKTWriter();
+        String line = String.join(
+                FIELD_SEPARATOR,
+                getTileKey(annotation, regionRequest),
+                countedGlobules.stream()
+                        .map(globule -> String.join(
+                                VALUE_SEPARATOR,
+                                String.valueOf(globule.x()),
+                                String.valueOf(globule.y()),
+                                String.valueOf(globule.diameter()),
+                                String.valueOf(globule.area())
+                        ))
+                        .collect(Collectors.joining(ELEMENT_SEPARATOR)),
+                globules.stream()
+                        .filter(PathObject::hasROI)
+                        .map(globule -> wktWriter.write(globule.getROI().getGeometry()))
+                        .collect(Collectors.joining(ELEMENT_SEPARATOR))
+        );
+
+        synchronized (this) {
+            try {
+                writer.write(line);
+                writer.newLine();
+            } catch (IOException e) {
+                logger.warn("Cannot write tile {} to the checkpoint", regionRequest, e);
+            }
+        }
+    }
+
+    /**
+     * Write the remaining completed tiles to the disk and close the file. Calling this function again
+     * has no effect.
+     *
+     * @throws IOException if the file cannot be written
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        scheduler.shutdown();
+        writer.close();
+    }
+
+    /**
+     * Close the file and delete it. This should be called once the detection is complete.
+     *
+     * @throws IOException if the file cannot be deleted
+     */
+    public synchronized void delete() throws IOException {
+        scheduler.shutdown();
+        try {
+            writer.close();
+        } catch (IOException e) {
+            logger.debug("Cannot write the remaining tiles of the checkpoint {} before deleting it", path, e);
+        }
+        Files.deleteIfExists(path);
+    }
+
+    private synchronized void flush() {
+        // The file may have been closed while waiting for the lock
+        if (scheduler.isShutdown()) {
+            return;
+        }
+
+        try {
+            writer.flush();
+        } catch (IOException e) {
+            logger.warn("Cannot write the checkpoint {}", path, e);
+        }
+    }
+
+    private void readTile(String line) {
+        String[] fields = line.split(FIELD_SEPARATOR, -1);
+        if (fields.length != 4) {
+            if (!line.isBlank()) {
+                logger.debug("Skipping incomplete checkpoint line {}", line);
+            }
+            return;
+        }
+
+        try {
+            WKTReader wktReader = new WKTReader();
+            List<Geometry> globules = new ArrayList<>();
+            for (String globule: fields[3].split(ELEMENT_SEPARATOR)) {
+                if (!globule.isEmpty()) {
+                    globules.add(wktReader.read(globule));
+                }
+            }
+
+            completedTiles.put(
+                    fields[0] + FIELD_SEPARATOR + fields[1],
+                    new Tile(
+                            Arrays.stream(fields[2].split(ELEMENT_SEPARATOR))
+                                    .filter(globule -> !globule.isEmpty())
+                                    .map(globule -> globule.split(VALUE_SEPARATOR))
+                                    .map(values -> new CountedGlobule(
+                                            Double.parseDouble(values[0]),
+                                            Double.parseDouble(values[1]),
+                                            Double.parseDouble(values[2]),
+                                            Double.parseDouble(values[3])
+                                    ))
+                                    .toList(),
+                            globules
+                    )
+            );
+        } catch (ParseException | RuntimeException e) {
+            logger.debug("Skipping invalid checkpoint line {}", line, e);
+        }
+    }
+
+    private String getTileKey(PathObject annotation, RegionRequest regionRequest) {
+        return String.join(
+                FIELD_SEPARATOR,
+                annotationKeys.computeIfAbsent(annotation, a -> UUID.nameUUIDFromBytes(
+                        (new WKTWriter().write(a.getROI().getGeometry()) + a.getROI().getImagePlane()).getBytes(StandardCharsets.UTF_8)
+                ).toString()),
+                String.format(
+                        "%d,%d,%d,%d,%d,%d",
+                        regionRequest.getX(),
+                        regionRequest.getY(),
+                        regionRequest.getWidth(),
+                        regionRequest.getHeight(),
+                        regionRequest.getZ(),
+                        regionRequest.getT()
+                )
+        );
+    }
+
+    private static String describe(FatGlobulesDetectorParameters fatGlobulesDetectorParameters) {
+        return String.join(
+                " ",
+                fatGlobulesDetectorParameters.getImageData().getServer().getPath(),
+                String.valueOf(fatGlobulesDetectorParameters.getPixelSize()),
+                String.valueOf(fatGlobulesDetectorParameters.getLowerBound()),
+                String.valueOf(fatGlobulesDetectorParameters.getUpperBound()),
+                String.valueOf(fatGlobulesDetectorParameters.getFilterParameters()),
+                String.valueOf(fatGlobulesDetectorParameters.getMacrovesicularDiameter()),
+                String.valueOf(fatGlobulesDetectorParameters.getTileWidth()),
+                String.valueOf(fatGlobulesDetectorParameters.getTileHeight()),
+                String.valueOf(fatGlobulesDetectorParameters.getPadding())
+        ).replaceAll("\\R", " ");
+    }
+}
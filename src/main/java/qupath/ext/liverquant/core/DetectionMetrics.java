@@ -0,0 +1,92 @@
+package qupath.ext.liverquant.core;
+
+import java.time.Duration;
+import java.util.Map;
+
+/**
+ * Timings and counters collected during a fat globule detection.
+ *
+ * @param stageDurations  the cumulative time spent in each stage. Tiles are processed in parallel,
+ *                        so the sum of these durations can exceed the total duration
+ * @param stageCounts  the number of times each stage was run
+ * @param numberOfTiles  the number of tiles processed
+ * @param numberOfSavedTiles  the number of tiles that were not read and segmented because they are shared by several annotations
+ * @param numberOfContours  the number of contours found, including the contours of separated overlapping globules
+ * @param numberOfRejectedContours  the number of contours not classified as globules
+ * @param numberOfGlobules  the number of globules found in the tiles, before globules crossing tile boundaries are merged
+ * @param numberOfPixels  the number of pixels (at the resolution of the detection) of the processed tiles, excluding padding
+ * @param totalDuration  the total duration of the detection
+ */
+public record DetectionMetrics(
+        Map<Stage, Duration> stageDurations,
+        Map<Stage, Long> stageCounts,
+        long numberOfTiles,
+        long numberOfSavedTiles,
+        long numberOfContours,
+        long numberOfRejectedContours,
+        long numberOfGlobules,
+        long numberOfPixels,
+        Duration totalDuration
+) {
+
+    /**
+     * A stage of the detection
+     */
+    public enum Stage {
+        TISSUE_READ,
+        TISSUE_SEGMENTATION,
+        TISSUE_HOLE_FILLING,
+        TISSUE_OBJECT_CREATION,
+        TILE_READ,
+        SEGMENTATION,
+        HOLE_FILLING,
+        CONTOUR_EXTRACTION,
+        FILTERING,
+        WATERSHED,
+        STATISTICS,
+        OBJECT_CREATION,
+        HIERARCHY_INSERTION,
+        MEASUREMENTS
+    }
+
+    /**
+     * @return the number of megapixels processed per second
+     */
+    public double getMegapixelsPerSecond() {
+        double seconds = totalDuration.toNanos() / 1e9;
+        return seconds > 0 ? numberOfPixels / 1e6 / seconds : 0;
+    }
+
+    /**
+     * @return a human-readable multi-line summary of these metrics
+     */
+    public String getSummary() {
+        StringBuilder summary = new StringBuilder(String.format(
+                "%d tiles processed in %.2f s (%.2f megapixels/s), %d shared tiles processed once. %d contours found, %d rejected, %d globules",
+                numberOfTiles,
+                totalDuration.toNanos() / 1e9,
+                getMegapixelsPerSecond(),
+                numberOfSavedTiles,
+                numberOfContours,
+                numberOfRejectedContours,
+                numberOfGlobules
+        ));
+
+        for (Stage stage: Stage.values()) {
+            long count = stageCounts.getOrDefault(stage, 0L);
+            if (count > 0) {
+                Duration duration = stageDurations.getOrDefault(stage, Duration.ZERO);
+
+                summary.append(String.format(
+                        "%n    %s: %.2f s over %d call(s) (%.3f ms per call)",
+                        stage,
+                        duration.toNanos() / 1e9,
+                        count,
+                        duration.toNanos() / 1e6 / count
+                ));
+            }
+        }
+
+        return summary.toString();
+    }
+}
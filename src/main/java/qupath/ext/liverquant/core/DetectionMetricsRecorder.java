@@ -0,0 +1,160 @@
+package qupath.ext.liverquant.core;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * <p>
+ *     Collect the {@link DetectionMetrics} of a detection.
+ * </p>
+ * <p>
+ *     A stage is timed by surrounding it with {@link #start()} and {@link #stop(DetectionMetrics.Stage, long)}.
+ *     When the recorder is disabled, these functions don't read the clock and return immediately, so
+ *     instrumentation costs nothing.
+ * </p>
+ * <p>
+ *     This class is thread-safe.
+ * </p>
+ */
+class DetectionMetricsRecorder {
+
+    /**
+     * A recorder that doesn't collect anything.
+     */
+    public static final DetectionMetricsRecorder DISABLED = new DetectionMetricsRecorder(false);
+    private final boolean enabled;
+    private final long startTime;
+    private final Map<DetectionMetrics.Stage, LongAdder> stageNanos = createAdders();
+    private final Map<DetectionMetrics.Stage, LongAdder> stageCounts = createAdders();
+    private final LongAdder numberOfTiles = new LongAdder();
+    private final LongAdder numberOfSavedTiles = new LongAdder();
+    private final LongAdder numberOfContours = new LongAdder();
+    private final LongAdder numberOfRejectedContours = new LongAdder();
+    private final LongAdder numberOfGlobules = new LongAdder();
+    private final LongAdder numberOfPixels = new LongAdder();
+    private final AtomicLong lastTileEndTime = new AtomicLong();
+
+    /**
+     * Create the recorder. The total duration of the detection starts now.
+     *
+     * @param enabled  whether metrics should be collected
+     */
+    public DetectionMetricsRecorder(boolean enabled) {
+        this.enabled = enabled;
+        this.startTime = enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * @return whether metrics are collected
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Start timing a stage.
+     *
+     * @return the time to provide to {@link #stop(DetectionMetrics.Stage, long)}
+     */
+    public long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Stop timing a stage.
+     *
+     * @param stage  the stage that was timed
+     * @param startTime  the time returned by {@link #start()} when the stage started
+     */
+    public void stop(DetectionMetrics.Stage stage, long startTime) {
+        if (enabled) {
+            stageNanos.get(stage).add(System.nanoTime() - startTime);
+            stageCounts.get(stage).increment();
+        }
+    }
+
+    /**
+     * Indicate that a tile was processed.
+     *
+     * @param numberOfPixels  the number of pixels of the tile, excluding padding
+     * @param numberOfContours  the number of contours found on the tile
+     * @param numberOfRejectedContours  the number of contours of the tile not classified as globules
+     * @param numberOfGlobules  the number of globules found on the tile
+     */
+    public void addTile(long numberOfPixels, long numberOfContours, long numberOfRejectedContours, long numberOfGlobules) {
+        if (enabled) {
+            this.numberOfTiles.increment();
+            this.numberOfPixels.add(numberOfPixels);
+            this.numberOfContours.add(numberOfContours);
+            this.numberOfRejectedContours.add(numberOfRejectedContours);
+            this.numberOfGlobules.add(numberOfGlobules);
+            lastTileEndTime.accumulateAndGet(System.nanoTime(), Math::max);
+        }
+    }
+
+    /**
+     * Indicate that tiles won't be processed because they are shared by several annotations.
+     *
+     * @param numberOfSavedTiles  the number of tiles that won't be processed
+     */
+    public void addSavedTiles(long numberOfSavedTiles) {
+        if (enabled) {
+            this.numberOfSavedTiles.add(numberOfSavedTiles);
+        }
+    }
+
+    /**
+     * Record the time elapsed since the last tile was processed (see {@link #addTile(long, long, long, long)})
+     * to the provided stage. Nothing happens if no tile was processed.
+     *
+     * @param stage  the stage to record the time to
+     */
+    public void stopSinceLastTile(DetectionMetrics.Stage stage) {
+        if (enabled && lastTileEndTime.get() != 0) {
+            stop(stage, lastTileEndTime.get());
+        }
+    }
+
+    /**
+     * @return the metrics collected until now, or null if this recorder is disabled
+     */
+    public DetectionMetrics getMetrics() {
+        if (!enabled) {
+            return null;
+        }
+
+        return new DetectionMetrics(
+                Collections.unmodifiableMap(stageNanos.entrySet().stream().collect(Collectors.toMap(
+                        Map.Entry::getKey,
+                        entry -> Duration.ofNanos(entry.getValue().sum()),
+                        (a, b) -> a,
+                        () -> new EnumMap<>(DetectionMetrics.Stage.class)
+                ))),
+                Collections.unmodifiableMap(stageCounts.entrySet().stream().collect(Collectors.toMap(
+                        Map.Entry::getKey,
+                        entry -> entry.getValue().sum(),
+                        (a, b) -> a,
+                        () -> new EnumMap<>(DetectionMetrics.Stage.class)
+                ))),
+                numberOfTiles.sum(),
+                numberOfSavedTiles.sum(),
+                numberOfContours.sum(),
+                numberOfRejectedContours.sum(),
+                numberOfGlobules.sum(),
+                numberOfPixels.sum(),
+                Duration.ofNanos(System.nanoTime() - startTime)
+        );
+    }
+
+    private static Map<DetectionMetrics.Stage, LongAdder> createAdders() {
+        return new EnumMap<>(Arrays.stream(DetectionMetrics.Stage.values())
+                .collect(Collectors.toMap(Function.identity(), stage -> new LongAdder())));
+    }
+}
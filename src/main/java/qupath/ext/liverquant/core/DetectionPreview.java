@@ -0,0 +1,121 @@
+package qupath.ext.liverquant.core;
+
+import qupath.lib.common.ThreadTools;
+import qupath.lib.objects.PathObject;
+import qupath.lib.plugins.TaskRunner;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ *     Run quick detections, for example to preview the effect of parameters on the visible part of an image.
+ * </p>
+ * <p>
+ *     A preview never modifies the hierarchy of the image: the detection takes place in annotations that
+ *     don't belong to the hierarchy, and the detected globules are returned instead.
+ * </p>
+ * <p>
+ *     Only one preview runs at a time: starting a preview cancels the previous one. The tiles of a cancelled
+ *     preview that didn't start yet are skipped, so a new preview starts quickly.
+ * </p>
+ * <p>
+ *     This class is thread-safe.
+ * </p>
+ */
+public class DetectionPreview {
+
+    private static final long THREAD_KEEP_ALIVE_SECONDS = 30;
+    private static final ExecutorService coordinator = createExecutor(1, "liverquant-preview-");
+    private static final ExecutorService workers = createExecutor(ThreadTools.getParallelism(), "liverquant-preview-worker-");
+    private CompletableFuture<List<PathObject>> currentPreview = null;
+
+    /**
+     * Start a preview in the background, and cancel the previous preview if it is still running.
+     *
+     * @param fatGlobulesDetectorParameters  the parameters of the detection. The detection region must be
+     *                                       {@link FatGlobulesDetectorParameters.DetectionRegion#SELECTED_ANNOTATIONS},
+     *                                       and the annotations should not belong to the hierarchy of the image
+     * @return a CompletableFuture that will complete with the globules detected in the annotations, or complete
+     * exceptionally if the detection fails or is cancelled
+     * @throws IllegalArgumentException if the detection region is not {@link FatGlobulesDetectorParameters.DetectionRegion#SELECTED_ANNOTATIONS}
+     */
+    public synchronized CompletableFuture<List<PathObject>> run(FatGlobulesDetectorParameters fatGlobulesDetectorParameters) {
+        if (!fatGlobulesDetectorParameters.getDetectionRegion().equals(FatGlobulesDetectorParameters.DetectionRegion.SELECTED_ANNOTATIONS)) {
+            throw new IllegalArgumentException(String.format(
+                    "The detection region of a preview must be %s (here %s)",
+                    FatGlobulesDetectorParameters.DetectionRegion.SELECTED_ANNOTATIONS,
+                    fatGlobulesDetectorParameters.getDetectionRegion()
+            ));
+        }
+        cancel();
+
+        CompletableFuture<List<PathObject>> preview = new CompletableFuture<>();
+        currentPreview = preview;
+
+        coordinator.execute(() -> {
+            if (preview.isDone()) {
+                return;
+            }
+
+            try {
+                FatGlobuleDetector.detect(fatGlobulesDetectorParameters, createTaskRunner(preview));
+
+                preview.complete(fatGlobulesDetectorParameters.getAnnotations().stream()
+                        .flatMap(annotation -> annotation.getChildObjects().stream())
+                        .toList()
+                );
+            } catch (Throwable e) {
+                preview.completeExceptionally(e);
+            }
+        });
+
+        return preview;
+    }
+
+    /**
+     * Cancel the current preview. Nothing happens if no preview is running.
+     */
+    public synchronized void cancel() {
+        if (currentPreview != null) {
+            currentPreview.cancel(false);
+            currentPreview = null;
+        }
+    }
+
+    private static TaskRunner createTaskRunner(CompletableFuture<?> preview) {
+        SharedPoolTaskRunner taskRunner = new SharedPoolTaskRunner(workers, ThreadTools.getParallelism());
+
+        return new DelegatingTaskRunner(taskRunner) {
+            @Override
+            public void runTasks(String message, Collection<? extends Runnable> tasks) {
+                taskRunner.runTasks(message, tasks.stream()
+                        .map(task -> (Runnable) () -> {
+                            if (!preview.isDone()) {
+                                task.run();
+                            }
+                        })
+                        .toList()
+                );
+            }
+        };
+    }
+
+    private static ExecutorService createExecutor(int numberOfThreads, String threadPrefix) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                numberOfThreads,
+                numberOfThreads,
+                THREAD_KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                ThreadTools.createThreadFactory(threadPrefix, true)
+        );
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
@@ -0,0 +1,43 @@
+package qupath.ext.liverquant.core;
+
+import java.time.Duration;
+
+/**
+ * The progress of a fat globule detection.
+ *
+ * @param phase  the current phase of the detection
+ * @param completedTiles  the number of tiles processed, across all annotations
+ * @param totalTiles  the number of tiles to process, across all annotations. It is 0 until the tiles are created
+ * @param tilesPerSecond  the average number of tiles processed per second since the processing of tiles started
+ * @param estimatedTimeRemaining  the estimated time remaining before all tiles are processed, or null if it
+ *                                cannot be estimated yet
+ * @param globuleCount  the number of globules counted until now
+ * @param fatArea  the area (in micro-meter squared) of the globules counted until now
+ */
+public record DetectionProgress(
+        Phase phase,
+        long completedTiles,
+        long totalTiles,
+        double tilesPerSecond,
+        Duration estimatedTimeRemaining,
+        long globuleCount,
+        double fatArea
+) {
+
+    /**
+     * A phase of the detection
+     */
+    public enum Phase {
+        TISSUE_DETECTION,
+        TILE_PROCESSING,
+        MEASUREMENTS,
+        FINISHED
+    }
+
+    /**
+     * @return the proportion (between 0 and 1) of tiles processed, or 0 if the number of tiles is not known yet
+     */
+    public double getTileFraction() {
+        return totalTiles == 0 ? 0 : (double) completedTiles / totalTiles;
+    }
+}
@@ -0,0 +1,18 @@
+package qupath.ext.liverquant.core;
+
+/**
+ * A listener notified of the progress of a fat globule detection.
+ * <p>
+ * Updates are throttled and sent from a dedicated thread, so a slow listener doesn't slow down
+ * the detection. A listener must not assume it is called on the JavaFX Application Thread.
+ */
+@FunctionalInterface
+public interface DetectionProgressListener {
+
+    /**
+     * Called periodically while the detection runs, and each time its phase changes.
+     *
+     * @param progress  the current progress of the detection
+     */
+    void onProgress(DetectionProgress progress);
+}
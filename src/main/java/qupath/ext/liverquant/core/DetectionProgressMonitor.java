@@ -0,0 +1,154 @@
+package qupath.ext.liverquant.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.common.ThreadTools;
+import qupath.lib.plugins.TaskRunner;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>
+ *     Track the progress of a detection and send it to a {@link DetectionProgressListener}.
+ * </p>
+ * <p>
+ *     Tiles are counted by wrapping the task runner used by the detection (see {@link #wrap(TaskRunner)}):
+ *     each task submitted during the tile processing phase is one tile. Workers only increment counters;
+ *     the progress is sent to the listener from a dedicated thread at a fixed rate, and when the phase changes.
+ * </p>
+ * <p>
+ *     This class is thread-safe.
+ * </p>
+ */
+class DetectionProgressMonitor implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(DetectionProgressMonitor.class);
+    private static final long UPDATE_INTERVAL_MILLIS = 250;
+    private final DetectionProgressListener listener;
+    private final ScheduledExecutorService scheduler;
+    private final LongAdder completedTiles = new LongAdder();
+    private final LongAdder totalTiles = new LongAdder();
+    private final LongAdder globuleCount = new LongAdder();
+    private final DoubleAdder fatArea = new DoubleAdder();
+    private final AtomicLong tileProcessingStartTime = new AtomicLong();
+    private volatile DetectionProgress.Phase phase = DetectionProgress.Phase.TISSUE_DETECTION;
+
+    /**
+     * Create the monitor and start sending progress to the provided listener.
+     *
+     * @param listener  the listener to notify, or null to not track progress
+     */
+    public DetectionProgressMonitor(DetectionProgressListener listener) {
+        this.listener = listener;
+
+        if (listener == null) {
+            scheduler = null;
+        } else {
+            scheduler = Executors.newSingleThreadScheduledExecutor(ThreadTools.createThreadFactory("liverquant-progress-", true));
+            scheduler.scheduleAtFixedRate(this::publish, UPDATE_INTERVAL_MILLIS, UPDATE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Wrap a task runner so that the tasks it runs during the tile processing phase are counted as tiles.
+     *
+     * @param taskRunner  the task runner to wrap
+     * @return a task runner counting tiles, or the provided task runner if progress is not tracked
+     */
+    public TaskRunner wrap(TaskRunner taskRunner) {
+        if (listener == null) {
+            return taskRunner;
+        }
+
+        return new DelegatingTaskRunner(taskRunner) {
+            @Override
+            public void runTasks(String message, Collection<? extends Runnable> tasks) {
+                if (phase != DetectionProgress.Phase.TILE_PROCESSING) {
+                    taskRunner.runTasks(message, tasks);
+                    return;
+                }
+
+                totalTiles.add(tasks.size());
+                taskRunner.runTasks(message, tasks.stream()
+                        .map(task -> (Runnable) () -> {
+                            try {
+                                task.run();
+                            } finally {
+                                completedTiles.increment();
+                            }
+                        })
+                        .toList()
+                );
+            }
+        };
+    }
+
+    /**
+     * Change the current phase of the detection. The listener is notified immediately.
+     *
+     * @param phase  the new phase
+     */
+    public void setPhase(DetectionProgress.Phase phase) {
+        this.phase = phase;
+        if (phase == DetectionProgress.Phase.TILE_PROCESSING) {
+            tileProcessingStartTime.compareAndSet(0, System.nanoTime());
+        }
+
+        if (listener != null) {
+            scheduler.execute(this::publish);
+        }
+    }
+
+    /**
+     * Add globules to the running counters. This function can be called from any thread.
+     *
+     * @param count  the number of globules to add
+     * @param area  the area (in micro-meter squared) of the globules to add
+     */
+    public void addGlobules(long count, double area) {
+        if (listener != null) {
+            globuleCount.add(count);
+            fatArea.add(area);
+        }
+    }
+
+    /**
+     * Set the phase to {@link DetectionProgress.Phase#FINISHED}, notify the listener, and stop sending progress.
+     */
+    @Override
+    public void close() {
+        if (listener != null) {
+            setPhase(DetectionProgress.Phase.FINISHED);
+            scheduler.shutdown();
+        }
+    }
+
+    private void publish() {
+        long completed = completedTiles.sum();
+        long total = totalTiles.sum();
+        long startTime = tileProcessingStartTime.get();
+        double elapsedSeconds = startTime == 0 ? 0 : (System.nanoTime() - startTime) / 1e9;
+        double tilesPerSecond = elapsedSeconds > 0 ? completed / elapsedSeconds : 0;
+
+        try {
+            listener.onProgress(new DetectionProgress(
+                    phase,
+                    completed,
+                    total,
+                    tilesPerSecond,
+                    tilesPerSecond > 0 && total >= completed ? Duration.ofMillis((long) ((total - completed) / tilesPerSecond * 1000)) : null,
+                    globuleCount.sum(),
+                    fatArea.sum()
+            ));
+        } catch (Exception e) {
+            logger.warn("Error when notifying progress", e);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package qupath.ext.liverquant.core;
+
+import qupath.lib.regions.ImagePlane;
+
+import java.util.Map;
+
+/**
+ * The result of a fat globule detection. The measurements computed by the detection are
+ * written to the annotations, and are aggregated per plane and across planes in this result.
+ *
+ * @param nativeMemoryUsage  the native memory used during the detection
+ * @param metrics  the timings and counters collected during the detection, or null if they were not
+ *                 collected (see {@link FatGlobulesDetectorParameters#isMetricsEnabled()})
+ * @param planeMeasurements  the measurements of the annotations of each plane (z-slice and timepoint) where the
+ *                           detection took place, sorted by timepoint and z-slice
+ * @param measurements  the measurements of the annotations of all planes
+ * @param parametersFingerprint  the fingerprint of the parameters the detection was run with
+ *                               (see {@link FatGlobulesDetectorParameters#getFingerprint()})
+ */
+public record DetectionResult(
+        NativeMemoryUsage nativeMemoryUsage,
+        DetectionMetrics metrics,
+        Map<ImagePlane, Measurements> planeMeasurements,
+        Measurements measurements,
+        String parametersFingerprint
+) {
+
+    /**
+     * The native memory used during a detection, as reported by JavaCPP.
+     *
+     * @param physicalBytes  the physical memory (in bytes) used by the process at the end of the detection
+     *                       (see {@link org.bytedeco.javacpp.Pointer#physicalBytes()}). This includes the Java heap
+     * @param peakPhysicalBytes  the maximal physical memory (in bytes) used by the process observed during the detection
+     * @param totalBytes  the native memory (in bytes) allocated by JavaCPP at the end of the detection
+     *                    (see {@link org.bytedeco.javacpp.Pointer#totalBytes()})
+     * @param peakTotalBytes  the maximal native memory (in bytes) allocated by JavaCPP observed during the detection
+     */
+    public record NativeMemoryUsage(long physicalBytes, long peakPhysicalBytes, long totalBytes, long peakTotalBytes) {}
+
+    /**
+     * Measurements aggregated over several annotations.
+     *
+     * @param numberOfAnnotations  the number of annotations
+     * @param globuleCount  the number of globules detected in the annotations
+     * @param fatArea  the area (in micro-meter squared) of the globules detected in the annotations
+     * @param annotationArea  the area (in micro-meter squared) of the annotations
+     */
+    public record Measurements(int numberOfAnnotations, long globuleCount, double fatArea, double annotationArea) {
+
+        static final Measurements EMPTY = new Measurements(0, 0, 0, 0);
+
+        /**
+         * @return the proportion of the area of the annotations covered by globules, or 0 if the
+         * annotations have no area
+         */
+        public double getSteatosisProportionateArea() {
+            return annotationArea > 0 ? fatArea / annotationArea : 0;
+        }
+
+        /**
+         * Aggregate these measurements with other measurements.
+         *
+         * @param measurements  the measurements to aggregate with these ones
+         * @return measurements covering the annotations of both measurements
+         */
+        public Measurements add(Measurements measurements) {
+            return new Measurements(
+                    numberOfAnnotations + measurements.numberOfAnnotations,
+                    globuleCount + measurements.globuleCount,
+                    fatArea + measurements.fatArea,
+                    annotationArea + measurements.annotationArea
+            );
+        }
+    }
+}
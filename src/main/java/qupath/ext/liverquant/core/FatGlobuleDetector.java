@@ -4,8 +4,15 @@ import org.bytedeco.javacpp.indexer.IntRawIndexer;
 import org.bytedeco.opencv.global.opencv_core;
 import org.bytedeco.opencv.global.opencv_imgproc;
 import org.bytedeco.opencv.opencv_core.Mat;
-import org.bytedeco.opencv.opencv_core.MatExpr;
+import org.bytedeco.opencv.opencv_core.MatVector;
+import org.bytedeco.opencv.opencv_core.Moments;
 import org.bytedeco.opencv.opencv_core.Point2f;
+import org.bytedeco.opencv.opencv_core.Rect;
+import org.bytedeco.opencv.opencv_core.Scalar;
+import org.locationtech.jts.geom.Geometry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.awt.common.BufferedImageTools;
 import qupath.lib.experimental.pixels.OpenCVProcessor;
 import qupath.lib.experimental.pixels.OutputHandler;
 import qupath.lib.experimental.pixels.Parameters;
@@ -13,19 +20,40 @@ import qupath.lib.experimental.pixels.PixelProcessor;
 import qupath.lib.geom.Point2;
 import qupath.lib.gui.QuPathGUI;
 import qupath.lib.gui.TaskRunnerFX;
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.PixelCalibration;
 import qupath.lib.objects.PathObject;
 import qupath.lib.objects.PathObjects;
 import qupath.lib.plugins.CommandLineTaskRunner;
+import qupath.lib.plugins.TaskRunner;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.regions.ImageRegion;
 import qupath.lib.regions.RegionRequest;
+import qupath.lib.roi.GeometryTools;
 import qupath.lib.roi.ROIs;
 import qupath.lib.roi.interfaces.ROI;
+import qupath.opencv.tools.OpenCVTools;
 
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 
 /**
@@ -34,6 +62,10 @@ import java.util.stream.IntStream;
  */
 public class FatGlobuleDetector {
 
+    static final String STEATOSIS_MEASUREMENT = "Steatosis Proportionate Area";
+    static final String PARAMETERS_FINGERPRINT_METADATA_KEY = "liverquant.parameters";
+    private static final Logger logger = LoggerFactory.getLogger(FatGlobuleDetector.class);
+
     private enum GlobuleClassification {
         ISOLATED_GLOBULE,
         OVERLAPPING_GLOBULE
@@ -44,110 +76,834 @@ public class FatGlobuleDetector {
     }
 
     /**
-     * Run the detection algorithm. This will not return anything but
-     * display progress on a window or on the logs.
+     * Run the detection algorithm in the background. Progress is displayed
+     * on a window or on the logs.
+     * Once the detection is complete, the steatosis proportionate area and statistics
+     * on the count and size distribution of the globules are added to the measurements
+     * of each processed annotation.
+     *
+     * @param fatGlobulesDetectorParameters  the parameters to use for the detection
+     * @return a CompletableFuture that will complete with the result of the detection, or
+     * complete exceptionally if the detection fails
+     */
+    public static CompletableFuture<DetectionResult> run(FatGlobulesDetectorParameters fatGlobulesDetectorParameters) {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        CompletableFuture<DetectionResult> result = CompletableFuture.supplyAsync(
+                () -> detect(fatGlobulesDetectorParameters, createTaskRunner(fatGlobulesDetectorParameters)),
+                executor
+        );
+        executor.shutdown();
+
+        return result.whenComplete((detectionResult, error) -> {
+            if (error != null) {
+                logger.error("Error during the fat globule detection", error);
+            }
+        });
+    }
+
+    /**
+     * Run the detection algorithm in the background with parameters read from a JSON file
+     * (see {@link ParametersSerializer#read(Path, ImageData)}). See {@link #run(FatGlobulesDetectorParameters)}.
+     *
+     * @param parametersPath  the path of the JSON file containing the parameters of the detection
+     * @param imageData  the ImageData representing the image to use the algorithm on
+     * @return a CompletableFuture that will complete with the result of the detection, or
+     * complete exceptionally if the detection fails
+     * @throws IOException if the file cannot be read
+     * @throws IllegalArgumentException if the file is not a valid JSON document or contains invalid values
+     */
+    public static CompletableFuture<DetectionResult> run(Path parametersPath, ImageData<BufferedImage> imageData) throws IOException {
+        FatGlobulesDetectorParameters fatGlobulesDetectorParameters = ParametersSerializer.read(parametersPath, imageData).build();
+        logger.info("Running the detection with the parameters of {} (fingerprint {})", parametersPath, fatGlobulesDetectorParameters.getFingerprint());
+
+        return run(fatGlobulesDetectorParameters);
+    }
+
+    /**
+     * Run the detection algorithm on the calling thread. This function blocks until
+     * the detection is complete.
      *
      * @param fatGlobulesDetectorParameters  the parameters to use for the detection
+     * @param taskRunner  the task runner to use to run the tissue detection and to process the tiles
+     * @return the result of the detection
+     */
+    static DetectionResult detect(FatGlobulesDetectorParameters fatGlobulesDetectorParameters, TaskRunner taskRunner) {
+        DetectionProgressMonitor progressMonitor = new DetectionProgressMonitor(fatGlobulesDetectorParameters.getProgressListener());
+        try {
+            return detect(fatGlobulesDetectorParameters, taskRunner, progressMonitor);
+        } finally {
+            ScratchMatPool.clear();
+            // The caller is notified even if the detection fails, for example to enable the run button of the GUI again
+            progressMonitor.close();
+            fatGlobulesDetectorParameters.getOnFinished().run();
+        }
+    }
+
+    /**
+     * Run the detection algorithm on the calling thread. See {@link #detect(FatGlobulesDetectorParameters, TaskRunner)}.
+     *
+     * @param fatGlobulesDetectorParameters  the parameters to use for the detection
+     * @param taskRunner  the task runner to use to run the tissue detection and to process the tiles
+     * @param progressMonitor  the monitor to report the progress of the detection to. It is not closed by this function
+     * @return the result of the detection
+     */
+    private static DetectionResult detect(
+            FatGlobulesDetectorParameters fatGlobulesDetectorParameters,
+            TaskRunner taskRunner,
+            DetectionProgressMonitor progressMonitor
+    ) {
+        DetectionMetricsRecorder metricsRecorder = new DetectionMetricsRecorder(fatGlobulesDetectorParameters.isMetricsEnabled());
+        TaskRunner monitoredTaskRunner = progressMonitor.wrap(taskRunner);
+        Map<PathObject, GlobuleStatistics> statistics = new ConcurrentHashMap<>();
+        // The statistics of each tile of the grid of incremental detections, which are saved to the incremental state
+        Map<PathObject, Map<ImageRegion, GlobuleStatistics>> tileStatisticsOfMembers = new ConcurrentHashMap<>();
+        Map<PathObject, List<PathObject>> membersOfProcessedObjects = new ConcurrentHashMap<>();
+        Map<PathObject, DoubleAdder[]> colorClassAreas = new ConcurrentHashMap<>();
+        SteatosisDensityMap densityMap = fatGlobulesDetectorParameters.getDensityMapPath() == null ? null : new SteatosisDensityMap(
+                fatGlobulesDetectorParameters.getImageData().getServer().getWidth(),
+                fatGlobulesDetectorParameters.getImageData().getServer().getHeight(),
+                fatGlobulesDetectorParameters.getDensityMapCellSize() /
+                        fatGlobulesDetectorParameters.getImageData().getServer().getPixelCalibration().getAveragedPixelSizeMicrons()
+        );
+        // Checkpoints, incremental detections, and publications rely on globule objects, which are not created with a label image
+        DetectionCheckpoint checkpoint = fatGlobulesDetectorParameters.getLabelImage() == null ? createCheckpoint(fatGlobulesDetectorParameters) : null;
+        NativeMemoryGovernor memoryGovernor = new NativeMemoryGovernor(
+                fatGlobulesDetectorParameters.getNativeMemoryBudget(),
+                NativeMemoryGovernor.estimateBytesPerTile(fatGlobulesDetectorParameters)
+        );
+        TileMaskTracker maskTracker = new TileMaskTracker();
+        HierarchyPublisher publisher = fatGlobulesDetectorParameters.getPublicationInterval() == 0 || fatGlobulesDetectorParameters.getLabelImage() != null ? null : new HierarchyPublisher(
+                fatGlobulesDetectorParameters.getImageData().getHierarchy(),
+                fatGlobulesDetectorParameters.getPublicationInterval(),
+                fatGlobulesDetectorParameters.getPublicationBatchSize()
+        );
+        GlobuleLabelExport labelExport = fatGlobulesDetectorParameters.getLabelExportPath() == null ? null : new GlobuleLabelExport(fatGlobulesDetectorParameters);
+        BoundaryStitcher stitcher = fatGlobulesDetectorParameters.getBoundaryMerging().equals(FatGlobulesDetectorParameters.BoundaryMerging.STITCHING) &&
+                fatGlobulesDetectorParameters.getLabelImage() == null ? new BoundaryStitcher(fatGlobulesDetectorParameters) : null;
+
+        try {
+            // The masks of a tile already completed are still needed to fill the density map and to measure the color classes
+            PixelProcessor.Builder<Mat, Mat, Mat> processorBuilder = createProcessorBuilder(
+                    fatGlobulesDetectorParameters,
+                    true,
+                    parameters -> densityMap == null && fatGlobulesDetectorParameters.getColorClasses().isEmpty() && labelExport == null && checkpoint != null && checkpoint.get(
+                            membersOfProcessedObjects.getOrDefault(parameters.getParent(), List.of(parameters.getParent())).get(0),
+                            parameters.getRegionRequest()
+                    ) != null,
+                    memoryGovernor,
+                    maskTracker,
+                    metricsRecorder
+            );
+            // With the stitcher, globules crossing tile boundaries are merged while the tiles are processed
+            if (stitcher == null) {
+                processorBuilder.mergeSharedBoundaries(fatGlobulesDetectorParameters.getBoundaryThreshold());
+            }
+            PixelProcessor<Mat, Mat, Mat> processor = processorBuilder
+                    .outputHandler(OutputHandler.createObjectOutputHandler((Parameters<Mat, Mat> parameters, Mat masks) -> {
+                        Mat output = getFatMask(masks);
+                        try {
+                            List<PathObject> members = membersOfProcessedObjects.getOrDefault(parameters.getParent(), List.of(parameters.getParent()));
+
+                            if (densityMap != null) {
+                                densityMap.addMask(output, parameters.getParent().getROI(), parameters.getRegionRequest());
+                            }
+                            if (output != masks) {
+                                addColorClassAreas(
+                                        colorClassAreas,
+                                        masks,
+                                        members,
+                                        parameters.getRegionRequest(),
+                                        fatGlobulesDetectorParameters.getImageData().getServer().getPixelCalibration().getAveragedPixelSizeMicrons()
+                                );
+                            }
+
+                            // The globules of a tile are saved in the checkpoint entry of the first member, and each member has its own counted globules.
+                            // The checkpoint doesn't contain the masks of the globules, so completed tiles are processed again when labels are exported
+                            DetectionCheckpoint.Tile completedTile = checkpoint == null || labelExport != null ? null : checkpoint.get(members.get(0), parameters.getRegionRequest());
+                            if (completedTile != null) {
+                                for (PathObject member: members) {
+                                    GlobuleStatistics annotationStatistics = statistics.get(member);
+                                    DetectionCheckpoint.Tile completedMemberTile = member == members.get(0) ? completedTile : checkpoint.get(member, parameters.getRegionRequest());
+
+                                    if (completedMemberTile != null) {
+                                        if (fatGlobulesDetectorParameters.isIncremental()) {
+                                            IncrementalDetection.count(
+                                                    tileStatisticsOfMembers.computeIfAbsent(member, m -> new ConcurrentHashMap<>()),
+                                                    completedMemberTile.countedGlobules(),
+                                                    parameters.getRegionRequest().getImagePlane(),
+                                                    fatGlobulesDetectorParameters
+                                            );
+                                        }
+                                        if (annotationStatistics != null) {
+                                            for (DetectionCheckpoint.CountedGlobule globule: completedMemberTile.countedGlobules()) {
+                                                annotationStatistics.addGlobule(globule.diameter(), globule.area());
+                                            }
+                                        }
+                                        progressMonitor.addGlobules(
+                                                completedMemberTile.countedGlobules().size(),
+                                                completedMemberTile.countedGlobules().stream().mapToDouble(DetectionCheckpoint.CountedGlobule::area).sum()
+                                        );
+                                    }
+                                }
+
+                                List<PathObject> pathObjects = completedTile.globules().stream()
+                                        .map(geometry -> createPathObject(
+                                                GeometryTools.geometryToROI(geometry, parameters.getRegionRequest().getImagePlane()),
+                                                fatGlobulesDetectorParameters.getObjectToCreate()
+                                        ))
+                                        .toList();
+                                // The tile was not read, so its size at the processing resolution is computed from its region
+                                RegionRequest completedRegion = parameters.getRegionRequest();
+                                int numberOfRows = (int) Math.round(completedRegion.getHeight() / completedRegion.getDownsample());
+                                int numberOfColumns = (int) Math.round(completedRegion.getWidth() / completedRegion.getDownsample());
+                                List<PathObject> outputObjects = stitcher == null ? pathObjects : stitcher.addTile(
+                                        parameters.getParent(),
+                                        completedRegion,
+                                        numberOfRows,
+                                        numberOfColumns,
+                                        pathObjects
+                                );
+                                return publisher == null ? outputObjects : publishFinalGlobules(
+                                        publisher,
+                                        members,
+                                        outputObjects,
+                                        stitcher != null,
+                                        completedRegion,
+                                        numberOfRows,
+                                        numberOfColumns,
+                                        fatGlobulesDetectorParameters.getObjectToCreate()
+                                );
+                            }
+
+                            RegionRequest regionRequest = parameters.getRegionRequest();
+
+                            long startTime = metricsRecorder.start();
+                            TileEvent event = TileEvents.begin(DetectionMetrics.Stage.CONTOUR_EXTRACTION);
+                            List<Mat> contours = MatOperations.findContours(output);
+                            TileEvents.end(event, regionRequest, output.total(), contours.size());
+                            metricsRecorder.stop(DetectionMetrics.Stage.CONTOUR_EXTRACTION, startTime);
+
+                            startTime = metricsRecorder.start();
+                            event = TileEvents.begin(DetectionMetrics.Stage.FILTERING);
+                            Map<GlobuleClassification, List<Mat>> classifications = filterGlobules(contours, fatGlobulesDetectorParameters, regionRequest.getDownsample());
+                            int numberOfIsolatedGlobules = classifications.get(GlobuleClassification.ISOLATED_GLOBULE).size();
+                            int numberOfOverlappingGlobules = classifications.get(GlobuleClassification.OVERLAPPING_GLOBULE).size();
+                            TileEvents.end(event, regionRequest, output.total(), numberOfIsolatedGlobules + numberOfOverlappingGlobules);
+                            metricsRecorder.stop(DetectionMetrics.Stage.FILTERING, startTime);
+
+                            startTime = metricsRecorder.start();
+                            event = TileEvents.begin(DetectionMetrics.Stage.WATERSHED);
+                            List<Mat> contoursOfSeparatedOverlappingGlobules = separateOverlappingGlobules(
+                                    classifications.get(GlobuleClassification.OVERLAPPING_GLOBULE),
+                                    output.rows(),
+                                    output.cols()
+                            );
+                            int numberOfSeparatedGlobules = contoursOfSeparatedOverlappingGlobules.size();
+                            TileEvents.end(event, regionRequest, output.total(), numberOfSeparatedGlobules);
+                            metricsRecorder.stop(DetectionMetrics.Stage.WATERSHED, startTime);
+                            for (Mat overlappingGlobule : classifications.get(GlobuleClassification.OVERLAPPING_GLOBULE)) {
+                                overlappingGlobule.close();
+                            }
+
+                            startTime = metricsRecorder.start();
+                            event = TileEvents.begin(DetectionMetrics.Stage.FILTERING);
+                            List<Mat> otherGlobules = getIsolatedGlobules(contoursOfSeparatedOverlappingGlobules, fatGlobulesDetectorParameters, regionRequest.getDownsample());
+                            TileEvents.end(event, regionRequest, output.total(), otherGlobules.size());
+                            metricsRecorder.stop(DetectionMetrics.Stage.FILTERING, startTime);
+
+                            List<Mat> globules = new ArrayList<>();
+                            globules.addAll(classifications.get(GlobuleClassification.ISOLATED_GLOBULE));
+                            globules.addAll(otherGlobules);
+
+                            startTime = metricsRecorder.start();
+                            List<List<DetectionCheckpoint.CountedGlobule>> countedGlobules = members.stream()
+                                    .map(member -> updateStatistics(
+                                            statistics.get(member),
+                                            globules,
+                                            member,
+                                            regionRequest,
+                                            fatGlobulesDetectorParameters.getImageData().getServer().getPixelCalibration().getAveragedPixelSizeMicrons()
+                                    ))
+                                    .toList();
+                            metricsRecorder.stop(DetectionMetrics.Stage.STATISTICS, startTime);
+                            if (labelExport != null) {
+                                addToLabelExport(labelExport, globules, regionRequest, output.rows(), output.cols(), fatGlobulesDetectorParameters);
+                            }
+                            if (fatGlobulesDetectorParameters.isIncremental()) {
+                                for (int i=0; i<members.size(); ++i) {
+                                    IncrementalDetection.count(
+                                            tileStatisticsOfMembers.computeIfAbsent(members.get(i), m -> new ConcurrentHashMap<>()),
+                                            countedGlobules.get(i),
+                                            regionRequest.getImagePlane(),
+                                            fatGlobulesDetectorParameters
+                                    );
+                                }
+                            }
+                            for (List<DetectionCheckpoint.CountedGlobule> countedGlobulesOfMember: countedGlobules) {
+                                progressMonitor.addGlobules(
+                                        countedGlobulesOfMember.size(),
+                                        countedGlobulesOfMember.stream().mapToDouble(DetectionCheckpoint.CountedGlobule::area).sum()
+                                );
+                            }
+
+                            startTime = metricsRecorder.start();
+                            event = TileEvents.begin(DetectionMetrics.Stage.OBJECT_CREATION);
+                            List<PathObject> pathObjects;
+                            if (fatGlobulesDetectorParameters.getLabelImage() == null) {
+                                pathObjects = createPathObjects(globules, fatGlobulesDetectorParameters.getObjectToCreate(), regionRequest);
+                            } else {
+                                addToLabelImage(fatGlobulesDetectorParameters.getLabelImage(), globules, regionRequest, output.rows(), output.cols());
+                                pathObjects = List.of();
+                            }
+                            // The checkpoint gets the globules of this tile, before they are merged with other tiles
+                            List<PathObject> outputObjects = stitcher == null ? pathObjects : stitcher.addTile(
+                                    parameters.getParent(),
+                                    regionRequest,
+                                    output.rows(),
+                                    output.cols(),
+                                    pathObjects
+                            );
+                            TileEvents.end(event, regionRequest, output.total(), pathObjects.size());
+                            metricsRecorder.stop(DetectionMetrics.Stage.OBJECT_CREATION, startTime);
+
+                            if (checkpoint != null) {
+                                for (int i=0; i<members.size(); ++i) {
+                                    checkpoint.add(members.get(i), regionRequest, countedGlobules.get(i), i == 0 ? pathObjects : List.of());
+                                }
+                            }
+                            if (publisher != null) {
+                                outputObjects = publishFinalGlobules(
+                                        publisher,
+                                        members,
+                                        outputObjects,
+                                        stitcher != null,
+                                        regionRequest,
+                                        output.rows(),
+                                        output.cols(),
+                                        fatGlobulesDetectorParameters.getObjectToCreate()
+                                );
+                            }
+
+                            for (Mat globule : globules) {
+                                globule.close();
+                            }
+
+                            metricsRecorder.addTile(
+                                    output.total(),
+                                    contours.size() + numberOfSeparatedGlobules,
+                                    contours.size() - numberOfIsolatedGlobules - numberOfOverlappingGlobules +
+                                            numberOfSeparatedGlobules - otherGlobules.size(),
+                                    globules.size()
+                            );
+
+                            return outputObjects;
+                        } finally {
+                            if (output != masks) {
+                                output.close();
+                            }
+                            maskTracker.release(parameters, masks);
+                            memoryGovernor.release();
+                        }
+                    }))
+                    .build();
+
+            List<PathObject> annotations = getAnnotations(fatGlobulesDetectorParameters, monitoredTaskRunner, metricsRecorder, true);
+            boolean incremental = fatGlobulesDetectorParameters.isIncremental() &&
+                    fatGlobulesDetectorParameters.getIncrementalStatePath() != null &&
+                    fatGlobulesDetectorParameters.getDetectionRegion().equals(FatGlobulesDetectorParameters.DetectionRegion.SELECTED_ANNOTATIONS) &&
+                    fatGlobulesDetectorParameters.getLabelImage() == null;
+            IncrementalDetectionStore incrementalStore = incremental ?
+                    IncrementalDetectionStore.read(fatGlobulesDetectorParameters.getIncrementalStatePath(), fatGlobulesDetectorParameters) :
+                    null;
+            PixelCalibration pixelCalibration = fatGlobulesDetectorParameters.getImageData().getServer().getPixelCalibration();
+
+            Map<PathObject, IncrementalDetection> incrementalDetections = new HashMap<>();
+            List<PathObject> objectsToProcess = new ArrayList<>();
+            for (PathObject annotation: annotations) {
+                IncrementalDetection incrementalDetection = incremental ?
+                        IncrementalDetection.create(annotation, incrementalStore.get(annotation), fatGlobulesDetectorParameters) :
+                        null;
+
+                if (incrementalDetection == null) {
+                    statistics.put(
+                            annotation,
+                            new GlobuleStatistics(fatGlobulesDetectorParameters.getMaxDiameter(), fatGlobulesDetectorParameters.getMacrovesicularDiameter())
+                    );
+                    objectsToProcess.add(annotation);
+                } else if (incrementalDetection.hasChanged()) {
+                    incrementalDetections.put(annotation, incrementalDetection);
+
+                    if (incrementalDetection.getRegionToProcess() != null) {
+                        statistics.put(incrementalDetection.getRegionToProcess(), incrementalDetection.getStatistics());
+                        objectsToProcess.add(incrementalDetection.getRegionToProcess());
+                    }
+                } else {
+                    logger.debug("{} didn't change since the previous detection. Skipping it", annotation);
+                }
+            }
+
+            TilePlan tilePlan = TilePlan.create(objectsToProcess, fatGlobulesDetectorParameters);
+            if (stitcher != null) {
+                stitcher.plan(tilePlan.getObjectsToProcess());
+            }
+            for (PathObject objectToProcess: tilePlan.getObjectsToProcess()) {
+                membersOfProcessedObjects.put(objectToProcess, tilePlan.getMembers(objectToProcess));
+            }
+            metricsRecorder.addSavedTiles(tilePlan.getNumberOfSavedTiles());
+            if (tilePlan.getNumberOfSavedTiles() > 0) {
+                logger.info("{} tile(s) shared by several annotations will only be processed once", tilePlan.getNumberOfSavedTiles());
+            }
+            if (labelExport != null) {
+                try {
+                    labelExport.plan(tilePlan.getObjectsToProcess());
+                } catch (IOException e) {
+                    logger.warn("Cannot create label image {}. Labels will not be exported", fatGlobulesDetectorParameters.getLabelExportPath(), e);
+                }
+            }
+
+            TaskRunner tileTaskRunner = fatGlobulesDetectorParameters.getPriorityRegion() == null ? monitoredTaskRunner : new TileScheduler(
+                    tilePlan.getObjectsToProcess(),
+                    fatGlobulesDetectorParameters,
+                    fatGlobulesDetectorParameters.getPriorityRegion()
+            ).prioritize(monitoredTaskRunner);
+            if (publisher != null) {
+                tileTaskRunner = publisher.wrap(tileTaskRunner);
+            }
+
+            progressMonitor.setPhase(DetectionProgress.Phase.TILE_PROCESSING);
+            processor.processObjects(
+                    tileTaskRunner,
+                    fatGlobulesDetectorParameters.getImageData(),
+                    tilePlan.getObjectsToProcess()
+            );
+            if (stitcher != null) {
+                Map<PathObject, List<PathObject>> remainingGlobules = stitcher.finish();
+                for (Map.Entry<PathObject, List<PathObject>> entry: remainingGlobules.entrySet()) {
+                    entry.getKey().addChildObjects(entry.getValue());
+                }
+                if (!remainingGlobules.isEmpty()) {
+                    fatGlobulesDetectorParameters.getImageData().getHierarchy().fireHierarchyChangedEvent(stitcher);
+                }
+            }
+            if (tilePlan.getNumberOfSavedTiles() > 0) {
+                tilePlan.distributeObjects(fatGlobulesDetectorParameters.getObjectToCreate());
+                fatGlobulesDetectorParameters.getImageData().getHierarchy().fireHierarchyChangedEvent(tilePlan);
+            }
+            // Globules crossing tile boundaries are merged and added to the hierarchy once all tiles are processed
+            metricsRecorder.stopSinceLastTile(DetectionMetrics.Stage.HIERARCHY_INSERTION);
+            // The published globules are needed by the measurements
+            if (publisher != null) {
+                publisher.close();
+            }
+
+            progressMonitor.setPhase(DetectionProgress.Phase.MEASUREMENTS);
+            long startTime = metricsRecorder.start();
+            String fingerprint = fatGlobulesDetectorParameters.getFingerprint();
+            for (PathObject annotation: annotations) {
+                if (incrementalDetections.containsKey(annotation)) {
+                    IncrementalDetection incrementalDetection = incrementalDetections.get(annotation);
+                    annotation.getMetadata().put(PARAMETERS_FINGERPRINT_METADATA_KEY, fingerprint);
+
+                    incrementalDetection.complete(
+                            incrementalDetection.getRegionToProcess() == null ? Map.of() :
+                                    tileStatisticsOfMembers.getOrDefault(incrementalDetection.getRegionToProcess(), Map.of()),
+                            fatGlobulesDetectorParameters.getImageData().getHierarchy(),
+                            pixelCalibration,
+                            incrementalStore
+                    );
+                } else if (statistics.containsKey(annotation)) {
+                    annotation.getMetadata().put(PARAMETERS_FINGERPRINT_METADATA_KEY, fingerprint);
+                    double annotationArea = annotation.getROI().getScaledArea(pixelCalibration.getPixelWidthMicrons(), pixelCalibration.getPixelHeightMicrons());
+                    annotation.getMeasurementList().put(
+                            STEATOSIS_MEASUREMENT,
+                            fatGlobulesDetectorParameters.getLabelImage() == null ?
+                                    annotation.getChildObjects().stream()
+                                            .map(PathObject::getROI)
+                                            .map(ROI::getArea)
+                                            .reduce(Double::sum).orElse(0d)
+                                            / annotation.getROI().getArea() :
+                                    (annotationArea > 0 ? statistics.get(annotation).getArea() / annotationArea : 0)
+                    );
+
+                    statistics.get(annotation).addMeasurements(annotation.getMeasurementList(), annotationArea);
+
+                    DoubleAdder[] areas = colorClassAreas.get(annotation);
+                    for (int i=0; i<fatGlobulesDetectorParameters.getColorClasses().size(); ++i) {
+                        ColorClass colorClass = fatGlobulesDetectorParameters.getColorClasses().get(i);
+                        double area = areas == null ? 0 : areas[i].sum();
+
+                        annotation.getMeasurementList().put(colorClass.getAreaMeasurementName(), area);
+                        annotation.getMeasurementList().put(colorClass.getProportionateAreaMeasurementName(), annotationArea > 0 ? area / annotationArea : 0);
+                    }
+
+                    if (incremental) {
+                        incrementalStore.put(annotation, tileStatisticsOfMembers.getOrDefault(annotation, Map.of()));
+                    }
+                }
+            }
+            if (incremental) {
+                try {
+                    incrementalStore.write();
+                } catch (IOException e) {
+                    logger.warn("Cannot write the incremental state {}", fatGlobulesDetectorParameters.getIncrementalStatePath(), e);
+                }
+            }
+            metricsRecorder.stop(DetectionMetrics.Stage.MEASUREMENTS, startTime);
+
+            if (densityMap != null) {
+                try {
+                    densityMap.write(fatGlobulesDetectorParameters.getDensityMapPath());
+                    logger.info("Fat pixel fraction map written to {}", fatGlobulesDetectorParameters.getDensityMapPath());
+                } catch (IllegalArgumentException e) {
+                    logger.error("Error when writing the fat pixel fraction map", e);
+                }
+            }
+
+            Map<ImagePlane, DetectionResult.Measurements> planeMeasurements = getPlaneMeasurements(annotations, pixelCalibration);
+            DetectionResult result = new DetectionResult(
+                    memoryGovernor.getUsage(),
+                    metricsRecorder.getMetrics(),
+                    planeMeasurements,
+                    planeMeasurements.values().stream().reduce(DetectionResult.Measurements.EMPTY, DetectionResult.Measurements::add),
+                    fingerprint
+            );
+            if (planeMeasurements.size() > 1) {
+                for (Map.Entry<ImagePlane, DetectionResult.Measurements> entry: planeMeasurements.entrySet()) {
+                    logger.info("Measurements of {}: {}", entry.getKey(), entry.getValue());
+                }
+                logger.info("Measurements across planes: {}", result.measurements());
+            }
+            logger.debug("Native memory usage of the detection: {}", result.nativeMemoryUsage());
+            logger.debug("Fingerprint of the parameters of the detection: {}", result.parametersFingerprint());
+            if (result.metrics() != null) {
+                logger.info("Fat globule detection metrics: {}", result.metrics().getSummary());
+            }
+
+            // The detection is complete, so a following detection must not resume from the checkpoint
+            if (checkpoint != null) {
+                try {
+                    checkpoint.delete();
+                } catch (IOException e) {
+                    logger.warn("Cannot delete checkpoint {}", fatGlobulesDetectorParameters.getCheckpointPath(), e);
+                }
+            }
+            return result;
+        } finally {
+            // The globules, labels, and checkpoint of the processed tiles are written even if the detection fails
+            if (publisher != null) {
+                publisher.close();
+            }
+            if (labelExport != null) {
+                try {
+                    labelExport.close();
+                    logger.info("Globule labels written to {}", labelExport.getPaths());
+                } catch (IOException e) {
+                    logger.error("Error when writing the globule labels to {}", labelExport.getPaths(), e);
+                }
+            }
+
+            if (checkpoint != null) {
+                try {
+                    checkpoint.close();
+                } catch (IOException e) {
+                    logger.warn("Cannot write checkpoint {}", fatGlobulesDetectorParameters.getCheckpointPath(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Create a builder of pixel processors that segment each tile of the image by color and fill the holes
+     * of the resulting mask. The segmentation masks are cached if requested by the provided parameters.
+     * The masks may be borrowed from the {@link ScratchMatPool}, so the output handler should give them back
+     * (see {@link ScratchMatPool#recycle(Mat)}) once the tile is complete.
+     * Tiles can be skipped: the image of a skipped tile is not read, and the output of the processor is an empty mask.
+     * The output handler of the returned builder is not set.
+     * <p>
+     * If the color classes of the parameters should be segmented, the output of the processor has one channel per
+     * class after the first channel, which contains the segmentation mask of the fat (see {@link #getFatMask(Mat)}).
+     * All masks are created from the same conversion of the tile to the HSV-space.
+     *
+     * @param fatGlobulesDetectorParameters  the parameters of the detection
+     * @param segmentColorClasses  whether the color classes of the parameters (see {@link FatGlobulesDetectorParameters#getColorClasses()})
+     *                             should be segmented
+     * @param isTileSkipped  a predicate indicating whether a tile should be skipped
+     * @param memoryGovernor  a governor whose memory is acquired before each tile is processed. The output handler
+     *                        should release it (see {@link NativeMemoryGovernor#release()}) once the tile is complete
+     * @param maskTracker  a tracker recording the Mats borrowed from the {@link ScratchMatPool} for the output of each tile.
+     *                     The output handler should release the output with it (see {@link TileMaskTracker#release(Parameters, Mat)})
+     * @param metricsRecorder  the recorder to record the time spent reading, segmenting, and filling the holes of each tile to
+     * @return a builder of pixel processors whose output is the segmentation mask of each tile that is not skipped
      */
-    public static void run(FatGlobulesDetectorParameters fatGlobulesDetectorParameters) {
-        PixelProcessor<Mat, Mat, Mat> processor = OpenCVProcessor.builder(params -> {
-                    Mat mat = params.getImage().clone();
+    static PixelProcessor.Builder<Mat, Mat, Mat> createProcessorBuilder(
+            FatGlobulesDetectorParameters fatGlobulesDetectorParameters,
+            boolean segmentColorClasses,
+            Predicate<Parameters<Mat, Mat>> isTileSkipped,
+            NativeMemoryGovernor memoryGovernor,
+            TileMaskTracker maskTracker,
+            DetectionMetricsRecorder metricsRecorder
+    ) {
+        TileMaskCache maskCache = createMaskCache(fatGlobulesDetectorParameters);
+        List<ColorClass> colorClasses = segmentColorClasses ? fatGlobulesDetectorParameters.getColorClasses() : List.of();
+
+        return OpenCVProcessor.builder(params -> {
+                    if (isTileSkipped.test(params)) {
+                        return new Mat();
+                    }
+                    memoryGovernor.acquire();
 
-                    MatOperations.segmentByColor(
-                            mat,
+                    String cacheKey = maskCache == null ? null : TileMaskCache.createKey(
+                            fatGlobulesDetectorParameters.getImageData().getServer().getPath(),
+                            params.getRegionRequest(),
+                            fatGlobulesDetectorParameters.getPadding(),
                             fatGlobulesDetectorParameters.getLowerBound(),
                             fatGlobulesDetectorParameters.getUpperBound()
                     );
-                    MatOperations.fillHoles(mat);
+                    // The key of a class contains its name, so that it differs from the key of the fat mask (whose holes are filled)
+                    List<String> classCacheKeys = maskCache == null ? null : colorClasses.stream()
+                            .map(colorClass -> TileMaskCache.createKey(
+                                    fatGlobulesDetectorParameters.getImageData().getServer().getPath() + "#" + colorClass.name(),
+                                    params.getRegionRequest(),
+                                    fatGlobulesDetectorParameters.getPadding(),
+                                    colorClass.lowerBound(),
+                                    colorClass.upperBound()
+                            ))
+                            .toList();
+                    if (maskCache != null) {
+                        Mat cachedMask = getCachedMasks(maskCache, cacheKey, classCacheKeys);
+                        if (cachedMask != null) {
+                            return cachedMask;
+                        }
+                    }
 
-                    return mat;
-                })
-                .downsample(
-                        fatGlobulesDetectorParameters.getPixelSize() <= 0 ? 1 :
-                                fatGlobulesDetectorParameters.getPixelSize() / fatGlobulesDetectorParameters.getImageData().getServer().getPixelCalibration().getAveragedPixelSizeMicrons()
-                )
-                .tile(fatGlobulesDetectorParameters.getTileWidth(), fatGlobulesDetectorParameters.getTileHeight())
-                .padding(fatGlobulesDetectorParameters.getPadding())
-                .mergeSharedBoundaries(fatGlobulesDetectorParameters.getBoundaryThreshold())
-                .outputHandler(OutputHandler.createObjectOutputHandler((Parameters<Mat, Mat> parameters, Mat output) -> {
-                    Map<GlobuleClassification, List<Mat>> classifications = findGlobules(
-                            output,
-                            fatGlobulesDetectorParameters
-                    );
+                    long startTime = metricsRecorder.start();
+                    TileEvent event = TileEvents.begin(DetectionMetrics.Stage.TILE_READ);
+                    Mat image = params.getImage();
+                    TileEvents.end(event, params.getRegionRequest(), image.total(), 0);
+                    metricsRecorder.stop(DetectionMetrics.Stage.TILE_READ, startTime);
+                    Mat mat = ScratchMatPool.borrow(image.rows(), image.cols(), opencv_core.CV_8U);
+                    List<Mat> classMasks = colorClasses.stream()
+                            .map(colorClass -> ScratchMatPool.borrow(image.rows(), image.cols(), opencv_core.CV_8U))
+                            .toList();
 
-                    List<Mat> contoursOfSeparatedOverlappingGlobules = separateOverlappingGlobules(
-                            classifications.get(GlobuleClassification.OVERLAPPING_GLOBULE),
-                            output.rows(),
-                            output.cols()
+                    startTime = metricsRecorder.start();
+                    event = TileEvents.begin(DetectionMetrics.Stage.SEGMENTATION);
+                    MatOperations.segmentByColors(
+                            image,
+                            Stream.concat(Stream.of(mat), classMasks.stream()).toList(),
+                            Stream.concat(Stream.of(fatGlobulesDetectorParameters.getLowerBound()), colorClasses.stream().map(ColorClass::lowerBound)).toList(),
+                            Stream.concat(Stream.of(fatGlobulesDetectorParameters.getUpperBound()), colorClasses.stream().map(ColorClass::upperBound)).toList(),
+                            fatGlobulesDetectorParameters.getSegmentationBackend()
                     );
-                    for (Mat overlappingGlobule : classifications.get(GlobuleClassification.OVERLAPPING_GLOBULE)) {
-                        overlappingGlobule.close();
+                    TileEvents.end(event, params.getRegionRequest(), mat.total(), 0);
+                    metricsRecorder.stop(DetectionMetrics.Stage.SEGMENTATION, startTime);
+
+                    startTime = metricsRecorder.start();
+                    event = TileEvents.begin(DetectionMetrics.Stage.HOLE_FILLING);
+                    MatOperations.fillHoles(mat);
+                    TileEvents.end(event, params.getRegionRequest(), mat.total(), 0);
+                    metricsRecorder.stop(DetectionMetrics.Stage.HOLE_FILLING, startTime);
+
+                    if (maskCache != null) {
+                        maskCache.put(cacheKey, mat);
+                        for (int i=0; i<classMasks.size(); ++i) {
+                            maskCache.put(classCacheKeys.get(i), classMasks.get(i));
+                        }
+                    }
+
+                    if (classMasks.isEmpty()) {
+                        return maskTracker.add(params, mat);
+                    } else {
+                        Mat masks = mergeMasks(Stream.concat(Stream.of(mat), classMasks.stream()).toList());
+                        ScratchMatPool.recycle(mat);
+                        classMasks.forEach(ScratchMatPool::recycle);
+                        return masks;
                     }
+                })
+                .downsample(getDownsample(fatGlobulesDetectorParameters))
+                .tile(fatGlobulesDetectorParameters.getTileWidth(), fatGlobulesDetectorParameters.getTileHeight())
+                .padding(fatGlobulesDetectorParameters.getPadding());
+    }
 
-                    List<Mat> otherGlobules = getIsolatedGlobules(contoursOfSeparatedOverlappingGlobules, fatGlobulesDetectorParameters);
+    /**
+     * Get the downsample at which the tiles of the image are processed.
+     *
+     * @param fatGlobulesDetectorParameters  the parameters of the detection
+     * @return the downsample at which the tiles of the image are processed
+     */
+    static double getDownsample(FatGlobulesDetectorParameters fatGlobulesDetectorParameters) {
+        return fatGlobulesDetectorParameters.getPixelSize() <= 0 ? 1 :
+                fatGlobulesDetectorParameters.getPixelSize() / fatGlobulesDetectorParameters.getImageData().getServer().getPixelCalibration().getAveragedPixelSizeMicrons();
+    }
 
-                    List<Mat> globules = new ArrayList<>();
-                    globules.addAll(classifications.get(GlobuleClassification.ISOLATED_GLOBULE));
-                    globules.addAll(otherGlobules);
+    /**
+     * Get the annotations where the detection should take place. If the tissue should be detected,
+     * the tissue annotations of a previous detection with the same parameters are reused if they belong to the
+     * hierarchy of the image. Otherwise, this will run the tissue detection as a task of the provided task runner.
+     *
+     * @param fatGlobulesDetectorParameters  the parameters of the detection
+     * @param taskRunner  the task runner to use to run the tissue detection
+     * @param metricsRecorder  the recorder to record the time spent in the tissue detection to
+     * @param addTissueToHierarchy  whether detected tissue annotations should be added to the hierarchy of the image
+     * @return the annotations where the detection should take place
+     */
+    static List<PathObject> getAnnotations(
+            FatGlobulesDetectorParameters fatGlobulesDetectorParameters,
+            TaskRunner taskRunner,
+            DetectionMetricsRecorder metricsRecorder,
+            boolean addTissueToHierarchy
+    ) {
+        return switch (fatGlobulesDetectorParameters.getDetectionRegion()) {
+            case SELECTED_ANNOTATIONS -> fatGlobulesDetectorParameters.getPlanes().isEmpty() ?
+                    fatGlobulesDetectorParameters.getAnnotations() :
+                    fatGlobulesDetectorParameters.getAnnotations().stream()
+                            .filter(annotation -> fatGlobulesDetectorParameters.getPlanes().contains(annotation.getROI().getImagePlane()))
+                            .toList();
+            case DETECTED_TISSUE -> {
+                List<TissueDetectorParameters> tissueDetectorParametersOfPlanes = fatGlobulesDetectorParameters.getPlanes().isEmpty() ?
+                        List.of(fatGlobulesDetectorParameters.getTissueDetectorParameters()) :
+                        fatGlobulesDetectorParameters.getPlanes().stream()
+                                .map(plane -> fatGlobulesDetectorParameters.getTissueDetectorParameters().withPlane(plane))
+                                .toList();
 
-                    List<PathObject> pathObjects = createPathObjects(globules, fatGlobulesDetectorParameters.getObjectToCreate(), parameters.getRegionRequest());
+                Map<TissueDetectorParameters, List<PathObject>> tissueAnnotations = new ConcurrentHashMap<>();
+                List<TissueDetectorParameters> tissueDetectorParametersToDetect = new ArrayList<>();
+                for (TissueDetectorParameters tissueDetectorParameters: tissueDetectorParametersOfPlanes) {
+                    List<PathObject> existingTissueAnnotations = TissueDetector.getTissueAnnotations(
+                            fatGlobulesDetectorParameters.getImageData().getHierarchy(),
+                            tissueDetectorParameters
+                    );
 
-                    for (Mat globule : globules) {
-                        globule.close();
+                    if (existingTissueAnnotations.isEmpty()) {
+                        tissueDetectorParametersToDetect.add(tissueDetectorParameters);
+                    } else {
+                        logger.info(
+                                "Reusing {} tissue annotation(s) of {} detected with the same parameters",
+                                existingTissueAnnotations.size(),
+                                tissueDetectorParameters.getPlane()
+                        );
+                        tissueAnnotations.put(tissueDetectorParameters, existingTissueAnnotations);
                     }
+                }
 
-                    return pathObjects;
-                }))
-                .build();
+                // Planes are detected concurrently by the task runner
+                if (!tissueDetectorParametersToDetect.isEmpty()) {
+                    TileMaskCache maskCache = createMaskCache(fatGlobulesDetectorParameters);
+                    taskRunner.runTasks(
+                            "Detecting tissue",
+                            tissueDetectorParametersToDetect.stream()
+                                    .map(tissueDetectorParameters -> (Runnable) () -> tissueAnnotations.put(
+                                            tissueDetectorParameters,
+                                            TissueDetector.detectTissue(tissueDetectorParameters, metricsRecorder, maskCache)
+                                    ))
+                                    .toList()
+                    );
 
-        ExecutorService executor = Executors.newSingleThreadExecutor();
-        executor.execute(() -> {
-            List<PathObject> annotations = switch (fatGlobulesDetectorParameters.getDetectionRegion()) {
-                case SELECTED_ANNOTATIONS -> fatGlobulesDetectorParameters.getAnnotations();
-                case DETECTED_TISSUE -> {
-                    List<PathObject> tissueAnnotations = TissueDetector.detectTissue(fatGlobulesDetectorParameters.getTissueDetectorParameters());
-                    fatGlobulesDetectorParameters.getImageData().getHierarchy().addObjects(tissueAnnotations);
-                    yield tissueAnnotations;
+                    if (addTissueToHierarchy) {
+                        long startTime = metricsRecorder.start();
+                        fatGlobulesDetectorParameters.getImageData().getHierarchy().addObjects(tissueDetectorParametersToDetect.stream()
+                                .map(tissueDetectorParameters -> tissueAnnotations.getOrDefault(tissueDetectorParameters, List.of()))
+                                .flatMap(List::stream)
+                                .toList()
+                        );
+                        metricsRecorder.stop(DetectionMetrics.Stage.HIERARCHY_INSERTION, startTime);
+                    }
                 }
-            };
 
-            processor.processObjects(
-                    switch (fatGlobulesDetectorParameters.getProgressDisplay()) {
-                        case WINDOW -> new TaskRunnerFX(QuPathGUI.getInstance());
-                        case LOG -> new CommandLineTaskRunner();
-                    },
-                    fatGlobulesDetectorParameters.getImageData(),
-                    annotations
+                yield tissueDetectorParametersOfPlanes.stream()
+                        .map(tissueDetectorParameters -> tissueAnnotations.getOrDefault(tissueDetectorParameters, List.of()))
+                        .flatMap(List::stream)
+                        .toList();
+            }
+        };
+    }
+
+    /**
+     * Aggregate the measurements of the provided annotations per plane. This should be called once
+     * the measurements are written to the annotations.
+     *
+     * @param annotations  the annotations where the detection took place
+     * @param pixelCalibration  the pixel calibration of the image
+     * @return the aggregated measurements of each plane containing at least one annotation, sorted by timepoint and z-slice
+     */
+    private static Map<ImagePlane, DetectionResult.Measurements> getPlaneMeasurements(List<PathObject> annotations, PixelCalibration pixelCalibration) {
+        Map<ImagePlane, DetectionResult.Measurements> planeMeasurements = new TreeMap<>(
+                Comparator.comparingInt(ImagePlane::getT).thenComparingInt(ImagePlane::getZ)
+        );
+
+        for (PathObject annotation: annotations) {
+            double annotationArea = annotation.getROI().getScaledArea(pixelCalibration.getPixelWidthMicrons(), pixelCalibration.getPixelHeightMicrons());
+            double globuleCount = annotation.getMeasurementList().get(GlobuleStatistics.COUNT_MEASUREMENT);
+            double steatosis = annotation.getMeasurementList().get(STEATOSIS_MEASUREMENT);
+
+            planeMeasurements.merge(
+                    annotation.getROI().getImagePlane(),
+                    new DetectionResult.Measurements(
+                            1,
+                            Double.isNaN(globuleCount) ? 0 : (long) globuleCount,
+                            Double.isNaN(steatosis) ? 0 : steatosis * annotationArea,
+                            annotationArea
+                    ),
+                    DetectionResult.Measurements::add
             );
+        }
 
-            for (PathObject annotation: annotations) {
-                annotation.getMeasurementList().put(
-                        "Steatosis Proportionate Area",
-                        annotation.getChildObjects().stream()
-                                .map(PathObject::getROI)
-                                .map(ROI::getArea)
-                                .reduce(Double::sum).orElse(0d)
-                                / annotation.getROI().getArea()
-                );
-            }
+        return Collections.unmodifiableMap(new LinkedHashMap<>(planeMeasurements));
+    }
 
-            fatGlobulesDetectorParameters.getOnFinished().run();
-        });
-        executor.shutdown();
+    /**
+     * Create the task runner to use to display the progress of the provided detection.
+     *
+     * @param fatGlobulesDetectorParameters  the parameters of the detection
+     * @return a task runner displaying progress as requested by the provided parameters
+     */
+    static TaskRunner createTaskRunner(FatGlobulesDetectorParameters fatGlobulesDetectorParameters) {
+        return switch (fatGlobulesDetectorParameters.getProgressDisplay()) {
+            case WINDOW -> new TaskRunnerFX(QuPathGUI.getInstance());
+            case LOG -> new CommandLineTaskRunner();
+        };
     }
 
     /**
-     * Find the contours of the provided mask and classify them as isolated or overlapping globules.
+     * Create the cache of segmentation masks defined by the provided parameters.
      *
-     * @param mask  the mask whose globules should be found
-     * @param fatGlobulesDetectorParameters  the parameters to use during the classification
-     * @return a map containing the contours of the provided mask classified as isolated or overlapping globules
+     * @param fatGlobulesDetectorParameters  the parameters of the detection
+     * @return the cache of segmentation masks, or null if masks should not be cached or if the cache cannot be created
      */
-    private static Map<GlobuleClassification, List<Mat>> findGlobules(Mat mask, FatGlobulesDetectorParameters fatGlobulesDetectorParameters) {
-        return filterGlobules(
-                MatOperations.findContours(mask),
-                fatGlobulesDetectorParameters
-        );
+    private static TileMaskCache createMaskCache(FatGlobulesDetectorParameters fatGlobulesDetectorParameters) {
+        if (fatGlobulesDetectorParameters.getMaskCacheDirectory() == null) {
+            return null;
+        }
+
+        try {
+            return new TileMaskCache(fatGlobulesDetectorParameters.getMaskCacheDirectory(), fatGlobulesDetectorParameters.getMaskCacheMaxSize());
+        } catch (IOException e) {
+            logger.warn("Cannot create mask cache in {}. Masks won't be cached", fatGlobulesDetectorParameters.getMaskCacheDirectory(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Create the checkpoint defined by the provided parameters.
+     *
+     * @param fatGlobulesDetectorParameters  the parameters of the detection
+     * @return the checkpoint, or null if no checkpoint should be written or if the checkpoint cannot be created
+     */
+    private static DetectionCheckpoint createCheckpoint(FatGlobulesDetectorParameters fatGlobulesDetectorParameters) {
+        if (fatGlobulesDetectorParameters.getCheckpointPath() == null) {
+            return null;
+        }
+
+        try {
+            return new DetectionCheckpoint(
+                    fatGlobulesDetectorParameters.getCheckpointPath(),
+                    fatGlobulesDetectorParameters,
+                    fatGlobulesDetectorParameters.isResume()
+            );
+        } catch (IOException e) {
+            logger.warn("Cannot create checkpoint {}. No checkpoint will be written", fatGlobulesDetectorParameters.getCheckpointPath(), e);
+            return null;
+        }
     }
 
     /**
@@ -158,14 +914,76 @@ public class FatGlobuleDetector {
      * @param numberOfColumns  the number of columns of the image containing the globules
      * @return a list of contours (as defined by OpenCV) of separated globules
      */
-    private static List<Mat> separateOverlappingGlobules(List<Mat> overlappingGlobules, int numberOfRows, int numberOfColumns) {
-        try (
-                MatExpr maskExpr = Mat.zeros(numberOfRows, numberOfColumns, opencv_core.CV_8U);
-                Mat mask = maskExpr.asMat()
-        ) {
+    static List<Mat> separateOverlappingGlobules(List<Mat> overlappingGlobules, int numberOfRows, int numberOfColumns) {
+        Mat mask = ScratchMatPool.borrow(numberOfRows, numberOfColumns, opencv_core.CV_8U);
+
+        try (Scalar zero = new Scalar(0)) {
+            mask.put(zero);
             MatOperations.drawContours(mask, overlappingGlobules);
 
             return MatOperations.separateObjects(mask);
+        } finally {
+            ScratchMatPool.recycle(mask);
+        }
+    }
+
+    /**
+     * Draw the provided globules of a tile to a mask, and add this mask to a label image.
+     *
+     * @param labelImage  the label image to add the globules to
+     * @param globules  the contours (as defined by OpenCV) of the globules of the tile
+     * @param regionRequest  the region of the tile
+     * @param numberOfRows  the number of rows of the image containing the globules
+     * @param numberOfColumns  the number of columns of the image containing the globules
+     */
+    private static void addToLabelImage(GlobuleLabelImage labelImage, List<Mat> globules, RegionRequest regionRequest, int numberOfRows, int numberOfColumns) {
+        Mat mask = ScratchMatPool.borrow(numberOfRows, numberOfColumns, opencv_core.CV_8U);
+
+        try (Scalar zero = new Scalar(0)) {
+            mask.put(zero);
+            MatOperations.drawContours(mask, globules);
+
+            labelImage.addTile(regionRequest, mask);
+        } finally {
+            ScratchMatPool.recycle(mask);
+        }
+    }
+
+    /**
+     * Draw the provided globules of a tile with their label (see {@link GlobuleLabelExport#MICROVESICULAR_LABEL} and
+     * {@link GlobuleLabelExport#MACROVESICULAR_LABEL}) to a mask, and add this mask to a label export.
+     *
+     * @param labelExport  the label export to add the globules to
+     * @param globules  the contours (as defined by OpenCV) of the globules of the tile
+     * @param regionRequest  the region of the tile
+     * @param numberOfRows  the number of rows of the image containing the globules
+     * @param numberOfColumns  the number of columns of the image containing the globules
+     * @param fatGlobulesDetectorParameters  the parameters of the detection, whose macrovesicular diameter is used
+     */
+    private static void addToLabelExport(
+            GlobuleLabelExport labelExport,
+            List<Mat> globules,
+            RegionRequest regionRequest,
+            int numberOfRows,
+            int numberOfColumns,
+            FatGlobulesDetectorParameters fatGlobulesDetectorParameters
+    ) {
+        double pixelSize = fatGlobulesDetectorParameters.getImageData().getServer().getPixelCalibration().getAveragedPixelSizeMicrons() *
+                regionRequest.getDownsample();
+        Map<Boolean, List<Mat>> globulesByMacrovesicular = globules.stream()
+                .collect(Collectors.partitioningBy(globule -> getDiameter(globule, pixelSize) >= fatGlobulesDetectorParameters.getMacrovesicularDiameter()));
+        Mat labels = ScratchMatPool.borrow(numberOfRows, numberOfColumns, opencv_core.CV_8U);
+
+        try (Scalar zero = new Scalar(0)) {
+            labels.put(zero);
+            MatOperations.drawContours(labels, globulesByMacrovesicular.get(false), GlobuleLabelExport.MICROVESICULAR_LABEL);
+            MatOperations.drawContours(labels, globulesByMacrovesicular.get(true), GlobuleLabelExport.MACROVESICULAR_LABEL);
+
+            labelExport.addTile(regionRequest, labels);
+        } catch (IOException e) {
+            logger.warn("Cannot export the globule labels of {}", regionRequest, e);
+        } finally {
+            ScratchMatPool.recycle(labels);
         }
     }
 
@@ -175,10 +993,11 @@ public class FatGlobuleDetector {
      *
      * @param contours  the contours to filter
      * @param fatGlobulesDetectorParameters  the parameters (solidity, elongation, and diameters) to use during filtering
+     * @param downsample  the downsample of the tile the contours were found in
      * @return a list of contours (as defined by OpenCV) of isolated globules
      */
-    private static List<Mat> getIsolatedGlobules(List<Mat> contours, FatGlobulesDetectorParameters fatGlobulesDetectorParameters) {
-        Map<GlobuleClassification, List<Mat>> classifications = filterGlobules(contours, fatGlobulesDetectorParameters);
+    private static List<Mat> getIsolatedGlobules(List<Mat> contours, FatGlobulesDetectorParameters fatGlobulesDetectorParameters, double downsample) {
+        Map<GlobuleClassification, List<Mat>> classifications = filterGlobules(contours, fatGlobulesDetectorParameters, downsample);
         for (Mat contour: classifications.get(GlobuleClassification.OVERLAPPING_GLOBULE)) {
             contour.close();
         }
@@ -186,6 +1005,215 @@ public class FatGlobuleDetector {
         return classifications.get(GlobuleClassification.ISOLATED_GLOBULE);
     }
 
+    /**
+     * Add the provided globules to the statistics of an annotation. Only globules whose centroid
+     * is located within the annotation and that are counted in the tile (see {@link #isCountedInTile(Mat, RegionRequest)})
+     * are considered.
+     * <p>
+     * The statistics are computed on each tile, before globules crossing tile boundaries are merged. Such a globule is
+     * counted once, but with the diameter and the area of its piece located in the tile where it is counted, so the
+     * statistics underestimate the size of globules crossing tile boundaries (larger tiles make this less frequent).
+     *
+     * @param statistics  the statistics to update. Can be null
+     * @param globules  the globules found in the tile
+     * @param annotation  the annotation containing the tile
+     * @param regionRequest  the region of the tile
+     * @param scale  the size (in microns) of a pixel of the full resolution image
+     * @return the position and size of the globules that were considered
+     */
+    private static List<DetectionCheckpoint.CountedGlobule> updateStatistics(
+            GlobuleStatistics statistics,
+            List<Mat> globules,
+            PathObject annotation,
+            RegionRequest regionRequest,
+            double scale
+    ) {
+        double pixelSize = scale * regionRequest.getDownsample();
+        List<DetectionCheckpoint.CountedGlobule> countedGlobules = new ArrayList<>();
+
+        for (Mat globule: globules) {
+            try (
+                    Moments moments = opencv_imgproc.moments(globule);
+                    Point2f center = new Point2f(0, 0)
+            ) {
+                if (!isCountedInTile(globule, regionRequest) || !isCentroidWithin(moments, annotation, regionRequest)) {
+                    continue;
+                }
+
+                float[] radius = new float[] {0};
+                opencv_imgproc.minEnclosingCircle(globule, center, radius);
+
+                DetectionCheckpoint.CountedGlobule countedGlobule = new DetectionCheckpoint.CountedGlobule(
+                        moments.m10() / moments.m00() * regionRequest.getDownsample() + regionRequest.getX(),
+                        moments.m01() / moments.m00() * regionRequest.getDownsample() + regionRequest.getY(),
+                        radius[0] * 2 * pixelSize,
+                        moments.m00() * pixelSize * pixelSize
+                );
+                if (statistics != null) {
+                    statistics.addGlobule(countedGlobule.diameter(), countedGlobule.area());
+                }
+                countedGlobules.add(countedGlobule);
+            }
+        }
+
+        return countedGlobules;
+    }
+
+    /**
+     * Indicate whether a globule found in a tile should be counted in this tile. A globule crossing
+     * the left or top boundary of a tile is not counted, because it was already counted in the neighbouring
+     * tile (the part of this globule located in the neighbouring tile touches the right or bottom boundary
+     * of that tile).
+     * <p>
+     * Only the piece of the globule located in the counting tile is known at this point, so the size recorded
+     * for a globule crossing a tile boundary is the size of this piece, not the size of the merged globule.
+     *
+     * @param globule  the contour (as defined by OpenCV) of the globule
+     * @param regionRequest  the region of the tile containing the globule
+     * @return whether the globule should be counted in the provided tile
+     */
+    static boolean isCountedInTile(Mat globule, RegionRequest regionRequest) {
+        try (Rect boundingBox = opencv_imgproc.boundingRect(globule)) {
+            return !(boundingBox.x() <= 0 && regionRequest.getX() > 0) && !(boundingBox.y() <= 0 && regionRequest.getY() > 0);
+        }
+    }
+
+    /**
+     * Indicate whether the centroid of a globule is located within an annotation.
+     *
+     * @param moments  the moments of the contour of the globule
+     * @param annotation  the annotation that may contain the globule
+     * @param regionRequest  the region of the tile containing the globule
+     * @return whether the centroid of the globule is located within the annotation
+     */
+    static boolean isCentroidWithin(Moments moments, PathObject annotation, RegionRequest regionRequest) {
+        if (moments.m00() <= 0) {
+            return false;
+        }
+
+        return annotation.getROI().contains(
+                moments.m10() / moments.m00() * regionRequest.getDownsample() + regionRequest.getX(),
+                moments.m01() / moments.m00() * regionRequest.getDownsample() + regionRequest.getY()
+        );
+    }
+
+    /**
+     * Get the segmentation mask of the fat from the output of a processor created by
+     * {@link #createProcessorBuilder(FatGlobulesDetectorParameters, boolean, Predicate, NativeMemoryGovernor, TileMaskTracker, DetectionMetricsRecorder)}.
+     *
+     * @param masks  the output of the processor
+     * @return the provided output if it only contains the mask of the fat, or a new mask (that should be closed
+     * once not used anymore) containing its first channel
+     */
+    static Mat getFatMask(Mat masks) {
+        if (masks.channels() <= 1) {
+            return masks;
+        }
+
+        Mat fatMask = new Mat();
+        opencv_core.extractChannel(masks, fatMask, 0);
+        return fatMask;
+    }
+
+    /**
+     * Merge single channel masks into one mask with one channel per provided mask.
+     *
+     * @param masks  the masks to merge. They must have the same size and the {@link opencv_core#CV_8U} format
+     * @return a new mask containing the provided masks as channels
+     */
+    private static Mat mergeMasks(List<Mat> masks) {
+        Mat mergedMasks = new Mat();
+        try (MatVector matVector = new MatVector(masks.toArray(Mat[]::new))) {
+            opencv_core.merge(matVector, mergedMasks);
+        }
+        return mergedMasks;
+    }
+
+    /**
+     * Get the masks of a tile from the cache.
+     *
+     * @param maskCache  the cache containing the masks
+     * @param cacheKey  the key of the mask of the fat
+     * @param classCacheKeys  the keys of the masks of the color classes
+     * @return the mask of the fat if there is no color class, a mask with one channel per mask (starting with the
+     * fat) otherwise, or null if one of the masks is not in the cache
+     */
+    private static Mat getCachedMasks(TileMaskCache maskCache, String cacheKey, List<String> classCacheKeys) {
+        List<Mat> masks = new ArrayList<>();
+        for (String key: Stream.concat(Stream.of(cacheKey), classCacheKeys.stream()).toList()) {
+            Mat mask = maskCache.get(key);
+            if (mask == null) {
+                masks.forEach(Mat::close);
+                return null;
+            }
+            masks.add(mask);
+        }
+
+        if (masks.size() == 1) {
+            return masks.get(0);
+        } else {
+            Mat mergedMasks = mergeMasks(masks);
+            masks.forEach(Mat::close);
+            return mergedMasks;
+        }
+    }
+
+    /**
+     * Add the area of the color classes of a tile to the annotations containing the tile. Only the pixels
+     * of the tile located within an annotation are added to this annotation.
+     *
+     * @param colorClassAreas  the area (in micro-meter squared) of each color class of each annotation
+     * @param masks  the output of the processor, whose channels after the first one contain the mask of each color class
+     * @param annotations  the annotations that may contain the tile
+     * @param regionRequest  the region of the tile
+     * @param scale  the size (in microns) of a pixel of the full resolution image
+     */
+    private static void addColorClassAreas(
+            Map<PathObject, DoubleAdder[]> colorClassAreas,
+            Mat masks,
+            List<PathObject> annotations,
+            RegionRequest regionRequest,
+            double scale
+    ) {
+        double pixelArea = Math.pow(scale * regionRequest.getDownsample(), 2);
+        Geometry tile = GeometryTools.createRectangle(
+                regionRequest.getX(),
+                regionRequest.getY(),
+                regionRequest.getWidth(),
+                regionRequest.getHeight()
+        );
+
+        for (PathObject annotation: annotations) {
+            Geometry annotationGeometry = annotation.getROI().getGeometry();
+            if (!annotationGeometry.intersects(tile)) {
+                continue;
+            }
+
+            DoubleAdder[] areas = colorClassAreas.computeIfAbsent(
+                    annotation,
+                    object -> IntStream.range(1, masks.channels()).mapToObj(i -> new DoubleAdder()).toArray(DoubleAdder[]::new)
+            );
+            try (
+                    Mat annotationMask = annotationGeometry.covers(tile) ? null : OpenCVTools.imageToMat(BufferedImageTools.createROIMask(
+                            masks.cols(),
+                            masks.rows(),
+                            annotation.getROI(),
+                            regionRequest
+                    ));
+                    Mat classMask = new Mat()
+            ) {
+                for (int i=1; i<masks.channels(); ++i) {
+                    opencv_core.extractChannel(masks, classMask, i);
+                    if (annotationMask != null) {
+                        opencv_core.bitwise_and(classMask, annotationMask, classMask);
+                    }
+
+                    areas[i-1].add(opencv_core.countNonZero(classMask) * pixelArea);
+                }
+            }
+        }
+    }
+
     /**
      * Create PathObjects from the provided list of globules.
      *
@@ -209,14 +1237,88 @@ public class FatGlobuleDetector {
                         );
                     }
                 })
-                .map(roi -> switch (objectToCreate) {
-                    case ANNOTATION -> PathObjects.createAnnotationObject(roi);
-                    case DETECTION -> PathObjects.createDetectionObject(roi);
-                })
+                .map(roi -> createPathObject(roi, objectToCreate))
                 .toList();
 
     }
 
+    /**
+     * Queue the final globules of a tile to be published to the hierarchy, and get the ones that still need to be
+     * merged by the pixel processor. Each globule is published as a child of the members it belongs to (see
+     * {@link TilePlan#assignToMembers(List, List, FatGlobulesDetectorParameters.ObjectToCreate)}).
+     * <p>
+     * With the stitcher, the provided globules are complete, so they are all published. Otherwise, only the globules
+     * that don't touch the boundaries of the tile are published, because the other ones may be merged with globules
+     * of neighbouring tiles by the pixel processor.
+     *
+     * @param publisher  the publisher to queue the globules to
+     * @param members  the annotations represented by the object the globules were detected in
+     * @param globules  the globules of the tile
+     * @param stitched  whether the provided globules were returned by the stitcher
+     * @param regionRequest  the region of the tile, without padding
+     * @param numberOfRows  the number of rows of the tile at the processing resolution
+     * @param numberOfColumns  the number of columns of the tile at the processing resolution
+     * @param objectToCreate  the type of object to create when a globule belongs to several members
+     * @return the globules that were not published, and that should be returned to the pixel processor
+     */
+    private static List<PathObject> publishFinalGlobules(
+            HierarchyPublisher publisher,
+            List<PathObject> members,
+            List<PathObject> globules,
+            boolean stitched,
+            RegionRequest regionRequest,
+            int numberOfRows,
+            int numberOfColumns,
+            FatGlobulesDetectorParameters.ObjectToCreate objectToCreate
+    ) {
+        List<PathObject> finalGlobules = new ArrayList<>();
+        List<PathObject> otherGlobules = new ArrayList<>();
+        for (PathObject globule: globules) {
+            if (globule.hasROI() && (stitched || !touchesTileBoundary(globule.getROI(), regionRequest, numberOfRows, numberOfColumns))) {
+                finalGlobules.add(globule);
+            } else {
+                otherGlobules.add(globule);
+            }
+        }
+
+        for (Map.Entry<PathObject, List<PathObject>> entry: TilePlan.assignToMembers(members, finalGlobules, objectToCreate).entrySet()) {
+            publisher.add(entry.getKey(), entry.getValue());
+        }
+        return otherGlobules;
+    }
+
+    /**
+     * Indicate whether a globule has a pixel on the first or last row or column of a tile.
+     *
+     * @param roi  the ROI of the globule, created from a contour (as defined by OpenCV) of the tile
+     * @param regionRequest  the region of the tile, without padding
+     * @param numberOfRows  the number of rows of the tile at the processing resolution
+     * @param numberOfColumns  the number of columns of the tile at the processing resolution
+     * @return whether the globule touches a boundary of the tile
+     */
+    private static boolean touchesTileBoundary(ROI roi, RegionRequest regionRequest, int numberOfRows, int numberOfColumns) {
+        double downsample = regionRequest.getDownsample();
+
+        return Math.round((roi.getBoundsX() - regionRequest.getX()) / downsample) <= 0 ||
+                Math.round((roi.getBoundsY() - regionRequest.getY()) / downsample) <= 0 ||
+                Math.round((roi.getBoundsX() + roi.getBoundsWidth() - regionRequest.getX()) / downsample) >= numberOfColumns - 1 ||
+                Math.round((roi.getBoundsY() + roi.getBoundsHeight() - regionRequest.getY()) / downsample) >= numberOfRows - 1;
+    }
+
+    /**
+     * Create a PathObject from the provided ROI.
+     *
+     * @param roi  the ROI of the PathObject to create
+     * @param objectToCreate  the type of PathObject to create
+     * @return a PathObject of the provided type with the provided ROI
+     */
+    static PathObject createPathObject(ROI roi, FatGlobulesDetectorParameters.ObjectToCreate objectToCreate) {
+        return switch (objectToCreate) {
+            case ANNOTATION -> PathObjects.createAnnotationObject(roi);
+            case DETECTION -> PathObjects.createDetectionObject(roi);
+        };
+    }
+
     /**
      * <p>
      *     Filter a list of contours to find globules based on their solidity, elongation, and diameters
@@ -232,10 +1334,13 @@ public class FatGlobuleDetector {
      *
      * @param contours  the list of contours (as specified by OpenCV) to filter. Filtered contours will be closed.
      * @param fatGlobulesDetectorParameters  the parameters (solidity, elongation, and diameters) to use during filtering
+     * @param downsample  the downsample of the tile the contours were found in. Diameters are measured with the size
+     *                    of a pixel of the tile, so that they don't depend on the resolution the tile is processed at
      * @return a map containing the input contours classified as isolated or overlapping globules
      */
-    private static Map<GlobuleClassification, List<Mat>> filterGlobules(List<Mat> contours, FatGlobulesDetectorParameters fatGlobulesDetectorParameters) {
-        double scale = fatGlobulesDetectorParameters.getImageData().getServer().getPixelCalibration().getAveragedPixelSizeMicrons();
+    private static Map<GlobuleClassification, List<Mat>> filterGlobules(List<Mat> contours, FatGlobulesDetectorParameters fatGlobulesDetectorParameters, double downsample) {
+        double scale = fatGlobulesDetectorParameters.getImageData().getServer().getPixelCalibration().getAveragedPixelSizeMicrons() * downsample;
+        GlobuleFilterParameters filterParameters = fatGlobulesDetectorParameters.getFilterParameters();
 
         Map<GlobuleClassification, List<Mat>> classifications = Map.of(
                 GlobuleClassification.ISOLATED_GLOBULE, new ArrayList<>(),
@@ -243,33 +1348,36 @@ public class FatGlobuleDetector {
         );
 
         for (Mat contour: contours) {
-            try (Point2f center = new Point2f(0, 0)) {
-                float[] radius = new float[] {0};
-                try {
-                    opencv_imgproc.minEnclosingCircle(contour, center, radius);
-                } catch (RuntimeException ignored) {}
-                double diameter = radius[0] * 2 * scale;
-                double elongation = MatOperations.getElongation(contour);
-                double solidity = MatOperations.getSolidity(contour);
-
-                boolean isIsolatedGlobule = elongation > fatGlobulesDetectorParameters.getMinIsolatedGlobuleElongation() &&
-                        solidity > fatGlobulesDetectorParameters.getMinIsolatedGlobuleSolidity() &&
-                        fatGlobulesDetectorParameters.getMinDiameter() < diameter &&
-                        diameter < fatGlobulesDetectorParameters.getMaxDiameter();
-                boolean isOverlappingGlobules = elongation > fatGlobulesDetectorParameters.getMinOverlappingGlobuleElongation() &&
-                        solidity > fatGlobulesDetectorParameters.getMinOverlappingGlobuleSolidity() &&
-                        diameter > fatGlobulesDetectorParameters.getMinDiameter();
-
-                if (isIsolatedGlobule) {
-                    classifications.get(GlobuleClassification.ISOLATED_GLOBULE).add(contour);
-                } else if (isOverlappingGlobules) {
-                    classifications.get(GlobuleClassification.OVERLAPPING_GLOBULE).add(contour);
-                } else {
-                    contour.close();
-                }
+            double diameter = getDiameter(contour, scale);
+            double elongation = MatOperations.getElongation(contour);
+            double solidity = MatOperations.getSolidity(contour);
+
+            if (filterParameters.isIsolatedGlobule(elongation, solidity, diameter)) {
+                classifications.get(GlobuleClassification.ISOLATED_GLOBULE).add(contour);
+            } else if (filterParameters.isOverlappingGlobules(elongation, solidity, diameter)) {
+                classifications.get(GlobuleClassification.OVERLAPPING_GLOBULE).add(contour);
+            } else {
+                contour.close();
             }
         }
 
         return classifications;
     }
+
+    /**
+     * Compute the diameter of the minimal enclosing circle of a contour, as used when filtering globules.
+     *
+     * @param contour  the contour (as defined by OpenCV) whose diameter should be computed
+     * @param scale  the size (in microns) of a pixel of the image the contour was found in
+     * @return the diameter (in microns) of the contour, or 0 if it cannot be computed
+     */
+    static double getDiameter(Mat contour, double scale) {
+        try (Point2f center = new Point2f(0, 0)) {
+            float[] radius = new float[] {0};
+            try {
+                opencv_imgproc.minEnclosingCircle(contour, center, radius);
+            } catch (RuntimeException ignored) {}
+            return radius[0] * 2 * scale;
+        }
+    }
 }
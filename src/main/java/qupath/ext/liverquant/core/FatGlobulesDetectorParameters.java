@@ -3,8 +3,11 @@ package qupath.ext.liverquant.core;
 import qupath.ext.liverquant.gui.UiUtilities;
 import qupath.lib.images.ImageData;
 import qupath.lib.objects.PathObject;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.regions.ImageRegion;
 
 import java.awt.image.BufferedImage;
+import java.nio.file.Path;
 import java.util.List;
 
 /**
@@ -21,6 +24,8 @@ public class FatGlobulesDetectorParameters {
     private final TissueDetectorParameters tissueDetectorParameters;
     private final List<PathObject> annotations;
     private final DetectionRegion detectionRegion;
+    private final boolean incremental;
+    private final Path incrementalStatePath;
     private final ProgressDisplay progressDisplay;
     private final ObjectToCreate objectToCreate;
     private final float pixelSize;
@@ -32,10 +37,29 @@ public class FatGlobulesDetectorParameters {
     private final float minOverlappingGlobuleSolidity;
     private final float minDiameter;
     private final float maxDiameter;
+    private final float macrovesicularDiameter;
     private final int tileWidth;
     private final int tileHeight;
     private final int padding;
     private final float boundaryThreshold;
+    private final BoundaryMerging boundaryMerging;
+    private final Path densityMapPath;
+    private final float densityMapCellSize;
+    private final Path maskCacheDirectory;
+    private final long maskCacheMaxSize;
+    private final Path checkpointPath;
+    private final boolean resume;
+    private final long nativeMemoryBudget;
+    private final boolean metricsEnabled;
+    private final DetectionProgressListener progressListener;
+    private final ImageRegion priorityRegion;
+    private final long publicationInterval;
+    private final int publicationBatchSize;
+    private final List<ImagePlane> planes;
+    private final List<ColorClass> colorClasses;
+    private final SegmentationBackend segmentationBackend;
+    private final GlobuleLabelImage labelImage;
+    private final Path labelExportPath;
     private final Runnable onFinished;
     /**
      * Define where to run the detection
@@ -58,12 +82,28 @@ public class FatGlobulesDetectorParameters {
         WINDOW,
         LOG
     }
+    /**
+     * Define the implementation used to segment the tiles by color
+     */
+    public enum SegmentationBackend {
+        OPENCV,
+        JAVA
+    }
+    /**
+     * Define how to merge the globules crossing the boundaries of tiles
+     */
+    public enum BoundaryMerging {
+        QUPATH,
+        STITCHING
+    }
 
     private FatGlobulesDetectorParameters(Builder builder) {
         this.imageData = builder.imageData;
         this.tissueDetectorParameters = builder.tissueDetectorParameters;
         this.annotations = builder.annotations;
         this.detectionRegion = builder.detectionRegion;
+        this.incremental = builder.incremental;
+        this.incrementalStatePath = builder.incrementalStatePath;
         this.progressDisplay = builder.progressDisplay;
         this.objectToCreate = builder.objectToCreate;
         this.pixelSize = builder.pixelSize;
@@ -75,10 +115,29 @@ public class FatGlobulesDetectorParameters {
         this.minOverlappingGlobuleSolidity = builder.minOverlappingGlobuleSolidity;
         this.minDiameter = builder.minDiameter;
         this.maxDiameter = builder.maxDiameter;
+        this.macrovesicularDiameter = builder.macrovesicularDiameter;
         this.tileWidth = builder.tileWidth;
         this.tileHeight = builder.tileHeight;
         this.padding = builder.padding;
         this.boundaryThreshold = builder.boundaryThreshold;
+        this.boundaryMerging = builder.boundaryMerging;
+        this.densityMapPath = builder.densityMapPath;
+        this.densityMapCellSize = builder.densityMapCellSize;
+        this.maskCacheDirectory = builder.maskCacheDirectory;
+        this.maskCacheMaxSize = builder.maskCacheMaxSize;
+        this.checkpointPath = builder.checkpointPath;
+        this.resume = builder.resume;
+        this.nativeMemoryBudget = builder.nativeMemoryBudget;
+        this.metricsEnabled = builder.metricsEnabled;
+        this.progressListener = builder.progressListener;
+        this.priorityRegion = builder.priorityRegion;
+        this.publicationInterval = builder.publicationInterval;
+        this.publicationBatchSize = builder.publicationBatchSize;
+        this.planes = builder.planes;
+        this.colorClasses = builder.colorClasses;
+        this.segmentationBackend = builder.segmentationBackend;
+        this.labelImage = builder.labelImage;
+        this.labelExportPath = builder.labelExportPath;
         this.onFinished = builder.onFinished;
     }
 
@@ -112,6 +171,23 @@ public class FatGlobulesDetectorParameters {
         return detectionRegion;
     }
 
+    /**
+     * @return whether the detection should only re-process the parts of the annotations that changed
+     * since the previous detection. Only taken into account if {@link #getDetectionRegion()} returns
+     * {@link DetectionRegion#SELECTED_ANNOTATIONS} and if {@link #getIncrementalStatePath()} is not null
+     */
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    /**
+     * @return the path of the file where the state of incremental detections is saved, or null if
+     * the detection cannot be incremental
+     */
+    public Path getIncrementalStatePath() {
+        return incrementalStatePath;
+    }
+
     /**
      * @return the method to use to monitor progress
      */
@@ -190,6 +266,28 @@ public class FatGlobulesDetectorParameters {
         return maxDiameter;
     }
 
+    /**
+     * @return the parameters (solidity, elongation, and diameters) used to classify shapes as globules
+     */
+    public GlobuleFilterParameters getFilterParameters() {
+        return new GlobuleFilterParameters(
+                minIsolatedGlobuleElongation,
+                minOverlappingGlobuleElongation,
+                minIsolatedGlobuleSolidity,
+                minOverlappingGlobuleSolidity,
+                minDiameter,
+                maxDiameter
+        );
+    }
+
+    /**
+     * @return the diameter (in microns) from which a globule is considered as macrovesicular
+     * (and not microvesicular) in the measurements
+     */
+    public float getMacrovesicularDiameter() {
+        return macrovesicularDiameter;
+    }
+
     /**
      * @return the width of each tile at which the detection should be performed
      */
@@ -222,6 +320,143 @@ public class FatGlobulesDetectorParameters {
         return boundaryThreshold;
     }
 
+    /**
+     * @return how the globules crossing the boundaries of tiles are merged
+     */
+    public BoundaryMerging getBoundaryMerging() {
+        return boundaryMerging;
+    }
+
+    /**
+     * @return the path where a map of the fat pixel fraction of the image should be written
+     * (as a 32-bit TIFF image), or null if no map should be created
+     */
+    public Path getDensityMapPath() {
+        return densityMapPath;
+    }
+
+    /**
+     * @return the size (in microns) of each cell of the fat pixel fraction map
+     */
+    public float getDensityMapCellSize() {
+        return densityMapCellSize;
+    }
+
+    /**
+     * @return the directory where the segmentation masks of the tiles should be cached,
+     * or null if masks should not be cached
+     */
+    public Path getMaskCacheDirectory() {
+        return maskCacheDirectory;
+    }
+
+    /**
+     * @return the maximal size (in bytes) the cache of segmentation masks can take on disk
+     */
+    public long getMaskCacheMaxSize() {
+        return maskCacheMaxSize;
+    }
+
+    /**
+     * @return the path of the file where completed tiles and their globules should be periodically
+     * saved, or null if no checkpoint should be written
+     */
+    public Path getCheckpointPath() {
+        return checkpointPath;
+    }
+
+    /**
+     * @return whether the tiles already saved in the checkpoint file should be skipped
+     */
+    public boolean isResume() {
+        return resume;
+    }
+
+    /**
+     * @return the maximal native memory (in bytes) the tiles processed at the same time can use,
+     * or 0 if the number of tiles processed at the same time is not limited
+     */
+    public long getNativeMemoryBudget() {
+        return nativeMemoryBudget;
+    }
+
+    /**
+     * @return whether timings and counters should be collected during the detection
+     */
+    public boolean isMetricsEnabled() {
+        return metricsEnabled;
+    }
+
+    /**
+     * @return a listener to notify of the progress of the detection, or null if no listener should be notified
+     */
+    public DetectionProgressListener getProgressListener() {
+        return progressListener;
+    }
+
+    /**
+     * @return the region of the image whose tiles should be processed first, or null if tiles should be processed
+     * in the default order
+     */
+    public ImageRegion getPriorityRegion() {
+        return priorityRegion;
+    }
+
+    /**
+     * @return the time (in milliseconds) between two publications of the globules of completed tiles to the hierarchy
+     * while the detection is running, or 0 if globules are only added to the hierarchy at the end of the detection
+     */
+    public long getPublicationInterval() {
+        return publicationInterval;
+    }
+
+    /**
+     * @return the maximal number of globules added to the hierarchy in one publication
+     * (see {@link #getPublicationInterval()})
+     */
+    public int getPublicationBatchSize() {
+        return publicationBatchSize;
+    }
+
+    /**
+     * @return the z-slices and timepoints where the detection should take place, or an empty list to use the
+     * plane of the tissue detection (see {@link TissueDetectorParameters#getPlane()}) or the planes of the annotations
+     */
+    public List<ImagePlane> getPlanes() {
+        return planes;
+    }
+
+    /**
+     * @return the classes of pixels whose area should be measured in addition to the fat, in the same pass
+     * as the globule segmentation
+     */
+    public List<ColorClass> getColorClasses() {
+        return colorClasses;
+    }
+
+    /**
+     * @return the implementation used to segment the tiles by color
+     */
+    public SegmentationBackend getSegmentationBackend() {
+        return segmentationBackend;
+    }
+
+    /**
+     * @return the label image the globules should be written to instead of being represented by objects, or
+     * null to create one object per globule
+     */
+    public GlobuleLabelImage getLabelImage() {
+        return labelImage;
+    }
+
+    /**
+     * @return the path of the pyramidal OME-TIFF file the labels of the globules should be exported to, or null
+     * to not export the labels
+     */
+    public Path getLabelExportPath() {
+        return labelExportPath;
+    }
+
     /**
      * @return an operation to be run after the detection is complete
      */
@@ -229,6 +464,19 @@ public class FatGlobulesDetectorParameters {
         return onFinished;
     }
 
+    /**
+     * Compute a fingerprint of these parameters, to identify the parameters a result was produced with or to cache
+     * results. Only the serialized parameters (see {@link ParametersSerializer}) that affect the detected globules
+     * are taken into account, so the fingerprint doesn't depend on the image, the annotations, the operation run after
+     * the detection, or the parameters only describing how the detection is run (caches, checkpoint, incremental state, exports,
+     * scheduling, publication, memory budget, and metrics).
+     *
+     * @return a fingerprint of these parameters
+     */
+    public String getFingerprint() {
+        return ParametersSerializer.getFingerprint(this);
+    }
+
     /**
      * Create an instance of {@link FatGlobulesDetectorParameters}.
      */
@@ -238,6 +486,8 @@ public class FatGlobulesDetectorParameters {
         private TissueDetectorParameters tissueDetectorParameters;
         private List<PathObject> annotations = List.of();
         private DetectionRegion detectionRegion = DetectionRegion.DETECTED_TISSUE;
+        private boolean incremental = false;
+        private Path incrementalStatePath = null;
         private ProgressDisplay progressDisplay = UiUtilities.usingGUI() ? ProgressDisplay.WINDOW : ProgressDisplay.LOG;
         private ObjectToCreate objectToCreate = ObjectToCreate.DETECTION;
         private float pixelSize = -1f;
@@ -249,10 +499,29 @@ public class FatGlobulesDetectorParameters {
         private float minOverlappingGlobuleSolidity = 0.7f;
         private float minDiameter = 5;
         private float maxDiameter = 100;
+        private float macrovesicularDiameter = 15;
         private int tileWidth = 512;
         private int tileHeight = 512;
         private int padding = 64;
         private float boundaryThreshold = 0.5f;
+        private BoundaryMerging boundaryMerging = BoundaryMerging.QUPATH;
+        private Path densityMapPath = null;
+        private float densityMapCellSize = 100;
+        private Path maskCacheDirectory = null;
+        private long maskCacheMaxSize = 1L << 30;
+        private Path checkpointPath = null;
+        private boolean resume = false;
+        private long nativeMemoryBudget = 0;
+        private boolean metricsEnabled = false;
+        private DetectionProgressListener progressListener = null;
+        private ImageRegion priorityRegion = null;
+        private long publicationInterval = 0;
+        private int publicationBatchSize = 10000;
+        private List<ImagePlane> planes = List.of();
+        private List<ColorClass> colorClasses = List.of();
+        private SegmentationBackend segmentationBackend = SegmentationBackend.OPENCV;
+        private GlobuleLabelImage labelImage = null;
+        private Path labelExportPath = null;
         private Runnable onFinished = () -> {};
 
         /**
@@ -299,6 +568,35 @@ public class FatGlobulesDetectorParameters {
             return this;
         }
 
+        /**
+         * Only re-process the parts of the annotations that changed since the previous detection.
+         * The ROI of each annotation and the statistics of the globules counted in each tile are saved in a
+         * file (see {@link #setIncrementalStatePath(Path)}). When an annotation is edited, only the tiles touching
+         * the changed area are processed again, the globules of these tiles are replaced, and the measurements of
+         * the annotation are updated incrementally. Annotations that didn't change are skipped. The saved state
+         * is discarded if the other parameters of the detection changed.
+         *
+         * @param incremental  whether the detection should be incremental. This parameter is only taken into account
+         *                     if {@link #setDetectionRegion(DetectionRegion)} is set to {@link DetectionRegion#SELECTED_ANNOTATIONS}
+         *                     and if {@link #setIncrementalStatePath(Path)} is set
+         * @return this builder
+         */
+        public Builder setIncremental(boolean incremental) {
+            this.incremental = incremental;
+            return this;
+        }
+
+        /**
+         * @param incrementalStatePath  the path of the file where the state of incremental detections (see
+         *                              {@link #setIncremental(boolean)}) is saved, or null to not save any state.
+         *                              A sidecar file next to the project entry of the image is a good choice
+         * @return this builder
+         */
+        public Builder setIncrementalStatePath(Path incrementalStatePath) {
+            this.incrementalStatePath = incrementalStatePath;
+            return this;
+        }
+
         /**
          * @param progressDisplay  the method to use to monitor progress
          * @return this builder
@@ -399,6 +697,16 @@ public class FatGlobulesDetectorParameters {
             return this;
         }
 
+        /**
+         * @param macrovesicularDiameter  the diameter (in microns) from which a globule is considered as macrovesicular
+         *                                (and not microvesicular) in the measurements
+         * @return this builder
+         */
+        public Builder setMacrovesicularDiameter(float macrovesicularDiameter) {
+            this.macrovesicularDiameter = macrovesicularDiameter;
+            return this;
+        }
+
         /**
          * @param tileWidth  the width of each tile (in pixels) at which the detection should be performed
          * @return this builder
@@ -455,7 +763,326 @@ public class FatGlobulesDetectorParameters {
         }
 
         /**
-         * Set an operation to be run after the detection is complete.
+         * Set how the globules crossing the boundaries of tiles are merged. Both ways use the boundary threshold
+         * (see {@link #setBoundaryThreshold(float)}).
+         * <ul>
+         *     <li>
+         *         {@link BoundaryMerging#QUPATH}: the pixel processor of QuPath merges the objects of all tiles of an
+         *         annotation once all tiles of the annotation are processed. This is done on one thread, and can take
+         *         a while on images with many globules.
+         *     </li>
+         *     <li>
+         *         {@link BoundaryMerging#STITCHING}: the globules touching the boundary of a tile are merged with the
+         *         globules of the neighbouring tiles as soon as these tiles are processed. The pieces touching a boundary
+         *         are paired when their extents along the boundary overlap with an intersection-over-union greater than
+         *         or equal to the boundary threshold. Merging is therefore spread among the threads processing the tiles.
+         *     </li>
+         * </ul>
+         *
+         * @param boundaryMerging  how the globules crossing the boundaries of tiles should be merged
+         * @return this builder
+         */
+        public Builder setBoundaryMerging(BoundaryMerging boundaryMerging) {
+            this.boundaryMerging = boundaryMerging;
+            return this;
+        }
+
+        /**
+         * Create a map of the fat pixel fraction of the image while running the detection.
+         * Each pixel of the map corresponds to a square cell of the image and contains the
+         * proportion of fat pixels within this cell (between 0 and 1).
+         *
+         * @param densityMapPath  the path where the map should be written (as a 32-bit TIFF image),
+         *                        or null to not create any map
+         * @return this builder
+         */
+        public Builder setDensityMapPath(Path densityMapPath) {
+            this.densityMapPath = densityMapPath;
+            return this;
+        }
+
+        /**
+         * @param densityMapCellSize  the size (in microns) of each cell of the fat pixel fraction map. This parameter is only
+         *                            taken into account if {@link #setDensityMapPath(Path)} is set to a non-null value
+         * @return this builder
+         * @throws IllegalArgumentException if the cell size is not greater than 0
+         */
+        public Builder setDensityMapCellSize(float densityMapCellSize) {
+            if (!(densityMapCellSize > 0)) {
+                throw new IllegalArgumentException(String.format("The supplied density map cell size (%f) is not greater than 0", densityMapCellSize));
+            }
+
+            this.densityMapCellSize = densityMapCellSize;
+            return this;
+        }
+
+        /**
+         * Cache the segmentation masks of the tiles on disk. The masks only depend on the pixel size,
+         * the tile parameters, and the color segmentation bounds, so a new detection that only changes
+         * the filter parameters (elongation, solidity, diameters) will reuse them and won't read or
+         * segment the image again.
+         *
+         * @param maskCacheDirectory  the directory (specific to the image) where the masks should be cached,
+         *                            or null to not cache the masks
+         * @return this builder
+         */
+        public Builder setMaskCacheDirectory(Path maskCacheDirectory) {
+            this.maskCacheDirectory = maskCacheDirectory;
+            return this;
+        }
+
+        /**
+         * @param maskCacheMaxSize  the maximal size (in bytes) the cache of segmentation masks can take on disk.
+         *                          When this size is exceeded, the least recently used masks are deleted
+         * @return this builder
+         * @throws IllegalArgumentException if the size is negative
+         */
+        public Builder setMaskCacheMaxSize(long maskCacheMaxSize) {
+            if (maskCacheMaxSize < 0) {
+                throw new IllegalArgumentException(String.format("The supplied mask cache size (%d) is less than 0", maskCacheMaxSize));
+            }
+
+            this.maskCacheMaxSize = maskCacheMaxSize;
+            return this;
+        }
+
+        /**
+         * Periodically save the completed tiles and the globules detected on them to a file, so that
+         * an interrupted detection can be resumed (see {@link #setResume(boolean)}). The file is deleted
+         * once the detection is complete.
+         *
+         * @param checkpointPath  the path of the checkpoint file, or null to not write any checkpoint.
+         *                        A sidecar file next to the project entry of the image is a good choice
+         * @return this builder
+         */
+        public Builder setCheckpointPath(Path checkpointPath) {
+            this.checkpointPath = checkpointPath;
+            return this;
+        }
+
+        /**
+         * @param resume  whether to skip the tiles already saved in the checkpoint file (see {@link #setCheckpointPath(Path)}).
+         *                The globules of these tiles are read from the checkpoint instead of being detected again.
+         *                The checkpoint is ignored if it was written with different parameters. If false, any existing
+         *                checkpoint file is overwritten
+         * @return this builder
+         */
+        public Builder setResume(boolean resume) {
+            this.resume = resume;
+            return this;
+        }
+
+        /**
+         * Limit the number of tiles processed at the same time so that the native (off-heap) memory they use stays
+         * under a budget. This memory is not bounded by the maximal size of the Java heap. The native memory used by
+         * a tile is estimated from the tile size and the padding.
+         *
+         * @param nativeMemoryBudget  the maximal native memory (in bytes) the tiles processed at the same time can use,
+         *                            or 0 to not limit the number of tiles processed at the same time
+         * @return this builder
+         * @throws IllegalArgumentException if the budget is negative
+         */
+        public Builder setNativeMemoryBudget(long nativeMemoryBudget) {
+            if (nativeMemoryBudget < 0) {
+                throw new IllegalArgumentException(String.format("The supplied native memory budget (%d) is less than 0", nativeMemoryBudget));
+            }
+
+            this.nativeMemoryBudget = nativeMemoryBudget;
+            return this;
+        }
+
+        /**
+         * Collect the time spent in each stage of the detection (reading, segmentation, hole filling, contour
+         * extraction, watershed, filtering, object creation, hierarchy insertion...), the number of tiles, contours
+         * and globules, and the throughput. These metrics are logged at the end of the detection and are part of
+         * its {@link DetectionResult}.
+         *
+         * @param metricsEnabled  whether metrics should be collected
+         * @return this builder
+         */
+        public Builder setMetricsEnabled(boolean metricsEnabled) {
+            this.metricsEnabled = metricsEnabled;
+            return this;
+        }
+
+        /**
+         * Set a listener to notify of the progress of the detection: current phase, number of tiles processed
+         * across all annotations, throughput, estimated time remaining, and running globule count and fat area.
+         * This is independent of {@link #setProgressDisplay(ProgressDisplay)}.
+         *
+         * @param progressListener  the listener to notify, or null to not notify any listener
+         * @return this builder
+         */
+        public Builder setProgressListener(DetectionProgressListener progressListener) {
+            this.progressListener = progressListener;
+            return this;
+        }
+
+        /**
+         * Set a region of the image whose tiles should be processed first, for example the region currently
+         * displayed by the viewer. The tiles intersecting this region are processed first (starting from its center),
+         * and the other tiles are then processed ring by ring, spiralling outward from the region.
+         *
+         * @param priorityRegion  the region to process first, or null to process tiles in the default order
+         * @return this builder
+         */
+        public Builder setPriorityRegion(ImageRegion priorityRegion) {
+            this.priorityRegion = priorityRegion;
+            return this;
+        }
+
+        /**
+         * Periodically add the globules of completed tiles to the hierarchy while the detection is running, so that
+         * early results are visible and globules are not all added at the end of the detection. Only final globules
+         * are added: with {@link BoundaryMerging#STITCHING}, globules are added as soon as all their pieces are
+         * merged, and with {@link BoundaryMerging#QUPATH}, globules crossing tile boundaries are only added at the
+         * end of the detection.
+         *
+         * @param publicationInterval  the time (in milliseconds) between two publications, or 0 to only add globules
+         *                             to the hierarchy at the end of the detection
+         * @return this builder
+         * @throws IllegalArgumentException if the publication interval is negative
+         */
+        public Builder setPublicationInterval(long publicationInterval) {
+            if (publicationInterval < 0) {
+                throw new IllegalArgumentException(String.format("The supplied publication interval (%d) is less than 0", publicationInterval));
+            }
+
+            this.publicationInterval = publicationInterval;
+            return this;
+        }
+
+        /**
+         * @param publicationBatchSize  the maximal number of globules added to the hierarchy in one publication
+         *                              (see {@link #setPublicationInterval(long)}). Globules that don't fit are
+         *                              published later
+         * @return this builder
+         * @throws IllegalArgumentException if the publication batch size is less than 1
+         */
+        public Builder setPublicationBatchSize(int publicationBatchSize) {
+            if (publicationBatchSize < 1) {
+                throw new IllegalArgumentException(String.format("The supplied publication batch size (%d) is less than 1", publicationBatchSize));
+            }
+
+            this.publicationBatchSize = publicationBatchSize;
+            return this;
+        }
+
+        /**
+         * Set the z-slices and timepoints where the detection should take place, for example every plane of a z-stack.
+         * <p>
+         * If the detection region is {@link DetectionRegion#DETECTED_TISSUE}, the tissue is detected on each of these planes.
+         * If the detection region is {@link DetectionRegion#SELECTED_ANNOTATIONS}, only the annotations located on
+         * one of these planes are processed.
+         * <p>
+         * The planes are processed concurrently on the same pool of threads, and the measurements are aggregated
+         * per plane and across planes in the result of the detection (see {@link DetectionResult}).
+         *
+         * @param planes  the planes where the detection should take place, or an empty list to use the plane of the
+         *                tissue detection or the planes of the annotations
+         * @return this builder
+         * @throws IllegalArgumentException if one of the planes is outside the image
+         */
+        public Builder setPlanes(List<ImagePlane> planes) {
+            for (ImagePlane plane: planes) {
+                if (imageData != null && (plane.getZ() >= imageData.getServer().nZSlices() || plane.getT() >= imageData.getServer().nTimepoints())) {
+                    throw new IllegalArgumentException(String.format(
+                            "The supplied plane (z=%d, t=%d) is outside the image (%d z-slices, %d timepoints)",
+                            plane.getZ(),
+                            plane.getT(),
+                            imageData.getServer().nZSlices(),
+                            imageData.getServer().nTimepoints()
+                    ));
+                }
+            }
+
+            this.planes = planes.stream().distinct().toList();
+            return this;
+        }
+
+        /**
+         * Set classes of pixels (for example collagen or haemorrhage) whose area should be measured in addition
+         * to the fat. All classes are segmented from the same HSV conversion of each tile as the globules, so
+         * measuring them doesn't read the image again. The fat (see {@link #setLowerBound(HsvArray)} and
+         * {@link #setUpperBound(HsvArray)}) is not part of these classes and still goes through the globule detection.
+         * <p>
+         * The area of each class and the proportion of the annotation it covers are added to the measurements
+         * of each annotation (see {@link ColorClass#getAreaMeasurementName()}). They are not measured by incremental
+         * detections (see {@link #setIncremental(boolean)}).
+         *
+         * @param colorClasses  the classes of pixels to measure, or an empty list to only measure the fat
+         * @return this builder
+         * @throws IllegalArgumentException if two classes have the same name
+         */
+        public Builder setColorClasses(List<ColorClass> colorClasses) {
+            if (colorClasses.stream().map(ColorClass::name).distinct().count() < colorClasses.size()) {
+                throw new IllegalArgumentException(String.format(
+                        "The supplied classes (%s) don't have unique names",
+                        colorClasses.stream().map(ColorClass::name).toList()
+                ));
+            }
+
+            this.colorClasses = List.copyOf(colorClasses);
+            return this;
+        }
+
+        /**
+         * Set the implementation used to segment the tiles by color (conversion to the HSV-space and range test).
+         * Both implementations create identical masks. The Java implementation avoids the native calls and
+         * intermediate images of OpenCV, which mostly helps with small tiles (see {@link SegmentationBenchmark}).
+         *
+         * @param segmentationBackend  the implementation used to segment the tiles by color
+         * @return this builder
+         */
+        public Builder setSegmentationBackend(SegmentationBackend segmentationBackend) {
+            this.segmentationBackend = segmentationBackend;
+            return this;
+        }
+
+        /**
+         * Write the globules to a label image instead of creating one object per globule. This is useful to see
+         * where fat was found on images with many globules, as no object is added to the hierarchy: the label image
+         * can be displayed as a pixel overlay (see {@code qupath.ext.liverquant.gui.GlobuleLabelOverlay}), and is
+         * filled while the detection is running.
+         * <p>
+         * The measurements of the annotations are still computed. The steatosis proportionate area is then computed
+         * from the area of the counted globules instead of the area of the globule objects. Incremental detections
+         * (see {@link #setIncremental(boolean)}), checkpoints (see {@link #setCheckpointPath(Path)}), and the
+         * publication of globules during the detection (see {@link #setPublicationInterval(long)}) are not used
+         * with a label image, as they rely on the globule objects.
+         *
+         * @param labelImage  the label image the globules should be written to, or null to create one object per globule
+         * @return this builder
+         */
+        public Builder setLabelImage(GlobuleLabelImage labelImage) {
+            this.labelImage = labelImage;
+            return this;
+        }
+
+        /**
+         * Export the globules to a pyramidal OME-TIFF label image aligned with the image, which can be opened by
+         * other software. The label image has the resolution at which the tiles are processed (see
+         * {@link #setPixelSize(float)}). Its pixels are 0 for the background, 1 for microvesicular globules, and
+         * 2 for macrovesicular globules (whose diameter is greater than or equal to the macrovesicular diameter, see
+         * {@link #setMacrovesicularDiameter(float)}).
+         * <p>
+         * The labels are written while the detection is running, and only the tiles of the label image waiting for
+         * tiles of the detection are kept in memory, so this can be used on large images. If the processed annotations
+         * belong to several z-slices or timepoints, one file is written per plane, and "-z{z}-t{t}" is added before
+         * the extension of the provided path. Tiles already saved to a checkpoint (see {@link #setCheckpointPath(Path)})
+         * are processed again, as the checkpoint doesn't contain the masks of the globules.
+         *
+         * @param labelExportPath  the path of the OME-TIFF file (usually ending with ".ome.tif") the labels should be
+         *                         exported to, or null to not export the labels. An existing file will be overwritten
+         * @return this builder
+         */
+        public Builder setLabelExportPath(Path labelExportPath) {
+            this.labelExportPath = labelExportPath;
+            return this;
+        }
+
+        /**
+         * Set an operation to be run after the detection is complete, even if the detection fails.
          * This may be executed on any thread.
          *
          * @param onFinished  the operation to run after the detection
@@ -0,0 +1,268 @@
+package qupath.ext.liverquant.core;
+
+import org.bytedeco.opencv.global.opencv_imgproc;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Moments;
+import org.bytedeco.opencv.opencv_core.Point2f;
+import qupath.lib.experimental.pixels.Parameters;
+import qupath.lib.experimental.pixels.PixelProcessor;
+import qupath.lib.images.servers.PixelCalibration;
+import qupath.lib.objects.PathObject;
+import qupath.lib.plugins.TaskRunner;
+import qupath.lib.regions.RegionRequest;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>
+ *     Evaluate several sets of filter parameters (see {@link GlobuleFilterParameters}) in one pass.
+ * </p>
+ * <p>
+ *     Each tile is segmented once, its contours are extracted and described (elongation, solidity,
+ *     diameter) once, and overlapping globules are separated once. The globules are then classified
+ *     under every set of filter parameters, so evaluating many sets costs little more than a single
+ *     detection.
+ * </p>
+ * <p>
+ *     No object is added to the hierarchy of the image. Globules crossing tile boundaries are not merged:
+ *     their area is the sum of the areas of their parts, and they are counted once (see
+ *     {@link FatGlobuleDetector#isCountedInTile(Mat, RegionRequest)}). Results can therefore slightly differ
+ *     from a full detection.
+ * </p>
+ */
+public class FilterParameterSweep {
+
+    /**
+     * The result of one set of filter parameters on one annotation.
+     *
+     * @param filterParameters  the set of filter parameters
+     * @param annotation  the annotation where the detection took place
+     * @param globuleCount  the number of globules detected in the annotation
+     * @param fatArea  the total area (in micro-meter squared) of the globules detected in the annotation
+     * @param steatosisProportionateArea  the proportion of the annotation area covered by globules
+     */
+    public record Result(
+            GlobuleFilterParameters filterParameters,
+            PathObject annotation,
+            long globuleCount,
+            double fatArea,
+            double steatosisProportionateArea
+    ) {}
+    private record Shape(Mat contour, double elongation, double solidity, double diameter, double area, boolean isInAnnotation, boolean isCounted) {}
+    private record Accumulator(LongAdder globuleCount, DoubleAdder fatArea) {}
+
+    private FilterParameterSweep() {
+        throw new AssertionError("This class is not instantiable.");
+    }
+
+    /**
+     * Run the detection once and evaluate all provided sets of filter parameters. The filter parameters
+     * of the provided detection parameters are ignored, and no object is added to the hierarchy.
+     * This function blocks until the evaluation is complete, so it shouldn't be called from the
+     * JavaFX Application Thread.
+     *
+     * @param fatGlobulesDetectorParameters  the parameters to use for the segmentation and tiling
+     * @param filterParameters  the sets of filter parameters to evaluate
+     * @return the result of each set of filter parameters on each annotation where the detection took place
+     */
+    public static List<Result> run(FatGlobulesDetectorParameters fatGlobulesDetectorParameters, List<GlobuleFilterParameters> filterParameters) {
+        double scale = fatGlobulesDetectorParameters.getImageData().getServer().getPixelCalibration().getAveragedPixelSizeMicrons();
+        Map<PathObject, List<Accumulator>> accumulators = new ConcurrentHashMap<>();
+
+        NativeMemoryGovernor memoryGovernor = new NativeMemoryGovernor(
+                fatGlobulesDetectorParameters.getNativeMemoryBudget(),
+                NativeMemoryGovernor.estimateBytesPerTile(fatGlobulesDetectorParameters)
+        );
+        TileMaskTracker maskTracker = new TileMaskTracker();
+
+        PixelProcessor<Mat, Mat, Mat> processor = FatGlobuleDetector.createProcessorBuilder(
+                fatGlobulesDetectorParameters,
+                false,
+                parameters -> false,
+                memoryGovernor,
+                maskTracker,
+                DetectionMetricsRecorder.DISABLED
+        )
+                .outputHandler((Parameters<Mat, Mat> parameters, Mat output) -> {
+                    try {
+                        List<Accumulator> annotationAccumulators = accumulators.get(parameters.getParent());
+                        if (annotationAccumulators != null) {
+                            evaluateTile(output, parameters.getParent(), parameters.getRegionRequest(), scale, filterParameters, annotationAccumulators);
+                        }
+                        return true;
+                    } finally {
+                        maskTracker.release(parameters, output);
+                        memoryGovernor.release();
+                    }
+                })
+                .build();
+
+        TaskRunner taskRunner = FatGlobuleDetector.createTaskRunner(fatGlobulesDetectorParameters);
+        List<PathObject> annotations = FatGlobuleDetector.getAnnotations(fatGlobulesDetectorParameters, taskRunner, DetectionMetricsRecorder.DISABLED, false);
+        for (PathObject annotation: annotations) {
+            accumulators.put(
+                    annotation,
+                    filterParameters.stream()
+                            .map(parameters -> new Accumulator(new LongAdder(), new DoubleAdder()))
+                            .toList()
+            );
+        }
+
+        processor.processObjects(
+                taskRunner,
+                fatGlobulesDetectorParameters.getImageData(),
+                annotations
+        );
+
+        PixelCalibration pixelCalibration = fatGlobulesDetectorParameters.getImageData().getServer().getPixelCalibration();
+        List<Result> results = new ArrayList<>();
+        for (PathObject annotation: annotations) {
+            double annotationArea = annotation.getROI().getScaledArea(pixelCalibration.getPixelWidthMicrons(), pixelCalibration.getPixelHeightMicrons());
+
+            for (int i=0; i<filterParameters.size(); ++i) {
+                Accumulator accumulator = accumulators.get(annotation).get(i);
+
+                results.add(new Result(
+                        filterParameters.get(i),
+                        annotation,
+                        accumulator.globuleCount().sum(),
+                        accumulator.fatArea().sum(),
+                        annotationArea > 0 ? accumulator.fatArea().sum() / annotationArea : 0
+                ));
+            }
+        }
+        return results;
+    }
+
+    private static void evaluateTile(
+            Mat mask,
+            PathObject annotation,
+            RegionRequest regionRequest,
+            double scale,
+            List<GlobuleFilterParameters> filterParameters,
+            List<Accumulator> accumulators
+    ) {
+        List<Shape> shapes = MatOperations.findContours(mask).stream()
+                .map(contour -> describe(contour, annotation, regionRequest, scale))
+                .toList();
+
+        List<Shape> overlappingGlobules = shapes.stream()
+                .filter(shape -> filterParameters.stream().anyMatch(parameters ->
+                        !parameters.isIsolatedGlobule(shape.elongation(), shape.solidity(), shape.diameter()) &&
+                                parameters.isOverlappingGlobules(shape.elongation(), shape.solidity(), shape.diameter())
+                ))
+                .toList();
+        Map<Shape, List<Shape>> separatedGlobules = separate(overlappingGlobules, mask.rows(), mask.cols(), annotation, regionRequest, scale);
+
+        for (int i=0; i<filterParameters.size(); ++i) {
+            GlobuleFilterParameters parameters = filterParameters.get(i);
+            Accumulator accumulator = accumulators.get(i);
+
+            for (Shape shape: shapes) {
+                if (parameters.isIsolatedGlobule(shape.elongation(), shape.solidity(), shape.diameter())) {
+                    accumulate(accumulator, shape);
+                } else if (parameters.isOverlappingGlobules(shape.elongation(), shape.solidity(), shape.diameter())) {
+                    for (Shape separatedGlobule: separatedGlobules.get(shape)) {
+                        if (parameters.isIsolatedGlobule(separatedGlobule.elongation(), separatedGlobule.solidity(), separatedGlobule.diameter())) {
+                            accumulate(accumulator, separatedGlobule);
+                        }
+                    }
+                }
+            }
+        }
+
+        for (Shape shape: shapes) {
+            shape.contour().close();
+        }
+        for (List<Shape> separatedGlobule: separatedGlobules.values()) {
+            for (Shape shape: separatedGlobule) {
+                shape.contour().close();
+            }
+        }
+    }
+
+    /**
+     * Separate all provided overlapping globules with one watershed segmentation, and assign each
+     * separated globule to the overlapping globules it comes from.
+     *
+     * @return a map containing, for each provided overlapping globules, the separated globules it contains
+     */
+    private static Map<Shape, List<Shape>> separate(
+            List<Shape> overlappingGlobules,
+            int numberOfRows,
+            int numberOfColumns,
+            PathObject annotation,
+            RegionRequest regionRequest,
+            double scale
+    ) {
+        Map<Shape, List<Shape>> separatedGlobules = new IdentityHashMap<>();
+        for (Shape overlappingGlobule: overlappingGlobules) {
+            separatedGlobules.put(overlappingGlobule, new ArrayList<>());
+        }
+        if (overlappingGlobules.isEmpty()) {
+            return separatedGlobules;
+        }
+
+        List<Mat> contours = FatGlobuleDetector.separateOverlappingGlobules(
+                overlappingGlobules.stream().map(Shape::contour).toList(),
+                numberOfRows,
+                numberOfColumns
+        );
+
+        for (Mat contour: contours) {
+            int parentIndex = -1;
+            try (
+                    Moments moments = opencv_imgproc.moments(contour);
+                    Point2f centroid = new Point2f(
+                            (float) (moments.m00() > 0 ? moments.m10() / moments.m00() : 0),
+                            (float) (moments.m00() > 0 ? moments.m01() / moments.m00() : 0)
+                    )
+            ) {
+                for (int i=0; i<overlappingGlobules.size() && parentIndex < 0; ++i) {
+                    if (opencv_imgproc.pointPolygonTest(overlappingGlobules.get(i).contour(), centroid, false) >= 0) {
+                        parentIndex = i;
+                    }
+                }
+            }
+
+            if (parentIndex < 0) {
+                contour.close();
+            } else {
+                separatedGlobules.get(overlappingGlobules.get(parentIndex)).add(describe(contour, annotation, regionRequest, scale));
+            }
+        }
+
+        return separatedGlobules;
+    }
+
+    private static Shape describe(Mat contour, PathObject annotation, RegionRequest regionRequest, double scale) {
+        double pixelSize = scale * regionRequest.getDownsample();
+
+        try (Moments moments = opencv_imgproc.moments(contour)) {
+            return new Shape(
+                    contour,
+                    MatOperations.getElongation(contour),
+                    MatOperations.getSolidity(contour),
+                    FatGlobuleDetector.getDiameter(contour, pixelSize),
+                    moments.m00() * pixelSize * pixelSize,
+                    FatGlobuleDetector.isCentroidWithin(moments, annotation, regionRequest),
+                    FatGlobuleDetector.isCountedInTile(contour, regionRequest)
+            );
+        }
+    }
+
+    private static void accumulate(Accumulator accumulator, Shape globule) {
+        if (globule.isInAnnotation()) {
+            accumulator.fatArea().add(globule.area());
+            if (globule.isCounted()) {
+                accumulator.globuleCount().increment();
+            }
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package qupath.ext.liverquant.core;
+
+/**
+ * Define the parameters used to classify a shape as an isolated globule, as overlapping globules,
+ * or as something else.
+ *
+ * @param minIsolatedGlobuleElongation  the minimal elongation a shape should have to be considered as an isolated globule
+ * @param minOverlappingGlobuleElongation  the minimal elongation a shape should have to be considered as an overlapping globule
+ * @param minIsolatedGlobuleSolidity  the minimal solidity a shape should have to be considered as an isolated globule
+ * @param minOverlappingGlobuleSolidity  the minimal solidity a shape should have to be considered as an overlapping globule
+ * @param minDiameter  the minimal diameter (in microns) a shape should have to be considered as a globule
+ * @param maxDiameter  the maximal diameter (in microns) a shape should have to be considered as an isolated globule
+ */
+public record GlobuleFilterParameters(
+        float minIsolatedGlobuleElongation,
+        float minOverlappingGlobuleElongation,
+        float minIsolatedGlobuleSolidity,
+        float minOverlappingGlobuleSolidity,
+        float minDiameter,
+        float maxDiameter
+) {
+
+    /**
+     * Indicate whether a shape is an isolated globule.
+     *
+     * @param elongation  the elongation of the shape
+     * @param solidity  the solidity of the shape
+     * @param diameter  the diameter (in microns) of the shape
+     * @return whether the shape should be considered as an isolated globule
+     */
+    public boolean isIsolatedGlobule(double elongation, double solidity, double diameter) {
+        return elongation > minIsolatedGlobuleElongation &&
+                solidity > minIsolatedGlobuleSolidity &&
+                minDiameter < diameter &&
+                diameter < maxDiameter;
+    }
+
+    /**
+     * Indicate whether a shape represents overlapping globules. A shape can be
+     * both an isolated globule and overlapping globules.
+     *
+     * @param elongation  the elongation of the shape
+     * @param solidity  the solidity of the shape
+     * @param diameter  the diameter (in microns) of the shape
+     * @return whether the shape should be considered as overlapping globules
+     */
+    public boolean isOverlappingGlobules(double elongation, double solidity, double diameter) {
+        return elongation > minOverlappingGlobuleElongation &&
+                solidity > minOverlappingGlobuleSolidity &&
+                diameter > minDiameter;
+    }
+}
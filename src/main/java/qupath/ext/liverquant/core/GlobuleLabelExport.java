@@ -0,0 +1,304 @@
+package qupath.ext.liverquant.core;
+
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.opencv_core.Mat;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.PixelCalibration;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.utils.Tiler;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.regions.RegionRequest;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>
+ *     An export of the globules detected by a detection to pyramidal OME-TIFF label images aligned with the image
+ *     (see {@link FatGlobulesDetectorParameters#getLabelExportPath()}). The label images have the resolution of the
+ *     detection, and contain {@link #MICROVESICULAR_LABEL} or {@link #MACROVESICULAR_LABEL} on the pixels of globules,
+ *     and 0 elsewhere.
+ * </p>
+ * <p>
+ *     The labels of each tile processed by the detection (without padding) are written as soon as the tile is complete.
+ *     As the tiles of the detection are not aligned with the tiles of the label images, each tile of a label image is
+ *     kept in memory until all tiles of the detection covering it are complete, and is then compressed and written to
+ *     the file. The memory used is therefore bounded by the tiles located on the border of the processed region.
+ * </p>
+ * <p>
+ *     One label image is written per plane (z-slice and timepoint) of the processed objects.
+ *     This class is thread-safe.
+ * </p>
+ */
+class GlobuleLabelExport implements Closeable {
+
+    /**
+     * The label of pixels belonging to globules whose diameter is less than the macrovesicular diameter
+     */
+    public static final int MICROVESICULAR_LABEL = 1;
+    /**
+     * The label of pixels belonging to globules whose diameter is greater than or equal to the macrovesicular diameter
+     */
+    public static final int MACROVESICULAR_LABEL = 2;
+    private static final int TILE_SIZE = 512;
+    private final Map<ImagePlane, PlaneExport> planeExports = new LinkedHashMap<>();
+    private final FatGlobulesDetectorParameters fatGlobulesDetectorParameters;
+    private final double downsample;
+    private final int width;
+    private final int height;
+
+    private static class PlaneExport {
+
+        private final Path path;
+        private final PyramidalTiffWriter writer;
+        private final int[] numberOfRemainingTiles;
+        private final Map<Integer, byte[]> pendingTiles = new HashMap<>();
+
+        public PlaneExport(Path path, PyramidalTiffWriter writer) {
+            this.path = path;
+            this.writer = writer;
+            this.numberOfRemainingTiles = new int[writer.getNumberOfColumns() * writer.getNumberOfRows()];
+        }
+    }
+
+    /**
+     * Create the export. No file is written until {@link #plan(List)} is called.
+     *
+     * @param fatGlobulesDetectorParameters  the parameters of the detection, which must have a label export path
+     */
+    public GlobuleLabelExport(FatGlobulesDetectorParameters fatGlobulesDetectorParameters) {
+        ImageServer<BufferedImage> server = fatGlobulesDetectorParameters.getImageData().getServer();
+
+        this.fatGlobulesDetectorParameters = fatGlobulesDetectorParameters;
+        this.downsample = FatGlobuleDetector.getDownsample(fatGlobulesDetectorParameters);
+        this.width = Math.max(1, (int) Math.ceil(server.getWidth() / downsample));
+        this.height = Math.max(1, (int) Math.ceil(server.getHeight() / downsample));
+    }
+
+    /**
+     * Create the label images of the planes of the provided objects, and compute which tiles of the detection
+     * cover each tile of the label images. This must be called before the tiles are processed.
+     *
+     * @param objectsToProcess  the objects given to the pixel processor of the detection
+     * @throws IOException if a label image cannot be created
+     */
+    public synchronized void plan(List<PathObject> objectsToProcess) throws IOException {
+        Set<ImagePlane> planes = new LinkedHashSet<>();
+        for (PathObject object: objectsToProcess) {
+            planes.add(object.getROI().getImagePlane());
+        }
+
+        for (ImagePlane plane: planes) {
+            Path path = getPath(fatGlobulesDetectorParameters.getLabelExportPath(), plane, planes.size() > 1);
+            planeExports.put(plane, new PlaneExport(path, new PyramidalTiffWriter(path, width, height, TILE_SIZE, createOmeXml(plane))));
+        }
+
+        Tiler tiler = TilePlan.createTiler(fatGlobulesDetectorParameters);
+        for (PathObject object: objectsToProcess) {
+            PlaneExport planeExport = planeExports.get(object.getROI().getImagePlane());
+
+            for (PathObject tile: tiler.createTiles(object.getROI())) {
+                ROI roi = tile.getROI();
+
+                for (int index: getTileIndices(roi.getBoundsX(), roi.getBoundsY(), roi.getBoundsWidth(), roi.getBoundsHeight(), planeExport.writer)) {
+                    planeExport.numberOfRemainingTiles[index]++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Add the labels of a processed tile. The tiles of the label image that don't wait for other tiles of the
+     * detection anymore are written. This function can be called from any thread.
+     *
+     * @param regionRequest  the region of the processed tile, without padding
+     * @param labels  the labels of the processed tile, with the {@link opencv_core#CV_8U} format
+     * @throws IOException if a tile of the label image cannot be written
+     */
+    public void addTile(RegionRequest regionRequest, Mat labels) throws IOException {
+        PlaneExport planeExport;
+        synchronized (this) {
+            planeExport = planeExports.get(regionRequest.getImagePlane());
+        }
+        if (planeExport == null) {
+            return;
+        }
+
+        byte[] pixels = new byte[(int) labels.total()];
+        if (labels.isContinuous()) {
+            ((ByteBuffer) labels.createBuffer()).get(pixels);
+        } else {
+            try (Mat continuousLabels = labels.clone()) {
+                ((ByteBuffer) continuousLabels.createBuffer()).get(pixels);
+            }
+        }
+        int x0 = (int) Math.floor(regionRequest.getX() / downsample);
+        int y0 = (int) Math.floor(regionRequest.getY() / downsample);
+
+        Map<Integer, byte[]> completedTiles = new HashMap<>();
+        synchronized (planeExport) {
+            for (int index: getTileIndices(regionRequest.getX(), regionRequest.getY(), regionRequest.getWidth(), regionRequest.getHeight(), planeExport.writer)) {
+                byte[] tile = planeExport.pendingTiles.computeIfAbsent(index, i -> new byte[TILE_SIZE * TILE_SIZE]);
+                paste(tile, index, planeExport.writer, pixels, labels.cols(), labels.rows(), x0, y0);
+
+                // A tile that was not planned is only written when the export is closed, as other tiles may still cover it
+                if (planeExport.numberOfRemainingTiles[index] > 0 && --planeExport.numberOfRemainingTiles[index] == 0) {
+                    completedTiles.put(index, planeExport.pendingTiles.remove(index));
+                }
+            }
+        }
+
+        for (Map.Entry<Integer, byte[]> completedTile: completedTiles.entrySet()) {
+            planeExport.writer.writeTile(
+                    completedTile.getKey() % planeExport.writer.getNumberOfColumns(),
+                    completedTile.getKey() / planeExport.writer.getNumberOfColumns(),
+                    completedTile.getValue()
+            );
+        }
+    }
+
+    /**
+     * @return the paths of the label images, one per plane
+     */
+    public synchronized List<Path> getPaths() {
+        return planeExports.values().stream().map(planeExport -> planeExport.path).toList();
+    }
+
+    /**
+     * Write the tiles that are still in memory (for example if some tiles of the detection were not processed),
+     * create the lower resolution levels of the label images, and close them.
+     *
+     * @throws IOException if a label image cannot be written
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        IOException error = null;
+
+        for (PlaneExport planeExport: planeExports.values()) {
+            try {
+                synchronized (planeExport) {
+                    for (Map.Entry<Integer, byte[]> pendingTile: planeExport.pendingTiles.entrySet()) {
+                        planeExport.writer.writeTile(
+                                pendingTile.getKey() % planeExport.writer.getNumberOfColumns(),
+                                pendingTile.getKey() / planeExport.writer.getNumberOfColumns(),
+                                pendingTile.getValue()
+                        );
+                    }
+                    planeExport.pendingTiles.clear();
+                }
+            } catch (IOException e) {
+                error = e;
+            } finally {
+                try {
+                    planeExport.writer.close();
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+        }
+
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private List<Integer> getTileIndices(double x, double y, double regionWidth, double regionHeight, PyramidalTiffWriter writer) {
+        int x0 = Math.max(0, (int) Math.floor(x / downsample));
+        int y0 = Math.max(0, (int) Math.floor(y / downsample));
+        int x1 = Math.min(width, (int) Math.ceil((x + regionWidth) / downsample));
+        int y1 = Math.min(height, (int) Math.ceil((y + regionHeight) / downsample));
+
+        List<Integer> indices = new ArrayList<>();
+        for (int row=y0/TILE_SIZE; row<=(y1-1)/TILE_SIZE && y1 > y0; ++row) {
+            for (int column=x0/TILE_SIZE; column<=(x1-1)/TILE_SIZE && x1 > x0; ++column) {
+                indices.add(row * writer.getNumberOfColumns() + column);
+            }
+        }
+        return indices;
+    }
+
+    private void paste(byte[] tile, int index, PyramidalTiffWriter writer, byte[] pixels, int numberOfColumns, int numberOfRows, int x0, int y0) {
+        int tileX = (index % writer.getNumberOfColumns()) * TILE_SIZE;
+        int tileY = (index / writer.getNumberOfColumns()) * TILE_SIZE;
+        int xStart = Math.max(x0, tileX);
+        int xEnd = Math.min(Math.min(x0 + numberOfColumns, tileX + TILE_SIZE), width);
+        int yStart = Math.max(y0, tileY);
+        int yEnd = Math.min(Math.min(y0 + numberOfRows, tileY + TILE_SIZE), height);
+
+        // Tiles of the detection can overlap by one pixel because of rounding, so the maximal label is kept
+        for (int y=yStart; y<yEnd; ++y) {
+            for (int x=xStart; x<xEnd; ++x) {
+                int i = (y - tileY) * TILE_SIZE + x - tileX;
+                byte label = pixels[(y - y0) * numberOfColumns + x - x0];
+
+                if ((label & 0xFF) > (tile[i] & 0xFF)) {
+                    tile[i] = label;
+                }
+            }
+        }
+    }
+
+    private String createOmeXml(ImagePlane plane) {
+        ImageServer<BufferedImage> server = fatGlobulesDetectorParameters.getImageData().getServer();
+        PixelCalibration pixelCalibration = server.getPixelCalibration();
+
+        String physicalSize = pixelCalibration.hasPixelSizeMicrons() ? String.format(
+                " PhysicalSizeX=\"%s\" PhysicalSizeXUnit=\"µm\" PhysicalSizeY=\"%s\" PhysicalSizeYUnit=\"µm\"",
+                pixelCalibration.getPixelWidthMicrons() * downsample,
+                pixelCalibration.getPixelHeightMicrons() * downsample
+        ) : "";
+
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+                "<OME xmlns=\"http://www.openmicroscopy.org/Schemas/OME/2016-06\" " +
+                "xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" " +
+                "xsi:schemaLocation=\"http://www.openmicroscopy.org/Schemas/OME/2016-06 http://www.openmicroscopy.org/Schemas/OME/2016-06/ome.xsd\">" +
+                String.format("<Image ID=\"Image:0\" Name=\"%s\">", escapeXml(String.format(
+                        "%s globule labels (z=%d, t=%d)",
+                        server.getMetadata().getName(),
+                        plane.getZ(),
+                        plane.getT()
+                ))) +
+                String.format(
+                        "<Pixels BigEndian=\"false\" DimensionOrder=\"XYZCT\" ID=\"Pixels:0\" SizeC=\"1\" SizeT=\"1\" SizeX=\"%d\" SizeY=\"%d\" SizeZ=\"1\" Type=\"uint8\"%s>",
+                        width,
+                        height,
+                        physicalSize
+                ) +
+                "<Channel ID=\"Channel:0:0\" Name=\"Globules\" SamplesPerPixel=\"1\"><LightPath/></Channel>" +
+                "<TiffData FirstC=\"0\" FirstT=\"0\" FirstZ=\"0\" IFD=\"0\" PlaneCount=\"1\"/>" +
+                "</Pixels></Image></OME>";
+    }
+
+    private static Path getPath(Path path, ImagePlane plane, boolean severalPlanes) {
+        if (!severalPlanes) {
+            return path;
+        }
+
+        String fileName = path.getFileName().toString();
+        String suffix = String.format("-z%d-t%d", plane.getZ(), plane.getT());
+        for (String extension: List.of(".ome.tiff", ".ome.tif", ".tiff", ".tif")) {
+            if (fileName.toLowerCase().endsWith(extension)) {
+                return path.resolveSibling(fileName.substring(0, fileName.length() - extension.length()) + suffix + fileName.substring(fileName.length() - extension.length()));
+            }
+        }
+        return path.resolveSibling(fileName + suffix);
+    }
+
+    private static String escapeXml(String text) {
+        return text.replace("&", "&amp;")
+                .replace("<", "&lt;")
+                .replace(">", "&gt;")
+                .replace("\"", "&quot;");
+    }
+}
@@ -0,0 +1,173 @@
+package qupath.ext.liverquant.core;
+
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.global.opencv_imgcodecs;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.regions.ImageRegion;
+import qupath.lib.regions.RegionRequest;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>
+ *     A sparse and tiled label image of the globules detected by a detection, used to display the globules
+ *     without creating one object per globule (see {@link FatGlobulesDetectorParameters#getLabelImage()}).
+ * </p>
+ * <p>
+ *     Each tile containing at least one globule stores the final mask of its globules (after filtering and
+ *     separation of overlapping globules), compressed with the PNG format. Tiles without globules are not stored.
+ *     The masks are only decoded when a region is requested (see {@link #getTiles(String, ImageRegion)}), and a limited
+ *     number of decoded masks are kept in memory.
+ * </p>
+ * <p>
+ *     This class is thread-safe: tiles can be added by a running detection while regions are requested.
+ * </p>
+ */
+public class GlobuleLabelImage {
+
+    private static final Logger logger = LoggerFactory.getLogger(GlobuleLabelImage.class);
+    private static final String EXTENSION = ".png";
+    private static final long MAX_DECODED_PIXELS = 64L << 20;
+    private final Map<RegionRequest, byte[]> tiles = new ConcurrentHashMap<>();
+    private final Map<RegionRequest, BufferedImage> decodedTiles = new LinkedHashMap<>(16, 0.75f, true);
+    private long numberOfDecodedPixels = 0;
+
+    /**
+     * A tile of the label image.
+     *
+     * @param region  the region (in the full resolution image) covered by the tile
+     * @param mask  the mask of the globules of the tile, with the {@link BufferedImage#TYPE_BYTE_GRAY} type. Non-zero
+     *              pixels belong to a globule. Its size is the size of the region divided by the downsample of the
+     *              region. It must not be modified
+     */
+    public record Tile(RegionRequest region, BufferedImage mask) {}
+
+    /**
+     * Add the globules of a tile to this label image. Nothing is stored if the tile doesn't contain any globule.
+     * This function can be called from any thread.
+     *
+     * @param regionRequest  the region of the tile
+     * @param mask  the mask of the globules of the tile, with the {@link opencv_core#CV_8U} format. Non-zero
+     *              pixels must belong to a globule
+     */
+    public void addTile(RegionRequest regionRequest, Mat mask) {
+        if (opencv_core.countNonZero(mask) == 0) {
+            tiles.remove(regionRequest);
+        } else {
+            try (BytePointer encodedMask = new BytePointer()) {
+                if (!opencv_imgcodecs.imencode(EXTENSION, mask, encodedMask)) {
+                    logger.debug("Cannot encode the globules of {}", regionRequest);
+                    return;
+                }
+                byte[] bytes = new byte[(int) encodedMask.limit()];
+                encodedMask.get(bytes);
+
+                tiles.put(regionRequest, bytes);
+            }
+        }
+
+        synchronized (decodedTiles) {
+            BufferedImage decodedTile = decodedTiles.remove(regionRequest);
+            if (decodedTile != null) {
+                numberOfDecodedPixels -= (long) decodedTile.getWidth() * decodedTile.getHeight();
+            }
+        }
+    }
+
+    /**
+     * Get the tiles of this label image intersecting a region. The masks of the tiles are decoded if needed.
+     * This function can be called from any thread.
+     *
+     * @param imagePath  a path uniquely identifying the image the tiles should belong to
+     * @param region  the region (in the full resolution image) the tiles should intersect. Its z-slice and timepoint
+     *                must be the ones of the tiles
+     * @return the tiles intersecting the provided region and containing at least one globule
+     */
+    public List<Tile> getTiles(String imagePath, ImageRegion region) {
+        List<Tile> tilesInRegion = new ArrayList<>();
+
+        for (Map.Entry<RegionRequest, byte[]> entry: tiles.entrySet()) {
+            RegionRequest regionRequest = entry.getKey();
+
+            if (regionRequest.getPath().equals(imagePath) && regionRequest.getZ() == region.getZ() && regionRequest.getT() == region.getT() &&
+                    region.intersects(regionRequest.getX(), regionRequest.getY(), regionRequest.getWidth(), regionRequest.getHeight())
+            ) {
+                BufferedImage mask = getDecodedTile(regionRequest, entry.getValue());
+                if (mask != null) {
+                    tilesInRegion.add(new Tile(regionRequest, mask));
+                }
+            }
+        }
+
+        return tilesInRegion;
+    }
+
+    /**
+     * @return the number of tiles containing at least one globule
+     */
+    public int getNumberOfTiles() {
+        return tiles.size();
+    }
+
+    /**
+     * Remove all tiles of this label image.
+     */
+    public void clear() {
+        tiles.clear();
+
+        synchronized (decodedTiles) {
+            decodedTiles.clear();
+            numberOfDecodedPixels = 0;
+        }
+    }
+
+    private BufferedImage getDecodedTile(RegionRequest regionRequest, byte[] encodedMask) {
+        synchronized (decodedTiles) {
+            BufferedImage decodedTile = decodedTiles.get(regionRequest);
+            if (decodedTile != null) {
+                return decodedTile;
+            }
+        }
+
+        BufferedImage decodedTile;
+        try {
+            decodedTile = ImageIO.read(new ByteArrayInputStream(encodedMask));
+        } catch (IOException e) {
+            logger.debug("Cannot decode the globules of {}", regionRequest, e);
+            return null;
+        }
+        if (decodedTile == null) {
+            return null;
+        }
+
+        synchronized (decodedTiles) {
+            BufferedImage previousTile = decodedTiles.put(regionRequest, decodedTile);
+            numberOfDecodedPixels += (long) decodedTile.getWidth() * decodedTile.getHeight();
+            if (previousTile != null) {
+                numberOfDecodedPixels -= (long) previousTile.getWidth() * previousTile.getHeight();
+            }
+
+            Iterator<BufferedImage> iterator = decodedTiles.values().iterator();
+            while (numberOfDecodedPixels > MAX_DECODED_PIXELS && iterator.hasNext()) {
+                BufferedImage eldestTile = iterator.next();
+
+                numberOfDecodedPixels -= (long) eldestTile.getWidth() * eldestTile.getHeight();
+                iterator.remove();
+            }
+        }
+
+        return decodedTile;
+    }
+}
@@ -0,0 +1,178 @@
+package qupath.ext.liverquant.core;
+
+import qupath.lib.measurements.MeasurementList;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>
+ *     Count and size distribution of the globules detected within one annotation.
+ * </p>
+ * <p>
+ *     Globules are added concurrently by the tile workers as each tile finishes. Only fixed-bin
+ *     histograms and running sums are kept, so the memory used by this class doesn't depend
+ *     on the number of globules.
+ * </p>
+ */
+class GlobuleStatistics {
+
+    static final String COUNT_MEASUREMENT = "Globule count";
+    private static final double HISTOGRAM_BIN_WIDTH = 5;
+    private static final int NUMBER_OF_SUMS = 5;
+    private final double macrovesicularDiameter;
+    private final AtomicLongArray diameterHistogram;
+    private final LongAdder numberOfGlobules = new LongAdder();
+    private final LongAdder numberOfMacrovesicularGlobules = new LongAdder();
+    private final DoubleAdder diameterSum = new DoubleAdder();
+    private final DoubleAdder squaredDiameterSum = new DoubleAdder();
+    private final DoubleAdder areaSum = new DoubleAdder();
+
+    /**
+     * Create the statistics.
+     *
+     * @param maxDiameter  the maximal diameter (in microns) a globule can have. Globules with a greater
+     *                     diameter are still counted, but are all put in the last bin of the histogram
+     * @param macrovesicularDiameter  the diameter (in microns) from which a globule is considered as macrovesicular
+     */
+    public GlobuleStatistics(double maxDiameter, double macrovesicularDiameter) {
+        this.macrovesicularDiameter = macrovesicularDiameter;
+        this.diameterHistogram = new AtomicLongArray((int) Math.ceil(Math.max(maxDiameter, 0) / HISTOGRAM_BIN_WIDTH) + 1);
+    }
+
+    /**
+     * Add a globule to the statistics. This function can be called from any thread.
+     *
+     * @param diameter  the diameter of the globule in microns
+     * @param area  the area of the globule in micro-meter squared
+     */
+    public void addGlobule(double diameter, double area) {
+        numberOfGlobules.increment();
+        if (diameter >= macrovesicularDiameter) {
+            numberOfMacrovesicularGlobules.increment();
+        }
+        diameterSum.add(diameter);
+        squaredDiameterSum.add(diameter * diameter);
+        areaSum.add(area);
+
+        diameterHistogram.incrementAndGet(Math.min((int) (diameter / HISTOGRAM_BIN_WIDTH), diameterHistogram.length() - 1));
+    }
+
+    /**
+     * Add all globules of other statistics to these statistics. This function can be called from any thread.
+     *
+     * @param statistics  the statistics to add. They must have been created with the same parameters as these statistics
+     * @throws IllegalArgumentException if the provided statistics don't have the same number of histogram bins
+     */
+    public void add(GlobuleStatistics statistics) {
+        if (statistics.diameterHistogram.length() != diameterHistogram.length()) {
+            throw new IllegalArgumentException(String.format(
+                    "The supplied statistics have %d histogram bins instead of %d",
+                    statistics.diameterHistogram.length(),
+                    diameterHistogram.length()
+            ));
+        }
+
+        numberOfGlobules.add(statistics.numberOfGlobules.sum());
+        numberOfMacrovesicularGlobules.add(statistics.numberOfMacrovesicularGlobules.sum());
+        diameterSum.add(statistics.diameterSum.sum());
+        squaredDiameterSum.add(statistics.squaredDiameterSum.sum());
+        areaSum.add(statistics.areaSum.sum());
+        for (int bin=0; bin<diameterHistogram.length(); ++bin) {
+            diameterHistogram.addAndGet(bin, statistics.diameterHistogram.get(bin));
+        }
+    }
+
+    /**
+     * Create statistics from values previously returned by {@link #toArray()}.
+     *
+     * @param values  the values describing the statistics
+     * @param maxDiameter  the maximal diameter (in microns) a globule can have. It must be the same as the one used
+     *                     when the values were created
+     * @param macrovesicularDiameter  the diameter (in microns) from which a globule is considered as macrovesicular.
+     *                                It must be the same as the one used when the values were created
+     * @return the statistics described by the provided values
+     * @throws IllegalArgumentException if the provided values don't match the provided parameters
+     */
+    public static GlobuleStatistics fromArray(double[] values, double maxDiameter, double macrovesicularDiameter) {
+        GlobuleStatistics statistics = new GlobuleStatistics(maxDiameter, macrovesicularDiameter);
+        if (values.length != NUMBER_OF_SUMS + statistics.diameterHistogram.length()) {
+            throw new IllegalArgumentException(String.format(
+                    "The supplied values (%d) don't match statistics with %d histogram bins",
+                    values.length,
+                    statistics.diameterHistogram.length()
+            ));
+        }
+
+        statistics.numberOfGlobules.add((long) values[0]);
+        statistics.numberOfMacrovesicularGlobules.add((long) values[1]);
+        statistics.diameterSum.add(values[2]);
+        statistics.squaredDiameterSum.add(values[3]);
+        statistics.areaSum.add(values[4]);
+        for (int bin=0; bin<statistics.diameterHistogram.length(); ++bin) {
+            statistics.diameterHistogram.set(bin, (long) values[NUMBER_OF_SUMS + bin]);
+        }
+
+        return statistics;
+    }
+
+    /**
+     * @return the values describing these statistics, from which they can be created again with
+     * {@link #fromArray(double[], double, double)}
+     */
+    public double[] toArray() {
+        double[] values = new double[NUMBER_OF_SUMS + diameterHistogram.length()];
+
+        values[0] = numberOfGlobules.sum();
+        values[1] = numberOfMacrovesicularGlobules.sum();
+        values[2] = diameterSum.sum();
+        values[3] = squaredDiameterSum.sum();
+        values[4] = areaSum.sum();
+        for (int bin=0; bin<diameterHistogram.length(); ++bin) {
+            values[NUMBER_OF_SUMS + bin] = diameterHistogram.get(bin);
+        }
+
+        return values;
+    }
+
+    /**
+     * @return the sum of the areas (in micro-meter squared) of the globules added to these statistics
+     */
+    public double getArea() {
+        return areaSum.sum();
+    }
+
+    /**
+     * Write the statistics to the provided measurement list. This should only be called
+     * once all globules have been added.
+     *
+     * @param measurementList  the measurement list to write the statistics to
+     * @param annotationArea  the area (in micro-meter squared) of the annotation these statistics belong to
+     */
+    public void addMeasurements(MeasurementList measurementList, double annotationArea) {
+        long count = numberOfGlobules.sum();
+        long macrovesicularCount = numberOfMacrovesicularGlobules.sum();
+        double mean = count == 0 ? 0 : diameterSum.sum() / count;
+        double variance = count < 2 ? 0 : (squaredDiameterSum.sum() - count * mean * mean) / (count - 1);
+
+        measurementList.put(COUNT_MEASUREMENT, count);
+        measurementList.put("Macrovesicular globule count", macrovesicularCount);
+        measurementList.put("Microvesicular globule count", count - macrovesicularCount);
+        measurementList.put("Macrovesicular globule proportion", count == 0 ? 0 : (double) macrovesicularCount / count);
+        measurementList.put("Globule density (per mm²)", annotationArea > 0 ? count / (annotationArea * 1e-6) : 0);
+        measurementList.put("Mean globule diameter (µm)", mean);
+        measurementList.put("Globule diameter standard deviation (µm)", Math.sqrt(Math.max(variance, 0)));
+        measurementList.put("Mean globule area (µm²)", count == 0 ? 0 : areaSum.sum() / count);
+
+        for (int bin=0; bin<diameterHistogram.length(); ++bin) {
+            measurementList.put(getHistogramMeasurementName(bin), diameterHistogram.get(bin));
+        }
+    }
+
+    private String getHistogramMeasurementName(int bin) {
+        return bin == diameterHistogram.length() - 1 ?
+                String.format("Globule diameter >= %d µm count", (int) (bin * HISTOGRAM_BIN_WIDTH)) :
+                String.format("Globule diameter %d-%d µm count", (int) (bin * HISTOGRAM_BIN_WIDTH), (int) ((bin+1) * HISTOGRAM_BIN_WIDTH));
+    }
+}
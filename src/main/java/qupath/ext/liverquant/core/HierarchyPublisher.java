@@ -0,0 +1,167 @@
+package qupath.ext.liverquant.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.common.ThreadTools;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.plugins.TaskRunner;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ *     Add the globules of completed tiles to the hierarchy while a detection is running, so that results
+ *     are visible before the end of the detection and are not all inserted at the same time once the tiles are processed.
+ * </p>
+ * <p>
+ *     Workers only add the globules of a tile to a concurrent queue (see {@link #add(PathObject, List)}). A dedicated
+ *     thread periodically moves at most a fixed number of globules from the queue to their parent, and fires one
+ *     hierarchy change event per batch. Workers therefore never wait for the hierarchy or for the JavaFX Application Thread.
+ * </p>
+ * <p>
+ *     The published globules are final: they are not removed or replaced at the end of the detection. Once all tiles
+ *     are processed, publication stops and the remaining queued globules are added a batch at a time (see
+ *     {@link #wrap(TaskRunner)} and {@link #close()}).
+ * </p>
+ * <p>
+ *     This class is thread-safe.
+ * </p>
+ */
+class HierarchyPublisher implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(HierarchyPublisher.class);
+    private final Queue<Batch> pendingBatches = new ConcurrentLinkedQueue<>();
+    private final PathObjectHierarchy hierarchy;
+    private final int batchSize;
+    private final ScheduledExecutorService scheduler;
+    private volatile boolean stopped = false;
+    private record Batch(PathObject parent, List<PathObject> objects) {}
+
+    /**
+     * Create the publisher and start publishing periodically.
+     *
+     * @param hierarchy  the hierarchy to publish objects to
+     * @param interval  the time (in milliseconds) between two publications
+     * @param batchSize  the maximal number of objects added to the hierarchy in one publication
+     */
+    public HierarchyPublisher(PathObjectHierarchy hierarchy, long interval, int batchSize) {
+        this.hierarchy = hierarchy;
+        this.batchSize = batchSize;
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(ThreadTools.createThreadFactory("liverquant-publisher-", true));
+        scheduler.scheduleWithFixedDelay(this::publish, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Wrap a task runner so that publication stops and the remaining objects are added as soon as the tasks it
+     * runs are complete.
+     *
+     * @param taskRunner  the task runner processing the tiles
+     * @return a task runner stopping publication once the tiles are processed
+     */
+    public TaskRunner wrap(TaskRunner taskRunner) {
+        return new DelegatingTaskRunner(taskRunner) {
+            @Override
+            public void runTasks(String message, Collection<? extends Runnable> tasks) {
+                try {
+                    taskRunner.runTasks(message, tasks);
+                } finally {
+                    stop();
+                }
+            }
+        };
+    }
+
+    /**
+     * Queue objects to be added as children of the provided parent. This function can be called from any thread
+     * and doesn't wait for the objects to be published, unless publication is stopped (in which case the objects
+     * are added immediately). The parent doesn't have to belong to the hierarchy.
+     *
+     * @param parent  the object the objects should be added to
+     * @param objects  the objects to add. They must not be added to another object
+     */
+    public void add(PathObject parent, List<PathObject> objects) {
+        if (objects.isEmpty()) {
+            return;
+        }
+
+        if (stopped) {
+            synchronized (this) {
+                addToParents(List.of(new Batch(parent, objects)));
+            }
+        } else {
+            pendingBatches.add(new Batch(parent, objects));
+        }
+    }
+
+    /**
+     * Stop publishing periodically, and add the queued objects a batch at a time. This function blocks until
+     * all queued objects are added. Calling this function again has no effect.
+     */
+    @Override
+    public void close() {
+        stop();
+    }
+
+    private void stop() {
+        stopped = true;
+        scheduler.shutdown();
+        try {
+            // A publication may be running
+            scheduler.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        while (!pendingBatches.isEmpty()) {
+            publish();
+        }
+    }
+
+    private synchronized void publish() {
+        List<Batch> batches = new ArrayList<>();
+        int numberOfObjects = 0;
+        Batch batch;
+        while (numberOfObjects < batchSize && (batch = pendingBatches.poll()) != null) {
+            batches.add(batch);
+            numberOfObjects += batch.objects().size();
+        }
+        if (batches.isEmpty()) {
+            return;
+        }
+
+        try {
+            addToParents(batches);
+            logger.debug("{} object(s) published to the hierarchy", numberOfObjects);
+        } catch (Exception e) {
+            logger.warn("Cannot publish objects to the hierarchy", e);
+        }
+    }
+
+    private void addToParents(List<Batch> batches) {
+        Map<PathObject, List<PathObject>> objectsOfParents = new LinkedHashMap<>();
+        for (Batch batch: batches) {
+            objectsOfParents.computeIfAbsent(batch.parent(), parent -> new ArrayList<>()).addAll(batch.objects());
+        }
+
+        boolean inHierarchy = false;
+        for (Map.Entry<PathObject, List<PathObject>> entry: objectsOfParents.entrySet()) {
+            entry.getKey().addChildObjects(entry.getValue());
+            inHierarchy |= entry.getKey().getParent() != null;
+        }
+        // Parents that don't belong to the hierarchy (for example temporary unions) are not displayed
+        if (inHierarchy) {
+            hierarchy.fireHierarchyChangedEvent(this);
+        }
+    }
+}
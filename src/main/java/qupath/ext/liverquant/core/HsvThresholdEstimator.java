@@ -0,0 +1,328 @@
+package qupath.ext.liverquant.core;
+
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.global.opencv_imgproc;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Scalar;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.plugins.TaskRunner;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.regions.RegionRequest;
+import qupath.opencv.tools.OpenCVTools;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * <p>
+ *     Propose HSV bounds for the tissue detection and for the globule segmentation of an image, so that
+ *     they don't have to be found by running full detections with different values.
+ * </p>
+ * <p>
+ *     Both the background of the slide and the globules are bright and unsaturated, while the tissue is darker
+ *     and more saturated. The saturation and value thresholds separating these two populations are found with
+ *     Otsu's method on the marginals of joint saturation / value histograms:
+ * </p>
+ * <ul>
+ *     <li>
+ *         The tissue bounds come from the histogram of the low resolution image used by the tissue detection
+ *         (which mainly contains background and tissue).
+ *     </li>
+ *     <li>
+ *         The globule bounds come from the histogram of a small number of full resolution tiles located at
+ *         random positions within the tissue (which mainly contain tissue and globules). These tiles are read
+ *         and histogrammed in parallel.
+ *     </li>
+ * </ul>
+ * <p>
+ *     The hue bounds are not estimated: the ones of the provided parameters are kept.
+ * </p>
+ */
+public class HsvThresholdEstimator {
+
+    private static final Logger logger = LoggerFactory.getLogger(HsvThresholdEstimator.class);
+    private static final int DEFAULT_NUMBER_OF_TILES = 24;
+    private static final int NUMBER_OF_BINS = 256;
+
+    /**
+     * The bounds proposed by the estimator.
+     *
+     * @param tissueLowerBound  the inclusive lower bound array in HSV-space proposed for the tissue detection
+     * @param tissueUpperBound  the inclusive upper bound array in HSV-space proposed for the tissue detection
+     * @param globuleLowerBound  the inclusive lower bound array in HSV-space proposed for the globule segmentation
+     * @param globuleUpperBound  the inclusive upper bound array in HSV-space proposed for the globule segmentation
+     * @param numberOfTiles  the number of tiles used to estimate the globule bounds
+     */
+    public record Estimation(
+            HsvArray tissueLowerBound,
+            HsvArray tissueUpperBound,
+            HsvArray globuleLowerBound,
+            HsvArray globuleUpperBound,
+            int numberOfTiles
+    ) {}
+
+    private HsvThresholdEstimator() {
+        throw new AssertionError("This class is not instantiable.");
+    }
+
+    /**
+     * Estimate the bounds with a default number of randomly chosen tiles. See {@link #estimate(FatGlobulesDetectorParameters, int, long)}.
+     *
+     * @param fatGlobulesDetectorParameters  the parameters of the detection
+     * @return the proposed bounds
+     * @throws IOException if the low resolution image cannot be read
+     */
+    public static Estimation estimate(FatGlobulesDetectorParameters fatGlobulesDetectorParameters) throws IOException {
+        return estimate(fatGlobulesDetectorParameters, DEFAULT_NUMBER_OF_TILES, new Random().nextLong());
+    }
+
+    /**
+     * Estimate the bounds. This function blocks until the estimation is complete, so it shouldn't be called
+     * from the JavaFX Application Thread.
+     * <p>
+     * The image, the plane, the downsample of the tissue detection, the pixel size, the tile size and the hue bounds
+     * of the provided parameters are used. The other parameters (including the current saturation and value bounds)
+     * are ignored.
+     *
+     * @param fatGlobulesDetectorParameters  the parameters of the detection
+     * @param numberOfTiles  the number of tiles to sample within the tissue
+     * @param seed  the seed of the random choice of tiles. The same seed gives the same estimation
+     * @return the proposed bounds
+     * @throws IOException if the low resolution image cannot be read
+     * @throws IllegalArgumentException if the number of tiles is less than 1
+     */
+    public static Estimation estimate(FatGlobulesDetectorParameters fatGlobulesDetectorParameters, int numberOfTiles, long seed) throws IOException {
+        if (numberOfTiles < 1) {
+            throw new IllegalArgumentException(String.format("The supplied number of tiles (%d) is less than 1", numberOfTiles));
+        }
+        ImageServer<BufferedImage> server = fatGlobulesDetectorParameters.getImageData().getServer();
+        TissueDetectorParameters tissueDetectorParameters = fatGlobulesDetectorParameters.getTissueDetectorParameters();
+        ImagePlane plane = fatGlobulesDetectorParameters.getPlanes().isEmpty() ?
+                tissueDetectorParameters.getPlane() :
+                fatGlobulesDetectorParameters.getPlanes().get(0);
+
+        RegionRequest lowResolutionRequest = RegionRequest.createInstance(
+                server.getPath(),
+                tissueDetectorParameters.getDownsample(),
+                0,
+                0,
+                server.getWidth(),
+                server.getHeight(),
+                plane.getZ(),
+                plane.getT()
+        );
+        long[] lowResolutionHistogram = new long[NUMBER_OF_BINS * NUMBER_OF_BINS];
+        HsvArray tissueLowerBound;
+        HsvArray tissueUpperBound;
+        List<RegionRequest> tiles;
+        try (Mat hsv = readHsv(server, lowResolutionRequest)) {
+            addToHistogram(hsv, lowResolutionHistogram);
+
+            tissueLowerBound = new HsvArray(
+                    tissueDetectorParameters.getLowerBound().hue(),
+                    0,
+                    Math.min(getOtsuThreshold(getValueHistogram(lowResolutionHistogram)) + 1, NUMBER_OF_BINS - 1)
+            );
+            tissueUpperBound = new HsvArray(
+                    tissueDetectorParameters.getUpperBound().hue(),
+                    getOtsuThreshold(getSaturationHistogram(lowResolutionHistogram)),
+                    NUMBER_OF_BINS - 1
+            );
+
+            tiles = sampleTiles(hsv, lowResolutionRequest, tissueLowerBound, tissueUpperBound, fatGlobulesDetectorParameters, numberOfTiles, seed);
+        }
+
+        long[] tileHistogram = new long[NUMBER_OF_BINS * NUMBER_OF_BINS];
+        TaskRunner taskRunner = FatGlobuleDetector.createTaskRunner(fatGlobulesDetectorParameters);
+        taskRunner.runTasks(
+                "Estimating thresholds",
+                tiles.stream()
+                        .map(tile -> (Runnable) () -> {
+                            long[] histogram = new long[NUMBER_OF_BINS * NUMBER_OF_BINS];
+
+                            try (Mat hsv = readHsv(server, tile)) {
+                                addToHistogram(hsv, histogram);
+                            } catch (IOException e) {
+                                logger.warn("Cannot read tile {}. It won't be used to estimate thresholds", tile, e);
+                                return;
+                            }
+
+                            synchronized (tileHistogram) {
+                                for (int i=0; i<histogram.length; ++i) {
+                                    tileHistogram[i] += histogram[i];
+                                }
+                            }
+                        })
+                        .toList()
+        );
+
+        Estimation estimation = new Estimation(
+                tissueLowerBound,
+                tissueUpperBound,
+                new HsvArray(
+                        fatGlobulesDetectorParameters.getLowerBound().hue(),
+                        0,
+                        Math.min(getOtsuThreshold(getValueHistogram(tileHistogram)) + 1, NUMBER_OF_BINS - 1)
+                ),
+                new HsvArray(
+                        fatGlobulesDetectorParameters.getUpperBound().hue(),
+                        getOtsuThreshold(getSaturationHistogram(tileHistogram)),
+                        NUMBER_OF_BINS - 1
+                ),
+                tiles.size()
+        );
+        logger.info("Estimated thresholds of {}: {}", server.getPath(), estimation);
+        return estimation;
+    }
+
+    /**
+     * Compute a threshold with Otsu's method.
+     *
+     * @param histogram  the histogram to threshold
+     * @return the threshold t maximizing the between-class variance of the classes [0, t] and ]t, histogram.length - 1],
+     * or 0 if the histogram doesn't contain two different values
+     */
+    static int getOtsuThreshold(long[] histogram) {
+        long total = 0;
+        double sum = 0;
+        for (int i=0; i<histogram.length; ++i) {
+            total += histogram[i];
+            sum += (double) i * histogram[i];
+        }
+
+        long backgroundWeight = 0;
+        double backgroundSum = 0;
+        double maxVariance = -1;
+        int threshold = 0;
+        for (int t=0; t<histogram.length; ++t) {
+            backgroundWeight += histogram[t];
+            backgroundSum += (double) t * histogram[t];
+            long foregroundWeight = total - backgroundWeight;
+            if (backgroundWeight == 0) {
+                continue;
+            }
+            if (foregroundWeight == 0) {
+                break;
+            }
+
+            double meanDifference = backgroundSum / backgroundWeight - (sum - backgroundSum) / foregroundWeight;
+            double variance = (double) backgroundWeight * foregroundWeight * meanDifference * meanDifference;
+            if (variance > maxVariance) {
+                maxVariance = variance;
+                threshold = t;
+            }
+        }
+        return threshold;
+    }
+
+    private static Mat readHsv(ImageServer<BufferedImage> server, RegionRequest request) throws IOException {
+        Mat mat = OpenCVTools.imageToMat(server.readRegion(request));
+        mat.convertTo(mat, opencv_core.CV_8U);
+        opencv_imgproc.cvtColor(mat, mat, opencv_imgproc.COLOR_RGB2HSV);
+        return mat;
+    }
+
+    /**
+     * Add the pixels of an HSV image to a joint saturation / value histogram (index saturation * 256 + value).
+     */
+    private static void addToHistogram(Mat hsv, long[] histogram) {
+        byte[] pixels = new byte[(int) hsv.total() * hsv.channels()];
+        Mat continuousHsv = hsv.isContinuous() ? hsv : hsv.clone();
+        continuousHsv.data().get(pixels);
+        if (continuousHsv != hsv) {
+            continuousHsv.close();
+        }
+
+        for (int i=0; i<pixels.length; i+=hsv.channels()) {
+            histogram[(pixels[i+1] & 0xFF) * NUMBER_OF_BINS + (pixels[i+2] & 0xFF)]++;
+        }
+    }
+
+    private static long[] getSaturationHistogram(long[] jointHistogram) {
+        long[] histogram = new long[NUMBER_OF_BINS];
+        for (int i=0; i<jointHistogram.length; ++i) {
+            histogram[i / NUMBER_OF_BINS] += jointHistogram[i];
+        }
+        return histogram;
+    }
+
+    private static long[] getValueHistogram(long[] jointHistogram) {
+        long[] histogram = new long[NUMBER_OF_BINS];
+        for (int i=0; i<jointHistogram.length; ++i) {
+            histogram[i % NUMBER_OF_BINS] += jointHistogram[i];
+        }
+        return histogram;
+    }
+
+    /**
+     * Choose tiles of the detection centered on random tissue pixels of the low resolution image. If the
+     * low resolution image doesn't contain tissue, tiles are chosen anywhere on the image.
+     */
+    private static List<RegionRequest> sampleTiles(
+            Mat hsv,
+            RegionRequest lowResolutionRequest,
+            HsvArray tissueLowerBound,
+            HsvArray tissueUpperBound,
+            FatGlobulesDetectorParameters fatGlobulesDetectorParameters,
+            int numberOfTiles,
+            long seed
+    ) {
+        byte[] background = new byte[(int) hsv.total()];
+        try (
+                Scalar lowerBoundScalar = new Scalar(tissueLowerBound.hue(), tissueLowerBound.saturation(), tissueLowerBound.value(), 255);
+                Mat lowerBoundMat = new Mat(lowerBoundScalar);
+                Scalar upperBoundScalar = new Scalar(tissueUpperBound.hue(), tissueUpperBound.saturation(), tissueUpperBound.value(), 255);
+                Mat upperBoundMat = new Mat(upperBoundScalar);
+                Mat mask = new Mat()
+        ) {
+            opencv_core.inRange(hsv, lowerBoundMat, upperBoundMat, mask);
+            mask.data().get(background);
+        }
+
+        int[] tissuePixels = IntStream.range(0, background.length)
+                .filter(i -> background[i] == 0)
+                .toArray();
+        if (tissuePixels.length == 0) {
+            logger.debug("No tissue found on the low resolution image. Tiles will be sampled on the whole image");
+        }
+
+        ImageServer<BufferedImage> server = fatGlobulesDetectorParameters.getImageData().getServer();
+        double downsample = fatGlobulesDetectorParameters.getPixelSize() <= 0 ? 1 :
+                fatGlobulesDetectorParameters.getPixelSize() / server.getPixelCalibration().getAveragedPixelSizeMicrons();
+        int tileWidth = (int) Math.min(server.getWidth(), Math.round(fatGlobulesDetectorParameters.getTileWidth() * downsample));
+        int tileHeight = (int) Math.min(server.getHeight(), Math.round(fatGlobulesDetectorParameters.getTileHeight() * downsample));
+
+        Random random = new Random(seed);
+        List<RegionRequest> tiles = new ArrayList<>();
+        for (int i=0; i<numberOfTiles; ++i) {
+            double centerX;
+            double centerY;
+            if (tissuePixels.length == 0) {
+                centerX = random.nextDouble() * server.getWidth();
+                centerY = random.nextDouble() * server.getHeight();
+            } else {
+                int pixel = tissuePixels[random.nextInt(tissuePixels.length)];
+                centerX = (pixel % hsv.cols() + 0.5) * lowResolutionRequest.getDownsample();
+                centerY = (pixel / hsv.cols() + 0.5) * lowResolutionRequest.getDownsample();
+            }
+
+            tiles.add(RegionRequest.createInstance(
+                    server.getPath(),
+                    downsample,
+                    (int) Math.max(0, Math.min(server.getWidth() - tileWidth, centerX - tileWidth / 2d)),
+                    (int) Math.max(0, Math.min(server.getHeight() - tileHeight, centerY - tileHeight / 2d)),
+                    tileWidth,
+                    tileHeight,
+                    lowResolutionRequest.getZ(),
+                    lowResolutionRequest.getT()
+            ));
+        }
+        return tiles;
+    }
+}
@@ -0,0 +1,275 @@
+package qupath.ext.liverquant.core;
+
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import qupath.lib.images.servers.PixelCalibration;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.regions.ImageRegion;
+import qupath.lib.roi.GeometryTools;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * <p>
+ *     A detection that only re-processes the part of an annotation that changed since the previous detection.
+ * </p>
+ * <p>
+ *     The ROI of the annotation and the statistics of the globules counted in each tile of a grid aligned with the
+ *     image are saved in a {@link IncrementalDetectionStore} (see {@link #count(Map, Collection, ImagePlane, FatGlobulesDetectorParameters)}).
+ *     The tiles of the grid have the size of the tiles of the detection. When the annotation is edited, only the tiles
+ *     touching the changed area are processed again: the globules intersecting these tiles are removed, and the
+ *     steatosis measurement and the globule statistics of the annotation are updated incrementally.
+ * </p>
+ * <p>
+ *     Globules are assigned to the tile of the grid containing their centroid. The tiles touching the removed
+ *     globules are also processed again, so that these globules are entirely detected again, and the statistics
+ *     of the annotation are the sum of the statistics of the kept tiles and of the tiles processed again. Each globule
+ *     therefore stays counted once.
+ * </p>
+ */
+class IncrementalDetection {
+
+    private final PathObject annotation;
+    private final boolean changed;
+    private final PathObject regionToProcess;
+    private final Map<ImageRegion, GlobuleStatistics> keptTileStatistics;
+    private final List<PathObject> removedGlobules;
+    private final double remainingFatArea;
+    private final GlobuleStatistics statistics;
+
+    private IncrementalDetection(
+            PathObject annotation,
+            boolean changed,
+            PathObject regionToProcess,
+            Map<ImageRegion, GlobuleStatistics> keptTileStatistics,
+            List<PathObject> removedGlobules,
+            double remainingFatArea,
+            GlobuleStatistics statistics
+    ) {
+        this.annotation = annotation;
+        this.changed = changed;
+        this.regionToProcess = regionToProcess;
+        this.keptTileStatistics = keptTileStatistics;
+        this.removedGlobules = removedGlobules;
+        this.remainingFatArea = remainingFatArea;
+        this.statistics = statistics;
+    }
+
+    /**
+     * Prepare an incremental detection on the provided annotation.
+     *
+     * @param annotation  the annotation where the detection should take place
+     * @param previousDetection  the state of the annotation after the previous detection, or null if there was none
+     * @param fatGlobulesDetectorParameters  the parameters of the detection. They should be the same as the ones
+     *                                       used during the previous detection
+     * @return the incremental detection, or null if there was no previous detection of the annotation
+     * (in which case the whole annotation should be processed)
+     */
+    public static IncrementalDetection create(
+            PathObject annotation,
+            IncrementalDetectionStore.Entry previousDetection,
+            FatGlobulesDetectorParameters fatGlobulesDetectorParameters
+    ) {
+        if (previousDetection == null) {
+            return null;
+        }
+
+        Geometry previousGeometry = previousDetection.roi();
+        Geometry geometry = annotation.getROI().getGeometry();
+        ImagePlane plane = annotation.getROI().getImagePlane();
+
+        Geometry changedArea = previousGeometry.symDifference(geometry);
+        if (changedArea.isEmpty()) {
+            return new IncrementalDetection(annotation, false, null, previousDetection.tileStatistics(), List.of(), 0, null);
+        }
+
+        // The tiles touching the removed globules are added until all removed globules are located within the processed tiles
+        Set<ImageRegion> affectedTiles = getGridTiles(changedArea.getEnvelopeInternal(), plane, fatGlobulesDetectorParameters).stream()
+                .filter(tile -> changedArea.intersects(toGeometry(tile)))
+                .collect(Collectors.toCollection(HashSet::new));
+        Geometry affectedArea;
+        List<PathObject> removedGlobules;
+        int numberOfAffectedTiles;
+        do {
+            numberOfAffectedTiles = affectedTiles.size();
+            affectedArea = GeometryTools.union(affectedTiles.stream().map(IncrementalDetection::toGeometry).toList());
+
+            Geometry area = affectedArea;
+            removedGlobules = annotation.getChildObjects().stream()
+                    .filter(PathObject::hasROI)
+                    .filter(child -> area.intersects(child.getROI().getGeometry()))
+                    .toList();
+            for (PathObject globule: removedGlobules) {
+                affectedTiles.addAll(getGridTiles(globule.getROI().getGeometry().getEnvelopeInternal(), plane, fatGlobulesDetectorParameters));
+            }
+        } while (affectedTiles.size() != numberOfAffectedTiles);
+
+        double previousFatArea = annotation.getMeasurementList().get(FatGlobuleDetector.STEATOSIS_MEASUREMENT) * previousGeometry.getArea();
+        if (Double.isNaN(previousFatArea)) {
+            previousFatArea = annotation.getChildObjects().stream()
+                    .filter(PathObject::hasROI)
+                    .mapToDouble(child -> child.getROI().getArea())
+                    .sum();
+        }
+
+        Map<ImageRegion, GlobuleStatistics> keptTileStatistics = new HashMap<>();
+        GlobuleStatistics statistics = new GlobuleStatistics(
+                fatGlobulesDetectorParameters.getMaxDiameter(),
+                fatGlobulesDetectorParameters.getMacrovesicularDiameter()
+        );
+        for (Map.Entry<ImageRegion, GlobuleStatistics> entry: previousDetection.tileStatistics().entrySet()) {
+            if (!affectedTiles.contains(entry.getKey())) {
+                keptTileStatistics.put(entry.getKey(), entry.getValue());
+                statistics.add(entry.getValue());
+            }
+        }
+
+        Geometry regionGeometry = affectedArea.intersection(geometry);
+        return new IncrementalDetection(
+                annotation,
+                true,
+                regionGeometry.isEmpty() ? null : PathObjects.createAnnotationObject(
+                        GeometryTools.geometryToROI(regionGeometry, plane)
+                ),
+                keptTileStatistics,
+                removedGlobules,
+                previousFatArea - removedGlobules.stream().mapToDouble(globule -> globule.getROI().getArea()).sum(),
+                statistics
+        );
+    }
+
+    /**
+     * Add counted globules to the statistics of the tiles of the grid containing their centroid.
+     * This function can be called from any thread if the provided map is thread-safe.
+     *
+     * @param tileStatistics  the statistics of each tile of the grid, to which the globules should be added
+     * @param countedGlobules  the globules to add
+     * @param plane  the plane containing the globules
+     * @param fatGlobulesDetectorParameters  the parameters of the detection
+     */
+    public static void count(
+            Map<ImageRegion, GlobuleStatistics> tileStatistics,
+            Collection<DetectionCheckpoint.CountedGlobule> countedGlobules,
+            ImagePlane plane,
+            FatGlobulesDetectorParameters fatGlobulesDetectorParameters
+    ) {
+        int tileWidth = TilePlan.getFullResolutionTileWidth(fatGlobulesDetectorParameters);
+        int tileHeight = TilePlan.getFullResolutionTileHeight(fatGlobulesDetectorParameters);
+
+        for (DetectionCheckpoint.CountedGlobule globule: countedGlobules) {
+            tileStatistics.computeIfAbsent(
+                    ImageRegion.createInstance(
+                            (int) Math.floor(globule.x() / tileWidth) * tileWidth,
+                            (int) Math.floor(globule.y() / tileHeight) * tileHeight,
+                            tileWidth,
+                            tileHeight,
+                            plane.getZ(),
+                            plane.getT()
+                    ),
+                    tile -> new GlobuleStatistics(fatGlobulesDetectorParameters.getMaxDiameter(), fatGlobulesDetectorParameters.getMacrovesicularDiameter())
+            ).addGlobule(globule.diameter(), globule.area());
+        }
+    }
+
+    /**
+     * @return whether the annotation changed since the previous detection
+     */
+    public boolean hasChanged() {
+        return changed;
+    }
+
+    /**
+     * @return a temporary annotation (not added to the hierarchy) representing the region to process,
+     * or null if nothing needs to be processed (for example if the annotation only shrank). Detected globules
+     * should be added as children of this temporary annotation
+     */
+    public PathObject getRegionToProcess() {
+        return regionToProcess;
+    }
+
+    /**
+     * @return the statistics of the annotation, from which the removed globules were already subtracted.
+     * The globules detected in the region to process should be added to them
+     */
+    public GlobuleStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Complete the detection: the globules that were processed again are removed from the hierarchy
+     * and replaced by the globules detected in the region to process, the measurements of the annotation are
+     * updated, and the new state of the annotation is saved.
+     *
+     * @param tileStatistics  the statistics of the globules counted in each tile of the grid during this detection
+     *                        (see {@link #count(Map, Collection, ImagePlane, FatGlobulesDetectorParameters)})
+     * @param hierarchy  the hierarchy containing the annotation
+     * @param pixelCalibration  the pixel calibration of the image
+     * @param store  the store where the new state of the annotation should be saved
+     */
+    public void complete(
+            Map<ImageRegion, GlobuleStatistics> tileStatistics,
+            PathObjectHierarchy hierarchy,
+            PixelCalibration pixelCalibration,
+            IncrementalDetectionStore store
+    ) {
+        hierarchy.removeObjects(removedGlobules, true);
+
+        double addedFatArea = 0;
+        if (regionToProcess != null) {
+            List<PathObject> newGlobules = new ArrayList<>(regionToProcess.getChildObjects());
+            regionToProcess.removeChildObjects(newGlobules);
+            annotation.addChildObjects(newGlobules);
+            hierarchy.fireHierarchyChangedEvent(annotation);
+
+            addedFatArea = newGlobules.stream()
+                    .filter(PathObject::hasROI)
+                    .mapToDouble(globule -> globule.getROI().getArea())
+                    .sum();
+        }
+
+        annotation.getMeasurementList().put(
+                FatGlobuleDetector.STEATOSIS_MEASUREMENT,
+                (remainingFatArea + addedFatArea) / annotation.getROI().getArea()
+        );
+        statistics.addMeasurements(
+                annotation.getMeasurementList(),
+                annotation.getROI().getScaledArea(pixelCalibration.getPixelWidthMicrons(), pixelCalibration.getPixelHeightMicrons())
+        );
+
+        Map<ImageRegion, GlobuleStatistics> allTileStatistics = new HashMap<>(keptTileStatistics);
+        for (Map.Entry<ImageRegion, GlobuleStatistics> entry: tileStatistics.entrySet()) {
+            allTileStatistics.merge(entry.getKey(), entry.getValue(), (previousStatistics, newStatistics) -> {
+                previousStatistics.add(newStatistics);
+                return previousStatistics;
+            });
+        }
+        store.put(annotation, allTileStatistics);
+    }
+
+    private static List<ImageRegion> getGridTiles(Envelope envelope, ImagePlane plane, FatGlobulesDetectorParameters fatGlobulesDetectorParameters) {
+        int tileWidth = TilePlan.getFullResolutionTileWidth(fatGlobulesDetectorParameters);
+        int tileHeight = TilePlan.getFullResolutionTileHeight(fatGlobulesDetectorParameters);
+
+        List<ImageRegion> tiles = new ArrayList<>();
+        for (int y = (int) Math.floor(envelope.getMinY() / tileHeight) * tileHeight; y <= envelope.getMaxY(); y += tileHeight) {
+            for (int x = (int) Math.floor(envelope.getMinX() / tileWidth) * tileWidth; x <= envelope.getMaxX(); x += tileWidth) {
+                tiles.add(ImageRegion.createInstance(x, y, tileWidth, tileHeight, plane.getZ(), plane.getT()));
+            }
+        }
+        return tiles;
+    }
+
+    private static Geometry toGeometry(ImageRegion tile) {
+        return GeometryTools.createRectangle(tile.getX(), tile.getY(), tile.getWidth(), tile.getHeight());
+    }
+}
@@ -0,0 +1,190 @@
+package qupath.ext.liverquant.core;
+
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKTReader;
+import org.locationtech.jts.io.WKTWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.objects.PathObject;
+import qupath.lib.regions.ImageRegion;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * <p>
+ *     A file where the state of incremental detections (see {@link IncrementalDetection}) is saved.
+ * </p>
+ * <p>
+ *     The file is a text file starting with a header containing the fingerprint of the parameters of the detection
+ *     (see {@link FatGlobulesDetectorParameters#getFingerprint()}). Each following line describes one annotation:
+ *     its ID, its ROI (as WKT) when it was last detected, and the statistics of the globules counted in each
+ *     tile of the grid of the detection (see {@link GlobuleStatistics#toArray()}). Only aggregated statistics are
+ *     saved, so the size of the file doesn't depend on the number of globules.
+ * </p>
+ * <p>
+ *     A file written with different parameters is discarded, so that annotations are entirely processed again.
+ * </p>
+ * <p>
+ *     This class is not thread-safe.
+ * </p>
+ */
+class IncrementalDetectionStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(IncrementalDetectionStore.class);
+    private static final String HEADER_PREFIX = "# ";
+    private static final String FIELD_SEPARATOR = "\t";
+    private static final String ELEMENT_SEPARATOR = ";";
+    private static final String VALUE_SEPARATOR = ",";
+    private final Path path;
+    private final FatGlobulesDetectorParameters fatGlobulesDetectorParameters;
+    private final Map<String, Entry> entries;
+
+    /**
+     * The state of an annotation after its last detection.
+     *
+     * @param roi  the geometry of the ROI of the annotation when it was last detected
+     * @param tileStatistics  the statistics of the globules counted in each tile of the grid of the detection
+     */
+    public record Entry(Geometry roi, Map<ImageRegion, GlobuleStatistics> tileStatistics) {}
+
+    private IncrementalDetectionStore(Path path, FatGlobulesDetectorParameters fatGlobulesDetectorParameters, Map<String, Entry> entries) {
+        this.path = path;
+        this.fatGlobulesDetectorParameters = fatGlobulesDetectorParameters;
+        this.entries = entries;
+    }
+
+    /**
+     * Read the state saved in the provided file. No state is read if the file doesn't exist, cannot be read,
+     * or was written with different parameters.
+     *
+     * @param path  the path of the file
+     * @param fatGlobulesDetectorParameters  the parameters of the detection
+     * @return the state saved in the provided file
+     */
+    public static IncrementalDetectionStore read(Path path, FatGlobulesDetectorParameters fatGlobulesDetectorParameters) {
+        Map<String, Entry> entries = new LinkedHashMap<>();
+
+        if (Files.exists(path)) {
+            try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+                if ((HEADER_PREFIX + fatGlobulesDetectorParameters.getFingerprint()).equals(reader.readLine())) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        readEntry(line, fatGlobulesDetectorParameters, entries);
+                    }
+                } else {
+                    logger.info("The incremental state {} was written with different parameters. Annotations will be entirely processed", path);
+                }
+            } catch (IOException e) {
+                logger.warn("Cannot read the incremental state {}. Annotations will be entirely processed", path, e);
+                entries.clear();
+            }
+        }
+
+        return new IncrementalDetectionStore(path, fatGlobulesDetectorParameters, entries);
+    }
+
+    /**
+     * Get the state of an annotation after its last detection.
+     *
+     * @param annotation  the annotation whose state should be retrieved
+     * @return the state of the annotation, or null if the annotation was not detected with the current parameters
+     */
+    public Entry get(PathObject annotation) {
+        return entries.get(annotation.getID().toString());
+    }
+
+    /**
+     * Set the state of an annotation after a detection. The current ROI of the annotation is saved.
+     *
+     * @param annotation  the annotation that was detected
+     * @param tileStatistics  the statistics of the globules counted in each tile of the grid of the detection
+     */
+    public void put(PathObject annotation, Map<ImageRegion, GlobuleStatistics> tileStatistics) {
+        entries.put(annotation.getID().toString(), new Entry(annotation.getROI().getGeometry(), Map.copyOf(tileStatistics)));
+    }
+
+    /**
+     * Write the state of all annotations to the file.
+     *
+     * @throws IOException if the file cannot be written
+     */
+    public void write() throws IOException {
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+
+        WKTWriter wktWriter = new WKTWriter();
+        try (BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            writer.write(HEADER_PREFIX + fatGlobulesDetectorParameters.getFingerprint());
+            writer.newLine();
+
+            for (Map.Entry<String, Entry> entry: entries.entrySet()) {
+                writer.write(String.join(
+                        FIELD_SEPARATOR,
+                        entry.getKey(),
+                        wktWriter.write(entry.getValue().roi()),
+                        entry.getValue().tileStatistics().entrySet().stream()
+                                .map(tile -> String.join(
+                                        VALUE_SEPARATOR,
+                                        String.valueOf(tile.getKey().getX()),
+                                        String.valueOf(tile.getKey().getY()),
+                                        String.valueOf(tile.getKey().getWidth()),
+                                        String.valueOf(tile.getKey().getHeight()),
+                                        String.valueOf(tile.getKey().getZ()),
+                                        String.valueOf(tile.getKey().getT()),
+                                        Arrays.stream(tile.getValue().toArray()).mapToObj(String::valueOf).collect(Collectors.joining(VALUE_SEPARATOR))
+                                ))
+                                .collect(Collectors.joining(ELEMENT_SEPARATOR))
+                ));
+                writer.newLine();
+            }
+        }
+    }
+
+    private static void readEntry(String line, FatGlobulesDetectorParameters fatGlobulesDetectorParameters, Map<String, Entry> entries) {
+        String[] fields = line.split(FIELD_SEPARATOR, -1);
+        if (fields.length != 3) {
+            if (!line.isBlank()) {
+                logger.debug("Skipping invalid incremental state line {}", line);
+            }
+            return;
+        }
+
+        try {
+            Map<ImageRegion, GlobuleStatistics> tileStatistics = new HashMap<>();
+            for (String tile: fields[2].split(ELEMENT_SEPARATOR)) {
+                if (tile.isEmpty()) {
+                    continue;
+                }
+
+                double[] values = Arrays.stream(tile.split(VALUE_SEPARATOR)).mapToDouble(Double::parseDouble).toArray();
+                if (values.length < 6) {
+                    throw new IllegalArgumentException(String.format("The tile %s doesn't have a region", tile));
+                }
+                tileStatistics.put(
+                        ImageRegion.createInstance((int) values[0], (int) values[1], (int) values[2], (int) values[3], (int) values[4], (int) values[5]),
+                        GlobuleStatistics.fromArray(
+                                Arrays.copyOfRange(values, 6, values.length),
+                                fatGlobulesDetectorParameters.getMaxDiameter(),
+                                fatGlobulesDetectorParameters.getMacrovesicularDiameter()
+                        )
+                );
+            }
+
+            entries.put(fields[0], new Entry(new WKTReader().read(fields[1]), tileStatistics));
+        } catch (ParseException | IllegalArgumentException e) {
+            logger.debug("Skipping invalid incremental state line {}", line, e);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package qupath.ext.liverquant.core;
+
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.opencv_core.Mat;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * <p>
+ *     Static class segmenting RGB images by ranges in the HSV-space without calling OpenCV.
+ * </p>
+ * <p>
+ *     The pixels are copied once from the image to a Java array, converted to the HSV-space and tested against all
+ *     ranges in a single loop, and the results are copied once to the masks. This avoids the native calls and the
+ *     intermediate HSV image of the OpenCV implementation, whose cost is significant for small tiles.
+ * </p>
+ * <p>
+ *     The conversion reproduces the 8-bit integer conversion of OpenCV ({@code COLOR_RGB2HSV}, with the same fixed
+ *     point division tables and rounding), so the masks are identical to the ones of
+ *     {@link MatOperations#segmentByColors(Mat, List, List, List)}.
+ * </p>
+ */
+class JavaColorSegmenter {
+
+    private static final int HSV_SHIFT = 12;
+    private static final int HALF = 1 << (HSV_SHIFT - 1);
+    private static final int HUE_RANGE = 180;
+    private static final int[] SATURATION_DIVISIONS = new int[256];
+    private static final int[] HUE_DIVISIONS = new int[256];
+    static {
+        // Same tables as OpenCV, whose values are rounded to the nearest integer (ties to even)
+        for (int i=1; i<256; ++i) {
+            SATURATION_DIVISIONS[i] = (int) Math.rint((255 << HSV_SHIFT) / (double) i);
+            HUE_DIVISIONS[i] = (int) Math.rint((HUE_RANGE << HSV_SHIFT) / (6.0 * i));
+        }
+    }
+
+    private JavaColorSegmenter() {
+        throw new AssertionError("This class is not instantiable.");
+    }
+
+    /**
+     * Segment an RGB image based on several ranges in the HSV-space, and write the result of each range
+     * to the corresponding mask. The provided image is not modified.
+     *
+     * @param image  the image to segment with the RGB format (with 3 or 4 channels)
+     * @param masks  the masks that will contain the result of the segmentation of each range. They will be
+     *               reallocated if they don't have the size of the image and the {@link opencv_core#CV_8U} format
+     * @param lowerBounds  inclusive lower bound arrays in HSV-space of each range. There must be as many as masks
+     * @param upperBounds  inclusive upper bound arrays in HSV-space of each range. There must be as many as masks
+     */
+    public static void segmentByColors(Mat image, List<Mat> masks, List<HsvArray> lowerBounds, List<HsvArray> upperBounds) {
+        Mat rgb = image;
+        if (image.depth() != opencv_core.CV_8U || !image.isContinuous()) {
+            rgb = ScratchMatPool.borrow(image.rows(), image.cols(), opencv_core.CV_8UC(image.channels()));
+            image.convertTo(rgb, opencv_core.CV_8U);
+        }
+
+        byte[] pixels;
+        try {
+            pixels = new byte[(int) rgb.total() * rgb.channels()];
+            ((ByteBuffer) rgb.createBuffer()).get(pixels);
+        } finally {
+            if (rgb != image) {
+                ScratchMatPool.recycle(rgb);
+            }
+        }
+
+        byte[][] maskPixels = new byte[masks.size()][(int) image.total()];
+        segmentByColors(pixels, image.channels(), maskPixels, lowerBounds, upperBounds);
+
+        for (int i=0; i<masks.size(); ++i) {
+            Mat mask = masks.get(i);
+            mask.create(image.rows(), image.cols(), opencv_core.CV_8U);
+
+            if (mask.isContinuous()) {
+                ((ByteBuffer) mask.createBuffer()).put(maskPixels[i]);
+            } else {
+                try (Mat continuousMask = new Mat(image.rows(), image.cols(), opencv_core.CV_8U)) {
+                    ((ByteBuffer) continuousMask.createBuffer()).put(maskPixels[i]);
+                    continuousMask.copyTo(mask);
+                }
+            }
+        }
+    }
+
+    /**
+     * Segment interleaved RGB pixels based on several ranges in the HSV-space. A pixel of a mask is set to
+     * 255 if the pixel is within the range of the mask, and to 0 otherwise.
+     *
+     * @param pixels  the interleaved pixels to segment, whose first three channels are red, green, and blue
+     * @param channels  the number of channels of each pixel (at least 3)
+     * @param masks  the arrays that will contain the result of the segmentation of each range. They must have one
+     *               element per pixel
+     * @param lowerBounds  inclusive lower bound arrays in HSV-space of each range. There must be as many as masks
+     * @param upperBounds  inclusive upper bound arrays in HSV-space of each range. There must be as many as masks
+     */
+    static void segmentByColors(byte[] pixels, int channels, byte[][] masks, List<HsvArray> lowerBounds, List<HsvArray> upperBounds) {
+        int numberOfRanges = masks.length;
+        int[] lowerHues = lowerBounds.stream().mapToInt(HsvArray::hue).toArray();
+        int[] upperHues = upperBounds.stream().mapToInt(HsvArray::hue).toArray();
+        int[] lowerSaturations = lowerBounds.stream().mapToInt(HsvArray::saturation).toArray();
+        int[] upperSaturations = upperBounds.stream().mapToInt(HsvArray::saturation).toArray();
+        int[] lowerValues = lowerBounds.stream().mapToInt(HsvArray::value).toArray();
+        int[] upperValues = upperBounds.stream().mapToInt(HsvArray::value).toArray();
+
+        int numberOfPixels = pixels.length / channels;
+        for (int i=0, p=0; i<numberOfPixels; ++i, p+=channels) {
+            int r = pixels[p] & 0xFF;
+            int g = pixels[p+1] & 0xFF;
+            int b = pixels[p+2] & 0xFF;
+
+            int v = Math.max(Math.max(r, g), b);
+            int diff = v - Math.min(Math.min(r, g), b);
+            int vr = v == r ? -1 : 0;
+            int vg = v == g ? -1 : 0;
+
+            int s = (diff * SATURATION_DIVISIONS[v] + HALF) >> HSV_SHIFT;
+            int h = (vr & (g - b)) + (~vr & ((vg & (b - r + 2 * diff)) + (~vg & (r - g + 4 * diff))));
+            h = (h * HUE_DIVISIONS[diff] + HALF) >> HSV_SHIFT;
+            if (h < 0) {
+                h += HUE_RANGE;
+            }
+
+            for (int j=0; j<numberOfRanges; ++j) {
+                masks[j][i] = h >= lowerHues[j] & h <= upperHues[j] &
+                        s >= lowerSaturations[j] & s <= upperSaturations[j] &
+                        v >= lowerValues[j] & v <= upperValues[j] ? (byte) 255 : 0;
+            }
+        }
+    }
+}
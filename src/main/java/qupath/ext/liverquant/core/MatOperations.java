@@ -6,7 +6,6 @@ import org.bytedeco.javacpp.indexer.IntRawIndexer;
 import org.bytedeco.opencv.global.opencv_core;
 import org.bytedeco.opencv.global.opencv_imgproc;
 import org.bytedeco.opencv.opencv_core.Mat;
-import org.bytedeco.opencv.opencv_core.MatExpr;
 import org.bytedeco.opencv.opencv_core.MatVector;
 import org.bytedeco.opencv.opencv_core.Moments;
 import org.bytedeco.opencv.opencv_core.Point;
@@ -32,6 +31,8 @@ import java.util.Map;
 class MatOperations {
 
     private static final Logger logger = LoggerFactory.getLogger(MatOperations.class);
+    // Retained so that it is not deallocated when the pointer scope it may be created in is closed
+    private static final Size EMPTY_SIZE = new Size().retainReference();
 
     private MatOperations() {
         throw new AssertionError("This class is not instantiable.");
@@ -69,6 +70,101 @@ class MatOperations {
         }
     }
 
+    /**
+     * Segment an RGB image based on the provided arrays in the HSV-space, and write the result
+     * to the provided mask. The provided image is not modified. The intermediate HSV image is borrowed
+     * from the {@link ScratchMatPool}.
+     *
+     * @param image  the image to segment with the RGB format
+     * @param mask  the mask that will contain the result of the segmentation. It should have the size of the
+     *              image and the {@link opencv_core#CV_8U} format, otherwise it will be reallocated
+     * @param lowerBound  inclusive lower bound array in HSV-space for color segmentation
+     * @param upperBound  inclusive upper bound array in HSV-space for color segmentation
+     */
+    public static void segmentByColor(Mat image, Mat mask, HsvArray lowerBound, HsvArray upperBound) {
+        segmentByColors(image, List.of(mask), List.of(lowerBound), List.of(upperBound));
+    }
+
+    /**
+     * Segment an RGB image based on several ranges in the HSV-space with OpenCV. See
+     * {@link #segmentByColors(Mat, List, List, List, FatGlobulesDetectorParameters.SegmentationBackend)}.
+     *
+     * @param image  the image to segment with the RGB format
+     * @param masks  the masks that will contain the result of the segmentation of each range. They should have the
+     *               size of the image and the {@link opencv_core#CV_8U} format, otherwise they will be reallocated
+     * @param lowerBounds  inclusive lower bound arrays in HSV-space of each range
+     * @param upperBounds  inclusive upper bound arrays in HSV-space of each range
+     * @throws IllegalArgumentException if the number of masks, lower bounds, and upper bounds differ
+     */
+    public static void segmentByColors(Mat image, List<Mat> masks, List<HsvArray> lowerBounds, List<HsvArray> upperBounds) {
+        segmentByColors(image, masks, lowerBounds, upperBounds, FatGlobulesDetectorParameters.SegmentationBackend.OPENCV);
+    }
+
+    /**
+     * Segment an RGB image based on several ranges in the HSV-space, and write the result of each range
+     * to the corresponding mask. The image is converted to the HSV-space only once. The provided image is not
+     * modified. With OpenCV, the intermediate HSV image is borrowed from the {@link ScratchMatPool}. Both
+     * backends create identical masks (see {@link JavaColorSegmenter}).
+     *
+     * @param image  the image to segment with the RGB format
+     * @param masks  the masks that will contain the result of the segmentation of each range. They should have the
+     *               size of the image and the {@link opencv_core#CV_8U} format, otherwise they will be reallocated
+     * @param lowerBounds  inclusive lower bound arrays in HSV-space of each range
+     * @param upperBounds  inclusive upper bound arrays in HSV-space of each range
+     * @param backend  the implementation performing the segmentation
+     * @throws IllegalArgumentException if the number of masks, lower bounds, and upper bounds differ
+     */
+    public static void segmentByColors(
+            Mat image,
+            List<Mat> masks,
+            List<HsvArray> lowerBounds,
+            List<HsvArray> upperBounds,
+            FatGlobulesDetectorParameters.SegmentationBackend backend
+    ) {
+        if (masks.size() != lowerBounds.size() || masks.size() != upperBounds.size()) {
+            throw new IllegalArgumentException(String.format(
+                    "The number of masks (%d), lower bounds (%d), and upper bounds (%d) differ",
+                    masks.size(),
+                    lowerBounds.size(),
+                    upperBounds.size()
+            ));
+        }
+        if (backend == FatGlobulesDetectorParameters.SegmentationBackend.JAVA) {
+            JavaColorSegmenter.segmentByColors(image, masks, lowerBounds, upperBounds);
+            return;
+        }
+
+        Mat hsv = ScratchMatPool.borrow(image.rows(), image.cols(), opencv_core.CV_8UC(image.channels()));
+
+        try {
+            image.convertTo(hsv, opencv_core.CV_8U);
+            opencv_imgproc.cvtColor(hsv, hsv, opencv_imgproc.COLOR_RGB2HSV);
+
+            for (int i=0; i<masks.size(); ++i) {
+                try (
+                        Scalar lowerBoundScalar = new Scalar(
+                                lowerBounds.get(i).hue(),
+                                lowerBounds.get(i).saturation(),
+                                lowerBounds.get(i).value(),
+                                255
+                        );
+                        Mat lowerBoundMat = new Mat(lowerBoundScalar);
+                        Scalar upperBoundScalar = new Scalar(
+                                upperBounds.get(i).hue(),
+                                upperBounds.get(i).saturation(),
+                                upperBounds.get(i).value(),
+                                255
+                        );
+                        Mat upperBoundMat = new Mat(upperBoundScalar)
+                ) {
+                    opencv_core.inRange(hsv, lowerBoundMat, upperBoundMat, masks.get(i));
+                }
+            }
+        } finally {
+            ScratchMatPool.recycle(hsv);
+        }
+    }
+
     /**
      * Add a border of one pixel with value 255 to the provided image.
      *
@@ -182,10 +278,22 @@ class MatOperations {
                 .toList();
     }
 
+    /**
+     * Draw the provided list of contours to the provided mask with the value 255. See
+     * {@link #drawContours(Mat, List, double)}.
+     *
+     * @param mask  the mask to draw the contours to
+     * @param contours  the contours to draw on the mask
+     */
+    public static void drawContours(Mat mask, List<Mat> contours) {
+        drawContours(mask, contours, 255);
+    }
+
     /**
      * <p>
      *     Draw the provided list of contours to the provided mask.
-     *     The contour interiors are drawn.
+     *     The contour interiors are drawn. The provided contours are scaled while they are drawn, and restored
+     *     before this function returns, so they must not be used by other threads during the call.
      * </p>
      * <p>
      *     The contours are drawn using the <b>ImageJ</b> way (and not the <b>OpenCV</b> way). See
@@ -195,46 +303,54 @@ class MatOperations {
      *
      * @param mask  the mask to draw the contours to
      * @param contours  the contours to draw on the mask
+     * @param value  the value the pixels of the contours should have
      */
-    public static void drawContours(Mat mask, List<Mat> contours) {
+    public static void drawContours(Mat mask, List<Mat> contours, double value) {
+        Mat upSampledMask = ScratchMatPool.borrow(mask.rows()*2, mask.cols()*2, mask.type());
+
         try (
-                MatExpr upSampledMaskEpr = Mat.zeros(mask.rows()*2, mask.cols()*2, mask.type());
-                Mat upSampledMask = upSampledMaskEpr.asMat();
-                Size size = new Size(mask.cols(), mask.rows());
-                Size upSampledSize = new Size(mask.cols()*2, mask.rows()*2)
+                Scalar color = new Scalar(value);
+                Mat hierarchy = new Mat();
+                Point offset = new Point(0, 0)
         ) {
-            opencv_imgproc.resize(mask, upSampledMask, upSampledSize, 0, 0, opencv_imgproc.INTER_NEAREST);
+            // An empty size means the destination size is computed from the scale factors
+            opencv_imgproc.resize(mask, upSampledMask, EMPTY_SIZE, 2, 2, opencv_imgproc.INTER_NEAREST);
 
+            // Each contour is scaled in place and restored after being drawn, so that no copy is allocated per contour
             for (Mat contour: contours) {
-                Mat[] contoursArray = new Mat[] {contour};
-
                 try (
                         IntRawIndexer indexer = contour.createIndexer();
-                        MatVector contourVector = new MatVector(contoursArray);
-                        Scalar color = new Scalar(255);
-                        Mat hierarchy = new Mat();
-                        Point offset = new Point(0, 0)
+                        MatVector contourVector = new MatVector(contour)
                 ) {
                     for (int i=0; i<indexer.size(0); ++i) {
                         indexer.put(i, 0, 0, indexer.get(i, 0, 0) * 2 - 1);
                         indexer.put(i, 0, 1, indexer.get(i, 0, 1) * 2 - 1);
                     }
 
-                    opencv_imgproc.drawContours(
-                            upSampledMask,
-                            contourVector,
-                            -1,
-                            color,
-                            -1,
-                            opencv_imgproc.LINE_8,
-                            hierarchy,
-                            Integer.MAX_VALUE,
-                            offset
-                    );
+                    try {
+                        opencv_imgproc.drawContours(
+                                upSampledMask,
+                                contourVector,
+                                -1,
+                                color,
+                                -1,
+                                opencv_imgproc.LINE_8,
+                                hierarchy,
+                                Integer.MAX_VALUE,
+                                offset
+                        );
+                    } finally {
+                        for (int i=0; i<indexer.size(0); ++i) {
+                            indexer.put(i, 0, 0, (indexer.get(i, 0, 0) + 1) / 2);
+                            indexer.put(i, 0, 1, (indexer.get(i, 0, 1) + 1) / 2);
+                        }
+                    }
                 }
             }
 
-            opencv_imgproc.resize(upSampledMask, mask, size, 0, 0, opencv_imgproc.INTER_NEAREST);
+            opencv_imgproc.resize(upSampledMask, mask, EMPTY_SIZE, 0.5, 0.5, opencv_imgproc.INTER_NEAREST);
+        } finally {
+            ScratchMatPool.recycle(upSampledMask);
         }
     }
 
@@ -245,8 +361,10 @@ class MatOperations {
      * @return a list of contours (as defined by OpenCV) of objects identified by the watershed segmentation
      */
     public static List<Mat> separateObjects(Mat mask) {
+        Mat labels = ScratchMatPool.borrow(mask.rows(), mask.cols(), opencv_core.CV_32S);
+        opencv_imgproc.connectedComponents(mask, labels, 4, opencv_core.CV_32S);
+
         try (
-                Mat labels = OpenCVTools.label(mask, 4);
                 Indexer labelsIndexer = labels.createIndexer();
                 Indexer maskIndexer = mask.createIndexer()
         ) {
@@ -286,6 +404,8 @@ class MatOperations {
                 }
             }
             return contours;
+        } finally {
+            ScratchMatPool.recycle(labels);
         }
     }
 
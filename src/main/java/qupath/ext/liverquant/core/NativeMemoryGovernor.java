@@ -0,0 +1,124 @@
+package qupath.ext.liverquant.core;
+
+import org.bytedeco.javacpp.Pointer;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ *     Limit the number of tiles processed at the same time so that the native memory they use stays
+ *     under a budget, and monitor the native memory used by the process.
+ * </p>
+ * <p>
+ *     Mats are allocated off-heap, so their size is not bounded by the maximal size of the Java heap.
+ *     The native memory used by a tile is estimated from its size (see {@link #estimateBytesPerTile(FatGlobulesDetectorParameters)}),
+ *     and a tile can only start when the estimated memory of all tiles in flight (including this one) fits in the budget.
+ * </p>
+ * <p>
+ *     The processing of a tile should be surrounded by {@link #acquire()} and {@link #release()}, called from the
+ *     same thread. This class is thread-safe.
+ * </p>
+ */
+class NativeMemoryGovernor {
+
+    /**
+     * An estimation of the native memory used per pixel of a tile: the image and its copy (3 bytes each),
+     * the HSV conversion (3 bytes), the mask and the mask of the overlapping globules (1 byte each),
+     * the upsampled mask used to draw contours (4 bytes), and the labels and intermediate images of
+     * the watershed segmentation (around 12 bytes).
+     */
+    private static final long ESTIMATED_BYTES_PER_PIXEL = 28;
+    /**
+     * An estimation of the additional native memory used per pixel of a tile and per color class: the mask
+     * of the class and its copy in the output of the processor (1 byte each).
+     */
+    private static final long ESTIMATED_BYTES_PER_PIXEL_PER_COLOR_CLASS = 2;
+    private static final long BYTES_PER_PERMIT = 1024;
+    private final Semaphore semaphore;
+    private final int permitsPerTile;
+    private final ThreadLocal<Boolean> holdingPermits = ThreadLocal.withInitial(() -> false);
+    private final AtomicLong peakPhysicalBytes = new AtomicLong();
+    private final AtomicLong peakTotalBytes = new AtomicLong();
+
+    /**
+     * Create the governor.
+     *
+     * @param budget  the maximal native memory (in bytes) the tiles in flight can use, or 0 to not limit
+     *                the number of tiles in flight. If a single tile is estimated to exceed the budget, tiles
+     *                are processed one at a time
+     * @param estimatedBytesPerTile  the estimated native memory (in bytes) used by one tile
+     */
+    public NativeMemoryGovernor(long budget, long estimatedBytesPerTile) {
+        if (budget > 0) {
+            int budgetPermits = (int) Math.max(Math.min(budget / BYTES_PER_PERMIT, Integer.MAX_VALUE), 1);
+
+            this.semaphore = new Semaphore(budgetPermits);
+            this.permitsPerTile = (int) Math.min(Math.max((estimatedBytesPerTile + BYTES_PER_PERMIT - 1) / BYTES_PER_PERMIT, 1), budgetPermits);
+        } else {
+            this.semaphore = null;
+            this.permitsPerTile = 0;
+        }
+        sample();
+    }
+
+    /**
+     * Estimate the native memory used to process one tile.
+     *
+     * @param fatGlobulesDetectorParameters  the parameters of the detection
+     * @return the estimated native memory (in bytes) used by one tile
+     */
+    public static long estimateBytesPerTile(FatGlobulesDetectorParameters fatGlobulesDetectorParameters) {
+        long width = fatGlobulesDetectorParameters.getTileWidth() + 2L * fatGlobulesDetectorParameters.getPadding();
+        long height = fatGlobulesDetectorParameters.getTileHeight() + 2L * fatGlobulesDetectorParameters.getPadding();
+
+        return width * height * (ESTIMATED_BYTES_PER_PIXEL +
+                ESTIMATED_BYTES_PER_PIXEL_PER_COLOR_CLASS * fatGlobulesDetectorParameters.getColorClasses().size());
+    }
+
+    /**
+     * Wait until the memory needed by one tile is available, and reserve it. If the calling thread
+     * already reserved memory without releasing it, this memory is reused.
+     */
+    public void acquire() {
+        sample();
+
+        if (semaphore != null && !holdingPermits.get()) {
+            semaphore.acquireUninterruptibly(permitsPerTile);
+            holdingPermits.set(true);
+        }
+    }
+
+    /**
+     * Release the memory reserved by the calling thread with {@link #acquire()}. Nothing happens if
+     * the calling thread didn't reserve memory.
+     */
+    public void release() {
+        if (semaphore != null && holdingPermits.get()) {
+            semaphore.release(permitsPerTile);
+            holdingPermits.set(false);
+        }
+
+        sample();
+    }
+
+    /**
+     * @return the current and peak native memory observed by this governor
+     */
+    public DetectionResult.NativeMemoryUsage getUsage() {
+        long physicalBytes = Pointer.physicalBytes();
+        long totalBytes = Pointer.totalBytes();
+
+        return new DetectionResult.NativeMemoryUsage(
+                physicalBytes,
+                peakPhysicalBytes.accumulateAndGet(physicalBytes, Math::max),
+                totalBytes,
+                peakTotalBytes.accumulateAndGet(totalBytes, Math::max)
+        );
+    }
+
+    private void sample() {
+        peakPhysicalBytes.accumulateAndGet(Pointer.physicalBytes(), Math::max);
+        peakTotalBytes.accumulateAndGet(Pointer.totalBytes(), Math::max);
+    }
+}
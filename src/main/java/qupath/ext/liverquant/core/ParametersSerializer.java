@@ -0,0 +1,426 @@
+package qupath.ext.liverquant.core;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.regions.ImageRegion;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * <p>
+ *     Convert {@link FatGlobulesDetectorParameters} and {@link TissueDetectorParameters} to and from JSON, so that
+ *     the same parameters can be saved to a file and used on other images or other computers.
+ * </p>
+ * <p>
+ *     Only the values describing the detection are serialized. The image, the annotations, the progress display and
+ *     listener, the label image, and the operation run after the detection depend on where the detection is run, so
+ *     they are left out and must be set on the builder returned when reading parameters.
+ * </p>
+ * <p>
+ *     Values missing from a JSON document keep the default value of the builder, and unknown values are ignored.
+ *     Values are always written in the same order, so that the same parameters always create the same JSON
+ *     document and the same fingerprint (see {@link FatGlobulesDetectorParameters#getFingerprint()}).
+ * </p>
+ */
+public class ParametersSerializer {
+
+    private static final int FORMAT_VERSION = 1;
+    private static final Gson gson = new GsonBuilder().setPrettyPrinting().serializeNulls().disableHtmlEscaping().create();
+    private static final Gson compactGson = new GsonBuilder().serializeNulls().disableHtmlEscaping().create();
+    private static final List<String> RUN_LOCAL_KEYS = List.of(
+            "incrementalStatePath",
+            "densityMapPath",
+            "maskCacheDirectory",
+            "maskCacheMaxSize",
+            "checkpointPath",
+            "resume",
+            "nativeMemoryBudget",
+            "metricsEnabled",
+            "priorityRegion",
+            "publicationInterval",
+            "publicationBatchSize",
+            "labelExportPath"
+    );
+
+    private ParametersSerializer() {
+        throw new AssertionError("This class is not instantiable.");
+    }
+
+    /**
+     * Convert parameters of the fat globule detection to JSON.
+     *
+     * @param fatGlobulesDetectorParameters  the parameters to convert
+     * @return a JSON document describing the provided parameters
+     */
+    public static String toJson(FatGlobulesDetectorParameters fatGlobulesDetectorParameters) {
+        return gson.toJson(toJsonObject(fatGlobulesDetectorParameters));
+    }
+
+    /**
+     * Convert parameters of the tissue detection to JSON.
+     *
+     * @param tissueDetectorParameters  the parameters to convert
+     * @return a JSON document describing the provided parameters
+     */
+    public static String toJson(TissueDetectorParameters tissueDetectorParameters) {
+        return gson.toJson(toJsonObject(tissueDetectorParameters));
+    }
+
+    /**
+     * Create a builder of parameters of the fat globule detection from a JSON document
+     * (see {@link #toJson(FatGlobulesDetectorParameters)}).
+     *
+     * @param json  the JSON document describing the parameters
+     * @param imageData  the ImageData representing the image to use the algorithm on
+     * @return a builder containing the parameters of the JSON document. Parameters that are not serialized
+     * can still be set on it
+     * @throws IllegalArgumentException if the JSON document is invalid or contains invalid values
+     */
+    public static FatGlobulesDetectorParameters.Builder fromJson(String json, ImageData<BufferedImage> imageData) {
+        JsonObject jsonObject = parse(json);
+        FatGlobulesDetectorParameters.Builder builder = new FatGlobulesDetectorParameters.Builder(imageData);
+
+        try {
+            if (jsonObject.has("tissueDetectorParameters")) {
+                builder.setTissueDetectorParameters(tissueDetectorParametersFromJsonObject(
+                        jsonObject.getAsJsonObject("tissueDetectorParameters"),
+                        imageData == null ? null : imageData.getServer()
+                ).build());
+            }
+            read(jsonObject, "detectionRegion", element -> getEnum(FatGlobulesDetectorParameters.DetectionRegion.class, element), builder::setDetectionRegion);
+            read(jsonObject, "incremental", JsonElement::getAsBoolean, builder::setIncremental);
+            read(jsonObject, "incrementalStatePath", ParametersSerializer::getPath, builder::setIncrementalStatePath);
+            read(jsonObject, "objectToCreate", element -> getEnum(FatGlobulesDetectorParameters.ObjectToCreate.class, element), builder::setObjectToCreate);
+            read(jsonObject, "pixelSize", JsonElement::getAsFloat, builder::setPixelSize);
+            read(jsonObject, "lowerBound", ParametersSerializer::getHsvArray, builder::setLowerBound);
+            read(jsonObject, "upperBound", ParametersSerializer::getHsvArray, builder::setUpperBound);
+            read(jsonObject, "minIsolatedGlobuleElongation", JsonElement::getAsFloat, builder::setMinIsolatedGlobuleElongation);
+            read(jsonObject, "minOverlappingGlobuleElongation", JsonElement::getAsFloat, builder::setMinOverlappingGlobuleElongation);
+            read(jsonObject, "minIsolatedGlobuleSolidity", JsonElement::getAsFloat, builder::setMinIsolatedGlobuleSolidity);
+            read(jsonObject, "minOverlappingGlobuleSolidity", JsonElement::getAsFloat, builder::setMinOverlappingGlobuleSolidity);
+            read(jsonObject, "minDiameter", JsonElement::getAsFloat, builder::setMinDiameter);
+            read(jsonObject, "maxDiameter", JsonElement::getAsFloat, builder::setMaxDiameter);
+            read(jsonObject, "macrovesicularDiameter", JsonElement::getAsFloat, builder::setMacrovesicularDiameter);
+            read(jsonObject, "tileWidth", JsonElement::getAsInt, builder::setTileWidth);
+            read(jsonObject, "tileHeight", JsonElement::getAsInt, builder::setTileHeight);
+            read(jsonObject, "padding", JsonElement::getAsInt, builder::setPadding);
+            read(jsonObject, "boundaryThreshold", JsonElement::getAsFloat, builder::setBoundaryThreshold);
+            read(jsonObject, "boundaryMerging", element -> getEnum(FatGlobulesDetectorParameters.BoundaryMerging.class, element), builder::setBoundaryMerging);
+            read(jsonObject, "densityMapPath", ParametersSerializer::getPath, builder::setDensityMapPath);
+            read(jsonObject, "densityMapCellSize", JsonElement::getAsFloat, builder::setDensityMapCellSize);
+            read(jsonObject, "maskCacheDirectory", ParametersSerializer::getPath, builder::setMaskCacheDirectory);
+            read(jsonObject, "maskCacheMaxSize", JsonElement::getAsLong, builder::setMaskCacheMaxSize);
+            read(jsonObject, "checkpointPath", ParametersSerializer::getPath, builder::setCheckpointPath);
+            read(jsonObject, "resume", JsonElement::getAsBoolean, builder::setResume);
+            read(jsonObject, "nativeMemoryBudget", JsonElement::getAsLong, builder::setNativeMemoryBudget);
+            read(jsonObject, "metricsEnabled", JsonElement::getAsBoolean, builder::setMetricsEnabled);
+            read(jsonObject, "priorityRegion", ParametersSerializer::getImageRegion, builder::setPriorityRegion);
+            read(jsonObject, "publicationInterval", JsonElement::getAsLong, builder::setPublicationInterval);
+            read(jsonObject, "publicationBatchSize", JsonElement::getAsInt, builder::setPublicationBatchSize);
+            read(jsonObject, "planes", element -> getList(element, ParametersSerializer::getImagePlane), builder::setPlanes);
+            read(jsonObject, "colorClasses", element -> getList(element, ParametersSerializer::getColorClass), builder::setColorClasses);
+            read(jsonObject, "segmentationBackend", element -> getEnum(FatGlobulesDetectorParameters.SegmentationBackend.class, element), builder::setSegmentationBackend);
+            read(jsonObject, "labelExportPath", ParametersSerializer::getPath, builder::setLabelExportPath);
+        } catch (IllegalStateException | UnsupportedOperationException | ClassCastException | NullPointerException e) {
+            throw new IllegalArgumentException(String.format("The supplied JSON document contains invalid values: %s", e.getMessage()), e);
+        }
+
+        return builder;
+    }
+
+    /**
+     * Create a builder of parameters of the tissue detection from a JSON document
+     * (see {@link #toJson(TissueDetectorParameters)}).
+     *
+     * @param json  the JSON document describing the parameters
+     * @param server  the ImageServer representing the image to use the algorithm on
+     * @return a builder containing the parameters of the JSON document
+     * @throws IllegalArgumentException if the JSON document is invalid or contains invalid values
+     */
+    public static TissueDetectorParameters.Builder tissueDetectorParametersFromJson(String json, ImageServer<BufferedImage> server) {
+        try {
+            return tissueDetectorParametersFromJsonObject(parse(json), server);
+        } catch (IllegalStateException | UnsupportedOperationException | ClassCastException | NullPointerException e) {
+            throw new IllegalArgumentException(String.format("The supplied JSON document contains invalid values: %s", e.getMessage()), e);
+        }
+    }
+
+    /**
+     * Write parameters of the fat globule detection to a JSON file (see {@link #toJson(FatGlobulesDetectorParameters)}).
+     *
+     * @param fatGlobulesDetectorParameters  the parameters to write
+     * @param path  the path of the file to write. An existing file will be overwritten
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(FatGlobulesDetectorParameters fatGlobulesDetectorParameters, Path path) throws IOException {
+        Files.writeString(path, toJson(fatGlobulesDetectorParameters), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Create a builder of parameters of the fat globule detection from a JSON file
+     * (see {@link #fromJson(String, ImageData)}).
+     *
+     * @param path  the path of the JSON file describing the parameters
+     * @param imageData  the ImageData representing the image to use the algorithm on
+     * @return a builder containing the parameters of the JSON file
+     * @throws IOException if the file cannot be read
+     * @throws IllegalArgumentException if the file is not a valid JSON document or contains invalid values
+     */
+    public static FatGlobulesDetectorParameters.Builder read(Path path, ImageData<BufferedImage> imageData) throws IOException {
+        return fromJson(Files.readString(path, StandardCharsets.UTF_8), imageData);
+    }
+
+    /**
+     * Compute a fingerprint of parameters of the fat globule detection. It is the SHA-256 hash of the compact
+     * JSON representation of the parameters that affect the detected globules, so two sets of parameters have the
+     * same fingerprint if and only if they produce the same results, whatever the image they are used on.
+     * <p>
+     * The parameters only describing how or where a run is performed are excluded: the incremental state path, the density map path, the mask
+     * cache directory and maximal size, the checkpoint path, the resume flag, the native memory budget, the metrics
+     * flag, the priority region, the publication interval and batch size, and the label export path.
+     *
+     * @param fatGlobulesDetectorParameters  the parameters whose fingerprint should be computed
+     * @return a fingerprint of the provided parameters
+     */
+    static String getFingerprint(FatGlobulesDetectorParameters fatGlobulesDetectorParameters) {
+        JsonObject jsonObject = toJsonObject(fatGlobulesDetectorParameters);
+        for (String key: RUN_LOCAL_KEYS) {
+            jsonObject.remove(key);
+        }
+        String description = compactGson.toJson(jsonObject);
+
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(description.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static JsonObject toJsonObject(FatGlobulesDetectorParameters fatGlobulesDetectorParameters) {
+        JsonObject jsonObject = new JsonObject();
+
+        jsonObject.addProperty("version", FORMAT_VERSION);
+        jsonObject.add("tissueDetectorParameters", toJsonObject(fatGlobulesDetectorParameters.getTissueDetectorParameters()));
+        jsonObject.addProperty("detectionRegion", fatGlobulesDetectorParameters.getDetectionRegion().name());
+        jsonObject.addProperty("incremental", fatGlobulesDetectorParameters.isIncremental());
+        addPath(jsonObject, "incrementalStatePath", fatGlobulesDetectorParameters.getIncrementalStatePath());
+        jsonObject.addProperty("objectToCreate", fatGlobulesDetectorParameters.getObjectToCreate().name());
+        jsonObject.addProperty("pixelSize", fatGlobulesDetectorParameters.getPixelSize());
+        jsonObject.add("lowerBound", toJsonObject(fatGlobulesDetectorParameters.getLowerBound()));
+        jsonObject.add("upperBound", toJsonObject(fatGlobulesDetectorParameters.getUpperBound()));
+        jsonObject.addProperty("minIsolatedGlobuleElongation", fatGlobulesDetectorParameters.getMinIsolatedGlobuleElongation());
+        jsonObject.addProperty("minOverlappingGlobuleElongation", fatGlobulesDetectorParameters.getMinOverlappingGlobuleElongation());
+        jsonObject.addProperty("minIsolatedGlobuleSolidity", fatGlobulesDetectorParameters.getMinIsolatedGlobuleSolidity());
+        jsonObject.addProperty("minOverlappingGlobuleSolidity", fatGlobulesDetectorParameters.getMinOverlappingGlobuleSolidity());
+        jsonObject.addProperty("minDiameter", fatGlobulesDetectorParameters.getMinDiameter());
+        jsonObject.addProperty("maxDiameter", fatGlobulesDetectorParameters.getMaxDiameter());
+        jsonObject.addProperty("macrovesicularDiameter", fatGlobulesDetectorParameters.getMacrovesicularDiameter());
+        jsonObject.addProperty("tileWidth", fatGlobulesDetectorParameters.getTileWidth());
+        jsonObject.addProperty("tileHeight", fatGlobulesDetectorParameters.getTileHeight());
+        jsonObject.addProperty("padding", fatGlobulesDetectorParameters.getPadding());
+        jsonObject.addProperty("boundaryThreshold", fatGlobulesDetectorParameters.getBoundaryThreshold());
+        jsonObject.addProperty("boundaryMerging", fatGlobulesDetectorParameters.getBoundaryMerging().name());
+        addPath(jsonObject, "densityMapPath", fatGlobulesDetectorParameters.getDensityMapPath());
+        jsonObject.addProperty("densityMapCellSize", fatGlobulesDetectorParameters.getDensityMapCellSize());
+        addPath(jsonObject, "maskCacheDirectory", fatGlobulesDetectorParameters.getMaskCacheDirectory());
+        jsonObject.addProperty("maskCacheMaxSize", fatGlobulesDetectorParameters.getMaskCacheMaxSize());
+        addPath(jsonObject, "checkpointPath", fatGlobulesDetectorParameters.getCheckpointPath());
+        jsonObject.addProperty("resume", fatGlobulesDetectorParameters.isResume());
+        jsonObject.addProperty("nativeMemoryBudget", fatGlobulesDetectorParameters.getNativeMemoryBudget());
+        jsonObject.addProperty("metricsEnabled", fatGlobulesDetectorParameters.isMetricsEnabled());
+        jsonObject.add("priorityRegion", toJsonObject(fatGlobulesDetectorParameters.getPriorityRegion()));
+        jsonObject.addProperty("publicationInterval", fatGlobulesDetectorParameters.getPublicationInterval());
+        jsonObject.addProperty("publicationBatchSize", fatGlobulesDetectorParameters.getPublicationBatchSize());
+
+        JsonArray planes = new JsonArray();
+        for (ImagePlane plane: fatGlobulesDetectorParameters.getPlanes()) {
+            planes.add(toJsonObject(plane));
+        }
+        jsonObject.add("planes", planes);
+
+        JsonArray colorClasses = new JsonArray();
+        for (ColorClass colorClass: fatGlobulesDetectorParameters.getColorClasses()) {
+            JsonObject colorClassObject = new JsonObject();
+            colorClassObject.addProperty("name", colorClass.name());
+            colorClassObject.add("lowerBound", toJsonObject(colorClass.lowerBound()));
+            colorClassObject.add("upperBound", toJsonObject(colorClass.upperBound()));
+            colorClasses.add(colorClassObject);
+        }
+        jsonObject.add("colorClasses", colorClasses);
+
+        jsonObject.addProperty("segmentationBackend", fatGlobulesDetectorParameters.getSegmentationBackend().name());
+        addPath(jsonObject, "labelExportPath", fatGlobulesDetectorParameters.getLabelExportPath());
+
+        return jsonObject;
+    }
+
+    private static JsonObject toJsonObject(TissueDetectorParameters tissueDetectorParameters) {
+        JsonObject jsonObject = new JsonObject();
+
+        jsonObject.add("lowerBound", toJsonObject(tissueDetectorParameters.getLowerBound()));
+        jsonObject.add("upperBound", toJsonObject(tissueDetectorParameters.getUpperBound()));
+        jsonObject.addProperty("downsample", tissueDetectorParameters.getDownsample());
+        jsonObject.addProperty("minTissueArea", tissueDetectorParameters.getMinTissueArea());
+        jsonObject.add("plane", toJsonObject(tissueDetectorParameters.getPlane()));
+
+        return jsonObject;
+    }
+
+    private static TissueDetectorParameters.Builder tissueDetectorParametersFromJsonObject(JsonObject jsonObject, ImageServer<BufferedImage> server) {
+        TissueDetectorParameters.Builder builder = new TissueDetectorParameters.Builder(server);
+
+        read(jsonObject, "lowerBound", ParametersSerializer::getHsvArray, builder::setLowerBound);
+        read(jsonObject, "upperBound", ParametersSerializer::getHsvArray, builder::setUpperBound);
+        read(jsonObject, "downsample", JsonElement::getAsDouble, builder::setDownsample);
+        read(jsonObject, "minTissueArea", JsonElement::getAsDouble, builder::setMinTissueArea);
+        read(jsonObject, "plane", ParametersSerializer::getImagePlane, builder::setPlane);
+
+        return builder;
+    }
+
+    private static JsonObject toJsonObject(HsvArray hsvArray) {
+        JsonObject jsonObject = new JsonObject();
+
+        jsonObject.addProperty("hue", hsvArray.hue());
+        jsonObject.addProperty("saturation", hsvArray.saturation());
+        jsonObject.addProperty("value", hsvArray.value());
+
+        return jsonObject;
+    }
+
+    private static JsonObject toJsonObject(ImagePlane plane) {
+        JsonObject jsonObject = new JsonObject();
+
+        jsonObject.addProperty("z", plane.getZ());
+        jsonObject.addProperty("t", plane.getT());
+
+        return jsonObject;
+    }
+
+    private static JsonElement toJsonObject(ImageRegion region) {
+        if (region == null) {
+            return null;
+        }
+        JsonObject jsonObject = new JsonObject();
+
+        jsonObject.addProperty("x", region.getX());
+        jsonObject.addProperty("y", region.getY());
+        jsonObject.addProperty("width", region.getWidth());
+        jsonObject.addProperty("height", region.getHeight());
+        jsonObject.addProperty("z", region.getZ());
+        jsonObject.addProperty("t", region.getT());
+
+        return jsonObject;
+    }
+
+    private static void addPath(JsonObject jsonObject, String name, Path path) {
+        jsonObject.addProperty(name, path == null ? null : path.toString());
+    }
+
+    private static JsonObject parse(String json) {
+        JsonObject jsonObject;
+        try {
+            JsonElement element = JsonParser.parseString(json);
+            if (!element.isJsonObject()) {
+                throw new IllegalArgumentException("The supplied JSON document is not a JSON object");
+            }
+            jsonObject = element.getAsJsonObject();
+        } catch (JsonParseException e) {
+            throw new IllegalArgumentException("The supplied JSON document cannot be parsed", e);
+        }
+
+        if (jsonObject.has("version") && jsonObject.get("version").getAsInt() > FORMAT_VERSION) {
+            throw new IllegalArgumentException(String.format(
+                    "The supplied JSON document has version %d, but only versions up to %d are supported",
+                    jsonObject.get("version").getAsInt(),
+                    FORMAT_VERSION
+            ));
+        }
+        return jsonObject;
+    }
+
+    private static <T> void read(JsonObject jsonObject, String name, Function<JsonElement, T> converter, Consumer<T> setter) {
+        if (!jsonObject.has(name)) {
+            return;
+        }
+
+        JsonElement element = jsonObject.get(name);
+        setter.accept(element.isJsonNull() ? null : converter.apply(element));
+    }
+
+    private static <T extends Enum<T>> T getEnum(Class<T> enumClass, JsonElement element) {
+        String name = element.getAsString();
+
+        try {
+            return Enum.valueOf(enumClass, name);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(String.format("The supplied value (%s) is not a valid %s", name, enumClass.getSimpleName()), e);
+        }
+    }
+
+    private static HsvArray getHsvArray(JsonElement element) {
+        JsonObject jsonObject = element.getAsJsonObject();
+
+        return new HsvArray(jsonObject.get("hue").getAsInt(), jsonObject.get("saturation").getAsInt(), jsonObject.get("value").getAsInt());
+    }
+
+    private static ImagePlane getImagePlane(JsonElement element) {
+        JsonObject jsonObject = element.getAsJsonObject();
+
+        return ImagePlane.getPlane(jsonObject.get("z").getAsInt(), jsonObject.get("t").getAsInt());
+    }
+
+    private static ImageRegion getImageRegion(JsonElement element) {
+        JsonObject jsonObject = element.getAsJsonObject();
+
+        return ImageRegion.createInstance(
+                jsonObject.get("x").getAsInt(),
+                jsonObject.get("y").getAsInt(),
+                jsonObject.get("width").getAsInt(),
+                jsonObject.get("height").getAsInt(),
+                jsonObject.get("z").getAsInt(),
+                jsonObject.get("t").getAsInt()
+        );
+    }
+
+    private static ColorClass getColorClass(JsonElement element) {
+        JsonObject jsonObject = element.getAsJsonObject();
+
+        return new ColorClass(
+                jsonObject.get("name").getAsString(),
+                getHsvArray(jsonObject.get("lowerBound")),
+                getHsvArray(jsonObject.get("upperBound"))
+        );
+    }
+
+    private static Path getPath(JsonElement element) {
+        return Path.of(element.getAsString());
+    }
+
+    private static <T> List<T> getList(JsonElement element, Function<JsonElement, T> converter) {
+        List<T> list = new ArrayList<>();
+        for (JsonElement item: element.getAsJsonArray()) {
+            list.add(converter.apply(item));
+        }
+        return list;
+    }
+}
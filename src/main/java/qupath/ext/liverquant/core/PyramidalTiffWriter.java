@@ -0,0 +1,407 @@
+package qupath.ext.liverquant.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * <p>
+ *     A writer of tiled and pyramidal 8-bit single channel BigTIFF images, whose tiles of the full resolution level
+ *     can be written in any order and from any thread as soon as they are available.
+ * </p>
+ * <p>
+ *     Tiles are compressed with the Deflate algorithm and appended to the file when they are written, so only the
+ *     tiles being written are held in memory. When the writer is closed, the lower resolution levels are created by
+ *     reading back the tiles of the previous level (each level halves the size of the previous one, keeping the
+ *     maximal value of each 2x2 block so that small labels don't disappear), and the image file directories are written.
+ *     The lower resolution levels are stored as sub-IFDs of the full resolution level, as expected by OME-TIFF readers.
+ * </p>
+ * <p>
+ *     Tiles that are never written, or that only contain zeros, all point to a single compressed empty tile.
+ * </p>
+ */
+class PyramidalTiffWriter implements Closeable {
+
+    private static final int HEADER_SIZE = 16;
+    private static final short TYPE_ASCII = 2;
+    private static final short TYPE_SHORT = 3;
+    private static final short TYPE_LONG = 4;
+    private static final short TYPE_LONG8 = 16;
+    private static final short TYPE_IFD8 = 18;
+    private static final int COMPRESSION_DEFLATE = 8;
+    private final FileChannel channel;
+    private final int width;
+    private final int height;
+    private final int tileSize;
+    private final String description;
+    private final Level fullResolutionLevel;
+    private long endOfFile = HEADER_SIZE;
+    private long emptyTileOffset = -1;
+    private long emptyTileByteCount;
+
+    private record Level(int width, int height, int numberOfColumns, int numberOfRows, long[] offsets, long[] byteCounts) {
+
+        public Level(int width, int height, int tileSize) {
+            this(
+                    width,
+                    height,
+                    (width + tileSize - 1) / tileSize,
+                    (height + tileSize - 1) / tileSize,
+                    new long[((width + tileSize - 1) / tileSize) * ((height + tileSize - 1) / tileSize)],
+                    new long[((width + tileSize - 1) / tileSize) * ((height + tileSize - 1) / tileSize)]
+            );
+            Arrays.fill(offsets, -1);
+        }
+    }
+
+    private record Entry(int tag, short type, long count, byte[] value) {}
+
+    /**
+     * Create the writer. The file is created (or overwritten) immediately.
+     *
+     * @param path  the path of the image to write
+     * @param width  the width (in pixels) of the full resolution level
+     * @param height  the height (in pixels) of the full resolution level
+     * @param tileSize  the width and height (in pixels) of each tile. It must be a multiple of 16
+     * @param description  the description of the image (for example OME-XML metadata), or null to not write any description
+     * @throws IOException if the file cannot be created
+     * @throws IllegalArgumentException if the width or height is not greater than 0, or if the tile size is not a positive multiple of 16
+     */
+    public PyramidalTiffWriter(Path path, int width, int height, int tileSize, String description) throws IOException {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException(String.format("The supplied size (%dx%d) is not greater than 0", width, height));
+        }
+        if (tileSize <= 0 || tileSize % 16 != 0) {
+            throw new IllegalArgumentException(String.format("The supplied tile size (%d) is not a positive multiple of 16", tileSize));
+        }
+
+        this.width = width;
+        this.height = height;
+        this.tileSize = tileSize;
+        this.description = description;
+        this.fullResolutionLevel = new Level(width, height, tileSize);
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * @return the width (in pixels) of the full resolution level
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return the height (in pixels) of the full resolution level
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return the width and height (in pixels) of each tile
+     */
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * @return the number of tiles of the full resolution level along the x-axis
+     */
+    public int getNumberOfColumns() {
+        return fullResolutionLevel.numberOfColumns();
+    }
+
+    /**
+     * @return the number of tiles of the full resolution level along the y-axis
+     */
+    public int getNumberOfRows() {
+        return fullResolutionLevel.numberOfRows();
+    }
+
+    /**
+     * Write a tile of the full resolution level. Writing a tile twice replaces its previous content.
+     * This function can be called from any thread.
+     *
+     * @param column  the column of the tile
+     * @param row  the row of the tile
+     * @param pixels  the pixels of the tile, row by row. It must contain {@code tileSize * tileSize} elements
+     *                (pixels located outside the image are ignored by readers)
+     * @throws IOException if the tile cannot be written
+     * @throws IllegalArgumentException if the tile is outside the image or if the number of pixels is incorrect
+     */
+    public void writeTile(int column, int row, byte[] pixels) throws IOException {
+        if (column < 0 || column >= fullResolutionLevel.numberOfColumns() || row < 0 || row >= fullResolutionLevel.numberOfRows()) {
+            throw new IllegalArgumentException(String.format("The supplied tile (%d, %d) is outside the image", column, row));
+        }
+        if (pixels.length != tileSize * tileSize) {
+            throw new IllegalArgumentException(String.format(
+                    "The supplied tile has %d pixels instead of %d",
+                    pixels.length,
+                    tileSize * tileSize
+            ));
+        }
+
+        writeTile(fullResolutionLevel, row * fullResolutionLevel.numberOfColumns() + column, pixels);
+    }
+
+    /**
+     * Create the lower resolution levels, write the image file directories, and close the file.
+     *
+     * @throws IOException if the file cannot be written
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            List<Level> levels = new ArrayList<>();
+            levels.add(fullResolutionLevel);
+            while (levels.get(levels.size() - 1).width() > tileSize || levels.get(levels.size() - 1).height() > tileSize) {
+                levels.add(createLowerResolutionLevel(levels.get(levels.size() - 1)));
+            }
+            for (Level level: levels) {
+                for (int i=0; i<level.offsets().length; ++i) {
+                    if (level.offsets()[i] < 0) {
+                        writeEmptyTile(level, i);
+                    }
+                }
+            }
+
+            long[] subIfdOffsets = new long[levels.size() - 1];
+            for (int i=1; i<levels.size(); ++i) {
+                subIfdOffsets[i-1] = writeIfd(levels.get(i), false, null);
+            }
+            long firstIfdOffset = writeIfd(levels.get(0), true, subIfdOffsets);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.put((byte) 'I').put((byte) 'I').putShort((short) 43).putShort((short) 8).putShort((short) 0).putLong(firstIfdOffset);
+            write(header.flip(), 0);
+        } finally {
+            channel.close();
+        }
+    }
+
+    private Level createLowerResolutionLevel(Level previousLevel) throws IOException {
+        Level level = new Level((previousLevel.width() + 1) / 2, (previousLevel.height() + 1) / 2, tileSize);
+        int halfTileSize = tileSize / 2;
+
+        for (int row=0; row<level.numberOfRows(); ++row) {
+            for (int column=0; column<level.numberOfColumns(); ++column) {
+                byte[] pixels = new byte[tileSize * tileSize];
+                boolean empty = true;
+
+                for (int dy=0; dy<2; ++dy) {
+                    for (int dx=0; dx<2; ++dx) {
+                        int previousColumn = 2 * column + dx;
+                        int previousRow = 2 * row + dy;
+                        if (previousColumn >= previousLevel.numberOfColumns() || previousRow >= previousLevel.numberOfRows()) {
+                            continue;
+                        }
+
+                        byte[] previousPixels = readTile(previousLevel, previousRow * previousLevel.numberOfColumns() + previousColumn);
+                        if (previousPixels == null) {
+                            continue;
+                        }
+                        empty = false;
+
+                        for (int y=0; y<halfTileSize; ++y) {
+                            for (int x=0; x<halfTileSize; ++x) {
+                                int i = 2 * y * tileSize + 2 * x;
+                                int max = Math.max(
+                                        Math.max(previousPixels[i] & 0xFF, previousPixels[i+1] & 0xFF),
+                                        Math.max(previousPixels[i+tileSize] & 0xFF, previousPixels[i+tileSize+1] & 0xFF)
+                                );
+                                pixels[(dy * halfTileSize + y) * tileSize + dx * halfTileSize + x] = (byte) max;
+                            }
+                        }
+                    }
+                }
+
+                if (!empty) {
+                    writeTile(level, row * level.numberOfColumns() + column, pixels);
+                }
+            }
+        }
+
+        return level;
+    }
+
+    private void writeTile(Level level, int index, byte[] pixels) throws IOException {
+        if (isEmpty(pixels)) {
+            synchronized (this) {
+                writeEmptyTile(level, index);
+            }
+            return;
+        }
+
+        byte[] compressedPixels = compress(pixels);
+        synchronized (this) {
+            long offset = append(compressedPixels);
+            level.offsets()[index] = offset;
+            level.byteCounts()[index] = compressedPixels.length;
+        }
+    }
+
+    private synchronized void writeEmptyTile(Level level, int index) throws IOException {
+        if (emptyTileOffset < 0) {
+            byte[] compressedPixels = compress(new byte[tileSize * tileSize]);
+            emptyTileOffset = append(compressedPixels);
+            emptyTileByteCount = compressedPixels.length;
+        }
+
+        level.offsets()[index] = emptyTileOffset;
+        level.byteCounts()[index] = emptyTileByteCount;
+    }
+
+    private byte[] readTile(Level level, int index) throws IOException {
+        if (level.offsets()[index] < 0 || level.offsets()[index] == emptyTileOffset) {
+            return null;
+        }
+
+        ByteBuffer compressedPixels = ByteBuffer.allocate((int) level.byteCounts()[index]);
+        long position = level.offsets()[index];
+        while (compressedPixels.hasRemaining()) {
+            int read = channel.read(compressedPixels, position);
+            if (read < 0) {
+                throw new IOException(String.format("Unexpected end of file when reading tile %d", index));
+            }
+            position += read;
+        }
+
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressedPixels.array());
+            byte[] pixels = new byte[tileSize * tileSize];
+            int length = 0;
+            while (length < pixels.length && !inflater.finished()) {
+                length += inflater.inflate(pixels, length, pixels.length - length);
+            }
+            return pixels;
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private long writeIfd(Level level, boolean fullResolution, long[] subIfdOffsets) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        entries.add(new Entry(254, TYPE_LONG, 1, toBytes(TYPE_LONG, fullResolution ? 0 : 1)));
+        entries.add(new Entry(256, TYPE_LONG, 1, toBytes(TYPE_LONG, level.width())));
+        entries.add(new Entry(257, TYPE_LONG, 1, toBytes(TYPE_LONG, level.height())));
+        entries.add(new Entry(258, TYPE_SHORT, 1, toBytes(TYPE_SHORT, 8)));
+        entries.add(new Entry(259, TYPE_SHORT, 1, toBytes(TYPE_SHORT, COMPRESSION_DEFLATE)));
+        entries.add(new Entry(262, TYPE_SHORT, 1, toBytes(TYPE_SHORT, 1)));
+        if (fullResolution && description != null) {
+            byte[] descriptionBytes = (description + "\0").getBytes(StandardCharsets.UTF_8);
+            entries.add(new Entry(270, TYPE_ASCII, descriptionBytes.length, descriptionBytes));
+        }
+        entries.add(new Entry(277, TYPE_SHORT, 1, toBytes(TYPE_SHORT, 1)));
+        entries.add(new Entry(284, TYPE_SHORT, 1, toBytes(TYPE_SHORT, 1)));
+        entries.add(new Entry(322, TYPE_LONG, 1, toBytes(TYPE_LONG, tileSize)));
+        entries.add(new Entry(323, TYPE_LONG, 1, toBytes(TYPE_LONG, tileSize)));
+        entries.add(new Entry(324, TYPE_LONG8, level.offsets().length, toBytes(TYPE_LONG8, level.offsets())));
+        entries.add(new Entry(325, TYPE_LONG8, level.byteCounts().length, toBytes(TYPE_LONG8, level.byteCounts())));
+        if (subIfdOffsets != null && subIfdOffsets.length > 0) {
+            entries.add(new Entry(330, TYPE_IFD8, subIfdOffsets.length, toBytes(TYPE_IFD8, subIfdOffsets)));
+        }
+        entries.add(new Entry(339, TYPE_SHORT, 1, toBytes(TYPE_SHORT, 1)));
+        entries.sort(Comparator.comparingInt(Entry::tag));
+
+        // The IFD is followed by the values that don't fit in their entry
+        long ifdOffset = endOfFile + (endOfFile % 2);
+        int ifdSize = 8 + entries.size() * 20 + 8;
+        ByteArrayOutputStream outOfLineValues = new ByteArrayOutputStream();
+        ByteBuffer ifd = ByteBuffer.allocate(ifdSize).order(ByteOrder.LITTLE_ENDIAN);
+
+        ifd.putLong(entries.size());
+        for (Entry entry: entries) {
+            ifd.putShort((short) entry.tag()).putShort(entry.type()).putLong(entry.count());
+
+            if (entry.value().length <= 8) {
+                ifd.put(Arrays.copyOf(entry.value(), 8));
+            } else {
+                ifd.putLong(ifdOffset + ifdSize + outOfLineValues.size());
+                outOfLineValues.writeBytes(entry.value());
+                if (outOfLineValues.size() % 2 != 0) {
+                    outOfLineValues.write(0);
+                }
+            }
+        }
+        ifd.putLong(0);
+
+        write(ifd.flip(), ifdOffset);
+        write(ByteBuffer.wrap(outOfLineValues.toByteArray()), ifdOffset + ifdSize);
+        endOfFile = ifdOffset + ifdSize + outOfLineValues.size();
+
+        return ifdOffset;
+    }
+
+    private long append(byte[] bytes) throws IOException {
+        long offset = endOfFile;
+        write(ByteBuffer.wrap(bytes), offset);
+        endOfFile += bytes.length;
+        return offset;
+    }
+
+    private void write(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static boolean isEmpty(byte[] pixels) {
+        for (byte pixel: pixels) {
+            if (pixel != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] compress(byte[] pixels) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(pixels);
+            deflater.finish();
+
+            ByteArrayOutputStream compressedPixels = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                compressedPixels.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return compressedPixels.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] toBytes(short type, long... values) {
+        int size = switch (type) {
+            case TYPE_SHORT -> 2;
+            case TYPE_LONG -> 4;
+            default -> 8;
+        };
+        ByteBuffer buffer = ByteBuffer.allocate(size * values.length).order(ByteOrder.LITTLE_ENDIAN);
+
+        for (long value: values) {
+            switch (size) {
+                case 2 -> buffer.putShort((short) value);
+                case 4 -> buffer.putInt((int) value);
+                default -> buffer.putLong(value);
+            }
+        }
+        return buffer.array();
+    }
+}
@@ -0,0 +1,117 @@
+package qupath.ext.liverquant.core;
+
+import org.bytedeco.opencv.opencv_core.Mat;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * <p>
+ *     A per-thread pool of scratch {@link Mat} reused across tiles.
+ * </p>
+ * <p>
+ *     Tiles mostly have the same size, so the buffers allocated to process one tile can be reused by
+ *     the next tile processed by the same thread instead of being freed and allocated again. Mats are
+ *     identified by their number of rows, number of columns, and type.
+ * </p>
+ * <p>
+ *     A Mat must be given back with {@link #recycle(Mat)} by the thread that borrowed it, and must not be
+ *     used after that. Borrowed Mats are retained (see {@link org.bytedeco.javacpp.Pointer#retainReference()}),
+ *     so closing them or closing the pointer scope they were created in doesn't deallocate them.
+ * </p>
+ * <p>
+ *     The pooled Mats are kept until {@link #clear()} is called, which should be done once a detection finishes.
+ * </p>
+ */
+class ScratchMatPool {
+
+    private static final int MAX_NUMBER_OF_POOLED_MATS = 8;
+    // The pools of all threads, so that they can be cleared by any thread. Pools of terminated threads are forgotten
+    private static final Set<ScratchMatPool> allPools = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+    private static final ThreadLocal<ScratchMatPool> pools = ThreadLocal.withInitial(() -> {
+        ScratchMatPool pool = new ScratchMatPool();
+        allPools.add(pool);
+        return pool;
+    });
+    private final Map<Key, Deque<Mat>> availableMats = new HashMap<>();
+    private final Set<Mat> borrowedMats = Collections.newSetFromMap(new IdentityHashMap<>());
+    private int numberOfAvailableMats = 0;
+    private record Key(int rows, int cols, int type) {}
+
+    private ScratchMatPool() {}
+
+    /**
+     * Borrow a Mat of the provided size and type from the pool of the calling thread. A new Mat is
+     * allocated if none is available. The content of the returned Mat is undefined.
+     *
+     * @param rows  the number of rows of the Mat
+     * @param cols  the number of columns of the Mat
+     * @param type  the type of the Mat
+     * @return a Mat of the provided size and type
+     */
+    public static Mat borrow(int rows, int cols, int type) {
+        ScratchMatPool pool = pools.get();
+
+        synchronized (pool) {
+            Deque<Mat> mats = pool.availableMats.get(new Key(rows, cols, type));
+            Mat mat;
+            if (mats == null || mats.isEmpty()) {
+                mat = new Mat(rows, cols, type).retainReference();
+            } else {
+                mat = mats.pop();
+                pool.numberOfAvailableMats--;
+            }
+
+            pool.borrowedMats.add(mat);
+            return mat;
+        }
+    }
+
+    /**
+     * Give a Mat back to the pool of the calling thread, so that it can be reused. Nothing happens if the
+     * Mat was not borrowed from this pool. If the pool is full, the Mat is released.
+     *
+     * @param mat  the Mat to give back. It must not be used after this call
+     */
+    public static void recycle(Mat mat) {
+        ScratchMatPool pool = pools.get();
+
+        synchronized (pool) {
+            if (mat == null || !pool.borrowedMats.remove(mat)) {
+                return;
+            }
+
+            // Some OpenCV operations reallocate their output, so the Mat is identified by its current size and type
+            if (pool.numberOfAvailableMats < MAX_NUMBER_OF_POOLED_MATS && !mat.isNull() && !mat.empty()) {
+                pool.availableMats.computeIfAbsent(new Key(mat.rows(), mat.cols(), mat.type()), key -> new ArrayDeque<>()).push(mat);
+                pool.numberOfAvailableMats++;
+            } else {
+                mat.releaseReference();
+            }
+        }
+    }
+
+    /**
+     * Release the Mats available in the pools of all threads. Borrowed Mats are not affected, and can still
+     * be given back with {@link #recycle(Mat)}. This function can be called from any thread.
+     */
+    public static void clear() {
+        synchronized (allPools) {
+            for (ScratchMatPool pool: allPools) {
+                synchronized (pool) {
+                    for (Deque<Mat> mats: pool.availableMats.values()) {
+                        mats.forEach(Mat::releaseReference);
+                    }
+                    pool.availableMats.clear();
+                    pool.numberOfAvailableMats = 0;
+                }
+            }
+        }
+    }
+}
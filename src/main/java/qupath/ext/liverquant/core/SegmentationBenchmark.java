@@ -0,0 +1,190 @@
+package qupath.ext.liverquant.core;
+
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.regions.RegionRequest;
+import qupath.opencv.tools.OpenCVTools;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * <p>
+ *     Compare the implementations segmenting the tiles by color (see {@link FatGlobulesDetectorParameters.SegmentationBackend})
+ *     on tiles of an image.
+ * </p>
+ * <p>
+ *     For each tile size, tiles are read at random positions of the full resolution image. Each tile is then
+ *     segmented by both implementations, whose masks are compared pixel by pixel, and the time spent segmenting the
+ *     tiles is measured (after a warm-up round) for each implementation. Reading the tiles is not part of the
+ *     measured time.
+ * </p>
+ */
+public class SegmentationBenchmark {
+
+    private static final Logger logger = LoggerFactory.getLogger(SegmentationBenchmark.class);
+
+    /**
+     * The result of the benchmark for one tile size.
+     *
+     * @param tileSize  the width and height (in pixels) of the tiles
+     * @param numberOfTiles  the number of tiles segmented by each implementation
+     * @param openCvNanosPerTile  the average time (in nanoseconds) taken by OpenCV to segment one tile
+     * @param javaNanosPerTile  the average time (in nanoseconds) taken by the Java implementation to segment one tile
+     * @param mismatchingPixels  the number of pixels whose segmentation differs between the implementations. This
+     *                           should always be 0
+     */
+    public record Result(int tileSize, int numberOfTiles, double openCvNanosPerTile, double javaNanosPerTile, long mismatchingPixels) {
+
+        /**
+         * @return how many times the Java implementation is faster than OpenCV (less than 1 if it is slower)
+         */
+        public double getSpeedup() {
+            return javaNanosPerTile > 0 ? openCvNanosPerTile / javaNanosPerTile : 0;
+        }
+    }
+
+    private SegmentationBenchmark() {
+        throw new AssertionError("This class is not instantiable.");
+    }
+
+    /**
+     * Run the benchmark. The results are also logged.
+     *
+     * @param server  the image whose tiles should be segmented. It must be RGB
+     * @param lowerBound  the inclusive lower bound array in HSV-space of the segmentation
+     * @param upperBound  the inclusive upper bound array in HSV-space of the segmentation
+     * @param tileSizes  the width and height (in pixels) of the tiles to segment
+     * @param numberOfTiles  the number of tiles to read for each tile size
+     * @param repetitions  the number of times each tile should be segmented by each implementation
+     * @param seed  the seed of the random positions of the tiles
+     * @return the result of the benchmark for each tile size
+     * @throws IOException if a tile cannot be read
+     * @throws IllegalArgumentException if the image is not RGB, or if the number of tiles or repetitions is less than 1
+     */
+    public static List<Result> run(
+            ImageServer<BufferedImage> server,
+            HsvArray lowerBound,
+            HsvArray upperBound,
+            List<Integer> tileSizes,
+            int numberOfTiles,
+            int repetitions,
+            long seed
+    ) throws IOException {
+        if (!server.isRGB()) {
+            throw new IllegalArgumentException(String.format("The supplied image (%s) is not RGB", server.getPath()));
+        }
+        if (numberOfTiles < 1 || repetitions < 1) {
+            throw new IllegalArgumentException(String.format(
+                    "The supplied number of tiles (%d) and of repetitions (%d) must be greater than 0",
+                    numberOfTiles,
+                    repetitions
+            ));
+        }
+
+        Random random = new Random(seed);
+        List<Result> results = new ArrayList<>();
+        for (int tileSize: tileSizes) {
+            List<Mat> tiles = readTiles(server, tileSize, numberOfTiles, random);
+
+            try {
+                long mismatchingPixels = countMismatchingPixels(tiles, lowerBound, upperBound);
+                double openCvNanos = measure(tiles, lowerBound, upperBound, repetitions, FatGlobulesDetectorParameters.SegmentationBackend.OPENCV);
+                double javaNanos = measure(tiles, lowerBound, upperBound, repetitions, FatGlobulesDetectorParameters.SegmentationBackend.JAVA);
+
+                results.add(new Result(tileSize, tiles.size(), openCvNanos, javaNanos, mismatchingPixels));
+            } finally {
+                tiles.forEach(Mat::close);
+                ScratchMatPool.clear();
+            }
+        }
+
+        for (Result result: results) {
+            logger.info(
+                    "Tiles of {}x{} pixels: OpenCV {} µs per tile, Java {} µs per tile (speedup {}), {} mismatching pixels",
+                    result.tileSize(),
+                    result.tileSize(),
+                    String.format("%.1f", result.openCvNanosPerTile() / 1000),
+                    String.format("%.1f", result.javaNanosPerTile() / 1000),
+                    String.format("%.2f", result.getSpeedup()),
+                    result.mismatchingPixels()
+            );
+            if (result.mismatchingPixels() > 0) {
+                logger.warn("The Java segmentation differs from OpenCV on tiles of {}x{} pixels", result.tileSize(), result.tileSize());
+            }
+        }
+        return results;
+    }
+
+    private static List<Mat> readTiles(ImageServer<BufferedImage> server, int tileSize, int numberOfTiles, Random random) throws IOException {
+        int width = Math.min(tileSize, server.getWidth());
+        int height = Math.min(tileSize, server.getHeight());
+
+        List<Mat> tiles = new ArrayList<>();
+        for (int i=0; i<numberOfTiles; ++i) {
+            tiles.add(OpenCVTools.imageToMat(server.readRegion(RegionRequest.createInstance(
+                    server.getPath(),
+                    1,
+                    random.nextInt(server.getWidth() - width + 1),
+                    random.nextInt(server.getHeight() - height + 1),
+                    width,
+                    height
+            ))));
+        }
+        return tiles;
+    }
+
+    private static long countMismatchingPixels(List<Mat> tiles, HsvArray lowerBound, HsvArray upperBound) {
+        long mismatchingPixels = 0;
+
+        for (Mat tile: tiles) {
+            try (
+                    Mat openCvMask = new Mat();
+                    Mat javaMask = new Mat()
+            ) {
+                MatOperations.segmentByColors(tile, List.of(openCvMask), List.of(lowerBound), List.of(upperBound), FatGlobulesDetectorParameters.SegmentationBackend.OPENCV);
+                MatOperations.segmentByColors(tile, List.of(javaMask), List.of(lowerBound), List.of(upperBound), FatGlobulesDetectorParameters.SegmentationBackend.JAVA);
+
+                opencv_core.bitwise_xor(openCvMask, javaMask, javaMask);
+                mismatchingPixels += opencv_core.countNonZero(javaMask);
+            }
+        }
+
+        return mismatchingPixels;
+    }
+
+    private static double measure(
+            List<Mat> tiles,
+            HsvArray lowerBound,
+            HsvArray upperBound,
+            int repetitions,
+            FatGlobulesDetectorParameters.SegmentationBackend backend
+    ) {
+        List<Mat> masks = tiles.stream()
+                .map(tile -> ScratchMatPool.borrow(tile.rows(), tile.cols(), opencv_core.CV_8U))
+                .toList();
+
+        try {
+            // Warm-up round, not measured
+            for (int i=0; i<tiles.size(); ++i) {
+                MatOperations.segmentByColors(tiles.get(i), List.of(masks.get(i)), List.of(lowerBound), List.of(upperBound), backend);
+            }
+
+            long startTime = System.nanoTime();
+            for (int repetition=0; repetition<repetitions; ++repetition) {
+                for (int i=0; i<tiles.size(); ++i) {
+                    MatOperations.segmentByColors(tiles.get(i), List.of(masks.get(i)), List.of(lowerBound), List.of(upperBound), backend);
+                }
+            }
+            return (double) (System.nanoTime() - startTime) / ((long) repetitions * tiles.size());
+        } finally {
+            masks.forEach(ScratchMatPool::recycle);
+        }
+    }
+}
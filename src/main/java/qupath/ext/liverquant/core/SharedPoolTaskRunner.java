@@ -0,0 +1,77 @@
+package qupath.ext.liverquant.core;
+
+import qupath.lib.plugins.TaskRunner;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * <p>
+ *     A {@link TaskRunner} that submits tasks to an executor shared by several detections, and waits
+ *     for all of them to complete.
+ * </p>
+ * <p>
+ *     Several detections can therefore run at the same time without each of them creating its own
+ *     threads: their tiles are interleaved on the same pool.
+ * </p>
+ */
+class SharedPoolTaskRunner implements TaskRunner {
+
+    private final ExecutorService executor;
+    private final int parallelism;
+
+    /**
+     * Create the task runner.
+     *
+     * @param executor  the executor to submit tasks to. It won't be shut down by this task runner
+     * @param parallelism  the number of threads of the executor
+     */
+    public SharedPoolTaskRunner(ExecutorService executor, int parallelism) {
+        this.executor = executor;
+        this.parallelism = parallelism;
+    }
+
+    @Override
+    public int getPreferredParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Run the provided tasks on the shared executor. This function blocks until all tasks
+     * are complete.
+     *
+     * @param message  a message describing the tasks (unused)
+     * @param tasks  the tasks to run
+     * @throws RuntimeException if one of the tasks failed or if the calling thread was interrupted
+     */
+    @Override
+    public void runTasks(String message, Collection<? extends Runnable> tasks) {
+        List<? extends Future<?>> futures = tasks.stream()
+                .map(executor::submit)
+                .toList();
+
+        RuntimeException exception = null;
+        for (Future<?> future: futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                futures.forEach(f -> f.cancel(true));
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                if (exception == null) {
+                    exception = new RuntimeException(e.getCause());
+                } else {
+                    exception.addSuppressed(e.getCause());
+                }
+            }
+        }
+
+        if (exception != null) {
+            throw exception;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package qupath.ext.liverquant.core;
+
+import org.bytedeco.javacpp.indexer.FloatIndexer;
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.global.opencv_imgcodecs;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Rect;
+import org.locationtech.jts.geom.Geometry;
+import qupath.lib.awt.common.BufferedImageTools;
+import qupath.lib.regions.RegionRequest;
+import qupath.lib.roi.GeometryTools;
+import qupath.lib.roi.interfaces.ROI;
+import qupath.opencv.tools.OpenCVTools;
+
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ *     A low-resolution map of the fat pixel fraction of an image.
+ * </p>
+ * <p>
+ *     The image is divided into a grid of square cells (aligned with the origin of the image).
+ *     Each cell accumulates the number of fat pixels and the total number of pixels of the
+ *     segmentation masks that cover it. Only the pixels located within the region where the detection
+ *     took place are counted, so that the background around the tissue (whose color is close to the
+ *     color of fat) is not counted as fat. Masks can be added concurrently, and only two counters
+ *     per cell are kept, so building this map doesn't require globule objects.
+ * </p>
+ */
+class SteatosisDensityMap {
+
+    private final double cellSize;
+    private final int numberOfColumns;
+    private final int numberOfRows;
+    private final AtomicLongArray fatPixels;
+    private final AtomicLongArray pixels;
+
+    /**
+     * Create an empty density map.
+     *
+     * @param imageWidth  the width (in pixels) of the full resolution image
+     * @param imageHeight  the height (in pixels) of the full resolution image
+     * @param cellSize  the size (in pixels of the full resolution image) of each cell of the map
+     * @throws IllegalArgumentException if the cell size is not greater than 0
+     */
+    public SteatosisDensityMap(int imageWidth, int imageHeight, double cellSize) {
+        if (!(cellSize > 0)) {
+            throw new IllegalArgumentException(String.format("The supplied cell size (%f) is not greater than 0", cellSize));
+        }
+
+        this.cellSize = cellSize;
+        this.numberOfColumns = Math.max(1, (int) Math.ceil(imageWidth / cellSize));
+        this.numberOfRows = Math.max(1, (int) Math.ceil(imageHeight / cellSize));
+        this.fatPixels = new AtomicLongArray(numberOfColumns * numberOfRows);
+        this.pixels = new AtomicLongArray(numberOfColumns * numberOfRows);
+    }
+
+    /**
+     * Add the segmentation mask of a tile to this map. This function can be called from any thread.
+     *
+     * @param mask  the segmentation mask of the tile. It must have the {@link opencv_core#CV_8U} format
+     *              and non-zero pixels must represent fat
+     * @param roi  the region where the detection took place (for example the annotation containing the tile).
+     *             Only the pixels of the tile located within this ROI are counted
+     * @param regionRequest  the region of the tile
+     */
+    public void addMask(Mat mask, ROI roi, RegionRequest regionRequest) {
+        int firstColumn = Math.max(0, (int) (regionRequest.getX() / cellSize));
+        int lastColumn = Math.min(numberOfColumns - 1, (int) ((regionRequest.getMaxX() - 1) / cellSize));
+        int firstRow = Math.max(0, (int) (regionRequest.getY() / cellSize));
+        int lastRow = Math.min(numberOfRows - 1, (int) ((regionRequest.getMaxY() - 1) / cellSize));
+
+        Geometry tile = GeometryTools.createRectangle(regionRequest.getX(), regionRequest.getY(), regionRequest.getWidth(), regionRequest.getHeight());
+        Geometry geometry = roi.getGeometry();
+        if (!geometry.intersects(tile)) {
+            return;
+        }
+
+        try (
+                Mat roiMask = geometry.covers(tile) ? null : OpenCVTools.imageToMat(BufferedImageTools.createROIMask(
+                        mask.cols(),
+                        mask.rows(),
+                        roi,
+                        regionRequest
+                ));
+                Mat fatMask = roiMask == null ? null : new Mat()
+        ) {
+            if (roiMask != null) {
+                opencv_core.bitwise_and(mask, roiMask, fatMask);
+            }
+            addCells(roiMask == null ? mask : fatMask, roiMask, regionRequest, firstColumn, lastColumn, firstRow, lastRow);
+        }
+    }
+
+    private void addCells(Mat mask, Mat roiMask, RegionRequest regionRequest, int firstColumn, int lastColumn, int firstRow, int lastRow) {
+        for (int row=firstRow; row<=lastRow; ++row) {
+            int y0 = toMaskCoordinate(row * cellSize, regionRequest.getY(), regionRequest.getDownsample(), mask.rows());
+            int y1 = toMaskCoordinate((row+1) * cellSize, regionRequest.getY(), regionRequest.getDownsample(), mask.rows());
+
+            for (int column=firstColumn; column<=lastColumn; ++column) {
+                int x0 = toMaskCoordinate(column * cellSize, regionRequest.getX(), regionRequest.getDownsample(), mask.cols());
+                int x1 = toMaskCoordinate((column+1) * cellSize, regionRequest.getX(), regionRequest.getDownsample(), mask.cols());
+
+                if (x1 > x0 && y1 > y0) {
+                    try (
+                            Rect rect = new Rect(x0, y0, x1 - x0, y1 - y0);
+                            Mat cellMask = mask.apply(rect);
+                            Mat cellRoiMask = roiMask == null ? null : roiMask.apply(rect)
+                    ) {
+                        fatPixels.addAndGet(row * numberOfColumns + column, opencv_core.countNonZero(cellMask));
+                        pixels.addAndGet(
+                                row * numberOfColumns + column,
+                                cellRoiMask == null ? (long) (x1 - x0) * (y1 - y0) : opencv_core.countNonZero(cellRoiMask)
+                        );
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Write this map to a 32-bit TIFF image. Each pixel of the written image corresponds
+     * to a cell of the map and contains its fat pixel fraction (between 0 and 1). Cells
+     * that were not covered by any mask have a value of 0.
+     *
+     * @param path  the path of the image to write
+     * @throws IllegalArgumentException if the image cannot be written
+     */
+    public void write(Path path) {
+        try (Mat mat = new Mat(numberOfRows, numberOfColumns, opencv_core.CV_32F)) {
+            try (FloatIndexer indexer = mat.createIndexer()) {
+                for (int row=0; row<numberOfRows; ++row) {
+                    for (int column=0; column<numberOfColumns; ++column) {
+                        long numberOfPixels = pixels.get(row * numberOfColumns + column);
+
+                        indexer.put(row, column, numberOfPixels == 0 ? 0f : (float) fatPixels.get(row * numberOfColumns + column) / numberOfPixels);
+                    }
+                }
+            }
+
+            if (!opencv_imgcodecs.imwrite(path.toString(), mat)) {
+                throw new IllegalArgumentException(String.format("Cannot write the density map to %s", path));
+            }
+        }
+    }
+
+    private static int toMaskCoordinate(double imageCoordinate, double regionOrigin, double downsample, int maskSize) {
+        return (int) Math.max(0, Math.min(maskSize, Math.round((imageCoordinate - regionOrigin) / downsample)));
+    }
+}
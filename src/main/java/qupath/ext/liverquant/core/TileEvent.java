@@ -0,0 +1,127 @@
+package qupath.ext.liverquant.core;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * <p>
+ *     A JDK Flight Recorder event describing one stage of the processing of a tile.
+ * </p>
+ * <p>
+ *     This class requires the jdk.jfr module, which may not be present at runtime. It should only be
+ *     used through {@link TileEvents}.
+ * </p>
+ */
+@Category({"QuPath", "LiverQuant"})
+@StackTrace(false)
+abstract class TileEvent extends Event {
+
+    @Label("X")
+    @Description("The x-coordinate of the tile in the full resolution image")
+    int x;
+    @Label("Y")
+    @Description("The y-coordinate of the tile in the full resolution image")
+    int y;
+    @Label("Width")
+    @Description("The width of the tile in the full resolution image")
+    int width;
+    @Label("Height")
+    @Description("The height of the tile in the full resolution image")
+    int height;
+    @Label("Z")
+    int z;
+    @Label("T")
+    int t;
+    @Label("Downsample")
+    double downsample;
+    @Label("Pixels")
+    @Description("The number of pixels processed at the resolution of the detection")
+    long pixels;
+    @Label("Objects")
+    @Description("The number of objects (contours or globules) produced by this stage")
+    long objects;
+
+    /**
+     * Create a not started event corresponding to the provided stage.
+     *
+     * @param stage  the stage of the processing of a tile
+     * @return a new event corresponding to the provided stage, or null if this stage has no event
+     */
+    static TileEvent create(DetectionMetrics.Stage stage) {
+        return switch (stage) {
+            case TILE_READ -> new TileRead();
+            case SEGMENTATION -> new Segmentation();
+            case HOLE_FILLING -> new HoleFilling();
+            case CONTOUR_EXTRACTION -> new ContourExtraction();
+            case FILTERING -> new Filtering();
+            case WATERSHED -> new Watershed();
+            case OBJECT_CREATION -> new ObjectCreation();
+            default -> null;
+        };
+    }
+
+    /**
+     * End this event and commit it if it is enabled.
+     *
+     * @param regionRequest  the region of the tile
+     * @param pixels  the number of pixels processed
+     * @param objects  the number of objects produced
+     */
+    void end(RegionRequest regionRequest, long pixels, long objects) {
+        end();
+
+        if (shouldCommit()) {
+            this.x = regionRequest.getX();
+            this.y = regionRequest.getY();
+            this.width = regionRequest.getWidth();
+            this.height = regionRequest.getHeight();
+            this.z = regionRequest.getZ();
+            this.t = regionRequest.getT();
+            this.downsample = regionRequest.getDownsample();
+            this.pixels = pixels;
+            this.objects = objects;
+
+            commit();
+        }
+    }
+
+    @Name("qupath.liverquant.TileRead")
+    @Label("Tile Read")
+    @Description("Reading of the pixels of a tile")
+    static class TileRead extends TileEvent {}
+
+    @Name("qupath.liverquant.Segmentation")
+    @Label("Tile Segmentation")
+    @Description("Segmentation of a tile by color")
+    static class Segmentation extends TileEvent {}
+
+    @Name("qupath.liverquant.HoleFilling")
+    @Label("Tile Hole Filling")
+    @Description("Filling of the holes of the mask of a tile")
+    static class HoleFilling extends TileEvent {}
+
+    @Name("qupath.liverquant.ContourExtraction")
+    @Label("Tile Contour Extraction")
+    @Description("Extraction of the contours of the mask of a tile")
+    static class ContourExtraction extends TileEvent {}
+
+    @Name("qupath.liverquant.Filtering")
+    @Label("Tile Filtering")
+    @Description("Classification of the contours of a tile as isolated globules, overlapping globules, or something else")
+    static class Filtering extends TileEvent {}
+
+    @Name("qupath.liverquant.Watershed")
+    @Label("Tile Watershed")
+    @Description("Separation of the overlapping globules of a tile")
+    static class Watershed extends TileEvent {}
+
+    @Name("qupath.liverquant.ObjectCreation")
+    @Label("Tile Object Creation")
+    @Description("Creation of the objects representing the globules of a tile")
+    static class ObjectCreation extends TileEvent {}
+}
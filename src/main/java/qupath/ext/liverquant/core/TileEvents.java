@@ -0,0 +1,53 @@
+package qupath.ext.liverquant.core;
+
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * <p>
+ *     Emit JDK Flight Recorder events (see {@link TileEvent}) describing the processing of tiles.
+ * </p>
+ * <p>
+ *     Events only cost something when a recording with these events enabled is running. If the jdk.jfr module
+ *     is not present at runtime, no event is emitted.
+ * </p>
+ */
+class TileEvents {
+
+    private static final boolean JFR_AVAILABLE = ModuleLayer.boot().findModule("jdk.jfr").isPresent();
+
+    private TileEvents() {
+        throw new AssertionError("This class is not instantiable.");
+    }
+
+    /**
+     * Start an event describing a stage of the processing of a tile.
+     *
+     * @param stage  the stage that starts
+     * @return the started event, or null if no event should be emitted
+     */
+    public static TileEvent begin(DetectionMetrics.Stage stage) {
+        if (!JFR_AVAILABLE) {
+            return null;
+        }
+
+        TileEvent event = TileEvent.create(stage);
+        if (event != null) {
+            event.begin();
+        }
+        return event;
+    }
+
+    /**
+     * End an event started with {@link #begin(DetectionMetrics.Stage)}, and commit it if recording is enabled.
+     *
+     * @param event  the event to end. Can be null
+     * @param regionRequest  the region of the tile
+     * @param pixels  the number of pixels processed by the stage
+     * @param objects  the number of objects (contours or globules) produced by the stage
+     */
+    public static void end(TileEvent event, RegionRequest regionRequest, long pixels, long objects) {
+        if (event != null) {
+            event.end(regionRequest, pixels, objects);
+        }
+    }
+}
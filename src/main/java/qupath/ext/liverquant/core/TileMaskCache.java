@@ -0,0 +1,207 @@
+package qupath.ext.liverquant.core;
+
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.opencv.global.opencv_imgcodecs;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.regions.RegionRequest;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * <p>
+ *     An on-disk cache of the segmentation masks of image tiles.
+ * </p>
+ * <p>
+ *     Masks are compressed with the PNG format and identified by a key computed from the tile
+ *     region and the parameters the segmentation depends on (see {@link #createKey(String, RegionRequest, int, HsvArray, HsvArray)}).
+ *     The total size of the cache is limited: when it is exceeded, the least recently used masks are deleted.
+ * </p>
+ * <p>
+ *     This class is thread-safe.
+ * </p>
+ */
+class TileMaskCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(TileMaskCache.class);
+    private static final String EXTENSION = ".png";
+    private final Map<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Path directory;
+    private final long maxSize;
+    private long size = 0;
+
+    /**
+     * Create the cache. Masks already present in the provided directory (for example
+     * from a previous run) will be reused.
+     *
+     * @param directory  the directory where masks should be stored. It will be created if it doesn't exist
+     * @param maxSize  the maximal size (in bytes) the cache can take on disk
+     * @throws IOException if the directory cannot be created or read
+     */
+    public TileMaskCache(Path directory, long maxSize) throws IOException {
+        this.directory = directory;
+        this.maxSize = maxSize;
+
+        Files.createDirectories(directory);
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file: files
+                    .filter(file -> file.getFileName().toString().endsWith(EXTENSION))
+                    .sorted(Comparator.comparing(TileMaskCache::getLastModifiedTime))
+                    .toList()
+            ) {
+                String fileName = file.getFileName().toString();
+                long fileSize = Files.size(file);
+
+                entries.put(fileName.substring(0, fileName.length() - EXTENSION.length()), fileSize);
+                size += fileSize;
+            }
+        }
+
+        evict();
+    }
+
+    /**
+     * Compute the key identifying the mask of a tile.
+     *
+     * @param imagePath  a path uniquely identifying the image the tile belongs to
+     * @param regionRequest  the region of the tile
+     * @param padding  the padding (in pixels) of the tile
+     * @param lowerBound  the inclusive lower bound array in HSV-space used for color segmentation
+     * @param upperBound  the inclusive upper bound array in HSV-space used for color segmentation
+     * @return a key identifying the mask of the tile
+     */
+    public static String createKey(String imagePath, RegionRequest regionRequest, int padding, HsvArray lowerBound, HsvArray upperBound) {
+        String description = String.join(
+                ";",
+                imagePath,
+                String.valueOf(regionRequest.getDownsample()),
+                String.valueOf(regionRequest.getX()),
+                String.valueOf(regionRequest.getY()),
+                String.valueOf(regionRequest.getWidth()),
+                String.valueOf(regionRequest.getHeight()),
+                String.valueOf(regionRequest.getZ()),
+                String.valueOf(regionRequest.getT()),
+                String.valueOf(padding),
+                lowerBound.toString(),
+                upperBound.toString()
+        );
+
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(description.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Get a mask from the cache.
+     *
+     * @param key  the key identifying the mask (see {@link #createKey(String, RegionRequest, int, HsvArray, HsvArray)})
+     * @return the mask, or null if it is not present in the cache. The caller is responsible for closing it
+     */
+    public Mat get(String key) {
+        synchronized (this) {
+            if (entries.get(key) == null) {
+                return null;
+            }
+        }
+
+        Path file = getFile(key);
+        try {
+            byte[] bytes = Files.readAllBytes(file);
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+
+            try (
+                    BytePointer pointer = new BytePointer(bytes);
+                    Mat encodedMask = new Mat(pointer)
+            ) {
+                Mat mask = opencv_imgcodecs.imdecode(encodedMask, opencv_imgcodecs.IMREAD_GRAYSCALE);
+                if (mask.empty()) {
+                    mask.close();
+                    return null;
+                }
+                return mask;
+            }
+        } catch (IOException e) {
+            logger.debug("Cannot read cached mask {}", file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Add a mask to the cache. Least recently used masks may be deleted to
+     * keep the size of the cache below its limit.
+     *
+     * @param key  the key identifying the mask (see {@link #createKey(String, RegionRequest, int, HsvArray, HsvArray)})
+     * @param mask  the mask to add. It must have the {@link org.bytedeco.opencv.global.opencv_core#CV_8U} format
+     */
+    public void put(String key, Mat mask) {
+        byte[] bytes;
+        try (BytePointer encodedMask = new BytePointer()) {
+            if (!opencv_imgcodecs.imencode(EXTENSION, mask, encodedMask)) {
+                logger.debug("Cannot encode mask {}", key);
+                return;
+            }
+            bytes = new byte[(int) encodedMask.limit()];
+            encodedMask.get(bytes);
+        }
+
+        Path file = getFile(key);
+        try {
+            Path temporaryFile = Files.createTempFile(directory, key, ".tmp");
+            Files.write(temporaryFile, bytes);
+            Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.debug("Cannot write mask {} to the cache", file, e);
+            return;
+        }
+
+        synchronized (this) {
+            Long previousSize = entries.put(key, (long) bytes.length);
+            size += bytes.length - (previousSize == null ? 0 : previousSize);
+            evict();
+        }
+    }
+
+    private Path getFile(String key) {
+        return directory.resolve(key + EXTENSION);
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+
+        while (size > maxSize && iterator.hasNext()) {
+            Map.Entry<String, Long> eldestEntry = iterator.next();
+
+            try {
+                Files.deleteIfExists(getFile(eldestEntry.getKey()));
+            } catch (IOException e) {
+                logger.debug("Cannot delete cached mask {}", eldestEntry.getKey(), e);
+            }
+            size -= eldestEntry.getValue();
+            iterator.remove();
+        }
+    }
+
+    private static FileTime getLastModifiedTime(Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package qupath.ext.liverquant.core;
+
+import org.bytedeco.opencv.opencv_core.Mat;
+import qupath.lib.experimental.pixels.Parameters;
+import qupath.lib.objects.PathObject;
+import qupath.lib.regions.RegionRequest;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>
+ *     The Mats borrowed from the {@link ScratchMatPool} to create the output of each tile of a pixel processor.
+ * </p>
+ * <p>
+ *     The output given to the output handler is not always the Mat borrowed by the processor: the tile may be
+ *     skipped, its masks may be decoded from the mask cache or merged into one Mat, or the padding may be removed
+ *     from it. The borrowed Mat of each tile is therefore recorded when the processor creates it (see
+ *     {@link #add(Parameters, Mat)}), so that the output handler gives back this Mat to the pool and closes the
+ *     other ones (see {@link #release(Parameters, Mat)}).
+ * </p>
+ * <p>
+ *     As required by the pool, both functions must be called from the thread processing the tile. This class is
+ *     thread-safe.
+ * </p>
+ */
+class TileMaskTracker {
+
+    private final Map<Tile, Mat> borrowedMats = new ConcurrentHashMap<>();
+    private record Tile(PathObject parent, RegionRequest regionRequest) {}
+
+    /**
+     * Record the Mat borrowed from the pool to create the output of a tile.
+     *
+     * @param parameters  the parameters of the tile
+     * @param mat  the Mat borrowed from the pool. It must be given back with {@link #release(Parameters, Mat)}
+     * @return the provided Mat
+     */
+    public Mat add(Parameters<Mat, Mat> parameters, Mat mat) {
+        borrowedMats.put(new Tile(parameters.getParent(), parameters.getRegionRequest()), mat);
+        return mat;
+    }
+
+    /**
+     * Give back to the pool the Mat borrowed for a tile, and close the output of the tile if it is another Mat.
+     * Nothing is given back if no Mat was borrowed for the tile.
+     *
+     * @param parameters  the parameters of the tile
+     * @param output  the output of the processor for this tile. It must not be used after this call
+     */
+    public void release(Parameters<Mat, Mat> parameters, Mat output) {
+        Mat borrowedMat = borrowedMats.remove(new Tile(parameters.getParent(), parameters.getRegionRequest()));
+
+        if (output != borrowedMat) {
+            output.close();
+        }
+        ScratchMatPool.recycle(borrowedMat);
+    }
+}
@@ -0,0 +1,287 @@
+package qupath.ext.liverquant.core;
+
+import org.locationtech.jts.geom.Geometry;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.utils.Tiler;
+import qupath.lib.regions.ImageRegion;
+import qupath.lib.roi.GeometryTools;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * <p>
+ *     A plan of the objects to give to the pixel processor, so that tiles shared by several annotations are only
+ *     read and segmented once.
+ * </p>
+ * <p>
+ *     The pixel processor tiles each object on its own, so annotations that overlap, are nested, or are close
+ *     enough to share tiles (for example adjacent tissue fragments) have their common tiles processed several times.
+ *     Such annotations are grouped, and their union is processed instead when it requires fewer tiles. The globules
+ *     detected in the union are then assigned to the annotations of the group (see {@link #getMember(List, PathObject)}
+ *     and {@link #distributeObjects(FatGlobulesDetectorParameters.ObjectToCreate)}).
+ * </p>
+ */
+class TilePlan {
+
+    private final Map<PathObject, List<PathObject>> members = new LinkedHashMap<>();
+    private final long numberOfTiles;
+    private final long numberOfTilesWithoutPlan;
+
+    private TilePlan(Map<PathObject, List<PathObject>> members, long numberOfTiles, long numberOfTilesWithoutPlan) {
+        this.members.putAll(members);
+        this.numberOfTiles = numberOfTiles;
+        this.numberOfTilesWithoutPlan = numberOfTilesWithoutPlan;
+    }
+
+    /**
+     * Plan the processing of the provided objects.
+     *
+     * @param objects  the objects where the detection should take place
+     * @param fatGlobulesDetectorParameters  the parameters of the detection
+     * @return the plan of the detection
+     */
+    public static TilePlan create(List<PathObject> objects, FatGlobulesDetectorParameters fatGlobulesDetectorParameters) {
+        Tiler tiler = createTiler(fatGlobulesDetectorParameters);
+        Map<PathObject, Integer> numberOfTiles = new IdentityHashMap<>();
+        for (PathObject object: objects) {
+            numberOfTiles.put(object, tiler.createTiles(object.getROI()).size());
+        }
+
+        Map<PathObject, List<PathObject>> members = new LinkedHashMap<>();
+        long plannedTiles = 0;
+        for (List<PathObject> group: groupObjectsSharingTiles(objects, fatGlobulesDetectorParameters)) {
+            int separateTiles = group.stream().mapToInt(numberOfTiles::get).sum();
+
+            PathObject union = group.size() > 1 ? createUnion(group) : null;
+            int unionTiles = union == null ? Integer.MAX_VALUE : tiler.createTiles(union.getROI()).size();
+
+            if (unionTiles < separateTiles) {
+                members.put(union, group);
+                plannedTiles += unionTiles;
+            } else {
+                for (PathObject object: group) {
+                    members.put(object, List.of(object));
+                }
+                plannedTiles += separateTiles;
+            }
+        }
+
+        return new TilePlan(members, plannedTiles, numberOfTiles.values().stream().mapToLong(Integer::longValue).sum());
+    }
+
+    /**
+     * Create the tiler used by the pixel processor to split the objects to process into tiles.
+     * <p>
+     * The tile size of the parameters is given at the processing resolution, so it is scaled by the processing
+     * downsample to get tiles in full resolution coordinates, as the pixel processor does.
+     *
+     * @param fatGlobulesDetectorParameters  the parameters of the detection
+     * @return a tiler creating the same tiles as the pixel processor
+     */
+    static Tiler createTiler(FatGlobulesDetectorParameters fatGlobulesDetectorParameters) {
+        return Tiler.builder(getFullResolutionTileWidth(fatGlobulesDetectorParameters), getFullResolutionTileHeight(fatGlobulesDetectorParameters))
+                .alignCenter()
+                .cropTiles(false)
+                .filterByCentroid(false)
+                .build();
+    }
+
+    /**
+     * @return the objects to give to the pixel processor. They are either objects provided to {@link #create(List, FatGlobulesDetectorParameters)},
+     * or temporary unions of them (not added to the hierarchy)
+     */
+    public List<PathObject> getObjectsToProcess() {
+        return List.copyOf(members.keySet());
+    }
+
+    /**
+     * Get the objects provided to {@link #create(List, FatGlobulesDetectorParameters)} that an object to process represents.
+     *
+     * @param objectToProcess  one of the objects returned by {@link #getObjectsToProcess()}
+     * @return the objects represented by the provided object to process. If the object to process is not a union,
+     * this is a list only containing the object to process
+     */
+    public List<PathObject> getMembers(PathObject objectToProcess) {
+        return members.getOrDefault(objectToProcess, List.of(objectToProcess));
+    }
+
+    /**
+     * @return the number of tiles that are not read and segmented thanks to this plan
+     */
+    public long getNumberOfSavedTiles() {
+        return numberOfTilesWithoutPlan - numberOfTiles;
+    }
+
+    /**
+     * Get the member a globule detected in an object to process belongs to: the first member containing the
+     * centroid of the globule, or else the first member intersecting the globule, or else the first member.
+     *
+     * @param members  the members of the object to process (see {@link #getMembers(PathObject)})
+     * @param globule  the globule to assign
+     * @return the member the globule belongs to
+     */
+    public static PathObject getMember(List<PathObject> members, PathObject globule) {
+        if (members.size() == 1) {
+            return members.get(0);
+        }
+
+        ROI roi = globule.getROI();
+        for (PathObject member: members) {
+            if (member.getROI().contains(roi.getCentroidX(), roi.getCentroidY())) {
+                return member;
+            }
+        }
+
+        Geometry geometry = roi.getGeometry();
+        for (PathObject member: members) {
+            if (member.getROI().getGeometry().intersects(geometry)) {
+                return member;
+            }
+        }
+        return members.get(0);
+    }
+
+    /**
+     * Move the children of the unions to the members they belong to (see {@link #assignToMembers(List, List,
+     * FatGlobulesDetectorParameters.ObjectToCreate)}). This should be called once all tiles are processed.
+     *
+     * @param objectToCreate  the type of object to create when copies are needed
+     */
+    public void distributeObjects(FatGlobulesDetectorParameters.ObjectToCreate objectToCreate) {
+        for (Map.Entry<PathObject, List<PathObject>> entry: members.entrySet()) {
+            PathObject union = entry.getKey();
+            List<PathObject> group = entry.getValue();
+            if (group.size() == 1 && group.get(0) == union) {
+                continue;
+            }
+
+            List<PathObject> children = new ArrayList<>(union.getChildObjects());
+            union.removeChildObjects(children);
+
+            for (Map.Entry<PathObject, List<PathObject>> childrenOfMember: assignToMembers(group, children, objectToCreate).entrySet()) {
+                childrenOfMember.getKey().addChildObjects(childrenOfMember.getValue());
+            }
+        }
+    }
+
+    /**
+     * Assign globules detected in an object to process to the members they belong to. A globule is assigned to every
+     * member containing its centroid (copies are created when there are several), or to the member returned by
+     * {@link #getMember(List, PathObject)} if no member contains its centroid.
+     *
+     * @param members  the members of the object to process (see {@link #getMembers(PathObject)})
+     * @param globules  the globules to assign. They must not be added to another object
+     * @param objectToCreate  the type of object to create when copies are needed
+     * @return the globules assigned to each member
+     */
+    public static Map<PathObject, List<PathObject>> assignToMembers(
+            List<PathObject> members,
+            List<PathObject> globules,
+            FatGlobulesDetectorParameters.ObjectToCreate objectToCreate
+    ) {
+        Map<PathObject, List<PathObject>> globulesOfMembers = new IdentityHashMap<>();
+        if (members.size() == 1) {
+            if (!globules.isEmpty()) {
+                globulesOfMembers.put(members.get(0), new ArrayList<>(globules));
+            }
+            return globulesOfMembers;
+        }
+
+        for (PathObject globule: globules) {
+            List<PathObject> containingMembers = members.stream()
+                    .filter(member -> member.getROI().contains(globule.getROI().getCentroidX(), globule.getROI().getCentroidY()))
+                    .toList();
+
+            if (containingMembers.isEmpty()) {
+                globulesOfMembers.computeIfAbsent(getMember(members, globule), member -> new ArrayList<>()).add(globule);
+            } else {
+                for (int i=0; i<containingMembers.size(); ++i) {
+                    globulesOfMembers.computeIfAbsent(containingMembers.get(i), member -> new ArrayList<>()).add(
+                            i == 0 ? globule : FatGlobuleDetector.createPathObject(globule.getROI(), objectToCreate)
+                    );
+                }
+            }
+        }
+        return globulesOfMembers;
+    }
+
+    /**
+     * Group objects located on the same plane whose tiles can overlap, i.e. whose bounds are less than one tile apart.
+     */
+    private static List<List<PathObject>> groupObjectsSharingTiles(List<PathObject> objects, FatGlobulesDetectorParameters fatGlobulesDetectorParameters) {
+        int[] groups = IntStream.range(0, objects.size()).toArray();
+
+        for (int i=0; i<objects.size(); ++i) {
+            ImageRegion region = expand(objects.get(i).getROI(), fatGlobulesDetectorParameters);
+
+            for (int j=i+1; j<objects.size(); ++j) {
+                ROI other = objects.get(j).getROI();
+
+                if (other.getImagePlane().equals(objects.get(i).getROI().getImagePlane()) &&
+                        region.intersects(other.getBoundsX(), other.getBoundsY(), other.getBoundsWidth(), other.getBoundsHeight())
+                ) {
+                    int groupI = findGroup(groups, i);
+                    int groupJ = findGroup(groups, j);
+                    groups[Math.max(groupI, groupJ)] = Math.min(groupI, groupJ);
+                }
+            }
+        }
+
+        return IntStream.range(0, objects.size())
+                .boxed()
+                .collect(Collectors.groupingBy(i -> findGroup(groups, i), LinkedHashMap::new, Collectors.mapping(objects::get, Collectors.toList())))
+                .values()
+                .stream()
+                .toList();
+    }
+
+    private static int findGroup(int[] groups, int i) {
+        while (groups[i] != i) {
+            groups[i] = groups[groups[i]];
+            i = groups[i];
+        }
+        return i;
+    }
+
+    private static ImageRegion expand(ROI roi, FatGlobulesDetectorParameters fatGlobulesDetectorParameters) {
+        return ImageRegion.createInstance(
+                (int) roi.getBoundsX() - getFullResolutionTileWidth(fatGlobulesDetectorParameters),
+                (int) roi.getBoundsY() - getFullResolutionTileHeight(fatGlobulesDetectorParameters),
+                (int) Math.ceil(roi.getBoundsWidth()) + 2 * getFullResolutionTileWidth(fatGlobulesDetectorParameters),
+                (int) Math.ceil(roi.getBoundsHeight()) + 2 * getFullResolutionTileHeight(fatGlobulesDetectorParameters),
+                roi.getZ(),
+                roi.getT()
+        );
+    }
+
+    /**
+     * @param fatGlobulesDetectorParameters  the parameters of the detection
+     * @return the width (in pixels of the full resolution image) of the tiles of the detection
+     */
+    static int getFullResolutionTileWidth(FatGlobulesDetectorParameters fatGlobulesDetectorParameters) {
+        return (int) Math.round(fatGlobulesDetectorParameters.getTileWidth() * FatGlobuleDetector.getDownsample(fatGlobulesDetectorParameters));
+    }
+
+    /**
+     * @param fatGlobulesDetectorParameters  the parameters of the detection
+     * @return the height (in pixels of the full resolution image) of the tiles of the detection
+     */
+    static int getFullResolutionTileHeight(FatGlobulesDetectorParameters fatGlobulesDetectorParameters) {
+        return (int) Math.round(fatGlobulesDetectorParameters.getTileHeight() * FatGlobuleDetector.getDownsample(fatGlobulesDetectorParameters));
+    }
+
+    private static PathObject createUnion(List<PathObject> objects) {
+        return PathObjects.createAnnotationObject(GeometryTools.geometryToROI(
+                GeometryTools.union(objects.stream().map(object -> object.getROI().getGeometry()).toList()),
+                objects.get(0).getROI().getImagePlane()
+        ));
+    }
+}
@@ -0,0 +1,125 @@
+package qupath.ext.liverquant.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.utils.Tiler;
+import qupath.lib.plugins.TaskRunner;
+import qupath.lib.regions.ImageRegion;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.IntStream;
+
+/**
+ * <p>
+ *     Change the order in which the tiles of a detection are processed, so that the tiles of a region
+ *     (for example the one displayed by the viewer) are processed first.
+ * </p>
+ * <p>
+ *     The {@link qupath.lib.experimental.pixels.PixelProcessor} creates one task per tile, annotation after annotation,
+ *     in the order given by its {@link Tiler}, and submits all of them to its task runner at once. The tiles are computed
+ *     again here with the same tiling (see {@link TilePlan#createTiler(FatGlobulesDetectorParameters)}), and the tasks are reordered by wrapping the task runner (see {@link #prioritize(TaskRunner)}).
+ *     Task runners start tasks in the order they are submitted, so tasks submitted first are completed first.
+ * </p>
+ * <p>
+ *     Tiles intersecting the priority region are processed first, from the closest to the center of the region
+ *     to the farthest. The other tiles are then processed ring by ring (a ring containing the tiles located
+ *     at the same number of tiles from the region), and clockwise within a ring.
+ * </p>
+ */
+class TileScheduler {
+
+    private static final Logger logger = LoggerFactory.getLogger(TileScheduler.class);
+    private final List<ROI> tiles;
+    private final ImageRegion priorityRegion;
+    private record ScheduledTile(int index, int ring, double distanceToCenter, double angle) {}
+
+    /**
+     * Create the scheduler.
+     *
+     * @param objectsToProcess  the objects that will be processed, in the order they will be given to the pixel processor
+     * @param fatGlobulesDetectorParameters  the parameters of the detection
+     * @param priorityRegion  the region whose tiles should be processed first
+     */
+    public TileScheduler(
+            List<PathObject> objectsToProcess,
+            FatGlobulesDetectorParameters fatGlobulesDetectorParameters,
+            ImageRegion priorityRegion
+    ) {
+        Tiler tiler = TilePlan.createTiler(fatGlobulesDetectorParameters);
+
+        this.tiles = objectsToProcess.stream()
+                .flatMap(object -> tiler.createTiles(object.getROI()).stream())
+                .toList();
+        this.priorityRegion = priorityRegion;
+    }
+
+    /**
+     * Wrap a task runner so that the tiles of the priority region are processed first.
+     * <p>
+     * Only the first call to {@link TaskRunner#runTasks(String, Collection)} with as many tasks as there
+     * are tiles is reordered. Other calls (for example the tissue detection) run in their original order. If the
+     * tiling of the pixel processor differs from the one computed by this scheduler, the number of tasks won't match
+     * and the tiles will be processed in the default order.
+     *
+     * @param taskRunner  the task runner to wrap
+     * @return a task runner processing the tiles of the priority region first
+     */
+    public TaskRunner prioritize(TaskRunner taskRunner) {
+        AtomicBoolean reordered = new AtomicBoolean(false);
+
+        return new DelegatingTaskRunner(taskRunner) {
+            @Override
+            public void runTasks(String message, Collection<? extends Runnable> tasks) {
+                if (tasks.size() != tiles.size() || reordered.getAndSet(true)) {
+                    if (tasks.size() > 1) {
+                        logger.debug("{} tasks don't match the {} planned tiles. They won't be reordered", tasks.size(), tiles.size());
+                    }
+                    taskRunner.runTasks(message, tasks);
+                    return;
+                }
+
+                List<Runnable> tasksList = new ArrayList<>(tasks);
+                taskRunner.runTasks(message, getProcessingOrder().stream()
+                        .map(tasksList::get)
+                        .toList()
+                );
+            }
+        };
+    }
+
+    /**
+     * @return the indices of the tiles, in the order they should be processed
+     */
+    List<Integer> getProcessingOrder() {
+        double regionCenterX = priorityRegion.getX() + priorityRegion.getWidth() / 2d;
+        double regionCenterY = priorityRegion.getY() + priorityRegion.getHeight() / 2d;
+
+        return IntStream.range(0, tiles.size())
+                .mapToObj(i -> {
+                    ROI tile = tiles.get(i);
+                    double dx = Math.max(0, Math.max(priorityRegion.getX() - tile.getBoundsX() - tile.getBoundsWidth(), tile.getBoundsX() - priorityRegion.getMaxX()));
+                    double dy = Math.max(0, Math.max(priorityRegion.getY() - tile.getBoundsY() - tile.getBoundsHeight(), tile.getBoundsY() - priorityRegion.getMaxY()));
+
+                    return new ScheduledTile(
+                            i,
+                            (int) Math.ceil(Math.max(
+                                    tile.getBoundsWidth() > 0 ? dx / tile.getBoundsWidth() : 0,
+                                    tile.getBoundsHeight() > 0 ? dy / tile.getBoundsHeight() : 0
+                            )),
+                            Math.hypot(tile.getCentroidX() - regionCenterX, tile.getCentroidY() - regionCenterY),
+                            Math.atan2(tile.getCentroidY() - regionCenterY, tile.getCentroidX() - regionCenterX)
+                    );
+                })
+                .sorted(Comparator.comparingInt(ScheduledTile::ring)
+                        .thenComparingDouble(tile -> tile.ring() == 0 ? tile.distanceToCenter() : tile.angle())
+                )
+                .map(ScheduledTile::index)
+                .toList();
+    }
+}
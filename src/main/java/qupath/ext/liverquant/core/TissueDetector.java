@@ -5,6 +5,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import qupath.lib.objects.PathObject;
 import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
 import qupath.lib.regions.RegionRequest;
 import qupath.lib.roi.RoiTools;
 import qupath.opencv.tools.OpenCVTools;
@@ -13,31 +14,121 @@ import java.io.IOException;
 import java.util.List;
 
 /**
- * Detect tissue within an image based on
- * <a href="https://github.com/mfarzi/liverquant">liverquant</a>.
+ * <p>
+ *     Detect tissue within an image based on
+ *     <a href="https://github.com/mfarzi/liverquant">liverquant</a>.
+ * </p>
+ * <p>
+ *     The created annotations are tagged with the fingerprint of the parameters of the detection
+ *     (see {@link TissueDetectorParameters#getFingerprint()}), so that they can be found and reused later
+ *     (see {@link #getTissueAnnotations(PathObjectHierarchy, TissueDetectorParameters)}).
+ * </p>
  */
 public class TissueDetector {
 
     private static final Logger logger = LoggerFactory.getLogger(FatGlobuleDetector.class);
+    private static final String FINGERPRINT_METADATA_KEY = "liverquant.tissue";
 
     /**
      * Run the detection algorithm.
      *
      * @param tissueDetectorParameters  the parameters to use for the detection
-     * @return a list of annotations containing the tissue of the image
+     * @return a list of annotations containing the tissue of the plane of the image (see {@link TissueDetectorParameters#getPlane()})
      */
     public static List<PathObject> detectTissue(TissueDetectorParameters tissueDetectorParameters) {
-        RegionRequest regionRequest = RegionRequest.createInstance(tissueDetectorParameters.getServer(), tissueDetectorParameters.getDownsample());
+        return detectTissue(tissueDetectorParameters, DetectionMetricsRecorder.DISABLED, null);
+    }
+
+    /**
+     * Get the annotations of a hierarchy that were created by a tissue detection with the same parameters
+     * as the provided ones.
+     *
+     * @param hierarchy  the hierarchy containing the annotations
+     * @param tissueDetectorParameters  the parameters of the tissue detection
+     * @return the tissue annotations of the hierarchy created with the provided parameters. This list is empty
+     * if no such annotation exists
+     */
+    public static List<PathObject> getTissueAnnotations(PathObjectHierarchy hierarchy, TissueDetectorParameters tissueDetectorParameters) {
+        String fingerprint = tissueDetectorParameters.getFingerprint();
+
+        return hierarchy.getAnnotationObjects().stream()
+                .filter(annotation -> fingerprint.equals(annotation.getMetadata().get(FINGERPRINT_METADATA_KEY)))
+                .toList();
+    }
+
+    /**
+     * Run the detection algorithm and record the time spent in each stage.
+     *
+     * @param tissueDetectorParameters  the parameters to use for the detection
+     * @param metricsRecorder  the recorder to record the time spent in each stage to
+     * @param maskCache  a cache where the low resolution tissue mask of the image is stored, or null to not cache it.
+     *                   If the mask of these parameters is in the cache, the image is not read
+     * @return a list of annotations containing the tissue of the plane of the image (see {@link TissueDetectorParameters#getPlane()})
+     */
+    static List<PathObject> detectTissue(TissueDetectorParameters tissueDetectorParameters, DetectionMetricsRecorder metricsRecorder, TileMaskCache maskCache) {
+        RegionRequest regionRequest = RegionRequest.createInstance(
+                tissueDetectorParameters.getServer().getPath(),
+                tissueDetectorParameters.getDownsample(),
+                0,
+                0,
+                tissueDetectorParameters.getServer().getWidth(),
+                tissueDetectorParameters.getServer().getHeight(),
+                tissueDetectorParameters.getPlane().getZ(),
+                tissueDetectorParameters.getPlane().getT()
+        );
+        String fingerprint = tissueDetectorParameters.getFingerprint();
+
+        Mat mat = maskCache == null ? null : maskCache.get(fingerprint);
+        if (mat == null) {
+            mat = createTissueMask(tissueDetectorParameters, regionRequest, metricsRecorder);
+            if (mat == null) {
+                return List.of();
+            }
+
+            if (maskCache != null) {
+                maskCache.put(fingerprint, mat);
+            }
+        } else {
+            logger.debug("Tissue mask of {} read from the cache", tissueDetectorParameters.getServer().getPath());
+        }
+
+        long startTime = metricsRecorder.start();
+        List<PathObject> annotations = OpenCVTools.createROIs(mat, regionRequest, 1, -1).values().stream()
+                .map(RoiTools::splitROI)
+                .flatMap(List::stream)
+                .map(PathObjects::createAnnotationObject)
+                .peek(annotation -> {
+                    annotation.setLocked(true);
+                    annotation.getMetadata().put(FINGERPRINT_METADATA_KEY, fingerprint);
+                })
+                .toList();
+
+        mat.close();
+        metricsRecorder.stop(DetectionMetrics.Stage.TISSUE_OBJECT_CREATION, startTime);
 
+        return annotations;
+    }
+
+    private static Mat createTissueMask(
+            TissueDetectorParameters tissueDetectorParameters,
+            RegionRequest regionRequest,
+            DetectionMetricsRecorder metricsRecorder
+    ) {
+        long startTime = metricsRecorder.start();
         Mat mat;
         try {
             mat = OpenCVTools.imageToMat(tissueDetectorParameters.getServer().readRegion(regionRequest));
         } catch (IOException e) {
             logger.error("Error when reading image", e);
-            return List.of();
+            return null;
         }
+        metricsRecorder.stop(DetectionMetrics.Stage.TISSUE_READ, startTime);
 
+        startTime = metricsRecorder.start();
         MatOperations.segmentByColor(mat, tissueDetectorParameters.getLowerBound(), tissueDetectorParameters.getUpperBound());
+        metricsRecorder.stop(DetectionMetrics.Stage.TISSUE_SEGMENTATION, startTime);
+
+        startTime = metricsRecorder.start();
         MatOperations.addBorder(mat);
         MatOperations.fillHoles(
                 mat,
@@ -47,16 +138,8 @@ public class TissueDetector {
         mat = MatOperations.removeBorder(mat);
         MatOperations.bitwiseNot(mat);
         MatOperations.fillHoles(mat);
+        metricsRecorder.stop(DetectionMetrics.Stage.TISSUE_HOLE_FILLING, startTime);
 
-        List<PathObject> annotations = OpenCVTools.createROIs(mat, regionRequest, 1, -1).values().stream()
-                .map(RoiTools::splitROI)
-                .flatMap(List::stream)
-                .map(PathObjects::createAnnotationObject)
-                .peek(annotation -> annotation.setLocked(true))
-                .toList();
-
-        mat.close();
-
-        return annotations;
+        return mat;
     }
 }
@@ -1,8 +1,13 @@
 package qupath.ext.liverquant.core;
 
 import qupath.lib.images.servers.ImageServer;
+import qupath.lib.regions.ImagePlane;
 
 import java.awt.image.BufferedImage;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
 
 /**
  * <p>
@@ -19,6 +24,7 @@ public class TissueDetectorParameters {
     private final HsvArray upperBound;
     private final double downsample;
     private final double minTissueArea;
+    private final ImagePlane plane;
 
     private TissueDetectorParameters(TissueDetectorParameters.Builder builder) {
         this.server = builder.server;
@@ -26,6 +32,7 @@ public class TissueDetectorParameters {
         this.upperBound = builder.upperBound;
         this.downsample = builder.downsample;
         this.minTissueArea = builder.minTissueArea;
+        this.plane = builder.plane;
     }
 
     /**
@@ -63,6 +70,55 @@ public class TissueDetectorParameters {
         return minTissueArea;
     }
 
+    /**
+     * @return the z-slice and timepoint of the image where the tissue should be detected
+     */
+    public ImagePlane getPlane() {
+        return plane;
+    }
+
+    /**
+     * Create a copy of these parameters that detects the tissue on another plane of the image.
+     *
+     * @param plane  the z-slice and timepoint of the image where the tissue should be detected
+     * @return a copy of these parameters detecting the tissue on the provided plane
+     * @throws IllegalArgumentException if the plane is outside the image
+     */
+    TissueDetectorParameters withPlane(ImagePlane plane) {
+        return new Builder(server)
+                .setLowerBound(lowerBound)
+                .setUpperBound(upperBound)
+                .setDownsample(downsample)
+                .setMinTissueArea(minTissueArea)
+                .setPlane(plane)
+                .build();
+    }
+
+    /**
+     * Compute a fingerprint of these parameters. Two sets of parameters have the same fingerprint
+     * if they describe the same tissue detection on the same image.
+     *
+     * @return a fingerprint of these parameters
+     */
+    public String getFingerprint() {
+        String description = String.join(
+                ";",
+                server == null ? "" : server.getPath(),
+                lowerBound.toString(),
+                upperBound.toString(),
+                String.valueOf(downsample),
+                String.valueOf(minTissueArea),
+                String.valueOf(plane.getZ()),
+                String.valueOf(plane.getT())
+        );
+
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(description.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     /**
      * Create an instance of {@link TissueDetectorParameters}.
      */
@@ -73,6 +129,7 @@ public class TissueDetectorParameters {
         private HsvArray upperBound = new HsvArray(180, 10, 255);
         private double downsample = 32;
         private double minTissueArea = 5e5;
+        private ImagePlane plane = ImagePlane.getDefaultPlane();
 
         /**
          * Create the builder.
@@ -119,6 +176,26 @@ public class TissueDetectorParameters {
             return this;
         }
 
+        /**
+         * @param plane  the z-slice and timepoint of the image where the tissue should be detected
+         * @return this builder
+         * @throws IllegalArgumentException if the plane is outside the image
+         */
+        public TissueDetectorParameters.Builder setPlane(ImagePlane plane) {
+            if (server != null && (plane.getZ() >= server.nZSlices() || plane.getT() >= server.nTimepoints())) {
+                throw new IllegalArgumentException(String.format(
+                        "The supplied plane (z=%d, t=%d) is outside the image (%d z-slices, %d timepoints)",
+                        plane.getZ(),
+                        plane.getT(),
+                        server.nZSlices(),
+                        server.nTimepoints()
+                ));
+            }
+
+            this.plane = plane;
+            return this;
+        }
+
         /**
          * Build the {@link TissueDetectorParameters} instance.
          *
@@ -1,39 +1,91 @@
 package qupath.ext.liverquant.gui;
 
+import javafx.animation.PauseTransition;
 import javafx.application.Platform;
 import javafx.collections.FXCollections;
 import javafx.event.ActionEvent;
 import javafx.fxml.FXML;
 import javafx.scene.control.Button;
+import javafx.scene.control.CheckBox;
 import javafx.scene.control.ChoiceBox;
+import javafx.scene.control.Label;
 import javafx.scene.control.TextField;
 import javafx.scene.control.TextFormatter;
 import javafx.scene.control.TitledPane;
 import javafx.stage.Stage;
+import javafx.util.Duration;
 import javafx.util.StringConverter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.ext.liverquant.core.DetectionPreview;
+import qupath.ext.liverquant.core.DetectionProgress;
 import qupath.ext.liverquant.core.FatGlobuleDetector;
 import qupath.ext.liverquant.core.FatGlobulesDetectorParameters;
+import qupath.ext.liverquant.core.GlobuleLabelImage;
 import qupath.ext.liverquant.core.HsvArray;
+import qupath.ext.liverquant.core.HsvThresholdEstimator;
 import qupath.ext.liverquant.core.TissueDetectorParameters;
 import qupath.lib.gui.QuPathGUI;
+import qupath.lib.gui.viewer.QuPathViewer;
+import qupath.lib.gui.viewer.QuPathViewerListener;
 import qupath.fx.dialogs.Dialogs;
 import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.ImageServer;
 import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.projects.ProjectImageEntry;
+import qupath.lib.regions.ImageRegion;
+import qupath.lib.roi.ROIs;
 
+import java.awt.Rectangle;
+import java.awt.Shape;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.List;
 import java.util.ResourceBundle;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.function.UnaryOperator;
 import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 /**
  * A window to input parameters and run a {@link FatGlobuleDetector}.
  */
 public class DetectFatGlobulesWindow extends Stage {
 
+    private static final Logger logger = LoggerFactory.getLogger(DetectFatGlobulesWindow.class);
     private static final ResourceBundle resources = UiUtilities.getResources();
     private static final Pattern unsignerIntegerPattern = Pattern.compile("\\d*");
+    private static final String MASK_CACHE_DIRECTORY_NAME = "liverquant-mask-cache";
+    private static final double PREVIEW_DELAY_MILLIS = 500;
+    private static final long PUBLICATION_INTERVAL_MILLIS = 1000;
+    private final DetectionPreview detectionPreview = new DetectionPreview();
+    private final PauseTransition previewDelay = new PauseTransition(Duration.millis(PREVIEW_DELAY_MILLIS));
+    private final QuPathViewerListener previewViewerListener = new QuPathViewerListener() {
+        @Override
+        public void imageDataChanged(QuPathViewer viewer, ImageData<BufferedImage> imageDataOld, ImageData<BufferedImage> imageDataNew) {
+            schedulePreview();
+        }
+
+        @Override
+        public void visibleRegionChanged(QuPathViewer viewer, Shape shape) {
+            schedulePreview();
+        }
+
+        @Override
+        public void selectedObjectChanged(QuPathViewer viewer, PathObject pathObjectSelected) {}
+
+        @Override
+        public void viewerClosed(QuPathViewer viewer) {
+            preview.setSelected(false);
+        }
+    };
+    private QuPathViewer previewViewer;
+    private PreviewOverlay previewOverlay;
+    private QuPathViewer labelOverlayViewer;
+    private GlobuleLabelOverlay labelOverlay;
     @FXML
     private ChoiceBox<FatGlobulesDetectorParameters.ObjectToCreate> objectsToCreate;
     @FXML
@@ -41,6 +93,10 @@ public class DetectFatGlobulesWindow extends Stage {
     @FXML
     private ChoiceBox<FatGlobulesDetectorParameters.DetectionRegion> detectionRegion;
     @FXML
+    private CheckBox pixelOverlay;
+    @FXML
+    private CheckBox maskCache;
+    @FXML
     private TextField lowerHue;
     @FXML
     private TextField lowerSaturation;
@@ -91,7 +147,13 @@ public class DetectFatGlobulesWindow extends Stage {
     @FXML
     private TextField minTissueArea;
     @FXML
+    private Button estimateThresholds;
+    @FXML
+    private CheckBox preview;
+    @FXML
     private Button run;
+    @FXML
+    private Label progress;
 
     /**
      * Create the FatGlobuleWindow.
@@ -127,8 +189,74 @@ public class DetectFatGlobulesWindow extends Stage {
             return;
         }
 
+        GlobuleLabelImage labelImage = pixelOverlay.isSelected() ? showLabelImage(quPathGUI.getViewer()) : null;
+
         run.setDisable(true);
-        FatGlobuleDetector.run(new FatGlobulesDetectorParameters.Builder(imageData)
+        FatGlobuleDetector.run(createParametersBuilder(imageData)
+                .setLabelImage(labelImage)
+                .setAnnotations(selectedAnnotations)
+                .setDetectionRegion(detectionRegion.getSelectionModel().getSelectedItem())
+                .setProgressDisplay(FatGlobulesDetectorParameters.ProgressDisplay.WINDOW)
+                .setMaskCacheDirectory(maskCache.isSelected() ? getMaskCacheDirectory(quPathGUI, imageData) : null)
+                .setPriorityRegion(getVisibleRegion(quPathGUI.getViewer()))
+                .setPublicationInterval(PUBLICATION_INTERVAL_MILLIS)
+                .setProgressListener(detectionProgress -> Platform.runLater(() -> {
+                    progress.setText(getProgressText(detectionProgress));
+                    if (labelImage != null) {
+                        quPathGUI.getViewer().repaint();
+                    }
+                }))
+                .setOnFinished(() -> Platform.runLater(() -> {
+                    run.setDisable(false);
+                    quPathGUI.getViewer().getHierarchy().resolveHierarchy();
+                    quPathGUI.getViewer().repaint();
+                }))
+                .build()
+        );
+    }
+
+    @FXML
+    private void estimateThresholds(ActionEvent ignoredEvent) {
+        ImageData<BufferedImage> imageData = QuPathGUI.getInstance().getImageData();
+        if (imageData == null) {
+            Dialogs.showErrorMessage(
+                    resources.getString("DetectFatGlobulesWindow.liverquant"),
+                    resources.getString("DetectFatGlobulesWindow.imageMustBeOpened")
+            );
+            return;
+        }
+
+        FatGlobulesDetectorParameters parameters = createParametersBuilder(imageData)
+                .setProgressDisplay(FatGlobulesDetectorParameters.ProgressDisplay.LOG)
+                .build();
+
+        estimateThresholds.setDisable(true);
+        CompletableFuture.supplyAsync(() -> {
+            try {
+                return HsvThresholdEstimator.estimate(parameters);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }).whenComplete((estimation, error) -> Platform.runLater(() -> {
+            estimateThresholds.setDisable(false);
+
+            if (error == null) {
+                setBounds(lowerHue, lowerSaturation, lowerValue, estimation.globuleLowerBound());
+                setBounds(upperHue, upperSaturation, upperValue, estimation.globuleUpperBound());
+                setBounds(lowerHueTissue, lowerSaturationTissue, lowerValueTissue, estimation.tissueLowerBound());
+                setBounds(upperHueTissue, upperSaturationTissue, upperValueTissue, estimation.tissueUpperBound());
+            } else {
+                logger.error("Error when estimating thresholds", error);
+                Dialogs.showErrorMessage(
+                        resources.getString("DetectFatGlobulesWindow.liverquant"),
+                        resources.getString("DetectFatGlobulesWindow.cannotEstimateThresholds")
+                );
+            }
+        }));
+    }
+
+    private FatGlobulesDetectorParameters.Builder createParametersBuilder(ImageData<BufferedImage> imageData) {
+        return new FatGlobulesDetectorParameters.Builder(imageData)
                 .setTissueDetectorParameters(new TissueDetectorParameters.Builder(imageData.getServer())
                         .setLowerBound(new HsvArray(
                                 lowerHueTissue.getText().isEmpty() ? 0 : Integer.parseInt(lowerHueTissue.getText()),
@@ -144,9 +272,6 @@ public class DetectFatGlobulesWindow extends Stage {
                         .setMinTissueArea(minTissueArea.getText().isEmpty() ? 0 : Float.parseFloat(minTissueArea.getText()))
                         .build()
                 )
-                .setAnnotations(selectedAnnotations)
-                .setDetectionRegion(detectionRegion.getSelectionModel().getSelectedItem())
-                .setProgressDisplay(FatGlobulesDetectorParameters.ProgressDisplay.WINDOW)
                 .setObjectToCreate(objectsToCreate.getSelectionModel().getSelectedItem())
                 .setPixelSize(pixelSize.getText().isEmpty() ? 0 : Float.parseFloat(pixelSize.getText()))
                 .setLowerBound(new HsvArray(
@@ -168,13 +293,143 @@ public class DetectFatGlobulesWindow extends Stage {
                 .setTileWidth(tileWidth.getText().isEmpty() ? 0 : Integer.parseInt(tileWidth.getText()))
                 .setTileHeight(tileHeight.getText().isEmpty() ? 0 : Integer.parseInt(tileHeight.getText()))
                 .setPadding(padding.getText().isEmpty() ? 0 : Integer.parseInt(padding.getText()))
-                .setBoundaryThreshold(boundaryThreshold.getText().isEmpty() ? 0 : Float.parseFloat(boundaryThreshold.getText()))
-                .setOnFinished(() -> Platform.runLater(() -> {
-                    run.setDisable(false);
-                    quPathGUI.getViewer().getHierarchy().resolveHierarchy();
-                }))
-                .build()
+                .setBoundaryThreshold(boundaryThreshold.getText().isEmpty() ? 0 : Float.parseFloat(boundaryThreshold.getText()));
+    }
+
+    private GlobuleLabelImage showLabelImage(QuPathViewer viewer) {
+        // Only the globules of the last detection are displayed
+        if (labelOverlayViewer != null) {
+            labelOverlayViewer.getCustomOverlayLayers().remove(labelOverlay);
+        }
+
+        GlobuleLabelImage labelImage = new GlobuleLabelImage();
+        labelOverlayViewer = viewer;
+        labelOverlay = new GlobuleLabelOverlay(viewer.getOverlayOptions(), labelImage);
+        viewer.getCustomOverlayLayers().add(labelOverlay);
+
+        return labelImage;
+    }
+
+    private void startPreview() {
+        previewViewer = QuPathGUI.getInstance().getViewer();
+        previewOverlay = new PreviewOverlay(previewViewer.getOverlayOptions());
+        previewViewer.getCustomOverlayLayers().add(previewOverlay);
+        previewViewer.addViewerListener(previewViewerListener);
+
+        schedulePreview();
+    }
+
+    private void stopPreview() {
+        previewDelay.stop();
+        detectionPreview.cancel();
+
+        if (previewViewer != null) {
+            previewViewer.removeViewerListener(previewViewerListener);
+            previewViewer.getCustomOverlayLayers().remove(previewOverlay);
+            previewViewer.repaint();
+            previewViewer = null;
+            previewOverlay = null;
+        }
+    }
+
+    private void schedulePreview() {
+        if (previewViewer != null) {
+            // The running preview is outdated, so it is cancelled right away
+            detectionPreview.cancel();
+            previewDelay.playFromStart();
+        }
+    }
+
+    private void updatePreview() {
+        if (previewViewer == null) {
+            return;
+        }
+        QuPathViewer viewer = previewViewer;
+        PreviewOverlay overlay = previewOverlay;
+
+        ImageData<BufferedImage> imageData = viewer.getImageData();
+        if (imageData == null) {
+            overlay.setObjects(List.of());
+            viewer.repaint();
+            return;
+        }
+        ImageServer<BufferedImage> server = imageData.getServer();
+
+        ImageRegion visibleRegion = getVisibleRegion(viewer);
+        if (visibleRegion == null) {
+            return;
+        }
+
+        // The preview is never computed at a finer resolution than the one of the viewer, so that it stays quick when zoomed out
+        double fullResolutionPixelSize = server.getPixelCalibration().getAveragedPixelSizeMicrons();
+        float requestedPixelSize = pixelSize.getText().isEmpty() ? 0 : Float.parseFloat(pixelSize.getText());
+        float previewPixelSize = (float) Math.max(
+                Math.max(requestedPixelSize, fullResolutionPixelSize),
+                viewer.getDownsampleFactor() * fullResolutionPixelSize
         );
+
+        FatGlobulesDetectorParameters parameters;
+        try {
+            parameters = createParametersBuilder(imageData)
+                    .setDetectionRegion(FatGlobulesDetectorParameters.DetectionRegion.SELECTED_ANNOTATIONS)
+                    .setAnnotations(List.of(PathObjects.createAnnotationObject(ROIs.createRectangleROI(visibleRegion))))
+                    .setPixelSize(previewPixelSize)
+                    .build();
+        } catch (IllegalArgumentException e) {
+            // The parameters are being edited and are not valid yet
+            return;
+        }
+
+        detectionPreview.run(parameters).thenAccept(globules -> Platform.runLater(() -> {
+            overlay.setObjects(globules);
+            viewer.repaint();
+        }));
+    }
+
+    private static void setBounds(TextField hue, TextField saturation, TextField value, HsvArray bounds) {
+        hue.setText(String.valueOf(bounds.hue()));
+        saturation.setText(String.valueOf(bounds.saturation()));
+        value.setText(String.valueOf(bounds.value()));
+    }
+
+    private static ImageRegion getVisibleRegion(QuPathViewer viewer) {
+        if (viewer == null || viewer.getServer() == null) {
+            return null;
+        }
+        ImageServer<BufferedImage> server = viewer.getServer();
+
+        Rectangle visibleRegion = viewer.getDisplayedRegionShape().getBounds();
+        int x = Math.max(0, visibleRegion.x);
+        int y = Math.max(0, visibleRegion.y);
+        int width = Math.min(server.getWidth(), visibleRegion.x + visibleRegion.width) - x;
+        int height = Math.min(server.getHeight(), visibleRegion.y + visibleRegion.height) - y;
+
+        return width <= 0 || height <= 0 ? null : ImageRegion.createInstance(x, y, width, height, viewer.getZPosition(), viewer.getTPosition());
+    }
+
+    private static String getProgressText(DetectionProgress detectionProgress) {
+        return switch (detectionProgress.phase()) {
+            case TISSUE_DETECTION -> resources.getString("DetectFatGlobulesWindow.detectingTissue");
+            case TILE_PROCESSING -> String.format(
+                    resources.getString("DetectFatGlobulesWindow.processingTiles"),
+                    detectionProgress.completedTiles(),
+                    detectionProgress.totalTiles(),
+                    detectionProgress.tilesPerSecond(),
+                    detectionProgress.estimatedTimeRemaining() == null ? "?" : String.format(
+                            "%d:%02d",
+                            detectionProgress.estimatedTimeRemaining().toMinutes(),
+                            detectionProgress.estimatedTimeRemaining().toSecondsPart()
+                    ),
+                    detectionProgress.globuleCount(),
+                    detectionProgress.fatArea()
+            );
+            case MEASUREMENTS -> resources.getString("DetectFatGlobulesWindow.computingMeasurements");
+            case FINISHED -> String.format(
+                    resources.getString("DetectFatGlobulesWindow.detectionFinished"),
+                    detectionProgress.globuleCount(),
+                    detectionProgress.fatArea()
+            );
+        };
     }
 
     private void initUI(Stage owner) throws IOException {
@@ -205,6 +460,9 @@ public class DetectFatGlobulesWindow extends Stage {
             }
         });
         objectsToCreate.getSelectionModel().select(defaultParameters.getObjectToCreate());
+        objectsToCreate.disableProperty().bind(pixelOverlay.selectedProperty());
+        pixelOverlay.setSelected(defaultParameters.getLabelImage() != null);
+        maskCache.setSelected(defaultParameters.getMaskCacheDirectory() != null);
         pixelSize.setText(String.valueOf(defaultParameters.getPixelSize()));
         pixelSize.setTextFormatter(new TextFormatter<>(floatFilter));
         detectionRegion.setItems(FXCollections.observableList(List.of(FatGlobulesDetectorParameters.DetectionRegion.values())));
@@ -280,6 +538,22 @@ public class DetectFatGlobulesWindow extends Stage {
         downsample.setTextFormatter(new TextFormatter<>(unsignedFloatFilter));
         minTissueArea.setTextFormatter(new TextFormatter<>(unsignedFloatFilter));
 
+        previewDelay.setOnFinished(event -> updatePreview());
+        preview.selectedProperty().addListener((p, o, n) -> {
+            if (n) {
+                startPreview();
+            } else {
+                stopPreview();
+            }
+        });
+        Stream.of(
+                pixelSize, lowerHue, lowerSaturation, lowerValue, upperHue, upperSaturation, upperValue,
+                minIsolatedGlobuleElongation, minOverlappingGlobuleElongation, minIsolatedGlobuleSolidity,
+                minOverlappingGlobuleSolidity, minDiameter, maxDiameter, tileWidth, tileHeight, padding, boundaryThreshold
+        ).forEach(textField -> textField.textProperty().addListener((p, o, n) -> schedulePreview()));
+        objectsToCreate.getSelectionModel().selectedItemProperty().addListener((p, o, n) -> schedulePreview());
+        setOnHidden(event -> preview.setSelected(false));
+
         if (owner != null) {
             initOwner(owner);
         }
@@ -287,6 +561,15 @@ public class DetectFatGlobulesWindow extends Stage {
         show();
     }
 
+    private static Path getMaskCacheDirectory(QuPathGUI quPathGUI, ImageData<BufferedImage> imageData) {
+        if (quPathGUI.getProject() == null) {
+            return null;
+        }
+
+        ProjectImageEntry<BufferedImage> entry = quPathGUI.getProject().getEntry(imageData);
+        return entry == null ? null : entry.getEntryPath().resolve(MASK_CACHE_DIRECTORY_NAME);
+    }
+
     private static UnaryOperator<TextFormatter.Change> getIntegerBetweenBoundsFilter(int upperBound) {
         return change -> {
             if (unsignerIntegerPattern.matcher(change.getControlNewText()).matches()) {
@@ -0,0 +1,80 @@
+package qupath.ext.liverquant.gui;
+
+import qupath.ext.liverquant.core.GlobuleLabelImage;
+import qupath.lib.gui.viewer.OverlayOptions;
+import qupath.lib.gui.viewer.overlays.AbstractOverlay;
+import qupath.lib.images.ImageData;
+import qupath.lib.regions.ImageRegion;
+import qupath.lib.regions.RegionRequest;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+
+/**
+ * An overlay displaying the globules written to a {@link GlobuleLabelImage} as colored pixels, similarly to
+ * the output of a pixel classifier. Only the tiles of the label image intersecting the painted region are decoded,
+ * and no object is created.
+ */
+public class GlobuleLabelOverlay extends AbstractOverlay {
+
+    private static final IndexColorModel COLOR_MODEL = createColorModel(255, 200, 0);
+    private final GlobuleLabelImage labelImage;
+
+    /**
+     * Create the overlay.
+     *
+     * @param overlayOptions  the options of the viewer displaying this overlay
+     * @param labelImage  the label image containing the globules to display. It can still be filled while being displayed,
+     *                    in which case the viewer should be repainted regularly
+     */
+    public GlobuleLabelOverlay(OverlayOptions overlayOptions, GlobuleLabelImage labelImage) {
+        super(overlayOptions);
+
+        this.labelImage = labelImage;
+    }
+
+    @Override
+    public void paintOverlay(Graphics2D g2d, ImageRegion imageRegion, double downsampleFactor, ImageData<BufferedImage> imageData, boolean paintCompletely) {
+        if (!isVisible() || imageData == null) {
+            return;
+        }
+
+        Graphics2D graphics = (Graphics2D) g2d.create();
+        graphics.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, (float) getOpacity()));
+
+        for (GlobuleLabelImage.Tile tile: labelImage.getTiles(imageData.getServer().getPath(), imageRegion)) {
+            RegionRequest region = tile.region();
+
+            // The mask is displayed through a color model without copying its pixels
+            graphics.drawImage(
+                    new BufferedImage(COLOR_MODEL, tile.mask().getRaster(), false, null),
+                    region.getX(),
+                    region.getY(),
+                    region.getWidth(),
+                    region.getHeight(),
+                    null
+            );
+        }
+
+        graphics.dispose();
+    }
+
+    private static IndexColorModel createColorModel(int red, int green, int blue) {
+        byte[] reds = new byte[256];
+        byte[] greens = new byte[256];
+        byte[] blues = new byte[256];
+        byte[] alphas = new byte[256];
+
+        // Index 0 (background) stays transparent, any other index is a globule
+        for (int i=1; i<256; ++i) {
+            reds[i] = (byte) red;
+            greens[i] = (byte) green;
+            blues[i] = (byte) blue;
+            alphas[i] = (byte) 255;
+        }
+
+        return new IndexColorModel(8, 256, reds, greens, blues, alphas);
+    }
+}
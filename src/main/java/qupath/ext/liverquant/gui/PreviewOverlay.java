@@ -0,0 +1,67 @@
+package qupath.ext.liverquant.gui;
+
+import qupath.lib.gui.viewer.OverlayOptions;
+import qupath.lib.gui.viewer.overlays.AbstractOverlay;
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathObject;
+import qupath.lib.regions.ImageRegion;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.List;
+
+/**
+ * An overlay displaying the outline of objects that don't belong to the hierarchy of the image,
+ * such as the globules detected by a preview.
+ */
+class PreviewOverlay extends AbstractOverlay {
+
+    private static final Color COLOR = new Color(255, 200, 0);
+    private static final float STROKE_WIDTH = 1.5f;
+    private volatile List<PathObject> objects = List.of();
+
+    /**
+     * Create the overlay. It doesn't display anything until {@link #setObjects(List)} is called.
+     *
+     * @param overlayOptions  the options of the viewer displaying this overlay
+     */
+    public PreviewOverlay(OverlayOptions overlayOptions) {
+        super(overlayOptions);
+    }
+
+    /**
+     * Set the objects to display. The viewer displaying this overlay should be repainted after this call.
+     *
+     * @param objects  the objects to display
+     */
+    public void setObjects(List<PathObject> objects) {
+        this.objects = List.copyOf(objects);
+    }
+
+    @Override
+    public void paintOverlay(Graphics2D g2d, ImageRegion imageRegion, double downsampleFactor, ImageData<BufferedImage> imageData, boolean paintCompletely) {
+        List<PathObject> objectsToPaint = objects;
+        if (!isVisible() || objectsToPaint.isEmpty()) {
+            return;
+        }
+
+        Graphics2D graphics = (Graphics2D) g2d.create();
+        graphics.setColor(COLOR);
+        graphics.setStroke(new BasicStroke((float) (STROKE_WIDTH * downsampleFactor)));
+
+        for (PathObject object: objectsToPaint) {
+            ROI roi = object.getROI();
+
+            if (roi != null && roi.getZ() == imageRegion.getZ() && roi.getT() == imageRegion.getT() &&
+                    imageRegion.intersects(roi.getBoundsX(), roi.getBoundsY(), roi.getBoundsWidth(), roi.getBoundsHeight())
+            ) {
+                graphics.draw(roi.getShape());
+            }
+        }
+
+        graphics.dispose();
+    }
+}
@@ -0,0 +1,107 @@
+package qupath.ext.liverquant.core;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.regions.RegionRequest;
+import qupath.lib.roi.ROIs;
+
+import java.util.List;
+
+public class TestBoundaryStitcher {
+
+    private static final int TILE_SIZE = 100;
+
+    @Test
+    void Check_Globule_Not_Touching_Shared_Edge_Returned_Immediately() {
+        PathObject parent = createParent();
+        BoundaryStitcher boundaryStitcher = createStitcher(parent);
+        PathObject globule = createGlobule(40, 40, 10, 10);
+        PathObject globuleOnOuterBoundary = createGlobule(0, 40, 10, 10);
+
+        List<PathObject> globules = boundaryStitcher.addTile(
+                parent,
+                createTile(0),
+                TILE_SIZE,
+                TILE_SIZE,
+                List.of(globule, globuleOnOuterBoundary)
+        );
+
+        Assertions.assertEquals(List.of(globule, globuleOnOuterBoundary), globules);
+    }
+
+    @Test
+    void Check_Pieces_With_Overlapping_Extents_Merged() {
+        PathObject parent = createParent();
+        BoundaryStitcher boundaryStitcher = createStitcher(parent);
+
+        List<PathObject> firstGlobules = boundaryStitcher.addTile(parent, createTile(0), TILE_SIZE, TILE_SIZE, List.of(createGlobule(80, 40, 19, 19)));
+        List<PathObject> secondGlobules = boundaryStitcher.addTile(parent, createTile(TILE_SIZE), TILE_SIZE, TILE_SIZE, List.of(createGlobule(100, 40, 20, 19)));
+
+        Assertions.assertTrue(firstGlobules.isEmpty());
+        Assertions.assertEquals(1, secondGlobules.size());
+        Assertions.assertEquals(80, secondGlobules.get(0).getROI().getBoundsX(), 1e-6);
+        Assertions.assertEquals(40, secondGlobules.get(0).getROI().getBoundsWidth(), 1e-6);
+    }
+
+    @Test
+    void Check_Pieces_With_Disjoint_Extents_Not_Merged() {
+        PathObject parent = createParent();
+        BoundaryStitcher boundaryStitcher = createStitcher(parent);
+
+        List<PathObject> firstGlobules = boundaryStitcher.addTile(parent, createTile(0), TILE_SIZE, TILE_SIZE, List.of(createGlobule(80, 10, 19, 10)));
+        List<PathObject> secondGlobules = boundaryStitcher.addTile(parent, createTile(TILE_SIZE), TILE_SIZE, TILE_SIZE, List.of(createGlobule(100, 70, 20, 10)));
+
+        Assertions.assertTrue(firstGlobules.isEmpty());
+        Assertions.assertEquals(2, secondGlobules.size());
+    }
+
+    @Test
+    void Check_Pieces_Of_Unprocessed_Edge_Returned_When_Finished() {
+        PathObject parent = createParent();
+        BoundaryStitcher boundaryStitcher = createStitcher(parent);
+
+        List<PathObject> globules = boundaryStitcher.addTile(parent, createTile(0), TILE_SIZE, TILE_SIZE, List.of(createGlobule(80, 40, 19, 19)));
+
+        Assertions.assertTrue(globules.isEmpty());
+        Assertions.assertEquals(1, boundaryStitcher.finish().get(parent).size());
+    }
+
+    @Test
+    void Check_Globules_Of_Unplanned_Parent_Returned() {
+        PathObject parent = createParent();
+        BoundaryStitcher boundaryStitcher = new BoundaryStitcher(createParameters());
+        List<PathObject> globules = List.of(createGlobule(80, 40, 19, 19));
+
+        Assertions.assertEquals(globules, boundaryStitcher.addTile(parent, createTile(0), TILE_SIZE, TILE_SIZE, globules));
+    }
+
+    private static FatGlobulesDetectorParameters createParameters() {
+        return new FatGlobulesDetectorParameters.Builder(null)
+                .setTileWidth(TILE_SIZE)
+                .setTileHeight(TILE_SIZE)
+                .build();
+    }
+
+    private static PathObject createParent() {
+        // Two tiles sharing the vertical edge x = TILE_SIZE
+        return PathObjects.createAnnotationObject(ROIs.createRectangleROI(0, 0, 2 * TILE_SIZE, TILE_SIZE, ImagePlane.getDefaultPlane()));
+    }
+
+    private static BoundaryStitcher createStitcher(PathObject parent) {
+        BoundaryStitcher boundaryStitcher = new BoundaryStitcher(createParameters());
+        boundaryStitcher.plan(List.of(parent));
+        return boundaryStitcher;
+    }
+
+    private static RegionRequest createTile(int x) {
+        return RegionRequest.createInstance("test", 1, x, 0, TILE_SIZE, TILE_SIZE);
+    }
+
+    private static PathObject createGlobule(double x, double y, double width, double height) {
+        // Contours go through the centers of the border pixels
+        return PathObjects.createDetectionObject(ROIs.createRectangleROI(x, y, width, height, ImagePlane.getDefaultPlane()));
+    }
+}
@@ -0,0 +1,123 @@
+package qupath.ext.liverquant.core;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.WrappedBufferedImageServer;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.regions.RegionRequest;
+import qupath.lib.roi.ROIs;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+public class TestDetectionCheckpoint {
+
+    private static final ImageData<BufferedImage> imageData = new ImageData<>(
+            new WrappedBufferedImageServer("test", new BufferedImage(200, 200, BufferedImage.TYPE_INT_RGB))
+    );
+    private static final RegionRequest tile = RegionRequest.createInstance("test", 1, 0, 0, 100, 100);
+
+    @TempDir
+    Path temporaryDirectory;
+
+    @Test
+    void Check_Tile_Not_Completed_Without_Resume() throws IOException {
+        Path path = temporaryDirectory.resolve("checkpoint.txt");
+        writeCheckpoint(path, createParameters(0.5f));
+
+        try (DetectionCheckpoint checkpoint = new DetectionCheckpoint(path, createParameters(0.5f), false)) {
+            Assertions.assertNull(checkpoint.get(createAnnotation(), tile));
+        }
+    }
+
+    @Test
+    void Check_Counted_Globules_Read_Back() throws IOException {
+        Path path = temporaryDirectory.resolve("checkpoint.txt");
+        writeCheckpoint(path, createParameters(0.5f));
+
+        try (DetectionCheckpoint checkpoint = new DetectionCheckpoint(path, createParameters(0.5f), true)) {
+            DetectionCheckpoint.Tile completedTile = checkpoint.get(createAnnotation(), tile);
+
+            Assertions.assertEquals(
+                    List.of(new DetectionCheckpoint.CountedGlobule(15, 25, 10.5, 78.25)),
+                    completedTile.countedGlobules()
+            );
+        }
+    }
+
+    @Test
+    void Check_Globules_Read_Back() throws IOException {
+        Path path = temporaryDirectory.resolve("checkpoint.txt");
+        writeCheckpoint(path, createParameters(0.5f));
+
+        try (DetectionCheckpoint checkpoint = new DetectionCheckpoint(path, createParameters(0.5f), true)) {
+            DetectionCheckpoint.Tile completedTile = checkpoint.get(createAnnotation(), tile);
+
+            Assertions.assertEquals(1, completedTile.globules().size());
+            Assertions.assertTrue(createGlobule().getROI().getGeometry().equalsExact(completedTile.globules().get(0)));
+        }
+    }
+
+    @Test
+    void Check_Other_Tile_Not_Completed() throws IOException {
+        Path path = temporaryDirectory.resolve("checkpoint.txt");
+        writeCheckpoint(path, createParameters(0.5f));
+
+        try (DetectionCheckpoint checkpoint = new DetectionCheckpoint(path, createParameters(0.5f), true)) {
+            Assertions.assertNull(checkpoint.get(createAnnotation(), RegionRequest.createInstance("test", 1, 100, 0, 100, 100)));
+        }
+    }
+
+    @Test
+    void Check_Checkpoint_Of_Other_Parameters_Not_Resumed() throws IOException {
+        Path path = temporaryDirectory.resolve("checkpoint.txt");
+        writeCheckpoint(path, createParameters(0.5f));
+
+        try (DetectionCheckpoint checkpoint = new DetectionCheckpoint(path, createParameters(0.25f), true)) {
+            Assertions.assertNull(checkpoint.get(createAnnotation(), tile));
+        }
+    }
+
+    @Test
+    void Check_Checkpoint_Deleted() throws IOException {
+        Path path = temporaryDirectory.resolve("checkpoint.txt");
+
+        DetectionCheckpoint checkpoint = new DetectionCheckpoint(path, createParameters(0.5f), false);
+        checkpoint.add(createAnnotation(), tile, List.of(), List.of());
+        checkpoint.delete();
+
+        Assertions.assertFalse(Files.exists(path));
+    }
+
+    private static void writeCheckpoint(Path path, FatGlobulesDetectorParameters fatGlobulesDetectorParameters) throws IOException {
+        try (DetectionCheckpoint checkpoint = new DetectionCheckpoint(path, fatGlobulesDetectorParameters, false)) {
+            checkpoint.add(
+                    createAnnotation(),
+                    tile,
+                    List.of(new DetectionCheckpoint.CountedGlobule(15, 25, 10.5, 78.25)),
+                    List.of(createGlobule())
+            );
+        }
+    }
+
+    private static FatGlobulesDetectorParameters createParameters(float pixelSize) {
+        return new FatGlobulesDetectorParameters.Builder(imageData)
+                .setPixelSize(pixelSize)
+                .build();
+    }
+
+    private static PathObject createAnnotation() {
+        return PathObjects.createAnnotationObject(ROIs.createRectangleROI(0, 0, 200, 100, ImagePlane.getDefaultPlane()));
+    }
+
+    private static PathObject createGlobule() {
+        return PathObjects.createDetectionObject(ROIs.createRectangleROI(10, 20, 10, 10, ImagePlane.getDefaultPlane()));
+    }
+}
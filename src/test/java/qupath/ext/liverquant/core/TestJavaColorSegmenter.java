@@ -0,0 +1,89 @@
+package qupath.ext.liverquant.core;
+
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Random;
+
+public class TestJavaColorSegmenter {
+
+    private static final int SIZE = 64;
+    private static final List<HsvArray> lowerBounds = List.of(
+            new HsvArray(0, 0, 200),
+            new HsvArray(100, 50, 50),
+            new HsvArray(0, 100, 0)
+    );
+    private static final List<HsvArray> upperBounds = List.of(
+            new HsvArray(180, 25, 255),
+            new HsvArray(140, 255, 255),
+            new HsvArray(10, 255, 255)
+    );
+
+    @Test
+    void Check_Grey_Pixel() {
+        byte[][] masks = segment(128, 128, 128);
+
+        Assertions.assertArrayEquals(new byte[] {0, 0, 0}, new byte[] {masks[0][0], masks[1][0], masks[2][0]});
+    }
+
+    @Test
+    void Check_White_Pixel() {
+        byte[][] masks = segment(255, 255, 255);
+
+        Assertions.assertArrayEquals(new byte[] {(byte) 255, 0, 0}, new byte[] {masks[0][0], masks[1][0], masks[2][0]});
+    }
+
+    @Test
+    void Check_Blue_Pixel() {
+        byte[][] masks = segment(0, 0, 255);
+
+        Assertions.assertArrayEquals(new byte[] {0, (byte) 255, 0}, new byte[] {masks[0][0], masks[1][0], masks[2][0]});
+    }
+
+    @Test
+    void Check_Red_Pixel() {
+        byte[][] masks = segment(255, 0, 0);
+
+        Assertions.assertArrayEquals(new byte[] {0, 0, (byte) 255}, new byte[] {masks[0][0], masks[1][0], masks[2][0]});
+    }
+
+    @Test
+    void Check_Backends_Create_Identical_Masks() {
+        byte[] pixels = new byte[SIZE * SIZE * 3];
+        new Random(42).nextBytes(pixels);
+
+        try (Mat image = new Mat(SIZE, SIZE, opencv_core.CV_8UC3)) {
+            ((ByteBuffer) image.createBuffer()).put(pixels);
+
+            List<Mat> openCvMasks = List.of(new Mat(), new Mat(), new Mat());
+            List<Mat> javaMasks = List.of(new Mat(), new Mat(), new Mat());
+            MatOperations.segmentByColors(image, openCvMasks, lowerBounds, upperBounds, FatGlobulesDetectorParameters.SegmentationBackend.OPENCV);
+            MatOperations.segmentByColors(image, javaMasks, lowerBounds, upperBounds, FatGlobulesDetectorParameters.SegmentationBackend.JAVA);
+
+            for (int i=0; i<lowerBounds.size(); ++i) {
+                Assertions.assertArrayEquals(getPixels(openCvMasks.get(i)), getPixels(javaMasks.get(i)));
+            }
+
+            openCvMasks.forEach(Mat::close);
+            javaMasks.forEach(Mat::close);
+        }
+    }
+
+    private static byte[][] segment(int red, int green, int blue) {
+        byte[][] masks = new byte[lowerBounds.size()][1];
+
+        JavaColorSegmenter.segmentByColors(new byte[] {(byte) red, (byte) green, (byte) blue}, 3, masks, lowerBounds, upperBounds);
+
+        return masks;
+    }
+
+    private static byte[] getPixels(Mat mask) {
+        byte[] pixels = new byte[(int) mask.total()];
+        ((ByteBuffer) mask.createBuffer()).get(pixels);
+        return pixels;
+    }
+}
@@ -0,0 +1,85 @@
+package qupath.ext.liverquant.core;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.regions.ImageRegion;
+
+import java.nio.file.Path;
+import java.util.List;
+
+public class TestParametersSerializer {
+
+    @Test
+    void Check_Json_Round_Trip() {
+        String json = ParametersSerializer.toJson(createBuilder().build());
+
+        String jsonOfReadParameters = ParametersSerializer.toJson(ParametersSerializer.fromJson(json, null).build());
+
+        Assertions.assertEquals(json, jsonOfReadParameters);
+    }
+
+    @Test
+    void Check_Read_Values() {
+        String json = ParametersSerializer.toJson(createBuilder().build());
+
+        FatGlobulesDetectorParameters parameters = ParametersSerializer.fromJson(json, null).build();
+
+        Assertions.assertEquals(0.5f, parameters.getPixelSize());
+        Assertions.assertEquals(256, parameters.getTileWidth());
+        Assertions.assertEquals(new HsvArray(10, 0, 200), parameters.getLowerBound());
+        Assertions.assertEquals(List.of(ImagePlane.getPlane(1, 0)), parameters.getPlanes());
+        Assertions.assertEquals(FatGlobulesDetectorParameters.SegmentationBackend.JAVA, parameters.getSegmentationBackend());
+    }
+
+    @Test
+    void Check_Invalid_Json_Rejected() {
+        Assertions.assertThrows(IllegalArgumentException.class, () -> ParametersSerializer.fromJson("{\"tileWidth\": \"wide\"}", null));
+    }
+
+    @Test
+    void Check_Fingerprint_Stable() {
+        String fingerprint = ParametersSerializer.getFingerprint(createBuilder().build());
+
+        Assertions.assertEquals(fingerprint, ParametersSerializer.getFingerprint(createBuilder().build()));
+        Assertions.assertEquals(
+                fingerprint,
+                ParametersSerializer.getFingerprint(ParametersSerializer.fromJson(ParametersSerializer.toJson(createBuilder().build()), null).build())
+        );
+    }
+
+    @Test
+    void Check_Fingerprint_Ignores_Run_Local_Parameters() {
+        String fingerprint = ParametersSerializer.getFingerprint(createBuilder().build());
+
+        String fingerprintOfOtherRun = ParametersSerializer.getFingerprint(createBuilder()
+                .setCheckpointPath(Path.of("other", "checkpoint.txt"))
+                .setResume(true)
+                .setIncrementalStatePath(Path.of("other", "state.txt"))
+                .setPriorityRegion(ImageRegion.createInstance(10, 10, 100, 100, 0, 0))
+                .setPublicationBatchSize(10)
+                .build()
+        );
+
+        Assertions.assertEquals(fingerprint, fingerprintOfOtherRun);
+    }
+
+    @Test
+    void Check_Fingerprint_Depends_On_Results_Parameters() {
+        String fingerprint = ParametersSerializer.getFingerprint(createBuilder().build());
+
+        String fingerprintOfOtherParameters = ParametersSerializer.getFingerprint(createBuilder().setMinDiameter(10).build());
+
+        Assertions.assertNotEquals(fingerprint, fingerprintOfOtherParameters);
+    }
+
+    private static FatGlobulesDetectorParameters.Builder createBuilder() {
+        return new FatGlobulesDetectorParameters.Builder(null)
+                .setPixelSize(0.5f)
+                .setTileWidth(256)
+                .setLowerBound(new HsvArray(10, 0, 200))
+                .setPlanes(List.of(ImagePlane.getPlane(1, 0)))
+                .setSegmentationBackend(FatGlobulesDetectorParameters.SegmentationBackend.JAVA)
+                .setCheckpointPath(Path.of("checkpoint.txt"));
+    }
+}
@@ -0,0 +1,213 @@
+package qupath.ext.liverquant.core;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+public class TestPyramidalTiffWriter {
+
+    private static final int WIDTH = 40;
+    private static final int HEIGHT = 20;
+    private static final int TILE_SIZE = 16;
+    private static final String DESCRIPTION = "test";
+
+    @TempDir
+    Path temporaryDirectory;
+
+    @Test
+    void Check_Number_Of_Tiles() throws IOException {
+        Path path = temporaryDirectory.resolve("labels.tif");
+
+        try (PyramidalTiffWriter writer = new PyramidalTiffWriter(path, WIDTH, HEIGHT, TILE_SIZE, null)) {
+            Assertions.assertEquals(3, writer.getNumberOfColumns());
+            Assertions.assertEquals(2, writer.getNumberOfRows());
+        }
+    }
+
+    @Test
+    void Check_Invalid_Tile_Size_Rejected() {
+        Path path = temporaryDirectory.resolve("labels.tif");
+
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new PyramidalTiffWriter(path, WIDTH, HEIGHT, 10, null));
+    }
+
+    @Test
+    void Check_Tile_Outside_Image_Rejected() throws IOException {
+        Path path = temporaryDirectory.resolve("labels.tif");
+
+        try (PyramidalTiffWriter writer = new PyramidalTiffWriter(path, WIDTH, HEIGHT, TILE_SIZE, null)) {
+            Assertions.assertThrows(IllegalArgumentException.class, () -> writer.writeTile(3, 0, new byte[TILE_SIZE * TILE_SIZE]));
+        }
+    }
+
+    @Test
+    void Check_Header() throws IOException {
+        ByteBuffer file = writeImage();
+
+        Assertions.assertEquals('I', file.get(0));
+        Assertions.assertEquals('I', file.get(1));
+        Assertions.assertEquals(43, file.getShort(2));
+        Assertions.assertEquals(8, file.getShort(4));
+    }
+
+    @Test
+    void Check_Full_Resolution_IFD() throws IOException {
+        ByteBuffer file = writeImage();
+
+        Map<Integer, long[]> ifd = readIfd(file, file.getLong(8));
+
+        Assertions.assertEquals(0, ifd.get(254)[0]);
+        Assertions.assertEquals(WIDTH, ifd.get(256)[0]);
+        Assertions.assertEquals(HEIGHT, ifd.get(257)[0]);
+        Assertions.assertEquals(8, ifd.get(258)[0]);
+        Assertions.assertEquals(8, ifd.get(259)[0]);
+        Assertions.assertEquals(TILE_SIZE, ifd.get(322)[0]);
+        Assertions.assertEquals(TILE_SIZE, ifd.get(323)[0]);
+        Assertions.assertEquals(6, ifd.get(324).length);
+        Assertions.assertEquals(6, ifd.get(325).length);
+        Assertions.assertEquals(DESCRIPTION, readDescription(file, ifd.get(270)));
+    }
+
+    @Test
+    void Check_Lower_Resolution_IFDs() throws IOException {
+        ByteBuffer file = writeImage();
+
+        Map<Integer, long[]> ifd = readIfd(file, file.getLong(8));
+        long[] subIfdOffsets = ifd.get(330);
+
+        // 40x20 -> 20x10 -> 10x5, the last level fitting in one tile
+        Assertions.assertEquals(2, subIfdOffsets.length);
+        Map<Integer, long[]> firstSubIfd = readIfd(file, subIfdOffsets[0]);
+        Assertions.assertEquals(1, firstSubIfd.get(254)[0]);
+        Assertions.assertEquals(WIDTH / 2, firstSubIfd.get(256)[0]);
+        Assertions.assertEquals(HEIGHT / 2, firstSubIfd.get(257)[0]);
+        Map<Integer, long[]> secondSubIfd = readIfd(file, subIfdOffsets[1]);
+        Assertions.assertEquals(WIDTH / 4, secondSubIfd.get(256)[0]);
+        Assertions.assertEquals(HEIGHT / 4, secondSubIfd.get(257)[0]);
+        Assertions.assertFalse(secondSubIfd.containsKey(270));
+    }
+
+    @Test
+    void Check_Written_Tile_Read_Back() throws IOException {
+        ByteBuffer file = writeImage();
+
+        Map<Integer, long[]> ifd = readIfd(file, file.getLong(8));
+
+        Assertions.assertArrayEquals(createTile(), readTile(file, ifd, 0));
+    }
+
+    @Test
+    void Check_Unwritten_Tiles_Share_Empty_Tile() throws IOException {
+        ByteBuffer file = writeImage();
+
+        Map<Integer, long[]> ifd = readIfd(file, file.getLong(8));
+        long[] offsets = ifd.get(324);
+
+        Assertions.assertArrayEquals(new byte[TILE_SIZE * TILE_SIZE], readTile(file, ifd, 1));
+        for (int i=2; i<offsets.length; ++i) {
+            Assertions.assertEquals(offsets[1], offsets[i]);
+        }
+    }
+
+    @Test
+    void Check_Lower_Resolution_Keeps_Maximum() throws IOException {
+        ByteBuffer file = writeImage();
+
+        Map<Integer, long[]> subIfd = readIfd(file, readIfd(file, file.getLong(8)).get(330)[0]);
+        byte[] pixels = readTile(file, subIfd, 0);
+
+        // The label at (3, 5) of the full resolution level is the maximum of the 2x2 block at (1, 2)
+        Assertions.assertEquals(7, pixels[2 * TILE_SIZE + 1]);
+        Assertions.assertEquals(0, pixels[0]);
+    }
+
+    private ByteBuffer writeImage() throws IOException {
+        Path path = temporaryDirectory.resolve("labels.tif");
+
+        try (PyramidalTiffWriter writer = new PyramidalTiffWriter(path, WIDTH, HEIGHT, TILE_SIZE, DESCRIPTION)) {
+            writer.writeTile(0, 0, createTile());
+            writer.writeTile(1, 0, new byte[TILE_SIZE * TILE_SIZE]);
+        }
+
+        return ByteBuffer.wrap(Files.readAllBytes(path)).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static byte[] createTile() {
+        byte[] pixels = new byte[TILE_SIZE * TILE_SIZE];
+        pixels[5 * TILE_SIZE + 3] = 7;
+        pixels[5 * TILE_SIZE + 2] = 2;
+        return pixels;
+    }
+
+    private static Map<Integer, long[]> readIfd(ByteBuffer file, long offset) {
+        Map<Integer, long[]> entries = new HashMap<>();
+        long numberOfEntries = file.getLong((int) offset);
+
+        for (int i=0; i<numberOfEntries; ++i) {
+            int entryOffset = (int) offset + 8 + i * 20;
+            int tag = file.getShort(entryOffset) & 0xFFFF;
+            short type = file.getShort(entryOffset + 2);
+            int count = (int) file.getLong(entryOffset + 4);
+            int size = switch (type) {
+                case 2 -> 1;
+                case 3 -> 2;
+                case 4 -> 4;
+                default -> 8;
+            };
+            int valueOffset = size * count <= 8 ? entryOffset + 12 : (int) file.getLong(entryOffset + 12);
+
+            long[] values = new long[count];
+            for (int j=0; j<count; ++j) {
+                values[j] = switch (size) {
+                    case 1 -> file.get(valueOffset + j);
+                    case 2 -> file.getShort(valueOffset + 2 * j) & 0xFFFF;
+                    case 4 -> file.getInt(valueOffset + 4 * j) & 0xFFFFFFFFL;
+                    default -> file.getLong(valueOffset + 8 * j);
+                };
+            }
+            entries.put(tag, values);
+        }
+
+        return entries;
+    }
+
+    private static String readDescription(ByteBuffer file, long[] characters) {
+        StringBuilder description = new StringBuilder();
+        for (long character: characters) {
+            if (character != 0) {
+                description.append((char) character);
+            }
+        }
+        return description.toString();
+    }
+
+    private static byte[] readTile(ByteBuffer file, Map<Integer, long[]> ifd, int index) {
+        byte[] compressedPixels = new byte[(int) ifd.get(325)[index]];
+        file.get((int) ifd.get(324)[index], compressedPixels);
+
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressedPixels);
+            byte[] pixels = new byte[TILE_SIZE * TILE_SIZE];
+            int length = 0;
+            while (length < pixels.length && !inflater.finished()) {
+                length += inflater.inflate(pixels, length, pixels.length - length);
+            }
+            return pixels;
+        } catch (DataFormatException e) {
+            throw new AssertionError(e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package qupath.ext.liverquant.core;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+import java.util.List;
+import java.util.Map;
+
+public class TestTilePlan {
+
+    private static final int TILE_SIZE = 100;
+
+    @Test
+    void Check_Close_Objects_Processed_Together() {
+        PathObject firstObject = createAnnotation(0, 0, 50, 50);
+        PathObject secondObject = createAnnotation(60, 0, 30, 50);
+
+        TilePlan tilePlan = TilePlan.create(List.of(firstObject, secondObject), createParameters());
+
+        Assertions.assertEquals(1, tilePlan.getObjectsToProcess().size());
+        Assertions.assertEquals(List.of(firstObject, secondObject), tilePlan.getMembers(tilePlan.getObjectsToProcess().get(0)));
+        Assertions.assertEquals(1, tilePlan.getNumberOfSavedTiles());
+    }
+
+    @Test
+    void Check_Distant_Objects_Processed_Separately() {
+        PathObject firstObject = createAnnotation(0, 0, 50, 50);
+        PathObject secondObject = createAnnotation(1000, 1000, 50, 50);
+
+        TilePlan tilePlan = TilePlan.create(List.of(firstObject, secondObject), createParameters());
+
+        Assertions.assertEquals(List.of(firstObject, secondObject), tilePlan.getObjectsToProcess());
+        Assertions.assertEquals(List.of(firstObject), tilePlan.getMembers(firstObject));
+        Assertions.assertEquals(0, tilePlan.getNumberOfSavedTiles());
+    }
+
+    @Test
+    void Check_Objects_On_Different_Planes_Processed_Separately() {
+        PathObject firstObject = createAnnotation(0, 0, 50, 50);
+        PathObject secondObject = PathObjects.createAnnotationObject(ROIs.createRectangleROI(60, 0, 30, 50, ImagePlane.getPlane(1, 0)));
+
+        TilePlan tilePlan = TilePlan.create(List.of(firstObject, secondObject), createParameters());
+
+        Assertions.assertEquals(List.of(firstObject, secondObject), tilePlan.getObjectsToProcess());
+    }
+
+    @Test
+    void Check_Globule_Assigned_To_Member_Containing_Centroid() {
+        PathObject firstMember = createAnnotation(0, 0, 50, 50);
+        PathObject secondMember = createAnnotation(60, 0, 30, 50);
+        PathObject globule = createGlobule(65, 10, 10, 10);
+
+        Map<PathObject, List<PathObject>> globulesOfMembers = TilePlan.assignToMembers(
+                List.of(firstMember, secondMember),
+                List.of(globule),
+                FatGlobulesDetectorParameters.ObjectToCreate.DETECTION
+        );
+
+        Assertions.assertEquals(Map.of(secondMember, List.of(globule)), globulesOfMembers);
+    }
+
+    @Test
+    void Check_Globule_Outside_Members_Assigned_To_Intersecting_Member() {
+        PathObject firstMember = createAnnotation(0, 0, 50, 50);
+        PathObject secondMember = createAnnotation(60, 0, 30, 50);
+        PathObject globule = createGlobule(52, 10, 10, 10);
+
+        Map<PathObject, List<PathObject>> globulesOfMembers = TilePlan.assignToMembers(
+                List.of(firstMember, secondMember),
+                List.of(globule),
+                FatGlobulesDetectorParameters.ObjectToCreate.DETECTION
+        );
+
+        Assertions.assertEquals(Map.of(secondMember, List.of(globule)), globulesOfMembers);
+    }
+
+    @Test
+    void Check_Globule_In_Overlapping_Members_Copied() {
+        PathObject firstMember = createAnnotation(0, 0, 50, 50);
+        PathObject secondMember = createAnnotation(25, 0, 50, 50);
+        PathObject globule = createGlobule(30, 10, 10, 10);
+
+        Map<PathObject, List<PathObject>> globulesOfMembers = TilePlan.assignToMembers(
+                List.of(firstMember, secondMember),
+                List.of(globule),
+                FatGlobulesDetectorParameters.ObjectToCreate.DETECTION
+        );
+
+        Assertions.assertEquals(List.of(globule), globulesOfMembers.get(firstMember));
+        Assertions.assertEquals(1, globulesOfMembers.get(secondMember).size());
+        Assertions.assertNotSame(globule, globulesOfMembers.get(secondMember).get(0));
+        Assertions.assertSame(globule.getROI(), globulesOfMembers.get(secondMember).get(0).getROI());
+    }
+
+    private static FatGlobulesDetectorParameters createParameters() {
+        return new FatGlobulesDetectorParameters.Builder(null)
+                .setTileWidth(TILE_SIZE)
+                .setTileHeight(TILE_SIZE)
+                .build();
+    }
+
+    private static PathObject createAnnotation(double x, double y, double width, double height) {
+        return PathObjects.createAnnotationObject(ROIs.createRectangleROI(x, y, width, height, ImagePlane.getDefaultPlane()));
+    }
+
+    private static PathObject createGlobule(double x, double y, double width, double height) {
+        return PathObjects.createDetectionObject(ROIs.createRectangleROI(x, y, width, height, ImagePlane.getDefaultPlane()));
+    }
+}